@@ -0,0 +1,143 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.java.sip.communicator.impl.protocol.jabber.extensions;
+
+import java.io.*;
+
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.provider.*;
+import org.xmlpull.mxp1.*;
+import org.xmlpull.v1.*;
+
+/**
+ * The recorded XMPP packets the benchmarks work on, in
+ * <tt>src/main/resources/xmpp</tt> :
+ * <ul>
+ * <li><tt>session-initiate.xml</tt> : the session-initiate of a conference
+ * with audio and video (bundled, with rtcp-mux) a <tt>FakeUser</tt>
+ * receives when it joins;</li>
+ * <li><tt>source-add.xml</tt> : the source-add it receives when another
+ * participant joins;</li>
+ * <li><tt>colibri-conference.xml</tt> : the allocation of the audio and video
+ * channels and of the SCTP connection of an endpoint by the bridge.</li>
+ * </ul>
+ */
+public class Fixtures
+{
+    /**
+     * The recorded session-initiate.
+     */
+    public static final String SESSION_INITIATE = "/xmpp/session-initiate.xml";
+
+    /**
+     * The recorded source-add.
+     */
+    public static final String SOURCE_ADD = "/xmpp/source-add.xml";
+
+    /**
+     * The recorded Colibri conference.
+     */
+    public static final String COLIBRI_CONFERENCE
+        = "/xmpp/colibri-conference.xml";
+
+    /**
+     * This class only has static methods.
+     */
+    private Fixtures()
+    {
+    }
+
+    /**
+     * Reads the fixture <tt>name</tt> from the class path.
+     *
+     * @param name the path of the fixture.
+     * @return the XML of the fixture.
+     * @throws IOException if the fixture can't be read.
+     */
+    public static String read(String name)
+        throws IOException
+    {
+        InputStream in = Fixtures.class.getResourceAsStream(name);
+        if(in == null)
+            throw new FileNotFoundException(name);
+
+        try
+        {
+            Reader reader = new InputStreamReader(in, "UTF-8");
+            StringBuilder xml = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while((read = reader.read(buffer)) != -1)
+                xml.append(buffer, 0, read);
+            return xml.toString().trim();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Creates a parser configured the way smack configures the parser of a
+     * connection.
+     *
+     * @return a new namespace aware parser.
+     * @throws XmlPullParserException if the parser can't be configured.
+     */
+    public static XmlPullParser createParser()
+        throws XmlPullParserException
+    {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return parser;
+    }
+
+    /**
+     * Parses the child element of the IQ <tt>xml</tt> with
+     * <tt>provider</tt>, the way smack does.
+     *
+     * @param parser the parser, reused like the parser of a connection.
+     * @param provider the provider of the child element of the IQ.
+     * @param xml the XML of the IQ.
+     * @return the parsed IQ.
+     * @throws Exception if the IQ can't be parsed.
+     */
+    public static IQ parseIQ(XmlPullParser parser, IQProvider provider,
+        String xml)
+        throws Exception
+    {
+        parser.setInput(new StringReader(xml));
+        // <iq/>, then its child element
+        parser.nextTag();
+        parser.nextTag();
+        return provider.parseIQ(parser);
+    }
+
+    /**
+     * Parses the fixture <tt>name</tt> with <tt>provider</tt>.
+     *
+     * @param provider the provider of the child element of the IQ.
+     * @param name the path of the fixture.
+     * @return the parsed IQ.
+     * @throws Exception if the fixture can't be read or parsed.
+     */
+    public static IQ parseIQ(IQProvider provider, String name)
+        throws Exception
+    {
+        return parseIQ(createParser(), provider, read(name));
+    }
+}
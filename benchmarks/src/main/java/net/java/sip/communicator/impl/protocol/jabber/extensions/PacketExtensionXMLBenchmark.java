@@ -0,0 +1,272 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.java.sip.communicator.impl.protocol.jabber.extensions;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+
+import org.jivesoftware.smack.packet.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Measures the serialization of the contents of a realistic session-accept
+ * (audio and video, with their payload types, header extensions, ICE
+ * transport, DTLS fingerprint and candidates) : the recursive
+ * <tt>toXML()</tt> the extensions used to do, against the cached XML of
+ * <tt>AbstractPacketExtension</tt>, unchanged or after the change of a single
+ * candidate.
+ *
+ * Run it with <tt>-prof gc</tt> to get the allocation per serialization
+ * (<tt>gc.alloc.rate.norm</tt>).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketExtensionXMLBenchmark
+{
+    /**
+     * The session-accept.
+     */
+    private JingleIQ sessionAccept;
+
+    /**
+     * The contents of the session-accept.
+     */
+    private List<ContentPacketExtension> contents;
+
+    /**
+     * The candidate changed by <tt>changedCandidate</tt>.
+     */
+    private CandidatePacketExtension candidate;
+
+    /**
+     * The generation given to <tt>candidate</tt>.
+     */
+    private int generation = 0;
+
+    @Setup
+    public void setup()
+        throws URISyntaxException
+    {
+        contents = new ArrayList<ContentPacketExtension>();
+        contents.add(createContent("audio",
+            new String[] { "opus", "ISAC", "PCMU", "PCMA", "telephone-event" },
+            new int[] { 111, 103, 0, 8, 126 },
+            new int[] { 48000, 16000, 8000, 8000, 8000 }));
+        contents.add(createContent("video",
+            new String[] { "VP8", "red", "ulpfec", "rtx" },
+            new int[] { 100, 116, 117, 96 },
+            new int[] { 90000, 90000, 90000, 90000 }));
+
+        sessionAccept = JinglePacketFactory.createSessionAccept(
+            "focus@conference.example.com/focus",
+            "room@conference.example.com/user",
+            "1a2b3c4d5e6f",
+            contents);
+
+        candidate = contents.get(1)
+            .getFirstChildOfType(IceUdpTransportPacketExtension.class)
+            .getCandidateList().get(0);
+    }
+
+    /**
+     * The serialization of the contents the way the extensions used to do
+     * it : a new <tt>StringBuilder</tt> and <tt>String</tt> per element.
+     */
+    @Benchmark
+    public void legacy(Blackhole bh)
+    {
+        for(ContentPacketExtension content : contents)
+            bh.consume(legacyToXML(content));
+    }
+
+    /**
+     * The serialization of the unchanged contents (e.g. the session-accept
+     * serialized to be sent, then to be traced).
+     */
+    @Benchmark
+    public void cached(Blackhole bh)
+    {
+        for(ContentPacketExtension content : contents)
+            bh.consume(content.toXML());
+    }
+
+    /**
+     * The serialization of the contents after the change of a candidate :
+     * only the candidate and its ancestors are rebuilt.
+     */
+    @Benchmark
+    public void changedCandidate(Blackhole bh)
+    {
+        candidate.setGeneration(generation++ & 1);
+        for(ContentPacketExtension content : contents)
+            bh.consume(content.toXML());
+    }
+
+    /**
+     * The serialization of the whole (unchanged) session-accept IQ.
+     */
+    @Benchmark
+    public String sessionAccept()
+    {
+        return sessionAccept.toXML();
+    }
+
+    /**
+     * The former implementation of <tt>AbstractPacketExtension.toXML</tt>.
+     */
+    private static String legacyToXML(PacketExtension ext)
+    {
+        if(!(ext instanceof AbstractPacketExtension))
+            return ext.toXML();
+
+        AbstractPacketExtension ape = (AbstractPacketExtension) ext;
+        StringBuilder bldr = new StringBuilder();
+
+        bldr.append("<").append(ape.getElementName()).append(" ");
+
+        String namespace = ape.getNamespace();
+
+        if(namespace != null)
+            bldr.append("xmlns='").append(namespace).append("'");
+
+        for(String name : ape.getAttributeNames())
+        {
+            bldr.append(" ").append(name).append("='")
+                    .append(ape.getAttributeAsString(name)).append("'");
+        }
+
+        List<? extends PacketExtension> childElements
+            = ape.getChildExtensions();
+        String text = ape.getText();
+        List<Packet> packets = ape.getPackets();
+
+        synchronized(childElements)
+        {
+            if (childElements.isEmpty() && packets.isEmpty()
+                    && ((text == null) || (text.length() == 0)))
+            {
+                bldr.append("/>");
+                return bldr.toString();
+            }
+            else
+            {
+                bldr.append(">");
+                for(PacketExtension packExt : childElements)
+                    bldr.append(legacyToXML(packExt));
+                for(Packet packet : packets)
+                    bldr.append(packet.toXML());
+            }
+        }
+
+        if((text != null) && (text.trim().length() > 0))
+            bldr.append(text);
+
+        bldr.append("</").append(ape.getElementName()).append(">");
+
+        return bldr.toString();
+    }
+
+    /**
+     * Create a content the way a videobridge offers it.
+     */
+    private static ContentPacketExtension createContent(
+        String media,
+        String[] names,
+        int[] ids,
+        int[] clockRates)
+        throws URISyntaxException
+    {
+        ContentPacketExtension content = new ContentPacketExtension(
+            ContentPacketExtension.CreatorEnum.responder,
+            media);
+        content.setSenders(ContentPacketExtension.SendersEnum.both);
+
+        RtpDescriptionPacketExtension description
+            = new RtpDescriptionPacketExtension(media);
+        description.setSsrc("3735928559");
+        for(int i = 0; i < names.length; i++)
+        {
+            PayloadTypePacketExtension pt = new PayloadTypePacketExtension();
+            pt.setId(ids[i]);
+            pt.setName(names[i]);
+            pt.setClockrate(clockRates[i]);
+            if("opus".equals(names[i]))
+            {
+                pt.setChannels(2);
+                pt.addParameter(new ParameterPacketExtension("minptime", "10"));
+                pt.addParameter(
+                    new ParameterPacketExtension("useinbandfec", "1"));
+            }
+            else if("rtx".equals(names[i]))
+            {
+                pt.addParameter(new ParameterPacketExtension("apt", "100"));
+            }
+            description.addPayloadType(pt);
+        }
+
+        RTPHdrExtPacketExtension hdrExt = new RTPHdrExtPacketExtension();
+        hdrExt.setID("1");
+        hdrExt.setURI(new URI("urn:ietf:params:rtp-hdrext:ssrc-audio-level"));
+        description.addExtmap(hdrExt);
+        RTPHdrExtPacketExtension absSendTime = new RTPHdrExtPacketExtension();
+        absSendTime.setID("3");
+        absSendTime.setURI(new URI(
+            "http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time"));
+        description.addExtmap(absSendTime);
+        content.addChildExtension(description);
+
+        IceUdpTransportPacketExtension transport
+            = new IceUdpTransportPacketExtension();
+        transport.setUfrag("4k2h1" + media);
+        transport.setPassword("1v5om2i9q1p9bbl8h3ntcnav5e");
+
+        DtlsFingerprintPacketExtension fingerprint
+            = new DtlsFingerprintPacketExtension();
+        fingerprint.setHash("sha-1");
+        fingerprint.setFingerprint("6A:71:9D:A5:11:71:E1:58:3E:63:B1:8A:"
+            + "6B:84:C1:0F:A7:2D:48:0B");
+        transport.addChildExtension(fingerprint);
+
+        for(int i = 0; i < 4; i++)
+        {
+            CandidatePacketExtension candidate
+                = new CandidatePacketExtension();
+            candidate.setComponent(1 + (i & 1));
+            candidate.setFoundation(String.valueOf(1 + i / 2));
+            candidate.setGeneration(0);
+            candidate.setID("candidate" + i + media);
+            candidate.setIP((i < 2) ? "10.0.0.12" : "203.0.113.7");
+            candidate.setNetwork(0);
+            candidate.setPort(10000 + i);
+            candidate.setPriority(2130706431L - i);
+            candidate.setProtocol("udp");
+            candidate.setType((i < 2) ? CandidateType.host : CandidateType.srflx);
+            transport.addCandidate(candidate);
+        }
+        content.addChildExtension(transport);
+
+        return content;
+    }
+}
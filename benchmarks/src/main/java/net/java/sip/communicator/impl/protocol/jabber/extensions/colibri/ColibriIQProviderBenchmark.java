@@ -0,0 +1,78 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.java.sip.communicator.impl.protocol.jabber.extensions.colibri;
+
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
+
+import org.jivesoftware.smack.packet.*;
+import org.openjdk.jmh.annotations.*;
+import org.xmlpull.v1.*;
+
+/**
+ * Measures the throughput of <tt>ColibriIQProvider.parseIQ</tt> over the
+ * recorded Colibri conference of <tt>Fixtures</tt> : the audio and video
+ * channels (payload types, sources, ICE transport and candidates) and the
+ * SCTP connection of an endpoint.
+ *
+ * Run it with <tt>-prof gc</tt> to get the allocation per parsed IQ
+ * (<tt>gc.alloc.rate.norm</tt>).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ColibriIQProviderBenchmark
+{
+    /**
+     * The provider parsing the IQs.
+     */
+    private ColibriIQProvider provider;
+
+    /**
+     * The parser, reused like smack reuses the parser of a connection.
+     */
+    private XmlPullParser parser;
+
+    /**
+     * The recorded Colibri conference.
+     */
+    private String conference;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        provider = new ColibriIQProvider();
+        parser = Fixtures.createParser();
+
+        conference = Fixtures.read(Fixtures.COLIBRI_CONFERENCE);
+    }
+
+    /**
+     * The parsing of a Colibri conference.
+     */
+    @Benchmark
+    public IQ conference()
+        throws Exception
+    {
+        return Fixtures.parseIQ(parser, provider, conference);
+    }
+}
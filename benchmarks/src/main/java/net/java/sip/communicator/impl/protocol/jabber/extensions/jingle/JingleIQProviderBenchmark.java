@@ -0,0 +1,104 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.java.sip.communicator.impl.protocol.jabber.extensions.jingle;
+
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.xmlpull.v1.*;
+
+/**
+ * Measures the throughput of <tt>JingleIQProvider.parseIQ</tt> over the
+ * recorded session-initiate and source-add of <tt>Fixtures</tt>, the Jingle
+ * IQs each <tt>FakeUser</tt> receives when joining and whenever a
+ * participant joins the conference.
+ *
+ * The providers are registered the way the <tt>Hammer</tt> registers them,
+ * so the <tt>source</tt> elements are skipped as they are in the hammer.
+ * Run it with <tt>-prof gc</tt> to get the allocation per parsed IQ
+ * (<tt>gc.alloc.rate.norm</tt>).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JingleIQProviderBenchmark
+{
+    /**
+     * The provider parsing the IQs.
+     */
+    private JingleIQProvider provider;
+
+    /**
+     * The parser, reused like smack reuses the parser of a connection.
+     */
+    private XmlPullParser parser;
+
+    /**
+     * The recorded session-initiate.
+     */
+    private String sessionInitiate;
+
+    /**
+     * The recorded source-add.
+     */
+    private String sourceAdd;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        provider = new JingleIQProvider();
+        parser = Fixtures.createParser();
+
+        sessionInitiate = Fixtures.read(Fixtures.SESSION_INITIATE);
+        sourceAdd = Fixtures.read(Fixtures.SOURCE_ADD);
+    }
+
+    /**
+     * The parsing of a session-initiate.
+     */
+    @Benchmark
+    public JingleIQ sessionInitiate()
+        throws Exception
+    {
+        return parse(sessionInitiate);
+    }
+
+    /**
+     * The parsing of a source-add.
+     */
+    @Benchmark
+    public JingleIQ sourceAdd()
+        throws Exception
+    {
+        return parse(sourceAdd);
+    }
+
+    /**
+     * Parses the <tt>jingle</tt> element of the IQ <tt>xml</tt>.
+     */
+    private JingleIQ parse(String xml)
+        throws Exception
+    {
+        return (JingleIQ) Fixtures.parseIQ(parser, provider, xml);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.java.sip.communicator.impl.protocol.jabber.jinglesdp;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.ContentPacketExtension.*;
+import net.java.sip.communicator.service.protocol.media.*;
+
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.format.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Measures the steps of the answer of a <tt>FakeUser</tt> to the recorded
+ * session-initiate of <tt>Fixtures</tt> : the extraction of the offered
+ * <tt>MediaFormat</tt>s and RTP extensions from the descriptions of its
+ * contents, and the creation of the descriptions of the session-accept.
+ *
+ * Like each <tt>FakeUser</tt>, each extraction uses its own
+ * <tt>DynamicPayloadTypeRegistry</tt> and
+ * <tt>DynamicRTPExtensionsRegistry</tt>. Run it with <tt>-prof gc</tt> to
+ * get the allocation per session (<tt>gc.alloc.rate.norm</tt>).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JingleUtilsBenchmark
+{
+    /**
+     * The names of the contents of the session-initiate.
+     */
+    private List<String> names;
+
+    /**
+     * The descriptions of the contents of the session-initiate.
+     */
+    private List<RtpDescriptionPacketExtension> descriptions;
+
+    /**
+     * The formats extracted from <tt>descriptions</tt>.
+     */
+    private List<List<MediaFormat>> formats;
+
+    /**
+     * The RTP extensions extracted from <tt>descriptions</tt>.
+     */
+    private List<List<RTPExtension>> rtpExtensions;
+
+    /**
+     * The registry the formats were extracted with.
+     */
+    private DynamicPayloadTypeRegistry ptRegistry;
+
+    /**
+     * The registry the RTP extensions were extracted with.
+     */
+    private DynamicRTPExtensionsRegistry rtpExtRegistry;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        LibJitsi.start();
+
+        JingleIQ sessionInitiate = (JingleIQ) Fixtures.parseIQ(
+            new JingleIQProvider(), Fixtures.SESSION_INITIATE);
+
+        names = new ArrayList<String>();
+        descriptions = new ArrayList<RtpDescriptionPacketExtension>();
+        for(ContentPacketExtension content : sessionInitiate.getContentList())
+        {
+            RtpDescriptionPacketExtension description
+                = content.getFirstChildOfType(
+                    RtpDescriptionPacketExtension.class);
+            if(description != null)
+            {
+                names.add(content.getName());
+                descriptions.add(description);
+            }
+        }
+
+        ptRegistry = new DynamicPayloadTypeRegistry();
+        rtpExtRegistry = new DynamicRTPExtensionsRegistry();
+        formats = new ArrayList<List<MediaFormat>>();
+        rtpExtensions = new ArrayList<List<RTPExtension>>();
+        for(RtpDescriptionPacketExtension description : descriptions)
+        {
+            formats.add(JingleUtils.extractFormats(description, ptRegistry));
+            rtpExtensions.add(
+                JingleUtils.extractRTPExtensions(description, rtpExtRegistry));
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        LibJitsi.stop();
+    }
+
+    /**
+     * The extraction of the formats and RTP extensions of the offer.
+     */
+    @Benchmark
+    public void extractFormats(Blackhole bh)
+    {
+        DynamicPayloadTypeRegistry ptRegistry
+            = new DynamicPayloadTypeRegistry();
+        DynamicRTPExtensionsRegistry rtpExtRegistry
+            = new DynamicRTPExtensionsRegistry();
+
+        for(RtpDescriptionPacketExtension description : descriptions)
+        {
+            bh.consume(JingleUtils.extractFormats(description, ptRegistry));
+            bh.consume(
+                JingleUtils.extractRTPExtensions(description, rtpExtRegistry));
+        }
+    }
+
+    /**
+     * The creation of the descriptions of the answer.
+     */
+    @Benchmark
+    public void createDescription(Blackhole bh)
+    {
+        for(int i = 0; i < names.size(); i++)
+        {
+            bh.consume(JingleUtils.createDescription(
+                CreatorEnum.responder,
+                names.get(i),
+                SendersEnum.both,
+                formats.get(i),
+                rtpExtensions.get(i),
+                ptRegistry,
+                rtpExtRegistry));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ice4j.ice.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the allocation of the ICE <tt>Agent</tt> of a <tt>FakeUser</tt>
+ * by <tt>IceMediaStreamGenerator</tt> : the creation of the audio and video
+ * streams, whose components bind their host candidates, then the release of
+ * the agent and of its ports.
+ *
+ * The streams have two components (RTP and RTCP), or a single one if
+ * <tt>rtcpMux</tt>. Run it with <tt>-prof gc</tt> to get the allocation per
+ * agent (<tt>gc.alloc.rate.norm</tt>).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IceMediaStreamGeneratorBenchmark
+{
+    /**
+     * Whether the streams multiplex RTP and RTCP on a single component.
+     */
+    @Param({"false", "true"})
+    public boolean rtcpMux;
+
+    /**
+     * The generator, with its own range of ports.
+     */
+    private IceMediaStreamGenerator generator;
+
+    /**
+     * The names of the streams of an agent.
+     */
+    private Set<String> mediaNames;
+
+    /**
+     * The names of the streams multiplexing RTP and RTCP.
+     */
+    private Set<String> rtcpMuxNames;
+
+    @Setup
+    public void setup()
+    {
+        generator = new IceMediaStreamGenerator(40000, 49999);
+        mediaNames = new HashSet<String>(Arrays.asList("audio", "video"));
+        rtcpMuxNames = rtcpMux
+            ? mediaNames
+            : Collections.<String>emptySet();
+    }
+
+    /**
+     * The allocation and release of an agent.
+     */
+    @Benchmark
+    public Agent agent()
+        throws Exception
+    {
+        Agent agent = new Agent();
+        try
+        {
+            generator.generateIceMediaStream(
+                agent,
+                mediaNames,
+                rtcpMuxNames,
+                null,
+                null);
+        }
+        finally
+        {
+            agent.free();
+            generator.release(agent);
+        }
+        return agent;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+import org.jitsi.service.neomedia.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Measures the generation of the "users" part of the all stats file for one
+ * interval : the <tt>String.format()</tt> based generation the hammer used to
+ * do, against the streaming generation of
+ * <tt>FakeUserStats.appendStatsJSON</tt> into a reused
+ * <tt>StringBuilder</tt>, and against <tt>FakeUserStats.getStatsJSON</tt>.
+ *
+ * Run it with <tt>-prof gc</tt> to get the allocation per interval
+ * (<tt>gc.alloc.rate.norm</tt>).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FakeUserStatsBenchmark
+{
+    /**
+     * The number of users of an interval.
+     */
+    @Param({"100", "1000"})
+    public int users;
+
+    /**
+     * The <tt>FakeUserStats</tt> of the users.
+     */
+    private FakeUserStats[] stats;
+
+    /**
+     * The <tt>StringBuilder</tt> reused by the streaming generation.
+     */
+    private final StringBuilder builder = new StringBuilder();
+
+    @Setup
+    public void setup()
+    {
+        stats = new FakeUserStats[users];
+        for(int i = 0; i < users; i++)
+        {
+            FakeUserStats s = new FakeUserStats("user" + i);
+            s.setMediaStreamStats(
+                createStream(AudioMediaStream.class, 1000 + i));
+            s.setMediaStreamStats(
+                createStream(VideoMediaStream.class, 2000 + i));
+            stats[i] = s;
+        }
+    }
+
+    /**
+     * The generation of the JSON the way <tt>HammerStats</tt> used to do it :
+     * one <tt>String.format()</tt> per user, indented with
+     * <tt>replaceAll()</tt>, concatenated in a <tt>StringBuilder</tt> and
+     * converted to a <tt>String</tt>.
+     */
+    @Benchmark
+    public String format()
+    {
+        StringBuilder allBldr = new StringBuilder();
+        String delim = "";
+        for(FakeUserStats s : stats)
+        {
+            allBldr.append(delim + formatStatsJSON(s, 2) + '\n');
+            delim = ",";
+        }
+        return allBldr.toString();
+    }
+
+    /**
+     * The streaming generation of the JSON into a reused
+     * <tt>StringBuilder</tt>.
+     */
+    @Benchmark
+    public void streaming(Blackhole bh)
+    {
+        builder.setLength(0);
+        for(int i = 0; i < stats.length; i++)
+        {
+            if(i != 0)
+                builder.append(',');
+            stats[i].appendStatsJSON(builder, 2);
+            builder.append('\n');
+        }
+        bh.consume(builder);
+    }
+
+    /**
+     * The generation of the JSON of each user with
+     * <tt>FakeUserStats.getStatsJSON</tt>, a <tt>String</tt> per user.
+     */
+    @Benchmark
+    public void getStatsJSON(Blackhole bh)
+    {
+        for(FakeUserStats s : stats)
+            bh.consume(s.getStatsJSON(2));
+    }
+
+    /**
+     * The former implementation of <tt>FakeUserStats.getStatsJSON</tt>, on
+     * the same stubbed stats, user name and SSRCs as the other benchmarks.
+     */
+    private static String formatStatsJSON(FakeUserStats s, int spaceIndent)
+    {
+        MediaStreamStats audioStats = s.getMediaStreamStats(MediaType.AUDIO);
+        MediaStreamStats videoStats = s.getMediaStreamStats(MediaType.VIDEO);
+        String indent = new String(new char[spaceIndent]).replace("\0" ,  " ");
+        StringBuilder builder = new StringBuilder();
+        builder.append(indent + "{\n");
+        builder.append(indent + "  \"username\" : \"" + s.getUsername()
+            + "\" , \n");
+        builder.append(indent + "  \"streams\" :\n");
+
+        String str = String.format(FakeUserStats.jsonTemplate,
+            s.getSSRC(MediaType.AUDIO),
+            audioStats.getDownloadJitterMs() ,
+            audioStats.getDownloadPercentLoss() ,
+            audioStats.getDownloadRateKiloBitPerSec() ,
+            audioStats.getJitterBufferDelayMs() ,
+            audioStats.getJitterBufferDelayPackets() ,
+            audioStats.getNbDiscarded() ,
+            audioStats.getNbDiscardedFull() ,
+            audioStats.getNbDiscardedLate() ,
+            audioStats.getNbDiscardedReset() ,
+            audioStats.getNbDiscardedShrink() ,
+            audioStats.getNbFec() ,
+            audioStats.getNbPackets() ,
+            audioStats.getNbPacketsLost() ,
+            audioStats.getNbReceivedBytes() ,
+            audioStats.getNbSentBytes() ,
+            audioStats.getPacketQueueCountPackets() ,
+            audioStats.getPacketQueueSize() ,
+            audioStats.getPercentDiscarded() ,
+            audioStats.getRttMs() ,
+            audioStats.getUploadJitterMs(),
+            audioStats.getUploadPercentLoss() ,
+            audioStats.getUploadRateKiloBitPerSec() ,
+
+            s.getSSRC(MediaType.VIDEO),
+            videoStats.getDownloadJitterMs() ,
+            videoStats.getDownloadPercentLoss() ,
+            videoStats.getDownloadRateKiloBitPerSec() ,
+            videoStats.getJitterBufferDelayMs() ,
+            videoStats.getJitterBufferDelayPackets() ,
+            videoStats.getNbDiscarded() ,
+            videoStats.getNbDiscardedFull() ,
+            videoStats.getNbDiscardedLate() ,
+            videoStats.getNbDiscardedReset() ,
+            videoStats.getNbDiscardedShrink() ,
+            videoStats.getNbFec() ,
+            videoStats.getNbPackets() ,
+            videoStats.getNbPacketsLost() ,
+            videoStats.getNbReceivedBytes() ,
+            videoStats.getNbSentBytes() ,
+            videoStats.getPacketQueueCountPackets() ,
+            videoStats.getPacketQueueSize() ,
+            videoStats.getPercentDiscarded() ,
+            videoStats.getRttMs() ,
+            videoStats.getUploadJitterMs(),
+            videoStats.getUploadPercentLoss() ,
+            videoStats.getUploadRateKiloBitPerSec());
+        str = indent + str.replaceAll("\n", "\n"+indent);
+        builder.append(str + '\n');
+
+        builder.append(indent + "}");
+
+        return builder.toString();
+    }
+
+    /**
+     * Create a <tt>MediaStream</tt> of type <tt>type</tt> whose
+     * <tt>MediaStreamStats</tt> return constant (but realistic) values.
+     */
+    static MediaStream createStream(
+        Class<? extends MediaStream> type,
+        final long ssrc)
+    {
+        final MediaStreamStats streamStats
+            = (MediaStreamStats) Proxy.newProxyInstance(
+                FakeUserStatsBenchmark.class.getClassLoader(),
+                new Class<?>[] { MediaStreamStats.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method m, Object[] args)
+                    {
+                        Class<?> r = m.getReturnType();
+                        int h = m.getName().hashCode() & 0xffff;
+                        if(r == double.class)
+                            return h / 7.0;
+                        if(r == long.class)
+                            return (long) h * 1000 + ssrc;
+                        if(r == int.class)
+                            return h % 100;
+                        return null;
+                    }
+                });
+
+        return (MediaStream) Proxy.newProxyInstance(
+            FakeUserStatsBenchmark.class.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method m, Object[] args)
+                {
+                    if("getMediaStreamStats".equals(m.getName()))
+                        return streamStats;
+                    if("getLocalSourceID".equals(m.getName()))
+                        return ssrc;
+                    return null;
+                }
+            });
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.util.concurrent.*;
+
+import org.jitsi.service.neomedia.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the update of the summary stats of a media type for one interval,
+ * as done by <tt>HammerStats.run</tt> : the deltas of the counters of each
+ * user are taken, their stats are added to the
+ * <tt>HammerSummaryStats</tt>, which is then cleared for the next interval.
+ *
+ * Run it with <tt>-prof gc</tt> to get the allocation per interval
+ * (<tt>gc.alloc.rate.norm</tt>).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HammerSummaryStatsBenchmark
+{
+    /**
+     * The number of users of an interval.
+     */
+    @Param({"100", "1000"})
+    public int users;
+
+    /**
+     * The <tt>MediaStreamStats</tt> of the users.
+     */
+    private MediaStreamStats[] stats;
+
+    /**
+     * The snapshots of the counters of the users.
+     */
+    private CounterSnapshots snapshots;
+
+    /**
+     * The summary stats updated.
+     */
+    private HammerStats.HammerSummaryStats summaryStats;
+
+    @Setup
+    public void setup()
+    {
+        stats = new MediaStreamStats[users];
+        for(int i = 0; i < users; i++)
+        {
+            stats[i] = FakeUserStatsBenchmark.createStream(
+                AudioMediaStream.class, 1000 + i).getMediaStreamStats();
+        }
+        snapshots = new CounterSnapshots();
+
+        // The stats directory is only created when the stats are logged.
+        HammerStats hammerStats
+            = new HammerStats(System.getProperty("java.io.tmpdir"));
+        summaryStats = hammerStats.new HammerSummaryStats();
+    }
+
+    /**
+     * The update of the summary stats for an interval.
+     */
+    @Benchmark
+    public HammerStats.HammerSummaryStats interval()
+    {
+        summaryStats.setIntervalSeconds(1);
+        for(int i = 0; i < stats.length; i++)
+            summaryStats.add(stats[i], snapshots.update(i, stats[i]));
+        summaryStats.clear();
+        return summaryStats;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright @ 2015 AT&T
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.proxy.relay;
+
+import java.net.*;
+import java.util.concurrent.*;
+
+import org.ice4j.socket.*;
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.impl.neomedia.transform.srtp.*;
+import org.jitsi.service.libjitsi.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the packets per second relayed by a <tt>DatagramForwarder</tt>
+ * over the loopback : a sender sends a batch of RTP packets to the
+ * <tt>MultiplexingDatagramSocket</tt> of the source leg, the forwarder
+ * decrypts them, encrypts them again and sends them to a sink, which
+ * receives the batch. An operation is a packet received by the sink, so the
+ * throughput is the pps of the forwarder (with a single core doing its
+ * work).
+ *
+ * With <tt>srtp</tt>, the packets are SRTP-encrypted by the sender (with
+ * the keys of the source leg) and the forwarder uses real SRTP transformers
+ * (AES-CM/HMAC-SHA1) ; without it, its transformers let the packets through,
+ * which gives the cost of the sockets alone.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DatagramForwarderBenchmark
+{
+    /**
+     * The number of packets sent before they are received by the sink.
+     */
+    private static final int BATCH = 32;
+
+    /**
+     * The length of the RTP payload of the packets.
+     */
+    private static final int PAYLOAD_LENGTH = 160;
+
+    /**
+     * The length of the RTP header of the packets.
+     */
+    private static final int HEADER_LENGTH = 12;
+
+    /**
+     * Whether the packets are SRTP-encrypted.
+     */
+    @Param({"false", "true"})
+    public boolean srtp;
+
+    /**
+     * The socket of the source leg, read by the forwarder.
+     */
+    private MultiplexingDatagramSocket source;
+
+    /**
+     * The socket through which the forwarder sends to the sink.
+     */
+    private DatagramSocket out;
+
+    /**
+     * The socket sending the packets to the source leg.
+     */
+    private DatagramSocket sender;
+
+    /**
+     * The socket receiving the packets forwarded.
+     */
+    private DatagramSocket sink;
+
+    /**
+     * The forwarder.
+     */
+    private DatagramForwarder forwarder;
+
+    /**
+     * The transformer encrypting the packets of the sender.
+     */
+    private PacketTransformer senderTransformer;
+
+    /**
+     * The packet sent (its sequence number is incremented for each one).
+     */
+    private RawPacket pkt;
+
+    /**
+     * The buffer of the packet sent.
+     */
+    private byte[] buffer;
+
+    /**
+     * The <tt>DatagramPacket</tt> sent by the sender.
+     */
+    private DatagramPacket sent;
+
+    /**
+     * The <tt>DatagramPacket</tt> received by the sink.
+     */
+    private DatagramPacket received;
+
+    /**
+     * The sequence number of the next packet.
+     */
+    private int seq;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        InetAddress loopback = InetAddress.getByName(null);
+        source = new MultiplexingDatagramSocket(
+            new InetSocketAddress(loopback, 0));
+        out = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        sender = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        sink = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        sink.setSoTimeout(1000);
+
+        PacketTransformer decryptor;
+        PacketTransformer encryptor;
+        if(srtp)
+        {
+            //the SRTP ciphers read their configuration from libjitsi.
+            LibJitsi.start();
+
+            byte[] sourceKey = new byte[16];
+            byte[] destinationKey = new byte[16];
+            byte[] salt = new byte[14];
+            for(int i = 0; i < sourceKey.length; i++)
+            {
+                sourceKey[i] = (byte) i;
+                destinationKey[i] = (byte) (0xff - i);
+            }
+            senderTransformer = createTransformer(true, sourceKey, salt);
+            decryptor = createTransformer(false, sourceKey, salt);
+            encryptor = createTransformer(true, destinationKey, salt);
+        }
+        else
+        {
+            senderTransformer = null;
+            decryptor = new PassThroughTransformer();
+            encryptor = new PassThroughTransformer();
+        }
+
+        forwarder = new DatagramForwarder("benchmark", source);
+        forwarder.addRoute(
+            false,
+            null,
+            decryptor,
+            encryptor,
+            null,
+            new IceUdpSocketWrapper(out),
+            (InetSocketAddress) sink.getLocalSocketAddress());
+        forwarder.start();
+
+        buffer = new byte[RelayPacketPool.DEFAULT_PACKET_SIZE];
+        pkt = new RawPacket(buffer, 0, HEADER_LENGTH + PAYLOAD_LENGTH);
+        buffer[0] = (byte) 0x80;
+        buffer[1] = (byte) 111;
+        buffer[8] = (byte) 0x12;
+        buffer[9] = (byte) 0x34;
+        buffer[10] = (byte) 0x56;
+        buffer[11] = (byte) 0x78;
+        sent = new DatagramPacket(
+            buffer, 0, source.getLocalSocketAddress());
+        received = new DatagramPacket(
+            new byte[RelayPacketPool.DEFAULT_PACKET_SIZE],
+            RelayPacketPool.DEFAULT_PACKET_SIZE);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        forwarder.stop();
+        sender.close();
+        sink.close();
+        out.close();
+        source.close();
+        if(srtp)
+            LibJitsi.stop();
+    }
+
+    /**
+     * Create an SRTP transformer with the AES-CM/HMAC-SHA1-80 policy.
+     * @param sender <tt>true</tt> for an encrypting transformer.
+     * @param key the master key.
+     * @param salt the master salt.
+     * @return the transformer.
+     */
+    private static PacketTransformer createTransformer(
+        boolean sender,
+        byte[] key,
+        byte[] salt)
+    {
+        SRTPPolicy policy = new SRTPPolicy(
+            SRTPPolicy.AESCM_ENCRYPTION, 16,
+            SRTPPolicy.HMACSHA1_AUTHENTICATION, 20,
+            10,
+            14);
+
+        return new SRTPTransformer(
+            new SRTPContextFactory(sender, key, salt, policy, policy));
+    }
+
+    /**
+     * Forward a batch of packets.
+     * @return the number of packets received by the sink.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int forward()
+        throws Exception
+    {
+        for(int i = 0; i < BATCH; i++)
+        {
+            int s = seq++;
+            buffer[2] = (byte) (s >> 8);
+            buffer[3] = (byte) s;
+            buffer[4] = (byte) (s >> 24);
+            buffer[5] = (byte) (s >> 16);
+            buffer[6] = (byte) (s >> 8);
+            buffer[7] = (byte) s;
+            pkt.setBuffer(buffer);
+            pkt.setOffset(0);
+            pkt.setLength(HEADER_LENGTH + PAYLOAD_LENGTH);
+
+            RawPacket p = (senderTransformer == null)
+                ? pkt
+                : senderTransformer.transform(new RawPacket[] { pkt })[0];
+            sent.setData(p.getBuffer(), p.getOffset(), p.getLength());
+            sender.send(sent);
+        }
+
+        int count = 0;
+        try
+        {
+            for(; count < BATCH; count++)
+            {
+                received.setLength(RelayPacketPool.DEFAULT_PACKET_SIZE);
+                sink.receive(received);
+            }
+        }
+        catch (SocketTimeoutException e)
+        {
+            //a packet was lost, the next batch starts anyway.
+        }
+        return count;
+    }
+
+    /**
+     * A <tt>PacketTransformer</tt> which lets the packets through.
+     */
+    private static class PassThroughTransformer
+        extends SinglePacketTransformer
+    {
+        @Override
+        public RawPacket transform(RawPacket pkt)
+        {
+            return pkt;
+        }
+
+        @Override
+        public RawPacket reverseTransform(RawPacket pkt)
+        {
+            return pkt;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
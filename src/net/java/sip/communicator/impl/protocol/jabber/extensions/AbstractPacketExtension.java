@@ -17,6 +17,7 @@ package net.java.sip.communicator.impl.protocol.jabber.extensions;
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.jivesoftware.smack.packet.*;
 
@@ -47,15 +48,44 @@ public abstract class AbstractPacketExtension
     private final String elementName;
 
     /**
-     * A map of all attributes that this extension is currently using.
+     * The initial capacity of the arrays of attributes.
      */
-    protected final Map<String, String> attributes
-                                    = new LinkedHashMap<String, String>();
-    
+    private static final int ATTRIBUTES_INITIAL_CAPACITY = 4;
+
+    /**
+     * The names of the attributes that this extension is currently using, in
+     * the order they were added, or <tt>null</tt> if it hasn't had any.
+     */
+    private String[] attributeNames;
+
+    /**
+     * The values of the attributes, at the index of their names in
+     * <tt>attributeNames</tt>.
+     */
+    private String[] attributeValues;
+
+    /**
+     * The values parsed from the attributes by <tt>getAttributeAsInt</tt>,
+     * at the index of their names in <tt>attributeNames</tt>, or
+     * <tt>null</tt> if none has been parsed yet.
+     */
+    private Integer[] attributeInts;
+
     /**
-     * A list of all packets that are wrapped by this extension.
+     * The number of attributes that this extension is currently using.
      */
-    private final List<Packet> packets = new LinkedList<Packet>();
+    private int attributeCount;
+
+    /**
+     * A list of all packets that are wrapped by this extension, or
+     * <tt>null</tt> until one is added.
+     */
+    private volatile List<Packet> packets;
+
+    /**
+     * The packets wrapped by an extension, when it has none.
+     */
+    private static final Packet[] NO_PACKETS = new Packet[0];
 
     /**
      * The text content of this packet extension, if any.
@@ -63,10 +93,70 @@ public abstract class AbstractPacketExtension
     private String textContent;
 
     /**
-     * A list of extensions registered with this element.
+     * A list of extensions registered with this element, or <tt>null</tt>
+     * until one is added.
      */
-    private final List<PacketExtension> childExtensions
-                                = new ArrayList<PacketExtension>();
+    private volatile List<PacketExtension> childExtensions;
+
+    /**
+     * Whether the XML of each subclass of <tt>AbstractPacketExtension</tt>
+     * can be cached (i.e. the subclass doesn't override <tt>toXML</tt>).
+     */
+    private static final Map<Class<?>, Boolean> cacheableClasses
+        = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    /**
+     * The XML of this extension, along with what it was built from.
+     */
+    private static class XMLCache
+    {
+        /**
+         * The XML of the extension.
+         */
+        final String xml;
+
+        /**
+         * The version of the extension the XML was built from.
+         */
+        final int version;
+
+        /**
+         * The child extensions the XML was built from, or <tt>null</tt> if
+         * there weren't any.
+         */
+        final PacketExtension[] children;
+
+        /**
+         * The versions of the child extensions the XML was built from.
+         */
+        final int[] childVersions;
+
+        XMLCache(
+            String xml,
+            int version,
+            PacketExtension[] children,
+            int[] childVersions)
+        {
+            this.xml = xml;
+            this.version = version;
+            this.children = children;
+            this.childVersions = childVersions;
+        }
+    }
+
+    /**
+     * The cached XML of this extension, or <tt>null</tt> if it has to be
+     * built. Only published while holding the lock of this extension, and
+     * only if it was built from the current <tt>version</tt>.
+     */
+    private volatile XMLCache xmlCache;
+
+    /**
+     * The version of this extension, incremented (while holding the lock of
+     * this extension) each time its attributes, text, namespace or child
+     * extensions are changed.
+     */
+    private volatile int version;
 
     /**
      * Creates an {@link AbstractPacketExtension} instance for the specified
@@ -99,6 +189,7 @@ public abstract class AbstractPacketExtension
     public void setNamespace(String namespace)
     {
         this.namespace = namespace;
+        invalidateXML();
     }
 
     /**
@@ -115,12 +206,58 @@ public abstract class AbstractPacketExtension
 
     /**
      * Returns an XML representation of this extension.
+     * <p>
+     * The XML is cached until this extension, one of its attributes, its
+     * text or one of its child extensions (recursively) changes, so that the
+     * same tree can be serialized several times (e.g. to be sent and traced)
+     * for the cost of a walk checking that it is unchanged.
      *
      * @return an XML representation of this extension.
      */
     public String toXML()
     {
+        XMLCache xmlCache = this.xmlCache;
+        if ((xmlCache != null) && isXMLCacheValid(xmlCache))
+            return xmlCache.xml;
+
         StringBuilder bldr = new StringBuilder();
+        xmlCache = buildXML(bldr);
+        return (xmlCache != null) ? xmlCache.xml : bldr.toString();
+    }
+
+    /**
+     * Appends the XML representation of this extension to <tt>bldr</tt> :
+     * its cached XML if it is still valid, otherwise the XML built from its
+     * attributes, child extensions (appended to the same <tt>bldr</tt>) and
+     * text.
+     *
+     * @param bldr the <tt>StringBuilder</tt> the XML is appended to.
+     */
+    protected void appendXML(StringBuilder bldr)
+    {
+        XMLCache xmlCache = this.xmlCache;
+        if ((xmlCache != null) && isXMLCacheValid(xmlCache))
+            bldr.append(xmlCache.xml);
+        else
+            buildXML(bldr);
+    }
+
+    /**
+     * Builds the XML representation of this extension at the end of
+     * <tt>bldr</tt>, and caches it if it only depends on
+     * <tt>AbstractPacketExtension</tt>s.
+     *
+     * @param bldr the <tt>StringBuilder</tt> the XML is appended to.
+     * @return the new cached XML of this extension, or <tt>null</tt> if it
+     * can't be cached.
+     */
+    private XMLCache buildXML(StringBuilder bldr)
+    {
+        //the versions are read before the XML is built, so that a change
+        //made while building it invalidates the cache.
+        int version = this.version;
+        int start = bldr.length();
+        boolean cacheable = true;
 
         bldr.append("<").append(getElementName()).append(" ");
 
@@ -130,56 +267,227 @@ public abstract class AbstractPacketExtension
             bldr.append("xmlns='").append(namespace).append("'");
 
         //add the rest of the attributes if any
-        for(Map.Entry<String, String> entry : attributes.entrySet())
+        synchronized(this)
         {
-            bldr.append(" ").append(entry.getKey()).append("='")
-                    .append(entry.getValue()).append("'");
+            for(int i = 0; i < attributeCount; i++)
+            {
+                bldr.append(" ").append(attributeNames[i]).append("='");
+                appendEscaped(bldr, attributeValues[i]);
+                bldr.append("'");
+            }
         }
 
         //add child elements if any
         List<? extends PacketExtension> childElements = getChildExtensions();
         String text = getText();
-        List<Packet> packets = getPackets();
+        List<Packet> packetList = getPackets();
+        Packet[] packets;
+        PacketExtension[] children = null;
+        int[] childVersions = null;
+        boolean empty = false;
+
+        if (childElements == null)
+            childElements = Collections.<PacketExtension>emptyList();
+        synchronized(getLock(packetList))
+        {
+            packets = packetList.toArray(NO_PACKETS);
+        }
 
-        if (childElements == null && packets == null)
+        synchronized(getLock(childElements))
         {
-            if ((text == null) || (text.length() == 0))
+            if (childElements.isEmpty() && (packets.length == 0)
+                    && ((text == null) || (text.length() == 0)))
             {
-                bldr.append("/>");
-                return bldr.toString();
+                empty = true;
             }
             else
-                bldr.append('>');
-        }
-        else
-        {
-            synchronized(childElements)
             {
-                if (childElements.isEmpty() && packets.isEmpty()
-                        && ((text == null) || (text.length() == 0)))
+                bldr.append(">");
+                children = childElements.toArray(
+                    new PacketExtension[childElements.size()]);
+                childVersions = new int[children.length];
+                for(int i = 0; i < children.length; i++)
                 {
-                    bldr.append("/>");
-                    return bldr.toString();
+                    PacketExtension packExt = children[i];
+                    if (isCacheable(packExt))
+                    {
+                        AbstractPacketExtension child
+                            = (AbstractPacketExtension) packExt;
+
+                        childVersions[i] = child.version;
+                        child.appendXML(bldr);
+                    }
+                    else
+                    {
+                        cacheable = false;
+                        bldr.append(packExt.toXML());
+                    }
                 }
-                else
+                for(Packet packet : packets)
                 {
-                    bldr.append(">");
-                    for(PacketExtension packExt : childElements)
-                        bldr.append(packExt.toXML());
-                    for(Packet packet : packets)
-                        bldr.append(packet.toXML());
+                    cacheable = false;
+                    bldr.append(packet.toXML());
                 }
             }
         }
 
-        //text content if any
-        if((text != null) && (text.trim().length() > 0))
-            bldr.append(text);
+        if (empty)
+        {
+            bldr.append("/>");
+        }
+        else
+        {
+            //text content if any
+            if((text != null) && (text.trim().length() > 0))
+                bldr.append(text);
+
+            bldr.append("</").append(getElementName()).append(">");
+        }
 
-        
-        bldr.append("</").append(getElementName()).append(">");
+        if (!cacheable)
+            return null;
 
-        return bldr.toString();
+        XMLCache xmlCache
+            = new XMLCache(
+                bldr.substring(start),
+                version,
+                children,
+                childVersions);
+
+        //don't publish XML which was outdated by a change made while it was
+        //being built.
+        synchronized(this)
+        {
+            if (this.version == version)
+                this.xmlCache = xmlCache;
+        }
+        return xmlCache;
+    }
+
+    /**
+     * Returns whether the cached XML <tt>xmlCache</tt> still represents this
+     * extension : neither this extension nor its child extensions
+     * (recursively) have changed since it was built.
+     *
+     * @param xmlCache the cached XML of this extension.
+     * @return <tt>true</tt> if <tt>xmlCache</tt> is still valid.
+     */
+    private boolean isXMLCacheValid(XMLCache xmlCache)
+    {
+        if (xmlCache.version != version)
+            return false;
+
+        List<? extends PacketExtension> childElements = getChildExtensions();
+        PacketExtension[] children = xmlCache.children;
+
+        if (children == null)
+            return childElements == null || childElements.isEmpty();
+        if (childElements == null)
+            return false;
+
+        synchronized(getLock(childElements))
+        {
+            if (childElements.size() != children.length)
+                return false;
+
+            int i = 0;
+            for(PacketExtension packExt : childElements)
+            {
+                if (packExt != children[i])
+                    return false;
+
+                AbstractPacketExtension child
+                    = (AbstractPacketExtension) packExt;
+                XMLCache childCache = child.xmlCache;
+                if (child.version != xmlCache.childVersions[i]
+                        || childCache == null
+                        || !child.isXMLCacheValid(childCache))
+                    return false;
+                i++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Invalidates the cached XML of this extension. Extensions which change
+     * their XML otherwise than through the methods of
+     * <tt>AbstractPacketExtension</tt> (or their list of child extensions)
+     * must call it.
+     */
+    protected void invalidateXML()
+    {
+        synchronized(this)
+        {
+            version++;
+            xmlCache = null;
+        }
+    }
+
+    /**
+     * Returns whether the XML of <tt>packExt</tt> can be cached and appended
+     * by <tt>appendXML</tt>, i.e. whether it is an
+     * <tt>AbstractPacketExtension</tt> which doesn't override
+     * <tt>toXML</tt>.
+     *
+     * @param packExt a child extension.
+     * @return <tt>true</tt> if the XML of <tt>packExt</tt> can be cached.
+     */
+    private static boolean isCacheable(PacketExtension packExt)
+    {
+        if (!(packExt instanceof AbstractPacketExtension))
+            return false;
+
+        Class<?> clazz = packExt.getClass();
+        Boolean cacheable = cacheableClasses.get(clazz);
+        if (cacheable == null)
+        {
+            try
+            {
+                cacheable
+                    = (clazz.getMethod("toXML").getDeclaringClass()
+                            == AbstractPacketExtension.class);
+            }
+            catch (NoSuchMethodException e)
+            {
+                cacheable = false;
+            }
+            cacheableClasses.put(clazz, cacheable);
+        }
+        return cacheable;
+    }
+
+    /**
+     * Appends <tt>value</tt> to <tt>bldr</tt>, escaped for an attribute
+     * value.
+     *
+     * @param bldr the <tt>StringBuilder</tt> the value is appended to.
+     * @param value the value of an attribute.
+     */
+    private static void appendEscaped(StringBuilder bldr, String value)
+    {
+        int length = value.length();
+        for(int i = 0; i < length; i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+            case '&':
+                bldr.append("&amp;");
+                break;
+            case '<':
+                bldr.append("&lt;");
+                break;
+            case '\'':
+                bldr.append("&apos;");
+                break;
+            case '"':
+                bldr.append("&quot;");
+                break;
+            default:
+                bldr.append(c);
+            }
+        }
     }
 
     /**
@@ -193,7 +501,11 @@ public abstract class AbstractPacketExtension
      */
     public List<? extends PacketExtension> getChildExtensions()
     {
-        return childExtensions;
+        List<PacketExtension> childExtensions = this.childExtensions;
+
+        return (childExtensions == null)
+            ? Collections.<PacketExtension>emptyList()
+            : childExtensions;
     }
 
     /**
@@ -208,7 +520,38 @@ public abstract class AbstractPacketExtension
      */
     public void addChildExtension(PacketExtension childExtension)
     {
-        childExtensions.add(childExtension);
+        List<PacketExtension> childExtensions;
+
+        synchronized(this)
+        {
+            childExtensions = this.childExtensions;
+            if (childExtensions == null)
+            {
+                childExtensions = new ArrayList<PacketExtension>();
+                this.childExtensions = childExtensions;
+            }
+        }
+        synchronized(childExtensions)
+        {
+            childExtensions.add(childExtension);
+        }
+        invalidateXML();
+    }
+
+    /**
+     * Returns the object to synchronize on while iterating over
+     * <tt>list</tt> : <tt>list</tt> itself, or this extension if it is the
+     * immutable empty list shared by the extensions without children or
+     * packets, so that they don't all contend for the same lock.
+     *
+     * @param list a list returned by <tt>getChildExtensions</tt> or
+     * <tt>getPackets</tt>.
+     * @return the object to synchronize on while iterating over
+     * <tt>list</tt>.
+     */
+    private Object getLock(List<?> list)
+    {
+        return (list == Collections.EMPTY_LIST) ? this : list;
     }
     
     /**
@@ -218,7 +561,9 @@ public abstract class AbstractPacketExtension
      */
     public List<Packet> getPackets()
     {
-        return packets;
+        List<Packet> packets = this.packets;
+
+        return (packets == null) ? Collections.<Packet>emptyList() : packets;
     }
     
     /**
@@ -228,7 +573,22 @@ public abstract class AbstractPacketExtension
      */
     public void addPacket(Packet packet)
     {
-        packets.add(packet);
+        List<Packet> packets;
+
+        synchronized(this)
+        {
+            packets = this.packets;
+            if (packets == null)
+            {
+                packets = new LinkedList<Packet>();
+                this.packets = packets;
+            }
+        }
+        synchronized(packets)
+        {
+            packets.add(packet);
+        }
+        invalidateXML();
     }
     
     /**
@@ -241,13 +601,42 @@ public abstract class AbstractPacketExtension
      */
     public void setAttribute(String name, Object value)
     {
-        synchronized(attributes)
+        if(value == null)
         {
-            if(value != null)
-                this.attributes.put(name, value.toString());
-            else
-                this.attributes.remove(name);
+            removeAttribute(name);
+            return;
         }
+
+        String stringValue = value.toString();
+
+        synchronized(this)
+        {
+            int index = indexOfAttribute(name);
+
+            if (index < 0)
+            {
+                if (attributeNames == null)
+                {
+                    attributeNames = new String[ATTRIBUTES_INITIAL_CAPACITY];
+                    attributeValues = new String[ATTRIBUTES_INITIAL_CAPACITY];
+                }
+                else if (attributeCount == attributeNames.length)
+                {
+                    int capacity = attributeCount * 2;
+
+                    attributeNames = Arrays.copyOf(attributeNames, capacity);
+                    attributeValues = Arrays.copyOf(attributeValues, capacity);
+                    if (attributeInts != null)
+                        attributeInts = Arrays.copyOf(attributeInts, capacity);
+                }
+                index = attributeCount++;
+                attributeNames[index] = name;
+            }
+            attributeValues[index] = stringValue;
+            if (attributeInts != null)
+                attributeInts[index] = null;
+        }
+        invalidateXML();
     }
 
     /**
@@ -258,10 +647,52 @@ public abstract class AbstractPacketExtension
      */
     public void removeAttribute(String name)
     {
-        synchronized(attributes)
+        synchronized(this)
+        {
+            int index = indexOfAttribute(name);
+
+            if (index < 0)
+                return;
+
+            //keep the other attributes in the order they were added.
+            int moved = attributeCount - index - 1;
+
+            System.arraycopy(
+                    attributeNames, index + 1, attributeNames, index, moved);
+            System.arraycopy(
+                    attributeValues, index + 1, attributeValues, index, moved);
+            if (attributeInts != null)
+            {
+                System.arraycopy(
+                        attributeInts, index + 1, attributeInts, index, moved);
+                attributeInts[attributeCount - 1] = null;
+            }
+            attributeCount--;
+            attributeNames[attributeCount] = null;
+            attributeValues[attributeCount] = null;
+        }
+        invalidateXML();
+    }
+
+    /**
+     * Returns the index of the attribute named <tt>name</tt> in
+     * <tt>attributeNames</tt>. Must be called while holding the lock of this
+     * extension.
+     *
+     * @param name the name of an attribute.
+     * @return the index of the attribute named <tt>name</tt>, or <tt>-1</tt>
+     * if this extension has no such attribute.
+     */
+    private int indexOfAttribute(String name)
+    {
+        for(int i = 0; i < attributeCount; i++)
         {
-            attributes.remove(name);
+            String attributeName = attributeNames[i];
+
+            if (attributeName == name || attributeName.equals(name))
+                return i;
         }
+        return -1;
     }
 
     /**
@@ -275,10 +706,7 @@ public abstract class AbstractPacketExtension
      */
     public Object getAttribute(String attribute)
     {
-        synchronized(attributes)
-        {
-            return attributes.get(attribute);
-        }
+        return getAttributeAsString(attribute);
     }
 
     /**
@@ -293,11 +721,11 @@ public abstract class AbstractPacketExtension
      */
     public String getAttributeAsString(String attribute)
     {
-        synchronized(attributes)
+        synchronized(this)
         {
-            Object attributeVal = attributes.get(attribute);
+            int index = indexOfAttribute(attribute);
 
-            return attributeVal == null ? null : attributeVal.toString();
+            return (index < 0) ? null : attributeValues[index];
         }
     }
 
@@ -330,11 +758,25 @@ public abstract class AbstractPacketExtension
      */
     public int getAttributeAsInt(String attribute, int defaultValue)
     {
-        synchronized(attributes)
+        synchronized(this)
         {
-            String value = getAttributeAsString(attribute);
+            int index = indexOfAttribute(attribute);
+
+            if (index < 0)
+                return defaultValue;
+
+            //the value is only parsed once, until the attribute is set again.
+            if (attributeInts == null)
+                attributeInts = new Integer[attributeNames.length];
 
-            return (value == null) ? defaultValue : Integer.parseInt(value);
+            Integer value = attributeInts[index];
+
+            if (value == null)
+            {
+                value = Integer.valueOf(attributeValues[index]);
+                attributeInts[index] = value;
+            }
+            return value;
         }
     }
 
@@ -353,23 +795,20 @@ public abstract class AbstractPacketExtension
     public URI getAttributeAsURI(String attribute)
         throws IllegalArgumentException
     {
-        synchronized(attributes)
-        {
-            String attributeVal = getAttributeAsString(attribute);
+        String attributeVal = getAttributeAsString(attribute);
 
-            if (attributeVal == null)
-                return null;
+        if (attributeVal == null)
+            return null;
 
-            try
-            {
-                URI uri = new URI(attributeVal);
+        try
+        {
+            URI uri = new URI(attributeVal);
 
-                return uri;
-            }
-            catch (URISyntaxException e)
-            {
-                throw new IllegalArgumentException(e);
-            }
+            return uri;
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IllegalArgumentException(e);
         }
     }
 
@@ -382,9 +821,13 @@ public abstract class AbstractPacketExtension
      */
     public List<String> getAttributeNames()
     {
-        synchronized (attributes)
+        synchronized (this)
         {
-            return new ArrayList<String>(attributes.keySet());
+            List<String> names = new ArrayList<String>(attributeCount);
+
+            for(int i = 0; i < attributeCount; i++)
+                names.add(attributeNames[i]);
+            return names;
         }
     }
 
@@ -396,6 +839,7 @@ public abstract class AbstractPacketExtension
     public void setText(String text)
     {
         this.textContent = text;
+        invalidateXML();
     }
 
     /**
@@ -425,7 +869,7 @@ public abstract class AbstractPacketExtension
     {
         List<? extends PacketExtension> childExtensions = getChildExtensions();
 
-        synchronized (childExtensions)
+        synchronized (getLock(childExtensions))
         {
             for(PacketExtension extension : childExtensions)
             {
@@ -462,7 +906,7 @@ public abstract class AbstractPacketExtension
         if (childExtensions == null)
             return result;
 
-        synchronized (childExtensions)
+        synchronized (getLock(childExtensions))
         {
             for(PacketExtension extension : childExtensions)
             {
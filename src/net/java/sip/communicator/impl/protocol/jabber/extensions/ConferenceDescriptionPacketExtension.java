@@ -18,7 +18,6 @@ package net.java.sip.communicator.impl.protocol.jabber.extensions;
 import net.java.sip.communicator.service.protocol.*;
 import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.provider.*;
-import org.jivesoftware.smack.util.*;
 import org.xmlpull.v1.*;
 
 import java.util.*;
@@ -179,7 +178,7 @@ public class ConferenceDescriptionPacketExtension
      */
     public void setUri(String uri)
     {
-        setAttribute(URI_ATTR_NAME, StringUtils.escapeForXML(uri));
+        setAttribute(URI_ATTR_NAME, uri);
     }
 
     /**
@@ -215,7 +214,7 @@ public class ConferenceDescriptionPacketExtension
      */
     public void setName(String name)
     {
-       setAttribute(CONFERENCE_NAME_ATTR_NAME, StringUtils.escapeForXML(name));
+       setAttribute(CONFERENCE_NAME_ATTR_NAME, name);
     }
 
     /**
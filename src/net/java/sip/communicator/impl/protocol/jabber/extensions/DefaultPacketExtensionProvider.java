@@ -15,6 +15,8 @@
  */
 package net.java.sip.communicator.impl.protocol.jabber.extensions;
 
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 import org.jivesoftware.smack.packet.*;
@@ -39,9 +41,19 @@ public class DefaultPacketExtensionProvider<C extends AbstractPacketExtension>
                     .getLogger(DefaultPacketExtensionProvider.class.getName());
 
     /**
-     * The {@link Class} that the packets we will be parsing here belong to.
+     * The factory creating the packets we will be parsing here.
      */
-    private final Class<C> packetClass;
+    private final PacketExtensionFactory<C> factory;
+
+    /**
+     * The providers of the child elements already met, by namespace and
+     * element name, so that the <tt>ProviderManager</tt> is only asked once
+     * for each kind of child.
+     */
+    private final Map<String, Map<String, PacketExtensionProvider>>
+        childProviders
+            = new ConcurrentHashMap<String,
+                Map<String, PacketExtensionProvider>>();
 
     /**
      * Creates a new packet provider for the specified packet extensions.
@@ -50,7 +62,56 @@ public class DefaultPacketExtensionProvider<C extends AbstractPacketExtension>
      */
     public DefaultPacketExtensionProvider(Class<C> c)
     {
-        this.packetClass = c;
+        this(PacketExtensionFactories.get(c));
+    }
+
+    /**
+     * Creates a new packet provider for the packet extensions created by
+     * <tt>factory</tt>.
+     *
+     * @param factory the factory creating the packets we will be parsing.
+     */
+    public DefaultPacketExtensionProvider(PacketExtensionFactory<C> factory)
+    {
+        this.factory = factory;
+    }
+
+    /**
+     * Returns the provider of the child elements <tt>elementName</tt> of
+     * namespace <tt>namespace</tt>.
+     *
+     * @param elementName the name of the child element.
+     * @param namespace the namespace of the child element.
+     * @return the provider of the child elements, or <tt>null</tt> if the
+     * <tt>ProviderManager</tt> doesn't have any.
+     */
+    private PacketExtensionProvider getChildProvider(
+            String elementName,
+            String namespace)
+    {
+        String key = (namespace == null) ? "" : namespace;
+        Map<String, PacketExtensionProvider> providers
+            = childProviders.get(key);
+
+        if (providers == null)
+        {
+            providers = new ConcurrentHashMap<String, PacketExtensionProvider>();
+            childProviders.put(key, providers);
+        }
+
+        PacketExtensionProvider provider = providers.get(elementName);
+
+        if (provider == null)
+        {
+            provider
+                = (PacketExtensionProvider)ProviderManager.getInstance()
+                    .getExtensionProvider( elementName, namespace );
+            //only the known children are cached, so that a provider added
+            //later is still found.
+            if (provider != null)
+                providers.put(elementName, provider);
+        }
+        return provider;
     }
 
     /**
@@ -67,7 +128,9 @@ public class DefaultPacketExtensionProvider<C extends AbstractPacketExtension>
      */
     public C parseExtension(XmlPullParser parser) throws Exception
     {
-        C packetExtension = packetClass.newInstance();
+        C packetExtension = factory.createPacketExtension();
+        boolean fine = logger.isLoggable(Level.FINE);
+        boolean finest = fine && logger.isLoggable(Level.FINEST);
 
         //first, set all attributes
         int attrCount = parser.getAttributeCount();
@@ -91,7 +154,7 @@ public class DefaultPacketExtensionProvider<C extends AbstractPacketExtension>
             elementName = parser.getName();
             namespace = parser.getNamespace();
 
-            if (logger.isLoggable(Level.FINEST))
+            if (finest)
                 logger.finest("Will parse " + elementName
                     + " ns=" + namespace
                     + " class=" + packetExtension.getClass().getSimpleName());
@@ -99,14 +162,14 @@ public class DefaultPacketExtensionProvider<C extends AbstractPacketExtension>
             if (eventType == XmlPullParser.START_TAG)
             {
                 PacketExtensionProvider provider
-                    = (PacketExtensionProvider)ProviderManager.getInstance()
-                        .getExtensionProvider( elementName, namespace );
+                    = getChildProvider(elementName, namespace);
 
                 if(provider == null)
                 {
                     //we don't know how to handle this kind of extensions.
-                    logger.fine("Could not add a provider for element "
-                        + elementName + " from namespace " + namespace);
+                    if (fine)
+                        logger.fine("Could not add a provider for element "
+                            + elementName + " from namespace " + namespace);
                 }
                 else
                 {
@@ -137,7 +200,7 @@ public class DefaultPacketExtensionProvider<C extends AbstractPacketExtension>
                 packetExtension.setText(text);
             }
 
-            if (logger.isLoggable(Level.FINEST))
+            if (finest)
                 logger.finest("Done parsing " + elementName);
         }
 
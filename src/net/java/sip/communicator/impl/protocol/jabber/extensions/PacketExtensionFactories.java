@@ -0,0 +1,329 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.colibri.*;
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+
+/**
+ * The table of the {@link PacketExtensionFactory}s of the packet extensions
+ * parsed by {@link DefaultPacketExtensionProvider}s, so that parsing an
+ * element creates its extension with a plain <tt>new</tt> rather than with
+ * reflection.
+ *
+ * The extensions of the Jingle and Colibri IQs are registered here. The
+ * factory of another class is created on its first use, from its no-argument
+ * constructor looked up once.
+ */
+public final class PacketExtensionFactories
+{
+    /**
+     * The factories, by class of packet extension.
+     */
+    private static final Map<Class<?>, PacketExtensionFactory<?>> factories
+        = new ConcurrentHashMap<Class<?>, PacketExtensionFactory<?>>();
+
+    static
+    {
+        register(
+            CallIdPacketExtension.class,
+            new PacketExtensionFactory<CallIdPacketExtension>()
+            {
+                public CallIdPacketExtension createPacketExtension()
+                {
+                    return new CallIdPacketExtension();
+                }
+            });
+        register(
+            CandidatePacketExtension.class,
+            new PacketExtensionFactory<CandidatePacketExtension>()
+            {
+                public CandidatePacketExtension createPacketExtension()
+                {
+                    return new CandidatePacketExtension();
+                }
+            });
+        register(
+            CoinPacketExtension.class,
+            new PacketExtensionFactory<CoinPacketExtension>()
+            {
+                public CoinPacketExtension createPacketExtension()
+                {
+                    return new CoinPacketExtension();
+                }
+            });
+        register(
+            ContentPacketExtension.class,
+            new PacketExtensionFactory<ContentPacketExtension>()
+            {
+                public ContentPacketExtension createPacketExtension()
+                {
+                    return new ContentPacketExtension();
+                }
+            });
+        register(
+            CryptoPacketExtension.class,
+            new PacketExtensionFactory<CryptoPacketExtension>()
+            {
+                public CryptoPacketExtension createPacketExtension()
+                {
+                    return new CryptoPacketExtension();
+                }
+            });
+        register(
+            DtlsFingerprintPacketExtension.class,
+            new PacketExtensionFactory<DtlsFingerprintPacketExtension>()
+            {
+                public DtlsFingerprintPacketExtension createPacketExtension()
+                {
+                    return new DtlsFingerprintPacketExtension();
+                }
+            });
+        register(
+            EncryptionPacketExtension.class,
+            new PacketExtensionFactory<EncryptionPacketExtension>()
+            {
+                public EncryptionPacketExtension createPacketExtension()
+                {
+                    return new EncryptionPacketExtension();
+                }
+            });
+        register(
+            GroupPacketExtension.class,
+            new PacketExtensionFactory<GroupPacketExtension>()
+            {
+                public GroupPacketExtension createPacketExtension()
+                {
+                    return new GroupPacketExtension();
+                }
+            });
+        register(
+            IceUdpTransportPacketExtension.class,
+            new PacketExtensionFactory<IceUdpTransportPacketExtension>()
+            {
+                public IceUdpTransportPacketExtension createPacketExtension()
+                {
+                    return new IceUdpTransportPacketExtension();
+                }
+            });
+        register(
+            InputEvtPacketExtension.class,
+            new PacketExtensionFactory<InputEvtPacketExtension>()
+            {
+                public InputEvtPacketExtension createPacketExtension()
+                {
+                    return new InputEvtPacketExtension();
+                }
+            });
+        register(
+            ParameterPacketExtension.class,
+            new PacketExtensionFactory<ParameterPacketExtension>()
+            {
+                public ParameterPacketExtension createPacketExtension()
+                {
+                    return new ParameterPacketExtension();
+                }
+            });
+        register(
+            PayloadTypePacketExtension.class,
+            new PacketExtensionFactory<PayloadTypePacketExtension>()
+            {
+                public PayloadTypePacketExtension createPacketExtension()
+                {
+                    return new PayloadTypePacketExtension();
+                }
+            });
+        register(
+            RawUdpTransportPacketExtension.class,
+            new PacketExtensionFactory<RawUdpTransportPacketExtension>()
+            {
+                public RawUdpTransportPacketExtension createPacketExtension()
+                {
+                    return new RawUdpTransportPacketExtension();
+                }
+            });
+        register(
+            RemoteCandidatePacketExtension.class,
+            new PacketExtensionFactory<RemoteCandidatePacketExtension>()
+            {
+                public RemoteCandidatePacketExtension createPacketExtension()
+                {
+                    return new RemoteCandidatePacketExtension();
+                }
+            });
+        register(
+            RTPHdrExtPacketExtension.class,
+            new PacketExtensionFactory<RTPHdrExtPacketExtension>()
+            {
+                public RTPHdrExtPacketExtension createPacketExtension()
+                {
+                    return new RTPHdrExtPacketExtension();
+                }
+            });
+        register(
+            RtcpmuxPacketExtension.class,
+            new PacketExtensionFactory<RtcpmuxPacketExtension>()
+            {
+                public RtcpmuxPacketExtension createPacketExtension()
+                {
+                    return new RtcpmuxPacketExtension();
+                }
+            });
+        register(
+            RtpDescriptionPacketExtension.class,
+            new PacketExtensionFactory<RtpDescriptionPacketExtension>()
+            {
+                public RtpDescriptionPacketExtension createPacketExtension()
+                {
+                    return new RtpDescriptionPacketExtension();
+                }
+            });
+        register(
+            SourcePacketExtension.class,
+            new PacketExtensionFactory<SourcePacketExtension>()
+            {
+                public SourcePacketExtension createPacketExtension()
+                {
+                    return new SourcePacketExtension();
+                }
+            });
+        register(
+            TransferPacketExtension.class,
+            new PacketExtensionFactory<TransferPacketExtension>()
+            {
+                public TransferPacketExtension createPacketExtension()
+                {
+                    return new TransferPacketExtension();
+                }
+            });
+        register(
+            TransferredPacketExtension.class,
+            new PacketExtensionFactory<TransferredPacketExtension>()
+            {
+                public TransferredPacketExtension createPacketExtension()
+                {
+                    return new TransferredPacketExtension();
+                }
+            });
+        register(
+            ZrtpHashPacketExtension.class,
+            new PacketExtensionFactory<ZrtpHashPacketExtension>()
+            {
+                public ZrtpHashPacketExtension createPacketExtension()
+                {
+                    return new ZrtpHashPacketExtension();
+                }
+            });
+    }
+
+    /**
+     * This class only has static methods.
+     */
+    private PacketExtensionFactories()
+    {
+    }
+
+    /**
+     * Registers the factory of the packet extensions of class <tt>c</tt>.
+     *
+     * @param <C> the class of the packet extensions.
+     * @param c the class of the packet extensions.
+     * @param factory the factory creating the packet extensions.
+     */
+    public static <C extends AbstractPacketExtension> void register(
+            Class<C> c,
+            PacketExtensionFactory<C> factory)
+    {
+        factories.put(c, factory);
+    }
+
+    /**
+     * Returns the factory of the packet extensions of class <tt>c</tt>.
+     *
+     * @param <C> the class of the packet extensions.
+     * @param c the class of the packet extensions.
+     * @return the factory of the packet extensions of class <tt>c</tt>.
+     * @throws IllegalArgumentException if <tt>c</tt> isn't registered and has
+     * no public no-argument constructor.
+     */
+    @SuppressWarnings("unchecked")
+    public static <C extends AbstractPacketExtension>
+        PacketExtensionFactory<C> get(Class<C> c)
+    {
+        PacketExtensionFactory<C> factory
+            = (PacketExtensionFactory<C>) factories.get(c);
+
+        if (factory == null)
+        {
+            factory = new ConstructorFactory<C>(c);
+            factories.put(c, factory);
+        }
+        return factory;
+    }
+
+    /**
+     * The factory of a class which isn't registered, creating its instances
+     * with its no-argument constructor.
+     *
+     * @param <C> the class of the packet extensions created.
+     */
+    private static class ConstructorFactory<C extends AbstractPacketExtension>
+        implements PacketExtensionFactory<C>
+    {
+        /**
+         * The no-argument constructor of the packet extensions.
+         */
+        private final Constructor<C> constructor;
+
+        /**
+         * Looks up the no-argument constructor of <tt>c</tt>.
+         *
+         * @param c the class of the packet extensions.
+         */
+        ConstructorFactory(Class<C> c)
+        {
+            try
+            {
+                constructor = c.getConstructor();
+            }
+            catch (NoSuchMethodException e)
+            {
+                throw new IllegalArgumentException(
+                    c + " has no public no-argument constructor", e);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public C createPacketExtension()
+        {
+            try
+            {
+                return constructor.newInstance();
+            }
+            catch (Exception e)
+            {
+                throw new IllegalStateException(
+                    "Could not create a " + constructor.getName(), e);
+            }
+        }
+    }
+}
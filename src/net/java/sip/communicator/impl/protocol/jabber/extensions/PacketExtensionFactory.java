@@ -0,0 +1,32 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions;
+
+/**
+ * Creates the (empty) instances of a packet extension that a
+ * {@link DefaultPacketExtensionProvider} fills while parsing.
+ *
+ * @param <C> the class of the packet extensions created.
+ */
+public interface PacketExtensionFactory<C extends AbstractPacketExtension>
+{
+    /**
+     * Creates a new, empty, packet extension.
+     *
+     * @return a new packet extension.
+     */
+    public C createPacketExtension();
+}
@@ -98,6 +98,18 @@ public class CandidatePacketExtension extends AbstractPacketExtension
      */
     public static final String TYPE_ATTR_NAME = "type";
 
+    /**
+     * The candidate types, from the most preferred to the least preferred.
+     */
+    private static final CandidateType[] TYPE_PREFERENCES = {
+        CandidateType.host,
+        CandidateType.local,
+        CandidateType.prflx,
+        CandidateType.srflx,
+        CandidateType.stun,
+        CandidateType.relay
+    };
+
     /**
      * Creates a new {@link CandidatePacketExtension}
      */
@@ -391,26 +403,21 @@ public class CandidatePacketExtension extends AbstractPacketExtension
      */
     public int compareTo(CandidatePacketExtension candidatePacketExtension)
     {
+        CandidateType type = this.getType();
+        CandidateType otherType = candidatePacketExtension.getType();
+
         // If the types are differents.
-        if(this.getType() != candidatePacketExtension.getType())
+        if(type != otherType)
         {
-            CandidateType[] types = {
-                CandidateType.host,
-                CandidateType.local,
-                CandidateType.prflx,
-                CandidateType.srflx,
-                CandidateType.stun,
-                CandidateType.relay
-            };
-            for(int i = 0; i < types.length; ++i)
+            for(int i = 0; i < TYPE_PREFERENCES.length; ++i)
             {
                 // this object is preferred.
-                if(types[i] == this.getType())
+                if(TYPE_PREFERENCES[i] == type)
                 {
                     return -1;
                 }
                 // the candidatePacketExtension is preferred.
-                else if(types[i] == candidatePacketExtension.getType())
+                else if(TYPE_PREFERENCES[i] == otherType)
                 {
                     return 1;
                 }
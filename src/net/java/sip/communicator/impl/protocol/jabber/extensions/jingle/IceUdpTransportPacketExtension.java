@@ -241,7 +241,18 @@ public class IceUdpTransportPacketExtension
         else if(childExtension instanceof CandidatePacketExtension)
             addCandidate((CandidatePacketExtension) childExtension);
 
-        else if (childExtension instanceof DtlsFingerprintPacketExtension)
+        else if (childExtension instanceof DtlsFingerprintPacketExtension
+                || childExtension instanceof RtcpmuxPacketExtension)
             super.addChildExtension(childExtension);
     }
+
+    /**
+     * Returns whether this transport has a "rtcp-mux" child element.
+     *
+     * @return <tt>true</tt> if RTP and RTCP are multiplexed on this transport.
+     */
+    public boolean isRtcpMux()
+    {
+        return getFirstChildOfType(RtcpmuxPacketExtension.class) != null;
+    }
 }
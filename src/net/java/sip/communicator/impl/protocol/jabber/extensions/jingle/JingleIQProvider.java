@@ -15,6 +15,8 @@
  */
 package net.java.sip.communicator.impl.protocol.jabber.extensions.jingle;
 
+import java.util.*;
+
 import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
 
 import org.jivesoftware.smack.provider.*;
@@ -27,15 +29,108 @@ import org.xmlpull.v1.*;
  */
 public class JingleIQProvider implements IQProvider
 {
+    /**
+     * The provider of the <tt>content</tt> elements.
+     */
+    private static final DefaultPacketExtensionProvider<ContentPacketExtension>
+        contentProvider
+            = new DefaultPacketExtensionProvider<ContentPacketExtension>(
+                    ContentPacketExtension.class);
+
+    /**
+     * The provider of the <tt>reason</tt> elements.
+     */
+    private static final ReasonProvider reasonProvider = new ReasonProvider();
+
+    /**
+     * The provider of the <tt>transfer</tt> elements.
+     */
+    private static final
+        DefaultPacketExtensionProvider<TransferPacketExtension>
+            transferProvider
+                = new DefaultPacketExtensionProvider<TransferPacketExtension>(
+                        TransferPacketExtension.class);
+
+    /**
+     * The provider of the <tt>conference-info</tt> elements.
+     */
+    private static final DefaultPacketExtensionProvider<CoinPacketExtension>
+        coinProvider
+            = new DefaultPacketExtensionProvider<CoinPacketExtension>(
+                    CoinPacketExtension.class);
+
+    /**
+     * The provider of the <tt>callid</tt> elements.
+     */
+    private static final DefaultPacketExtensionProvider<CallIdPacketExtension>
+        callidProvider
+            = new DefaultPacketExtensionProvider<CallIdPacketExtension>(
+                    CallIdPacketExtension.class);
+
+    /**
+     * The provider of the <tt>group</tt> elements.
+     */
+    private static final DefaultPacketExtensionProvider<GroupPacketExtension>
+        groupProvider
+            = new DefaultPacketExtensionProvider<GroupPacketExtension>(
+                    GroupPacketExtension.class);
+
+    /**
+     * The child elements of <tt>jingle</tt> parsed by this provider, other
+     * than the session-info ones.
+     */
+    private enum Element
+    {
+        CONTENT, REASON, TRANSFER, COIN, CALLID, GROUP
+    }
+
+    /**
+     * The child elements of <tt>jingle</tt>, by element name.
+     */
+    private static final Map<String, Element> elements
+        = new HashMap<String, Element>();
+
+    static
+    {
+        elements.put(ContentPacketExtension.ELEMENT_NAME, Element.CONTENT);
+        elements.put(ReasonPacketExtension.ELEMENT_NAME, Element.REASON);
+        elements.put(TransferPacketExtension.ELEMENT_NAME, Element.TRANSFER);
+        elements.put(CoinPacketExtension.ELEMENT_NAME, Element.COIN);
+        elements.put(
+                ConferenceDescriptionPacketExtension.CALLID_ELEM_NAME,
+                Element.CALLID);
+        elements.put(GroupPacketExtension.ELEMENT_NAME, Element.GROUP);
+    }
+
+    /**
+     * The <tt>ProviderManager</tt> the jingle related extension providers
+     * have been registered with, or <tt>null</tt>.
+     */
+    private static ProviderManager registeredProviderManager = null;
+
     /**
      * Creates a new instance of the <tt>JingleIQProvider</tt> and register all
      * jingle related extension providers. It is the responsibility of the
      * application to register the <tt>JingleIQProvider</tt> itself.
      */
     public JingleIQProvider()
+    {
+        registerExtensionProviders();
+    }
+
+    /**
+     * Registers all jingle related extension providers with the
+     * <tt>ProviderManager</tt>, unless they already are : the providers are
+     * stateless, so all the <tt>JingleIQProvider</tt>s share them.
+     */
+    private static synchronized void registerExtensionProviders()
     {
         ProviderManager providerManager = ProviderManager.getInstance();
 
+        if (providerManager == registeredProviderManager)
+            return;
+
+
         //<description/> provider
         providerManager.addExtensionProvider(
             RtpDescriptionPacketExtension.ELEMENT_NAME,
@@ -87,6 +182,13 @@ public class JingleIQProvider implements IQProvider
             new DefaultPacketExtensionProvider
                 <CryptoPacketExtension>(CryptoPacketExtension.class));
 
+        //<rtcp-mux/> provider
+        providerManager.addExtensionProvider(
+            RtcpmuxPacketExtension.ELEMENT_NAME,
+            RtpDescriptionPacketExtension.NAMESPACE,
+            new DefaultPacketExtensionProvider
+                <RtcpmuxPacketExtension>(RtcpmuxPacketExtension.class));
+
         //ice-udp transport
         providerManager.addExtensionProvider(
             IceUdpTransportPacketExtension.ELEMENT_NAME,
@@ -101,19 +203,27 @@ public class JingleIQProvider implements IQProvider
             new DefaultPacketExtensionProvider<RawUdpTransportPacketExtension>(
                             RawUdpTransportPacketExtension.class));
 
-        //ice-udp <candidate/> provider
+        //ice-udp and raw-udp <candidate/> provider
+        DefaultPacketExtensionProvider<CandidatePacketExtension>
+            candidateProvider
+                = new DefaultPacketExtensionProvider<CandidatePacketExtension>(
+                        CandidatePacketExtension.class);
+
         providerManager.addExtensionProvider(
             CandidatePacketExtension.ELEMENT_NAME,
             IceUdpTransportPacketExtension.NAMESPACE,
-            new DefaultPacketExtensionProvider<CandidatePacketExtension>(
-                            CandidatePacketExtension.class));
-
-        //raw-udp <candidate/> provider
+            candidateProvider);
         providerManager.addExtensionProvider(
             CandidatePacketExtension.ELEMENT_NAME,
             RawUdpTransportPacketExtension.NAMESPACE,
-            new DefaultPacketExtensionProvider<CandidatePacketExtension>(
-                            CandidatePacketExtension.class));
+            candidateProvider);
+
+        //ice-udp <rtcp-mux/> provider
+        providerManager.addExtensionProvider(
+            RtcpmuxPacketExtension.ELEMENT_NAME,
+            IceUdpTransportPacketExtension.NAMESPACE,
+            new DefaultPacketExtensionProvider<RtcpmuxPacketExtension>(
+                            RtcpmuxPacketExtension.class));
 
         //ice-udp <remote-candidate/> provider
         providerManager.addExtensionProvider(
@@ -133,8 +243,7 @@ public class JingleIQProvider implements IQProvider
         providerManager.addExtensionProvider(
                 CoinPacketExtension.ELEMENT_NAME,
                 CoinPacketExtension.NAMESPACE,
-                new DefaultPacketExtensionProvider<CoinPacketExtension>(
-                        CoinPacketExtension.class));
+                coinProvider);
 
         // DTLS-SRTP
         providerManager.addExtensionProvider(
@@ -151,20 +260,26 @@ public class JingleIQProvider implements IQProvider
         providerManager.addExtensionProvider(
                 TransferPacketExtension.ELEMENT_NAME,
                 TransferPacketExtension.NAMESPACE,
-                new DefaultPacketExtensionProvider<TransferPacketExtension>(
-                        TransferPacketExtension.class));
+                transferProvider);
         providerManager.addExtensionProvider(
                 TransferredPacketExtension.ELEMENT_NAME,
                 TransferredPacketExtension.NAMESPACE,
                 new DefaultPacketExtensionProvider<TransferredPacketExtension>(
                         TransferredPacketExtension.class));
 
+        //<group/> <content/> provider (XEP-0338)
+        providerManager.addExtensionProvider(
+                ContentPacketExtension.ELEMENT_NAME,
+                GroupPacketExtension.NAMESPACE,
+                contentProvider);
+
         //conference description <callid/> provider
         providerManager.addExtensionProvider(
                 ConferenceDescriptionPacketExtension.CALLID_ELEM_NAME,
                 ConferenceDescriptionPacketExtension.NAMESPACE,
-                new DefaultPacketExtensionProvider<CallIdPacketExtension>(
-                        CallIdPacketExtension.class));
+                callidProvider);
+
+        registeredProviderManager = providerManager;
     }
 
     /**
@@ -198,21 +313,6 @@ public class JingleIQProvider implements IQProvider
 
         boolean done = false;
 
-        // Sub-elements providers
-        DefaultPacketExtensionProvider<ContentPacketExtension> contentProvider
-            = new DefaultPacketExtensionProvider<ContentPacketExtension>(
-                    ContentPacketExtension.class);
-        ReasonProvider reasonProvider = new ReasonProvider();
-        DefaultPacketExtensionProvider<TransferPacketExtension> transferProvider
-            = new DefaultPacketExtensionProvider<TransferPacketExtension>(
-                    TransferPacketExtension.class);
-        DefaultPacketExtensionProvider<CoinPacketExtension> coinProvider
-            = new DefaultPacketExtensionProvider<CoinPacketExtension>(
-                    CoinPacketExtension.class);
-        DefaultPacketExtensionProvider<CallIdPacketExtension> callidProvider
-            = new DefaultPacketExtensionProvider<CallIdPacketExtension>(
-                    CallIdPacketExtension.class);
-
         // Now go on and parse the jingle element's content.
         int eventType;
         String elementName;
@@ -221,45 +321,56 @@ public class JingleIQProvider implements IQProvider
         while (!done)
         {
             eventType = parser.next();
-            elementName = parser.getName();
-            namespace = parser.getNamespace();
 
             if (eventType == XmlPullParser.START_TAG)
             {
-                // <content/>
-                if (elementName.equals(ContentPacketExtension.ELEMENT_NAME))
-                {
-                    ContentPacketExtension content
-                        = contentProvider.parseExtension(parser);
-                    jingleIQ.addContent(content);
-                }
-                // <reason/>
-                else if(elementName.equals(ReasonPacketExtension.ELEMENT_NAME))
-                {
-                    ReasonPacketExtension reason
-                        = reasonProvider.parseExtension(parser);
-                    jingleIQ.setReason(reason);
-                }
-                // <transfer/>
-                else if (elementName.equals(
-                                TransferPacketExtension.ELEMENT_NAME)
-                        && namespace.equals(TransferPacketExtension.NAMESPACE))
-                {
-                    jingleIQ.addExtension(
-                            transferProvider.parseExtension(parser));
-                }
-                else if(elementName.equals(CoinPacketExtension.ELEMENT_NAME))
-                {
-                    jingleIQ.addExtension(coinProvider.parseExtension(parser));
-                }
-                else if (elementName.equals(
-                        ConferenceDescriptionPacketExtension.CALLID_ELEM_NAME))
+                elementName = parser.getName();
+                namespace = parser.getNamespace();
+
+                Element element = elements.get(elementName);
+
+                if (element != null)
                 {
-                    jingleIQ.addExtension(callidProvider.parseExtension(parser));
+                    switch (element)
+                    {
+                    // <content/>
+                    case CONTENT:
+                        jingleIQ.addContent(
+                                contentProvider.parseExtension(parser));
+                        break;
+                    // <reason/>
+                    case REASON:
+                        jingleIQ.setReason(
+                                reasonProvider.parseExtension(parser));
+                        break;
+                    // <transfer/>
+                    case TRANSFER:
+                        if (TransferPacketExtension.NAMESPACE.equals(namespace))
+                        {
+                            jingleIQ.addExtension(
+                                    transferProvider.parseExtension(parser));
+                        }
+                        break;
+                    case COIN:
+                        jingleIQ.addExtension(
+                                coinProvider.parseExtension(parser));
+                        break;
+                    case CALLID:
+                        jingleIQ.addExtension(
+                                callidProvider.parseExtension(parser));
+                        break;
+                    // <group/>
+                    case GROUP:
+                        if (GroupPacketExtension.NAMESPACE.equals(namespace))
+                        {
+                            jingleIQ.addExtension(
+                                    groupProvider.parseExtension(parser));
+                        }
+                        break;
+                    }
                 }
-
                 //<mute/> <active/> and other session-info elements
-                if (namespace.equals( SessionInfoPacketExtension.NAMESPACE))
+                else if (SessionInfoPacketExtension.NAMESPACE.equals(namespace))
                 {
                     SessionInfoType type = SessionInfoType.valueOf(elementName);
 
@@ -282,8 +393,7 @@ public class JingleIQProvider implements IQProvider
                     }
                 }
             }
-
-            if ((eventType == XmlPullParser.END_TAG)
+            else if ((eventType == XmlPullParser.END_TAG)
                     && parser.getName().equals(JingleIQ.ELEMENT_NAME))
             {
                     done = true;
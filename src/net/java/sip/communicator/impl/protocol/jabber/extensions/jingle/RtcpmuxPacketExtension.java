@@ -0,0 +1,41 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions.jingle;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
+
+/**
+ * An implementation of the "rtcp-mux" element, signaling that RTP and RTCP
+ * are multiplexed on a single component (RFC 5761). It can be found in the
+ * "description" or in the "transport" element of a content, and inherits the
+ * namespace of its parent.
+ */
+public class RtcpmuxPacketExtension
+    extends AbstractPacketExtension
+{
+    /**
+     * The name of the "rtcp-mux" element.
+     */
+    public static final String ELEMENT_NAME = "rtcp-mux";
+
+    /**
+     * Creates a new {@link RtcpmuxPacketExtension} instance.
+     */
+    public RtcpmuxPacketExtension()
+    {
+        super(null, ELEMENT_NAME);
+    }
+}
@@ -24,6 +24,7 @@ import java.util.List;
 
 import org.jitsi.hammer.utils.*;
 import org.kohsuke.args4j.*;
+import org.kohsuke.args4j.spi.*;
 
 /**
  * @author Thomas Kuntz
@@ -112,6 +113,14 @@ public class CmdLineArguments
         + " that will be read for the audio stream")
     private String audioRtpdumpFile = null;
 
+    /**
+     * If this boolean is true, the silence of the audio streams is sent as
+     * pre-encoded Opus frames instead of being encoded by each stream.
+     */
+    @Option(name="-opussilence",usage="Send pre-encoded Opus silence frames"
+        + " for the audio stream instead of encoding silence")
+    private boolean opusSilence = false;
+
     /**
      * If this boolean is true, the logging of overall stats is activated
      */
@@ -154,6 +163,122 @@ public class CmdLineArguments
         + "the start of new users.")
     private int interval = 2000;
 
+    /**
+     * The maximum number of users connecting to the XMPP server and the MUC
+     * at the same time.
+     */
+    @Option(name="-maxinflight", usage="The maximum number of users"
+        + " connecting/logging in/joining the MUC at the same time")
+    private int maxInFlight = 1;
+
+    /**
+     * The target number of users started per second.
+     */
+    @Option(name="-rate", usage="The target number of users started per"
+        + " second (overrides -interval)")
+    private double rate = 0;
+
+    /**
+     * The number of threads on which the fake users set up their Jingle
+     * sessions.
+     */
+    @Option(name="-sessionthreads", usage="The number of threads on which"
+        + " the fake users set up their Jingle sessions (if 0, on the XMPP"
+        + " packet-listener threads)")
+    private int sessionThreads = 0;
+
+    /**
+     * Whether the fake users set up their Jingle sessions on virtual threads.
+     */
+    @Option(name="-virtualthreads", usage="Set up the Jingle sessions on"
+        + " virtual threads (if supported by the JVM, otherwise on"
+        + " -sessionthreads threads, or 4 threads per CPU if it is 0)")
+    private boolean virtualThreads = false;
+
+    /**
+     * The port of the HTTP endpoint serving the live metrics (0 to disable
+     * it).
+     */
+    @Option(name="-metricsport", usage="The port of an HTTP endpoint serving"
+        + " the live metrics of the run in the Prometheus format on /metrics"
+        + " (0 to disable it)")
+    private int metricsPort = 0;
+
+    /**
+     * Whether the file of all the stats is written in binary rather than in
+     * JSON.
+     */
+    @Option(name="-statsformat", handler=StatsFormatOptionHandler.class,
+        usage="The format of the file of all the stats : json (default) or"
+        + " binary")
+    private boolean binaryStats = false;
+
+    /**
+     * The time (in seconds) between two syncs of the binary stats file.
+     */
+    @Option(name="-statssync", usage="The time (in seconds) between two"
+        + " syncs of the binary stats file to the disk")
+    private int statsSync = 30;
+
+    /**
+     * The number of threads updating the stats of the users in parallel.
+     */
+    @Option(name="-statsthreads", usage="The number of threads updating the"
+        + " stats of the users in parallel (default: the number of"
+        + " processors)")
+    private int statsThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The minimum port of the media streams.
+     */
+    @Option(name="-minport", usage="The minimum UDP port of the media"
+        + " streams")
+    private int minPort = IceMediaStreamGenerator.DEFAULT_MIN_PORT;
+
+    /**
+     * The maximum port (excluded) of the media streams.
+     */
+    @Option(name="-maxport", usage="The maximum UDP port (excluded) of the"
+        + " media streams")
+    private int maxPort = IceMediaStreamGenerator.DEFAULT_MAX_PORT;
+
+    /**
+     * The first UDP port shared by all the users (0 to disable it).
+     */
+    @Option(name="-sharedport", usage="The first UDP port shared by the ICE"
+        + " agents of all the users, with rtcp-mux (0 : each user binds its"
+        + " own ports)")
+    private int sharedPort = 0;
+
+    /**
+     * The number of UDP ports shared by all the users.
+     */
+    @Option(name="-sharedports", usage="The number of UDP ports shared by"
+        + " the users, from -sharedport")
+    private int sharedPorts = 1;
+
+    /**
+     * The file the signalling of the users is traced to (<tt>null</tt> to
+     * disable the trace, "-" for the standard output).
+     */
+    @Option(name="-trace", usage="The file the XMPP signalling of the users"
+        + " is traced to (\"-\" : the standard output)")
+    private String traceFile = null;
+
+    /**
+     * The fraction of the users whose signalling is traced.
+     */
+    @Option(name="-tracesample", usage="The fraction (between 0 and 1) of"
+        + " the users whose signalling is traced")
+    private double traceSample = 1;
+
+    /**
+     * Whether the signalling trace is written in binary.
+     */
+    @Option(name="-tracebinary", usage="Write the signalling trace in binary"
+        + " rather than in text")
+    private boolean traceBinary = false;
+
     /**
      * Whether statistics should be disabled.
      */
@@ -224,6 +349,16 @@ public class CmdLineArguments
         return audioRtpdumpFile;
     }
 
+    /**
+     * Get the boolean of the opusSilence option : if true, the audio streams
+     * send pre-encoded Opus silence frames.
+     * @return the boolean of the opusSilence option
+     */
+    public boolean getOpusSilence()
+    {
+        return opusSilence;
+    }
+
     /**
      * Create an return a <tt>MediaDeviceChooser</tt> based on the options and
      * arguments this <tt>CmdLineArguments</tt> has collected and parsed.
@@ -294,6 +429,151 @@ public class CmdLineArguments
         return interval;
     }
 
+    /**
+     * Gets the maximum number of users connecting to the XMPP server and the
+     * MUC at the same time.
+     * @return the maximum number of users starting at the same time.
+     */
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    /**
+     * Gets the target number of users started per second : the value of
+     * <tt>-rate</tt> if it was given, or the one derived from
+     * <tt>-interval</tt>.
+     * @return the target number of users started per second.
+     */
+    public double getRate()
+    {
+        if(rate > 0)
+            return rate;
+        return 1000.0 / ((interval <= 0) ? 1 : interval);
+    }
+
+    /**
+     * Gets the number of threads on which the fake users set up their Jingle
+     * sessions.
+     * @return the number of threads on which the fake users set up their
+     * Jingle sessions.
+     */
+    public int getSessionThreads()
+    {
+        return sessionThreads;
+    }
+
+    /**
+     * Gets the flag which indicates whether the Jingle sessions are set up on
+     * virtual threads.
+     * @return the flag which indicates whether the Jingle sessions are set up
+     * on virtual threads.
+     */
+    public boolean getVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    /**
+     * Get the port of the HTTP endpoint serving the live metrics.
+     * @return the port of the metrics endpoint, or 0 if it is disabled.
+     */
+    public int getMetricsPort()
+    {
+        return metricsPort;
+    }
+
+    /**
+     * Get whether all the stats are logged in a binary file.
+     * @return <tt>true</tt> if -statsformat is binary.
+     */
+    public boolean getBinaryStats()
+    {
+        return binaryStats;
+    }
+
+    /**
+     * Get the time (in seconds) between two syncs of the binary stats file.
+     * @return the time between two syncs of the binary stats file.
+     */
+    public int getStatsSync()
+    {
+        return statsSync;
+    }
+
+    /**
+     * Get the number of threads updating the stats of the users in parallel.
+     * @return the number of threads updating the stats of the users.
+     */
+    public int getStatsThreads()
+    {
+        return statsThreads;
+    }
+
+    /**
+     * Get the minimum port of the media streams.
+     * @return the minimum port of the media streams.
+     */
+    public int getMinPort()
+    {
+        return minPort;
+    }
+
+    /**
+     * Get the maximum port (excluded) of the media streams.
+     * @return the maximum port (excluded) of the media streams.
+     */
+    public int getMaxPort()
+    {
+        return maxPort;
+    }
+
+    /**
+     * Get the first UDP port shared by all the users.
+     * @return the first UDP port shared by all the users, or 0.
+     */
+    public int getSharedPort()
+    {
+        return sharedPort;
+    }
+
+    /**
+     * Get the number of UDP ports shared by all the users.
+     * @return the number of UDP ports shared by all the users.
+     */
+    public int getSharedPorts()
+    {
+        return sharedPorts;
+    }
+
+    /**
+     * Get the file the signalling of the users is traced to.
+     * @return the file of the signalling trace, or <tt>null</tt> if it is
+     * disabled.
+     */
+    public String getTraceFile()
+    {
+        return traceFile;
+    }
+
+    /**
+     * Get the fraction of the users whose signalling is traced.
+     * @return the fraction of the users whose signalling is traced.
+     */
+    public double getTraceSample()
+    {
+        return traceSample;
+    }
+
+    /**
+     * Get whether the signalling trace is written in binary.
+     * @return whether the signalling trace is written in binary.
+     */
+    public boolean getTraceBinary()
+    {
+        return traceBinary;
+    }
+
     /**
      * Get the flag which indicates whether statistics should be disabled.
      * @return the flag which indicates whether statistics should be disabled.
@@ -336,4 +616,55 @@ public class CmdLineArguments
 
         return list;
     }
+
+    /**
+     * The <tt>OptionHandler</tt> of -statsformat : parses json or binary
+     * (case-insensitively) into whether the file of all the stats is binary.
+     */
+    public static class StatsFormatOptionHandler
+        extends OneArgumentOptionHandler<Boolean>
+    {
+        /**
+         * Initializes a new <tt>StatsFormatOptionHandler</tt>.
+         * @param parser the <tt>CmdLineParser</tt> of the option.
+         * @param option the definition of the option.
+         * @param setter the <tt>Setter</tt> of the option.
+         */
+        public StatsFormatOptionHandler(
+            CmdLineParser parser,
+            OptionDef option,
+            Setter<? super Boolean> setter)
+        {
+            super(parser, option, setter);
+        }
+
+        /**
+         * Parse a stats format.
+         * @param argument the stats format (json or binary).
+         * @return <tt>true</tt> if <tt>argument</tt> is binary.
+         * @throws CmdLineException if <tt>argument</tt> is neither json nor
+         * binary.
+         */
+        @Override
+        protected Boolean parse(String argument)
+            throws CmdLineException
+        {
+            if("binary".equalsIgnoreCase(argument))
+                return Boolean.TRUE;
+            if("json".equalsIgnoreCase(argument))
+                return Boolean.FALSE;
+            throw new CmdLineException(owner, "Unknown stats format \""
+                + argument + "\" (expected json or binary)");
+        }
+
+        /**
+         * Get the meta variable of the option in the usage.
+         * @return the meta variable of the option.
+         */
+        @Override
+        public String getDefaultMetaVariable()
+        {
+            return "json|binary";
+        }
+    }
 }
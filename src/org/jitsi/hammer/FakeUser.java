@@ -24,6 +24,7 @@ import org.jivesoftware.smackx.packet.*;
 import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.filter.*;
 import org.ice4j.ice.*;
+import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.format.*;
 import org.jitsi.util.Logger;
@@ -38,7 +39,11 @@ import net.java.sip.communicator.service.protocol.media.*;
 
 import java.beans.*;
 import java.io.*;
+import java.net.DatagramSocket;
+import java.net.SocketException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 
 /**
@@ -163,6 +168,28 @@ public class FakeUser implements PacketListener
      */
     private Agent agent = new Agent();
 
+    /**
+     * The <tt>Agent</tt> of each media : <tt>agent</tt> for all of them,
+     * except when the UDP ports are shared (the shared ports dispatch the
+     * packets by agent, so each media has its own <tt>Agent</tt>).
+     */
+    private final Map<String,Agent> agents
+        = new ConcurrentHashMap<String,Agent>();
+
+    /**
+     * The name of the <tt>IceMediaStream</tt> of each bundled media (the
+     * first media of the bundle) : the other media have an
+     * <tt>IceMediaStream</tt> of their own name.
+     */
+    private final Map<String,String> iceStreamNames
+        = new ConcurrentHashMap<String,String>();
+
+    /**
+     * The RTP payload types offered for each media.
+     */
+    private final Map<String,List<Integer>> payloadTypes
+        = new ConcurrentHashMap<String,List<Integer>>();
+
     /**
      * <tt>Presence</tt> packet containing the SSRC of the streams of this
      * <tt>FakeUser</tt> (ns = http://estos.de/ns/mjs).
@@ -179,6 +206,101 @@ public class FakeUser implements PacketListener
      */
     private FakeUserStats fakeUserStats;
 
+    /**
+     * Whether the incoming RTP packets of the <tt>MediaStream</tt>s of this
+     * <tt>FakeUser</tt> need to go through libjitsi even if the statistics
+     * are disabled (e.g. because they are relayed by the proxy).
+     */
+    private boolean receiveMedia = false;
+
+    /**
+     * The <tt>FakeUserListener</tt>s notified of the progress of the Jingle
+     * session of this <tt>FakeUser</tt>.
+     */
+    private final List<FakeUserListener> listeners
+        = new CopyOnWriteArrayList<FakeUserListener>();
+
+    /**
+     * The <tt>Executor</tt> on which the Jingle session is set up, or
+     * <tt>null</tt> to set it up on the packet-listener thread of the XMPP
+     * connection.
+     */
+    private volatile Executor sessionExecutor = null;
+
+    /**
+     * The time (in milliseconds) taken by the connection to the XMPP server,
+     * or -1 if it hasn't been done.
+     */
+    private volatile long connectLatency = -1;
+
+    /**
+     * The time (in milliseconds) taken by the login to the XMPP server,
+     * or -1 if it hasn't been done.
+     */
+    private volatile long loginLatency = -1;
+
+    /**
+     * The time (in milliseconds) taken to join the MUC, or -1 if it hasn't
+     * been joined.
+     */
+    private volatile long mucJoinLatency = -1;
+
+    /**
+     * The times this <tt>FakeUser</tt> reached each milestone of the set up
+     * of its session.
+     */
+    private final SessionMilestones milestones = new SessionMilestones();
+
+    /**
+     * The time (in milliseconds) taken by the ICE processing, or -1 if it
+     * hasn't been done.
+     */
+    private volatile long iceLatency = -1;
+
+    /**
+     * The time (in milliseconds) taken by the DTLS handshakes, or -1 if they
+     * haven't been done (or couldn't be watched).
+     */
+    private volatile long dtlsLatency = -1;
+
+    /**
+     * Whether this <tt>FakeUser</tt> has been stopped.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Whether the ICE agents and the <tt>MediaStream</tt>s of this
+     * <tt>FakeUser</tt> have been released.
+     */
+    private final AtomicBoolean mediaReleased = new AtomicBoolean();
+
+    /**
+     * The filtered sockets watching the DTLS handshakes of the session,
+     * closed once the handshakes are done.
+     */
+    private final List<DatagramSocket> dtlsWatchers
+        = new CopyOnWriteArrayList<DatagramSocket>();
+
+    /**
+     * The time (in milliseconds) after which the ICE processing of a session
+     * is given up.
+     */
+    private static final long ICE_TIMEOUT = 10000;
+
+    /**
+     * The timer of the ICE timeouts of all the <tt>FakeUser</tt>s.
+     */
+    private static final ScheduledExecutorService iceTimer
+        = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "FakeUser-ICE-timeout");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
     /**
      * Instantiates a <tt>FakeUser</tt> with a default nickname that
      * will connect to the XMPP server contained in <tt>hostInfo</tt>.
@@ -260,6 +382,9 @@ public class FakeUser implements PacketListener
          * so the HammerStats can register their MediaStreamStats now.
          */
         mediaStreamMap = HammerUtils.createMediaStreams();
+        for(MediaStream stream : mediaStreamMap.values())
+            stream.setExternalTransformer(
+                new MilestoneTransformEngine(milestones));
         if (fakeUserStats != null)
         {
             fakeUserStats.setMediaStreamStats(
@@ -289,8 +414,16 @@ public class FakeUser implements PacketListener
     public void start() throws XMPPException
     {
         logger.info(this.nickname + " : Login anonymously to the XMPP server.");
+        milestones.mark(SessionMilestones.START);
+        long time = System.currentTimeMillis();
         connection.connect();
+        connectLatency = System.currentTimeMillis() - time;
+        milestones.mark(SessionMilestones.CONNECTED);
+
+        time = System.currentTimeMillis();
         connection.loginAnonymously();
+        loginLatency = System.currentTimeMillis() - time;
+        milestones.mark(SessionMilestones.LOGGED_IN);
 
         connectMUC();
     }
@@ -304,15 +437,23 @@ public class FakeUser implements PacketListener
     {
         logger.info(this.nickname + " : Login with username "
             + username +" to the XMPP server.");
+        milestones.mark(SessionMilestones.START);
+        long time = System.currentTimeMillis();
         connection.connect();
+        connectLatency = System.currentTimeMillis() - time;
+        milestones.mark(SessionMilestones.CONNECTED);
+
+        time = System.currentTimeMillis();
         connection.login(username,password,"Jitsi-Hammer");
+        loginLatency = System.currentTimeMillis() - time;
+        milestones.mark(SessionMilestones.LOGGED_IN);
 
       //set the highest priority possible
         Presence presence = new Presence(Presence.Type.available);
         presence.setPriority(128);
         presence.setStatus("Fake User");
         connection.sendPacket(presence);
-        System.out.println("Boven-XMPP: " + presence.toXML());
+        SignallingTrace.trace(nickname, "presence", presence);
 
         connectMUC();
     }
@@ -326,11 +467,14 @@ public class FakeUser implements PacketListener
         String roomURL = serverInfo.getRoomName()+"@"+serverInfo.getMUCDomain();
         logger.info(this.nickname + " : Trying to connect to MUC " + roomURL);
         muc = new MultiUserChat(connection, roomURL);
+        long time = System.currentTimeMillis();
         while(true)
         {
             try
             {
                 muc.join(nickname);
+                mucJoinLatency = System.currentTimeMillis() - time;
+                milestones.mark(SessionMilestones.MUC_JOINED);
 
                 muc.sendMessage("Hello World!");
 
@@ -342,7 +486,7 @@ public class FakeUser implements PacketListener
                 presencePacket.setTo(roomURL + "/" + nickname);
                 presencePacket.addExtension(new Nick(nickname));
                 connection.sendPacket(presencePacket);
-                System.out.println("Boven-connectMUC: " + presencePacket.toXML());
+                SignallingTrace.trace(nickname, "mucPresence", presencePacket);
             }
             catch (XMPPException e)
             {
@@ -375,12 +519,8 @@ public class FakeUser implements PacketListener
     {
         logger.info(this.nickname + " : stopping the streams, leaving the MUC"
             + " and disconnecting from the XMPP server");
-        if(agent != null)
-            agent.free();
-        for(MediaStream stream : mediaStreamMap.values())
-        {
-            stream.close();
-        }
+        stopped = true;
+        releaseMedia();
         if(connection !=null)
         {
             if(sessionAccept != null)
@@ -392,7 +532,7 @@ public class FakeUser implements PacketListener
                         Reason.GONE,
                         "Bye Bye");
                 connection.sendPacket(iq);
-                System.out.println("Boven-Terminate: " + iq.toXML());
+                SignallingTrace.trace(nickname, "sessionTerminate", iq);
             }
 
             if(muc != null) muc.leave();
@@ -401,6 +541,72 @@ public class FakeUser implements PacketListener
     }
 
 
+    /**
+     * Free the ICE agents and their ports, close the <tt>MediaStream</tt>s and
+     * the sockets watching the DTLS handshakes of this <tt>FakeUser</tt>
+     * (once, whether the user is stopped or its session given up).
+     */
+    private void releaseMedia()
+    {
+        closeDtlsWatchers();
+        if(!mediaReleased.compareAndSet(false, true))
+            return;
+
+        if(agent != null)
+        {
+            for(Agent mediaAgent : getAgents())
+            {
+                mediaAgent.free();
+                IceMediaStreamGenerator.getInstance().release(mediaAgent);
+            }
+        }
+        for(MediaStream stream : mediaStreamMap.values())
+        {
+            stream.close();
+        }
+    }
+
+    /**
+     * Close the sockets watching the DTLS handshakes of the session.
+     */
+    private void closeDtlsWatchers()
+    {
+        for(DatagramSocket socket : dtlsWatchers)
+        {
+            if(dtlsWatchers.remove(socket))
+                socket.close();
+        }
+    }
+
+    /**
+     * Give up the session because its set up can't reach the milestone
+     * <tt>milestone</tt> : record the failure, release the media resources
+     * and terminate the Jingle session.
+     *
+     * @param milestone the milestone the session can't reach.
+     * @param reason the <tt>Reason</tt> of the session-terminate.
+     * @param text the text of the session-terminate.
+     */
+    private void failSession(int milestone, Reason reason, String text)
+    {
+        milestones.markFailed(milestone);
+        releaseMedia();
+
+        JingleIQ accept = sessionAccept;
+        sessionAccept = null;
+        if(connection != null && accept != null)
+        {
+            JingleIQ iq = JinglePacketFactory.createSessionTerminate(
+                accept.getFrom(),
+                accept.getTo(),
+                accept.getSID(),
+                reason,
+                text);
+            connection.sendPacket(iq);
+            SignallingTrace.trace(nickname, "sessionTerminate", iq);
+        }
+    }
+
     /**
      * acceptJingleSession create a accept-session Jingle message and
      * send it to the initiator of the session.
@@ -485,28 +691,105 @@ public class FakeUser implements PacketListener
 
 
         iceMediaStreamGenerator = IceMediaStreamGenerator.getInstance();
-        try
+        boolean sharedPorts = iceMediaStreamGenerator.isSharedPorts();
+
+        //Multiplex RTP and RTCP for the contents whose offer allows it, and
+        //bundle all the contents on a single transport if the offer groups
+        //them.
+        Set<String> rtcpMuxNames = new HashSet<String>();
+        for(ContentPacketExtension cpe : sessionInitiate.getContentList())
         {
-            iceMediaStreamGenerator.generateIceMediaStream(
-                agent,
-                contentMap.keySet(),
-                null,
-                null);
+            String name = cpe.getName();
+            if(!contentMap.containsKey(name))
+                continue;
+
+            if(HammerUtils.isRtcpMux(cpe))
+            {
+                rtcpMuxNames.add(name);
+            }
+            else if(sharedPorts)
+            {
+                //The shared ports have a single component per stream, there
+                //is no port left for a separate RTCP component.
+                logger.error(this.nickname + " : the offer of " + name
+                    + " doesn't allow rtcp-mux, which is required by the"
+                    + " shared ports");
+                JingleIQ iq = JinglePacketFactory.createSessionTerminate(
+                    sessionInitiate.getTo(),
+                    sessionInitiate.getFrom(),
+                    sessionInitiate.getSID(),
+                    Reason.INCOMPATIBLE_PARAMETERS,
+                    "rtcp-mux is required");
+                connection.sendPacket(iq);
+                SignallingTrace.trace(nickname, "sessionTerminate", iq);
+                return;
+            }
+
+            List<Integer> pts = new ArrayList<Integer>();
+            description = cpe.getFirstChildOfType(
+                RtpDescriptionPacketExtension.class);
+            for(PayloadTypePacketExtension pt : description.getPayloadTypes())
+                pts.add(pt.getID());
+            payloadTypes.put(name, pts);
         }
-        catch (IOException e)
+        List<String> bundle = HammerUtils.getBundle(
+            sessionInitiate,
+            contentMap.keySet(),
+            rtcpMuxNames);
+        if(!bundle.isEmpty())
         {
-            logger.fatal(this.nickname + " : Error during the generation"
-                + " of the IceMediaStream",e);
+            logger.info(this.nickname + " : bundling " + bundle);
+            shareSrtpControl(bundle);
+            for(String name : bundle)
+                iceStreamNames.put(name, bundle.get(0));
         }
 
-        //Add the remote candidate to my agent, and add my local candidate of
-        //my stream to the content list of the future session-accept
-        HammerUtils.addRemoteCandidateToAgent(
-            agent,
-            sessionInitiate.getContentList());
-        HammerUtils.addLocalCandidateToContentList(
-            agent,
-            contentMap.values());
+        for(String name : contentMap.keySet())
+        {
+            agents.put(
+                name,
+                (sharedPorts && !agents.isEmpty() && bundle.isEmpty())
+                    ? new Agent()
+                    : agent);
+        }
+        for(Agent mediaAgent : getAgents())
+        {
+            Set<String> iceNames = new LinkedHashSet<String>();
+            for(String name : getMediaNames(mediaAgent))
+            {
+                iceNames.add(iceStreamNames.containsKey(name)
+                    ? iceStreamNames.get(name)
+                    : name);
+            }
+            try
+            {
+                iceMediaStreamGenerator.generateIceMediaStream(
+                    mediaAgent,
+                    iceNames,
+                    rtcpMuxNames,
+                    null,
+                    null);
+            }
+            catch (IOException e)
+            {
+                logger.fatal(this.nickname + " : Error during the generation"
+                    + " of the IceMediaStream",e);
+            }
+
+            //Add the remote candidate to my agent, and add my local candidate
+            //of my stream to the content list of the future session-accept
+            HammerUtils.addRemoteCandidateToAgent(
+                mediaAgent,
+                sessionInitiate.getContentList());
+            List<ContentPacketExtension> agentContents
+                = new ArrayList<ContentPacketExtension>();
+            for(String name : getMediaNames(mediaAgent))
+                agentContents.add(contentMap.get(name));
+            HammerUtils.addLocalCandidateToContentList(
+                mediaAgent,
+                agentContents,
+                iceStreamNames);
+        }
 
 
 
@@ -559,7 +842,10 @@ public class FakeUser implements PacketListener
         }
         presencePacketWithSSRC.addExtension(mediaPacket);
         connection.sendPacket(presencePacketWithSSRC);
-        System.out.println("Boven-PresentSSRC : " + presencePacketWithSSRC.toXML());
+        SignallingTrace.trace(
+            nickname,
+            "ssrcPresence",
+            presencePacketWithSSRC);
 
 
 
@@ -571,6 +857,15 @@ public class FakeUser implements PacketListener
             sessionInitiate.getSID(),
             contentMap.values());
         sessionAccept.setInitiator(sessionInitiate.getFrom());
+        if(!bundle.isEmpty())
+        {
+            List<ContentPacketExtension> bundledContents
+                = new ArrayList<ContentPacketExtension>();
+            for(String name : bundle)
+                bundledContents.add(contentMap.get(name));
+            sessionAccept.addExtension(
+                GroupPacketExtension.createBundleGroup(bundledContents));
+        }
 
 
         //Set the remote fingerprint on my streams and add the fingerprints
@@ -583,100 +878,359 @@ public class FakeUser implements PacketListener
 
         //Send the session-accept IQ
         connection.sendPacket(sessionAccept);
+        milestones.mark(SessionMilestones.SESSION_ACCEPT);
         logger.info(this.nickname + " : Jingle accept-session message sent");
-        System.out.println("Boven-sessionAccept: " + sessionAccept.toXML());
+        SignallingTrace.trace(nickname, "sessionAccept", sessionAccept);
+
+        //Set up the session asynchronously : the ICE processing and the
+        //DTLS handshake go on without parking this thread.
+        new SessionSetup(
+            new ArrayList<String>(contentMap.keySet()),
+            bundle,
+            payloadTypes,
+            rtcpMuxNames).start();
+    }
+
+    /**
+     * The set up of the Jingle session once the session-accept is sent, as a
+     * chain of callbacks : ICE completed (notified by the state of the
+     * <tt>Agent</tt>s, or by the ICE timeout), sockets added to the
+     * <tt>MediaStream</tt>s, encryption and <tt>MediaStream</tt>s started,
+     * DTLS handshake completed (notified by a <tt>DtlsHandshakeFilter</tt>).
+     *
+     * The stages after ICE are run on the session <tt>Executor</tt> of this
+     * <tt>FakeUser</tt> (or on the thread of ice4j notifying the state change
+     * if there isn't one), and the time taken by ICE and DTLS is recorded in
+     * <tt>iceLatency</tt> and <tt>dtlsLatency</tt>.
+     */
+    private class SessionSetup
+        implements PropertyChangeListener, Runnable
+    {
+        /**
+         * The names of the contents of the session.
+         */
+        private final List<String> names;
+
+        /**
+         * The names of the bundled contents (empty if there is no bundle).
+         */
+        private final List<String> bundle;
+
+        /**
+         * The payload types of each content.
+         */
+        private final Map<String,List<Integer>> payloadTypes;
+
+        /**
+         * The names of the contents multiplexing RTP and RTCP.
+         */
+        private final Set<String> rtcpMuxNames;
+
+        /**
+         * The <tt>Agent</tt>s of the session.
+         */
+        private final Collection<Agent> mediaAgents = getAgents();
+
+        /**
+         * Whether ICE is done (completed, failed or timed out).
+         */
+        private final AtomicBoolean iceDone = new AtomicBoolean();
+
+        /**
+         * The number of DTLS handshakes not completed yet.
+         */
+        private final AtomicInteger pendingHandshakes = new AtomicInteger();
+
+        /**
+         * The time (in milliseconds) the ICE processing started.
+         */
+        private long iceStart;
+
+        /**
+         * The time (in milliseconds) the DTLS handshakes started.
+         */
+        private volatile long dtlsStart;
+
+        /**
+         * The ICE timeout.
+         */
+        private ScheduledFuture<?> timeout;
+
+        /**
+         * Initializes a new <tt>SessionSetup</tt>.
+         * @param names the names of the contents of the session.
+         * @param bundle the names of the bundled contents.
+         * @param payloadTypes the payload types of each content.
+         * @param rtcpMuxNames the names of the contents multiplexing RTP and
+         * RTCP.
+         */
+        public SessionSetup(
+            List<String> names,
+            List<String> bundle,
+            Map<String,List<Integer>> payloadTypes,
+            Set<String> rtcpMuxNames)
+        {
+            this.names = names;
+            this.bundle = bundle;
+            this.payloadTypes = payloadTypes;
+            this.rtcpMuxNames = rtcpMuxNames;
+        }
 
-        // A listener to wake us up when the Agent enters a final state.
-        final Object syncRoot = new Object();
-        PropertyChangeListener propertyChangeListener
-                = new PropertyChangeListener()
+        /**
+         * Start the ICE processing of the <tt>Agent</tt>s, and the timeout
+         * after which the session is given up.
+         */
+        public void start()
         {
-            @Override
-            public void propertyChange(PropertyChangeEvent ev)
+            iceStart = System.currentTimeMillis();
+            synchronized (this)
             {
-                Object newValue = ev.getNewValue();
+                timeout = iceTimer.schedule(
+                    this,
+                    ICE_TIMEOUT,
+                    TimeUnit.MILLISECONDS);
+            }
+            for(Agent mediaAgent : mediaAgents)
+            {
+                mediaAgent.addStateChangeListener(this);
+                mediaAgent.startConnectivityEstablishment();
+            }
+            //An Agent may have reached a final state before the listener was
+            //added to the others.
+            if(isIceFinal())
+                iceDone();
+        }
 
-                if (IceProcessingState.COMPLETED.equals(newValue)
-                        || IceProcessingState.FAILED.equals(newValue)
-                        || IceProcessingState.TERMINATED.equals(newValue))
-                {
-                    Agent iceAgent = (Agent) ev.getSource();
+        /**
+         * Called when the state of an <tt>Agent</tt> changes.
+         * @param ev the <tt>PropertyChangeEvent</tt> of the change.
+         */
+        @Override
+        public void propertyChange(PropertyChangeEvent ev)
+        {
+            if(isFinal(ev.getNewValue()) && isIceFinal())
+                iceDone();
+        }
 
-                    iceAgent.removeStateChangeListener(this);
-                    if (iceAgent == FakeUser.this.agent)
-                    {
-                        synchronized (syncRoot)
-                        {
-                            syncRoot.notify();
-                        }
-                    }
-                }
+        /**
+         * Called when the ICE timeout expires.
+         */
+        public void run()
+        {
+            iceDone();
+        }
+
+        /**
+         * Run the stages after ICE (once, whichever of the state changes or
+         * of the timeout calls it first).
+         */
+        private void iceDone()
+        {
+            if(!iceDone.compareAndSet(false, true))
+                return;
+
+            synchronized (this)
+            {
+                if(timeout != null)
+                    timeout.cancel(false);
             }
-        };
+            for(Agent mediaAgent : mediaAgents)
+                mediaAgent.removeStateChangeListener(this);
 
-        agent.addStateChangeListener(propertyChangeListener);
-        agent.startConnectivityEstablishment();
+            Runnable stages = new Runnable()
+            {
+                public void run()
+                {
+                    startMedia();
+                }
+            };
+            Executor executor = sessionExecutor;
+            if(executor == null)
+                stages.run();
+            else
+                executor.execute(stages);
+        }
 
-        synchronized (syncRoot)
+        /**
+         * Add the sockets of ICE to the <tt>MediaStream</tt>s, start their
+         * encryption, and start them.
+         */
+        private void startMedia()
         {
-            long startWait = System.currentTimeMillis();
-            do
-            {
-                IceProcessingState iceState = agent.getState();
-                if (IceProcessingState.COMPLETED.equals(iceState)
-                        || IceProcessingState.TERMINATED.equals(iceState)
-                        || IceProcessingState.FAILED.equals(iceState))
-                    break;
+            if(stopped)
+                return;
 
-                if (System.currentTimeMillis() - startWait > 10000)
-                    break; // Don't run for more than 10 seconds
+            iceLatency = System.currentTimeMillis() - iceStart;
+            for(Agent mediaAgent : mediaAgents)
+            {
+                IceProcessingState iceState = mediaAgent.getState();
+                if (!IceProcessingState.COMPLETED.equals(iceState)
+                        && !IceProcessingState.TERMINATED.equals(iceState))
+                {
+                    logger.fatal("ICE failed for user " + nickname
+                        + ". Agent state: " + iceState);
+                    failSession(
+                        SessionMilestones.ICE_COMPLETED,
+                        Reason.CONNECTIVITY_ERROR,
+                        "ICE " + iceState);
+                    return;
+                }
+            }
+            milestones.mark(SessionMilestones.ICE_COMPLETED);
+            logger.info(nickname + " : ICE completed in " + iceLatency + "ms");
 
+            // Add socket created by ice4j to their associated MediaStreams
+            // We drop incoming RTP packets when statistics are disabled in
+            // order to improve performance.
+            if(!bundle.isEmpty())
+            {
                 try
                 {
-                    syncRoot.wait(1000);
+                    HammerUtils.addSocketToBundledMediaStreams(
+                        agent,
+                        bundle,
+                        mediaStreamMap,
+                        payloadTypes,
+                        fakeUserStats == null && !receiveMedia);
                 }
-                catch (InterruptedException ie)
+                catch (SocketException e)
                 {
-                    logger.fatal("Interrupted: " + ie);
-                    break;
+                    logger.fatal(nickname + " : can't share the socket of"
+                        + " the bundle", e);
+                    failSession(
+                        SessionMilestones.DTLS_COMPLETED,
+                        Reason.FAILED_TRANSPORT,
+                        "can't share the socket of the bundle");
+                    return;
+                }
+            }
+            else
+            {
+                for(Agent mediaAgent : mediaAgents)
+                {
+                    HammerUtils.addSocketToMediaStream(mediaAgent,
+                                                       mediaStreamMap,
+                                                       fakeUserStats == null
+                                                           && !receiveMedia);
                 }
             }
-            while (true);
-        }
 
-        agent.removeStateChangeListener(propertyChangeListener);
+            watchDtlsHandshakes();
 
-        IceProcessingState iceState = agent.getState();
-        if (!IceProcessingState.COMPLETED.equals(iceState)
-                && !IceProcessingState.TERMINATED.equals(iceState))
-        {
-            logger.fatal("ICE failed for user " + nickname + ". Agent state: "
-                                 + iceState);
-            return;
+            //Start the encryption of the MediaStreams (once for the streams
+            //sharing the DTLS session of a bundle)
+            dtlsStart = System.currentTimeMillis();
+            Set<SrtpControl> startedControls = Collections.newSetFromMap(
+                new IdentityHashMap<SrtpControl,Boolean>());
+            for(String key : names)
+            {
+                MediaStream stream = mediaStreamMap.get(key);
+                SrtpControl control = stream.getSrtpControl();
+                MediaType type = stream.getFormat().getMediaType();
+                if(control instanceof DtlsControl)
+                {
+                    ((DtlsControl) control).setRtcpmux(
+                        rtcpMuxNames.contains(key));
+                }
+                if(startedControls.add(control))
+                    control.start(type);
+            }
+
+            //Start the MediaStream (the DTLS packets are received through
+            //the started MediaStreams, so they can't wait for the handshake)
+            for(String key : names)
+            {
+                MediaStream stream = mediaStreamMap.get(key);
+                stream.start();
+            }
+
+            for(FakeUserListener listener : listeners)
+                listener.mediaStarted(FakeUser.this);
         }
 
-        // Add socket created by ice4j to their associated MediaStreams
-        // We drop incoming RTP packets when statistics are disabled in order
-        // to improve performance.
-        HammerUtils.addSocketToMediaStream(agent,
-                                           mediaStreamMap,
-                                           fakeUserStats == null);
+        /**
+         * Watch the DTLS handshake on the socket of each DTLS session of the
+         * session (one per stream, or one for the bundle).
+         */
+        private void watchDtlsHandshakes()
+        {
+            Runnable handshakeListener = new Runnable()
+            {
+                public void run()
+                {
+                    if(pendingHandshakes.decrementAndGet() == 0)
+                    {
+                        milestones.mark(SessionMilestones.DTLS_COMPLETED);
+                        dtlsLatency = System.currentTimeMillis() - dtlsStart;
+                        logger.info(nickname + " : DTLS completed in "
+                            + dtlsLatency + "ms");
+                        //not on the thread reading the sockets, which is
+                        //running the filter calling this listener.
+                        iceTimer.execute(new Runnable()
+                        {
+                            public void run()
+                            {
+                                closeDtlsWatchers();
+                            }
+                        });
+                    }
+                }
+            };
 
+            List<String> watched = bundle.isEmpty()
+                ? names
+                : bundle.subList(0, 1);
+            pendingHandshakes.set(watched.size());
+            for(String name : watched)
+            {
+                Agent mediaAgent = getAgent(bundle.isEmpty()
+                    ? name
+                    : bundle.get(0));
+                DatagramSocket watcher = (mediaAgent == null)
+                    ? null
+                    : HammerUtils.addDtlsHandshakeListener(
+                        mediaAgent,
+                        name,
+                        handshakeListener);
+                if(watcher == null)
+                {
+                    //the handshakes can't all be watched
+                    pendingHandshakes.set(-1);
+                    closeDtlsWatchers();
+                    return;
+                }
+                dtlsWatchers.add(watcher);
+            }
+            //the user may have been stopped meanwhile.
+            if(mediaReleased.get())
+                closeDtlsWatchers();
+        }
 
-        //Start the encryption of the MediaStreams
-        for(String key : contentMap.keySet())
+        /**
+         * Returns whether all the <tt>Agent</tt>s are in a final state.
+         * @return <tt>true</tt> if all the <tt>Agent</tt>s are in a final
+         * state.
+         */
+        private boolean isIceFinal()
         {
-            MediaStream stream = mediaStreamMap.get(key);
-            SrtpControl control = stream.getSrtpControl();
-            MediaType type = stream.getFormat().getMediaType();
-            control.start(type);
+            for(Agent mediaAgent : mediaAgents)
+            {
+                if(!isFinal(mediaAgent.getState()))
+                    return false;
+            }
+            return true;
         }
 
-        //Start the MediaStream
-        for(String key : contentMap.keySet())
+        /**
+         * Returns whether <tt>state</tt> is a final <tt>IceProcessingState</tt>.
+         * @param state an <tt>IceProcessingState</tt>.
+         * @return <tt>true</tt> if <tt>state</tt> is a final state.
+         */
+        private boolean isFinal(Object state)
         {
-            MediaStream stream = mediaStreamMap.get(key);
-            stream.start();
+            return IceProcessingState.COMPLETED.equals(state)
+                || IceProcessingState.FAILED.equals(state)
+                || IceProcessingState.TERMINATED.equals(state);
         }
     }
 
@@ -693,12 +1247,27 @@ public class FakeUser implements PacketListener
         switch(jiq.getAction())
         {
         case SESSION_INITIATE:
-        	System.out.println("Boven-sessionInit:" + jiq.toXML());
+            SignallingTrace.trace(nickname, "sessionInitiate", jiq);
             logger.info(this.nickname + " : Jingle session-initiate received");
             if(sessionInitiate == null)
             {
+                milestones.mark(SessionMilestones.SESSION_INITIATE);
                 sessionInitiate = jiq;
-                acceptJingleSession();
+                Executor executor = sessionExecutor;
+                if(executor == null)
+                {
+                    acceptJingleSession();
+                }
+                else
+                {
+                    executor.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            acceptJingleSession();
+                        }
+                    });
+                }
             }
             else
             {
@@ -707,15 +1276,15 @@ public class FakeUser implements PacketListener
             }
             break;
         case ADDSOURCE:
-        	System.out.println("Boven-addSrc:" + jiq.toXML());
+            SignallingTrace.trace(nickname, "addSource", jiq);
             logger.info(this.nickname + " : Jingle addsource received");
             break;
         case REMOVESOURCE:
-        	System.out.println("Boven-rmSrc:" + jiq.toXML());
+            SignallingTrace.trace(nickname, "removeSource", jiq);
             logger.info(this.nickname + " : Jingle addsource received");
             break;
         default:
-        	System.out.println("Boven-unknown:" + jiq.toXML());
+            SignallingTrace.trace(nickname, "unknown", jiq);
             logger.info(this.nickname + " : Unknown Jingle IQ received : "
                 + jiq.toString());
             break;
@@ -732,7 +1301,7 @@ public class FakeUser implements PacketListener
     {
         IQ ackPacket = IQ.createResultIQ(packetToAck);
         connection.sendPacket(ackPacket);
-        System.out.println("Boven-Ack : " + ackPacket.toXML());
+        SignallingTrace.trace(nickname, "ack", ackPacket);
     }
 
 
@@ -848,4 +1417,254 @@ public class FakeUser implements PacketListener
     {
         return this.fakeUserStats;
     }
+
+    /**
+     * Returns the <tt>MediaStream</tt> of this <tt>FakeUser</tt> handling the
+     * media named <tt>mediaName</tt> (audio, video).
+     * @param mediaName the name of the media of the <tt>MediaStream</tt>.
+     * @return the <tt>MediaStream</tt> handling <tt>mediaName</tt>, or
+     * <tt>null</tt> if this <tt>FakeUser</tt> has no such stream.
+     */
+    public MediaStream getMediaStream(String mediaName)
+    {
+        return mediaStreamMap.get(mediaName);
+    }
+
+    /**
+     * Set whether the incoming RTP packets of the <tt>MediaStream</tt>s of
+     * this <tt>FakeUser</tt> must be handed to libjitsi even when the
+     * statistics are disabled. It needs to be set before the session-initiate
+     * is received to have any effect.
+     * @param receiveMedia <tt>true</tt> to keep the incoming RTP packets.
+     */
+    public void setReceiveMedia(boolean receiveMedia)
+    {
+        this.receiveMedia = receiveMedia;
+    }
+
+    /**
+     * Returns the <tt>Agent</tt> handling the ICE protocol of the streams of
+     * this <tt>FakeUser</tt>.
+     * @return the <tt>Agent</tt> of this <tt>FakeUser</tt>.
+     */
+    public Agent getAgent()
+    {
+        return this.agent;
+    }
+
+    /**
+     * Returns the <tt>Agent</tt> handling the ICE protocol of the stream
+     * <tt>mediaName</tt> of this <tt>FakeUser</tt> (which is
+     * <tt>getAgent()</tt> unless the UDP ports are shared).
+     * @param mediaName the name of a media (audio, video).
+     * @return the <tt>Agent</tt> of the stream <tt>mediaName</tt>.
+     */
+    public Agent getAgent(String mediaName)
+    {
+        Agent mediaAgent = agents.get(mediaName);
+        return (mediaAgent == null) ? this.agent : mediaAgent;
+    }
+
+    /**
+     * Returns the <tt>IceMediaStream</tt> carrying the media
+     * <tt>mediaName</tt> of this <tt>FakeUser</tt> : the one of the first
+     * media of the bundle if <tt>mediaName</tt> is bundled.
+     * @param mediaName the name of a media (audio, video).
+     * @return the <tt>IceMediaStream</tt> of <tt>mediaName</tt>, or
+     * <tt>null</tt> if it has none (yet).
+     */
+    public IceMediaStream getIceMediaStream(String mediaName)
+    {
+        String name = iceStreamNames.get(mediaName);
+        return getAgent(mediaName).getStream(
+            (name == null) ? mediaName : name);
+    }
+
+    /**
+     * Returns <tt>true</tt> if the media <tt>mediaName</tt> shares its
+     * <tt>IceMediaStream</tt> with the other media of a bundle.
+     * @param mediaName the name of a media (audio, video).
+     * @return <tt>true</tt> if <tt>mediaName</tt> is bundled.
+     */
+    public boolean isBundled(String mediaName)
+    {
+        return iceStreamNames.containsKey(mediaName);
+    }
+
+    /**
+     * Returns the RTP payload types offered for the media <tt>mediaName</tt>
+     * in the session-initiate.
+     * @param mediaName the name of a media (audio, video).
+     * @return the RTP payload types of <tt>mediaName</tt>, or <tt>null</tt>
+     * if the session-initiate hasn't been accepted (yet).
+     */
+    public List<Integer> getPayloadTypes(String mediaName)
+    {
+        return payloadTypes.get(mediaName);
+    }
+
+    /**
+     * Replace the <tt>MediaStream</tt>s of the bundle, but the first one, by
+     * <tt>MediaStream</tt>s sharing the <tt>SrtpControl</tt> of the first
+     * one, as the bundled streams have a single DTLS session. The
+     * <tt>FakeUserListener</tt>s are notified of each replacement, before the
+     * old <tt>MediaStream</tt> is closed.
+     * @param bundle the names of the bundled contents.
+     */
+    private void shareSrtpControl(List<String> bundle)
+    {
+        MediaService mediaService = LibJitsi.getMediaService();
+        SrtpControl control
+            = mediaStreamMap.get(bundle.get(0)).getSrtpControl();
+
+        for(String name : bundle.subList(1, bundle.size()))
+        {
+            MediaStream old = mediaStreamMap.get(name);
+            MediaStream stream = mediaService.createMediaStream(
+                null,
+                MediaType.parseString(name),
+                control);
+            stream.setExternalTransformer(
+                new MilestoneTransformEngine(milestones));
+            mediaStreamMap.put(name, stream);
+            for(FakeUserListener listener : listeners)
+                listener.mediaStreamReplaced(this, name, old, stream);
+            old.close();
+
+            if (fakeUserStats != null)
+                fakeUserStats.setMediaStreamStats(stream);
+        }
+    }
+
+    /**
+     * Returns the distinct <tt>Agent</tt>s of the streams of this
+     * <tt>FakeUser</tt>.
+     * @return the distinct <tt>Agent</tt>s of the streams.
+     */
+    private Collection<Agent> getAgents()
+    {
+        Set<Agent> distinct = new LinkedHashSet<Agent>(agents.values());
+        distinct.add(agent);
+        return distinct;
+    }
+
+    /**
+     * Returns the names of the media handled by <tt>mediaAgent</tt>.
+     * @param mediaAgent one of the <tt>Agent</tt>s of this <tt>FakeUser</tt>.
+     * @return the names of the media handled by <tt>mediaAgent</tt>.
+     */
+    private Set<String> getMediaNames(Agent mediaAgent)
+    {
+        Set<String> names = new LinkedHashSet<String>();
+        for(Map.Entry<String,Agent> e : agents.entrySet())
+        {
+            if(e.getValue() == mediaAgent)
+                names.add(e.getKey());
+        }
+        return names;
+    }
+
+    /**
+     * Add a <tt>FakeUserListener</tt> that will be notified of the progress
+     * of the Jingle session of this <tt>FakeUser</tt>.
+     * @param listener the <tt>FakeUserListener</tt> to add.
+     */
+    public void addListener(FakeUserListener listener)
+    {
+        if(listener != null && !listeners.contains(listener))
+            listeners.add(listener);
+    }
+
+    /**
+     * Remove a <tt>FakeUserListener</tt> of this <tt>FakeUser</tt>.
+     * @param listener the <tt>FakeUserListener</tt> to remove.
+     */
+    public void removeListener(FakeUserListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the nickname used by this <tt>FakeUser</tt> in the MUC.
+     * @return the nickname used by this <tt>FakeUser</tt> in the MUC.
+     */
+    public String getNickname()
+    {
+        return this.nickname;
+    }
+
+    /**
+     * Get the time (in milliseconds) taken by the connection to the XMPP
+     * server.
+     * @return the time taken by the connection to the XMPP server, or -1 if
+     * it hasn't been done.
+     */
+    public long getConnectLatency()
+    {
+        return connectLatency;
+    }
+
+    /**
+     * Get the time (in milliseconds) taken by the login to the XMPP server.
+     * @return the time taken by the login to the XMPP server, or -1 if it
+     * hasn't been done.
+     */
+    public long getLoginLatency()
+    {
+        return loginLatency;
+    }
+
+    /**
+     * Get the time (in milliseconds) taken to join the MUC.
+     * @return the time taken to join the MUC, or -1 if it hasn't been
+     * joined.
+     */
+    public long getMucJoinLatency()
+    {
+        return mucJoinLatency;
+    }
+
+    /**
+     * Get the times this <tt>FakeUser</tt> reached each milestone of the set
+     * up of its session.
+     * @return the <tt>SessionMilestones</tt> of this <tt>FakeUser</tt>.
+     */
+    public SessionMilestones getSessionMilestones()
+    {
+        return milestones;
+    }
+
+    /**
+     * Get the time (in milliseconds) taken by the ICE processing.
+     * @return the time taken by the ICE processing, or -1 if it hasn't been
+     * done.
+     */
+    public long getIceLatency()
+    {
+        return iceLatency;
+    }
+
+    /**
+     * Get the time (in milliseconds) taken by the DTLS handshakes, from the
+     * start of the encryption to the ChangeCipherSpec of the peer.
+     * @return the time taken by the DTLS handshakes, or -1 if they haven't
+     * been done.
+     */
+    public long getDtlsLatency()
+    {
+        return dtlsLatency;
+    }
+
+    /**
+     * Set the <tt>Executor</tt> on which this <tt>FakeUser</tt> will set up
+     * its Jingle session (accept, ICE processing and start of the streams),
+     * so that the packet-listener thread of its XMPP connection isn't blocked
+     * while waiting for ICE.
+     * @param executor the <tt>Executor</tt> to use, or <tt>null</tt> to set
+     * up the session on the packet-listener thread.
+     */
+    public void setSessionExecutor(Executor executor)
+    {
+        this.sessionExecutor = executor;
+    }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer;
+
+import org.jitsi.service.neomedia.*;
+
+/**
+ * A <tt>FakeUserListener</tt> is notified of the progress of the Jingle
+ * session of the <tt>FakeUser</tt>s it has been added to.
+ *
+ * The methods are called from the thread handling the session of the
+ * <tt>FakeUser</tt> : they must return quickly.
+ */
+public interface FakeUserListener
+{
+    /**
+     * Called when the ICE processing of <tt>user</tt> has completed and its
+     * <tt>MediaStream</tt>s have been connected to the selected sockets and
+     * started.
+     * @param user the <tt>FakeUser</tt> whose media has started.
+     */
+    public void mediaStarted(FakeUser user);
+
+    /**
+     * Called when the <tt>MediaStream</tt> of the media <tt>mediaName</tt> of
+     * <tt>user</tt> is replaced (e.g. to share the DTLS session of a bundle),
+     * before the session is set up.
+     * @param user the <tt>FakeUser</tt> whose <tt>MediaStream</tt> is
+     * replaced.
+     * @param mediaName the name of the media of the <tt>MediaStream</tt>.
+     * @param oldStream the replaced <tt>MediaStream</tt>, closed once the
+     * listeners are notified.
+     * @param newStream the new <tt>MediaStream</tt> of <tt>mediaName</tt>.
+     */
+    public void mediaStreamReplaced(
+        FakeUser user,
+        String mediaName,
+        MediaStream oldStream,
+        MediaStream newStream);
+}
@@ -29,10 +29,14 @@ import net.java.sip.communicator.impl.osgi.framework.launch.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 
 import org.jitsi.hammer.extension.*;
-import org.jitsi.hammer.utils.MediaDeviceChooser;
+import org.jitsi.hammer.utils.*;
 import org.jitsi.util.Logger;
 
+import org.apache.commons.math3.stat.descriptive.*;
+
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  *
@@ -151,6 +155,42 @@ public class Hammer
      */
     private Thread hammerStatsThread;
 
+    /**
+     * The <tt>ExecutorService</tt> on which the <tt>FakeUser</tt>s set up
+     * their Jingle session, or <tt>null</tt> if they set it up on the
+     * packet-listener thread of their XMPP connection.
+     */
+    private ExecutorService sessionExecutor;
+
+    /**
+     * The port of the HTTP endpoint serving the live metrics of the run, or 0
+     * if it is disabled.
+     */
+    private int metricsPort = 0;
+
+    /**
+     * The <tt>MetricsServer</tt> serving the live metrics of the run, or
+     * <tt>null</tt>.
+     */
+    private MetricsServer metricsServer;
+
+    /**
+     * Whether all the stats are logged in a binary file rather than in JSON.
+     */
+    private boolean binaryStats = false;
+
+    /**
+     * The time (in seconds) between two syncs of the binary stats file to the
+     * disk.
+     */
+    private int binaryStatsSync = 30;
+
+    /**
+     * The number of threads updating the stats of the <tt>FakeUser</tt>s in
+     * parallel, or 0 for the default of <tt>HammerStats</tt>.
+     */
+    private int statsThreads = 0;
+
     /**
      * boolean used to know if the <tt>Hammer</tt> is started or not.
      */
@@ -168,8 +208,15 @@ public class Hammer
      * @param nickname The base of the nickname used by all the virtual users.
      * @param numberOfUser The number of virtual users this <tt>Hammer</tt>
      * will create and handle.
+     * @param disableStats whether statistics should be disabled (the same
+     * value must be given to {@link #start}).
      */
-    public Hammer(HostInfo host, MediaDeviceChooser mdc, String nickname, int numberOfUser)
+    public Hammer(
+        HostInfo host,
+        MediaDeviceChooser mdc,
+        String nickname,
+        int numberOfUser,
+        boolean disableStats)
     {
         this.nickname = nickname;
         this.serverInfo = host;
@@ -182,7 +229,7 @@ public class Hammer
                 this.serverInfo,
                 this.mediaDeviceChooser,
                 this.nickname+"_"+i,
-                (hammerStats != null));
+                !disableStats);
         }
         logger.info(String.format("Hammer created : %d fake users were created"
             + " with a base nickname %s", numberOfUser, nickname));
@@ -190,6 +237,72 @@ public class Hammer
 
 
 
+    /**
+     * Make the <tt>FakeUser</tt>s of this <tt>Hammer</tt> set up their Jingle
+     * session on a shared <tt>ExecutorService</tt> rather than on the
+     * packet-listener thread of their XMPP connection. Must be called before
+     * {@link #start}.
+     *
+     * @param threads the number of threads of the pool used for the session
+     * setups. If zero or negative (and <tt>virtualThreads</tt> is
+     * <tt>false</tt>), the sessions are set up on the packet-listener
+     * threads, as before.
+     * @param virtualThreads whether to use one virtual thread per session
+     * setup, if the JVM supports them.
+     */
+    public void setSessionExecutor(int threads, boolean virtualThreads)
+    {
+        if(threads <= 0 && !virtualThreads)
+            return;
+
+        sessionExecutor = HammerUtils.createSessionExecutor(
+            threads,
+            virtualThreads,
+            fakeUsers.length);
+        for(FakeUser user : fakeUsers)
+            user.setSessionExecutor(sessionExecutor);
+    }
+
+    /**
+     * Serve the live metrics of the run (ramp progress, and the aggregate of
+     * the stats of the streams) in the Prometheus text format on
+     * <tt>http://host:port/metrics</tt>. Must be called before
+     * {@link #start}.
+     *
+     * @param port the port of the HTTP endpoint, or 0 to disable it.
+     */
+    public void setMetricsPort(int port)
+    {
+        this.metricsPort = port;
+    }
+
+    /**
+     * Log all the stats in a compact binary file (which can be converted to
+     * JSON or CSV with <tt>BinaryStatsConverter</tt>) rather than in JSON.
+     * Must be called before {@link #start}.
+     *
+     * @param binary <tt>true</tt> to log all the stats in binary.
+     * @param syncInterval the time (in seconds) between two syncs of the
+     * binary file to the disk.
+     */
+    public void setBinaryStats(boolean binary, int syncInterval)
+    {
+        this.binaryStats = binary;
+        this.binaryStatsSync = syncInterval;
+    }
+
+    /**
+     * Set the number of threads updating the stats of the <tt>FakeUser</tt>s
+     * in parallel. Must be called before {@link #start}.
+     *
+     * @param threads the number of threads updating the stats, or 0 for the
+     * default (the number of processors).
+     */
+    public void setStatsThreads(int threads)
+    {
+        this.statsThreads = threads;
+    }
+
     /**
      * Initialize the Hammer by launching the OSGi Framework and
      * installing/registering the needed bundle (LibJitis and more..).
@@ -311,6 +424,52 @@ public class Hammer
         int statsPollingTime)
     {
         if(wait <= 0) wait = 1;
+        start(
+            1,
+            1000.0 / wait,
+            disableStats,
+            credentials,
+            overallStats,
+            allStats,
+            summaryStats,
+            statsPollingTime);
+    }
+
+    /**
+     * Start the connection of all the virtual user that this <tt>Hammer</tt>
+     * handles to the XMPP server(and then a MUC), using the <tt>Credential</tt>
+     * given as arguments for the login. The users are started by a
+     * <tt>RampScheduler</tt> at <tt>rate</tt> users per second, with at most
+     * <tt>maxInFlight</tt> of them connecting at the same time.
+     *
+     * @param maxInFlight the maximum number of users connecting, logging in or
+     * joining the MUC at the same time.
+     * @param rate the target number of users started per second (if zero or
+     * negative, the users are started as fast as <tt>maxInFlight</tt>
+     * allows).
+     * @param disableStats whether statistics should be disabled.
+     * @param credentials a list of <tt>Credentials</tt> used for the login
+     * of the fake users.
+     * @param overallStats enable or not the logging of the overall stats
+     * computed at the end of the run.
+     * @param allStats enable or not the logging of the all the stats collected
+     * by the <tt>HammerStats</tt> during the run.
+     * @param summaryStats enable or not the logging of the dummary stats
+     * computed from all the streams' stats collected by the
+     * <tt>HammerStats</tt> during the run.
+     * @param statsPollingTime the number of seconds between two polling of stats
+     * by the <tt>HammerStats</tt> run method.
+     */
+    public void start(
+        int maxInFlight,
+        double rate,
+        boolean disableStats,
+        List<Credential> credentials,
+        boolean overallStats,
+        boolean allStats,
+        boolean summaryStats,
+        int statsPollingTime)
+    {
         if(started)
         {
             logger.warn("Hammer already started");
@@ -319,10 +478,14 @@ public class Hammer
         if (!disableStats)
             hammerStats = new HammerStats();
 
+        RampScheduler scheduler = new RampScheduler(maxInFlight, rate);
+        if (metricsPort > 0)
+            startMetrics(scheduler);
         if (credentials != null)
-            startUsersWithCredentials(credentials, wait);
+            startUsersWithCredentials(scheduler, credentials);
         else
-            startUsersAnonymous(wait);
+            startUsersAnonymous(scheduler);
+        logRampStats(scheduler);
         this.started = true;
         logger.info("The Hammer has correctly been started");
 
@@ -333,12 +496,13 @@ public class Hammer
     /**
      * Start all users using authenticated login.
      *
+     * @param scheduler the <tt>RampScheduler</tt> pacing the starts.
      * @param credentials a list of <tt>Credentials</tt> used for the login of
      * the fake users.
-     * @param wait the number of milliseconds the Hammer will wait during the
-     * start of two consecutive fake users.
      */
-    private void startUsersWithCredentials(List<Credential> credentials, int wait)
+    private void startUsersWithCredentials(
+        RampScheduler scheduler,
+        List<Credential> credentials)
     {
         logger.info("Starting the Hammer : starting all FakeUsers "
                             + "with username/password login");
@@ -346,65 +510,159 @@ public class Hammer
         {
             Iterator<FakeUser> userIt = Arrays.asList(fakeUsers).iterator();
             Iterator<Credential> credIt = credentials.iterator();
-            FakeUser user = null;
-            FakeUserStats userStats;
-            Credential credential = null;
 
             while(credIt.hasNext() && userIt.hasNext())
             {
-                user = userIt.next();
-                credential = credIt.next();
-
-                user.start(credential.getUsername(),credential.getPassword());
-                if (hammerStats != null
-                        && (userStats = user.getFakeUserStats()) != null)
-                    hammerStats.addFakeUsersStats(userStats);
-                Thread.sleep(wait);
+                final FakeUser user = userIt.next();
+                final Credential credential = credIt.next();
+
+                scheduler.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            user.start(
+                                credential.getUsername(),
+                                credential.getPassword());
+                        }
+                        catch (XMPPException e)
+                        {
+                            e.printStackTrace();
+                            System.exit(1);
+                        }
+                        addFakeUserStats(user);
+                    }
+                });
             }
-        }
-        catch (XMPPException e)
-        {
-            e.printStackTrace();
-            System.exit(1);
+            scheduler.await();
         }
         catch (InterruptedException e)
         {
+            scheduler.stop();
             e.printStackTrace();
         }
     }
 
     /**
      * Start all fake users with anonymous login.
-     * @param wait the number of milliseconds the Hammer will wait during the
-     * start of two consecutive fake users.
+     * @param scheduler the <tt>RampScheduler</tt> pacing the starts.
      */
-    private void startUsersAnonymous(int wait)
+    private void startUsersAnonymous(RampScheduler scheduler)
     {
         logger.info("Starting the Hammer : starting all "
                             + "FakeUsers with anonymous login");
         try
         {
-            for(FakeUser user : fakeUsers)
+            for(final FakeUser user : fakeUsers)
             {
-                FakeUserStats userStats;
-                user.start();
-                if (hammerStats != null
-                        && (userStats = user.getFakeUserStats()) != null)
-                    hammerStats.addFakeUsersStats(userStats);
-                Thread.sleep(wait);
+                scheduler.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            user.start();
+                        }
+                        catch (XMPPException e)
+                        {
+                            e.printStackTrace();
+                            System.exit(1);
+                        }
+                        addFakeUserStats(user);
+                    }
+                });
             }
+            scheduler.await();
         }
-        catch (XMPPException e)
+        catch (InterruptedException e)
         {
+            scheduler.stop();
             e.printStackTrace();
-            System.exit(1);
         }
-        catch (InterruptedException e)
+    }
+
+    /**
+     * Add the <tt>FakeUserStats</tt> of <tt>user</tt> (if any) and its
+     * <tt>SessionMilestones</tt> to the <tt>HammerStats</tt> of this
+     * <tt>Hammer</tt> (if enabled).
+     * @param user a <tt>FakeUser</tt> that has been started.
+     */
+    private void addFakeUserStats(FakeUser user)
+    {
+        if (hammerStats == null)
+            return;
+
+        FakeUserStats userStats = user.getFakeUserStats();
+        if (userStats != null)
+            hammerStats.addFakeUsersStats(userStats);
+        hammerStats.addSessionMilestones(user.getSessionMilestones());
+    }
+
+    /**
+     * Log the achieved rate of the ramp-up, and the connect/login/MUC join
+     * latency of each user with their mean and max.
+     * @param scheduler the <tt>RampScheduler</tt> that started the users.
+     */
+    private void logRampStats(RampScheduler scheduler)
+    {
+        SummaryStatistics connect = new SummaryStatistics();
+        SummaryStatistics login = new SummaryStatistics();
+        SummaryStatistics mucJoin = new SummaryStatistics();
+
+        for(FakeUser user : fakeUsers)
         {
-            e.printStackTrace();
+            logger.info(String.format(
+                "%s : connect %dms, login %dms, MUC join %dms",
+                user.getNickname(),
+                user.getConnectLatency(),
+                user.getLoginLatency(),
+                user.getMucJoinLatency()));
+            if(user.getConnectLatency() >= 0)
+                connect.addValue(user.getConnectLatency());
+            if(user.getLoginLatency() >= 0)
+                login.addValue(user.getLoginLatency());
+            if(user.getMucJoinLatency() >= 0)
+                mucJoin.addValue(user.getMucJoinLatency());
         }
 
+        logger.info(String.format(
+            "Ramp-up : %d users started at %.2f users/s"
+                + " (max %d in flight)",
+            scheduler.getCompleted(),
+            scheduler.getAchievedRate(),
+            scheduler.getMaxInFlight()));
+        logger.info(String.format(
+            "Ramp-up latency (mean/max) : connect %.0f/%.0fms,"
+                + " login %.0f/%.0fms, MUC join %.0f/%.0fms",
+            connect.getMean(), connect.getMax(),
+            login.getMean(), login.getMax(),
+            mucJoin.getMean(), mucJoin.getMax()));
+    }
+
+    /**
+     * Start the <tt>MetricsServer</tt> serving the live metrics of the run.
+     * @param scheduler the <tt>RampScheduler</tt> starting the users.
+     */
+    private void startMetrics(RampScheduler scheduler)
+    {
+        HammerMetrics metrics = new HammerMetrics();
+        metrics.setRamp(scheduler, fakeUsers.length);
+        if (hammerStats != null)
+            hammerStats.setMetrics(metrics);
+
+        metricsServer = new MetricsServer(metrics, metricsPort);
+        try
+        {
+            metricsServer.start();
+        }
+        catch (IOException e)
+        {
+            logger.error("Can't serve the metrics on port " + metricsPort, e);
+            metricsServer = null;
+        }
     }
+
     /**
      * Start the <tt>HammerStats</tt> used by this <tt>Hammer</tt> to keep track
      * of the streams stats.
@@ -431,8 +689,11 @@ public class Hammer
             overallStats, summaryStats, allStats, statsPollingTime));
         hammerStats.setOverallStatsLogging(overallStats);
         hammerStats.setAllStatsLogging(allStats);
+        hammerStats.setBinaryAllStats(binaryStats, binaryStatsSync);
         hammerStats.setSummaryStatsLogging(summaryStats);
         hammerStats.setTimeBetweenUpdate(statsPollingTime);
+        if(statsThreads > 0)
+            hammerStats.setCollectorThreads(statsThreads);
         hammerStatsThread = new Thread(hammerStats);
         hammerStatsThread.start();
     }
@@ -457,6 +718,13 @@ public class Hammer
             user.stop();
         }
 
+        /*
+         * Cancel the Jingle session setups which haven't run yet, the users
+         * being stopped.
+         */
+        if (sessionExecutor != null)
+            sessionExecutor.shutdownNow();
+
         /*
          * Stop the thread of the HammerStats, without using the Thread
          * instance hammerStatsThread, to allow it to cleanly stop.
@@ -474,6 +742,9 @@ public class Hammer
             e.printStackTrace();
         }
 
+        if (metricsServer != null)
+            metricsServer.stop();
+
         this.started = false;
         logger.info("The Hammer has been correctly stopped");
     }
@@ -19,8 +19,13 @@ package org.jitsi.hammer;
 import org.ice4j.ice.*;
 import org.ice4j.*;
 import org.ice4j.ice.harvest.*;
+import org.jitsi.hammer.utils.*;
+import org.jitsi.util.Logger;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
+import java.net.BindException;
 
 
 /**
@@ -36,34 +41,63 @@ import java.io.*;
 public class IceMediaStreamGenerator
 {
     /**
-     * The static instance of the IceMediaStreamGenerator.
+     * The <tt>Logger</tt> used by the <tt>IceMediaStreamGenerator</tt> class
+     * and its instances for logging output.
      */
-    private static IceMediaStreamGenerator generator =
-            new IceMediaStreamGenerator();
+    private static final Logger logger
+        = Logger.getLogger(IceMediaStreamGenerator.class);
 
     /**
-     * The minimum value that will be used as port when generating new
+     * The default minimum value that will be used as port when generating new
      * <tt>IceMediaStream</tt>.
      */
-    private int MIN_COMPONENT_PORT = 6000;
+    public static final int DEFAULT_MIN_PORT = 6000;
+
     /**
-     * The maximum value that will be used as port when generating new
+     * The default maximum value that will be used as port when generating new
      * <tt>IceMediaStream</tt>.
      */
-    private int MAX_COMPONENT_PORT = 9000;
+    public static final int DEFAULT_MAX_PORT = 9000;
 
     /**
-     * The current value that will be used as port when generating new
-     * <tt>IceMediaStream</tt>.
+     * The static instance of the IceMediaStreamGenerator.
      */
-    private int CURRENT_COMPONENT_PORT = MIN_COMPONENT_PORT;
+    private static volatile IceMediaStreamGenerator generator =
+            new IceMediaStreamGenerator();
+
+    /**
+     * The allocator of the RTP/RTCP port pairs of the components.
+     */
+    private final PortAllocator ports;
+
+    /**
+     * The first ports of the pairs allocated to each <tt>Agent</tt>, released
+     * when the <tt>Agent</tt> is.
+     */
+    private final Map<Agent, List<Integer>> agentPorts
+        = new ConcurrentHashMap<Agent, List<Integer>>();
+
+    /**
+     * The harvesters of the UDP ports shared by all the <tt>Agent</tt>s (one
+     * list of harvesters, one per local address, for each port), or
+     * <tt>null</tt> if each <tt>Agent</tt> binds its own ports.
+     */
+    private volatile List<List<SinglePortUdpHarvester>> sharedHarvesters;
+
+    /**
+     * The index of the shared port given to the next <tt>Agent</tt>.
+     */
+    private final AtomicInteger nextSharedPort = new AtomicInteger();
 
 
     /**
      * Initializes a new <tt>IceMediaStream</tt> instance with
      * default value for the minimum and maximum port value.
      */
-    public IceMediaStreamGenerator() {}
+    public IceMediaStreamGenerator()
+    {
+        this(DEFAULT_MIN_PORT, DEFAULT_MAX_PORT);
+    }
 
     /**
      * Initializes a new <tt>IceMediaStream</tt> instance with
@@ -75,9 +109,7 @@ public class IceMediaStreamGenerator
      */
     public IceMediaStreamGenerator(int min_port, int max_port)
     {
-        MIN_COMPONENT_PORT = min_port;
-        CURRENT_COMPONENT_PORT = min_port;
-        MAX_COMPONENT_PORT = max_port;
+        ports = new PortAllocator(min_port, max_port, 2);
     }
 
     /**
@@ -89,6 +121,65 @@ public class IceMediaStreamGenerator
         return generator;
     }
 
+    /**
+     * Replace the static instance of the <tt>IceMediaStreamGenerator</tt> by
+     * one using the ports from <tt>min_port</tt> to <tt>max_port</tt>. It
+     * must be called before any <tt>IceMediaStream</tt> is generated.
+     * @param min_port The minimum value a port
+     * of an generated <tt>IceMediaStream</tt> can be.
+     * @param max_port The maximum value a port
+     * of an generated <tt>IceMediaStream</tt> can be.
+     */
+    public static void setPortRange(int min_port, int max_port)
+    {
+        generator = new IceMediaStreamGenerator(min_port, max_port);
+    }
+
+    /**
+     * Make all the <tt>Agent</tt>s share the UDP ports from <tt>port</tt> to
+     * <tt>port + count - 1</tt>, instead of binding two ports per media. The
+     * agents are spread over the shared ports, whose packets are dispatched
+     * to them by remote address and ICE ufrag. RTP and RTCP are multiplexed
+     * on a single component (rtcp-mux), and as the dispatching is done by
+     * ufrag, an <tt>Agent</tt> sharing the ports can only have one
+     * <tt>IceMediaStream</tt>. It must be called before any
+     * <tt>IceMediaStream</tt> is generated.
+     *
+     * @param port the first shared UDP port.
+     * @param count the number of shared UDP ports.
+     * @throws IOException if a port can't be bound.
+     */
+    public void setSharedPorts(int port, int count)
+        throws IOException
+    {
+        List<List<SinglePortUdpHarvester>> harvesters
+            = new ArrayList<List<SinglePortUdpHarvester>>(count);
+        for(int i = 0; i < count; i++)
+        {
+            List<SinglePortUdpHarvester> portHarvesters
+                = SinglePortUdpHarvester.createHarvesters(port + i);
+            if(portHarvesters.isEmpty())
+            {
+                throw new BindException("Can't bind the shared UDP port "
+                    + (port + i));
+            }
+            harvesters.add(portHarvesters);
+        }
+        logger.info("The agents share the UDP ports " + port + " to "
+            + (port + count - 1));
+        sharedHarvesters = harvesters;
+    }
+
+    /**
+     * Get whether the <tt>Agent</tt>s share a few UDP ports.
+     * @return <tt>true</tt> if the <tt>Agent</tt>s share a few UDP ports and
+     * multiplex RTP and RTCP.
+     */
+    public boolean isSharedPorts()
+    {
+        return sharedHarvesters != null;
+    }
+
     /**
      * Generate an <tt>Agent</tt> having an <tt>IceMediaStream</tt>
      * for each media name in <tt>mediaNameSet</tt>.
@@ -96,7 +187,8 @@ public class IceMediaStreamGenerator
      * contained in <tt>stunAddresses</tt> and <tt>turnAddresses</tt>.
      *
      * Each <tt>IceMediaStrem</tt> will have 2 <tt>Component</tt>, one for RTP
-     * and one for RTCP, and using UDP as transport protocol.
+     * and one for RTCP, and using UDP as transport protocol (or a single one,
+     * multiplexing RTP and RTCP, if the ports are shared).
      * @param agent the agent in which will be created the <tt>IceMediaStream</tt>
      * @param mediaNameSet A set of media name used to create
      * <tt>IceMediaStream</tt>.
@@ -116,6 +208,41 @@ public class IceMediaStreamGenerator
             TransportAddress stunAddresses[],
             TransportAddress turnAddresses[])
         throws IOException
+    {
+        generateIceMediaStream(
+            agent,
+            mediaNameSet,
+            Collections.<String>emptySet(),
+            stunAddresses,
+            turnAddresses);
+    }
+
+    /**
+     * Generate an <tt>Agent</tt> having an <tt>IceMediaStream</tt>
+     * for each media name in <tt>mediaNameSet</tt>, the streams whose name is
+     * in <tt>rtcpMuxNameSet</tt> having a single <tt>Component</tt>
+     * multiplexing RTP and RTCP.
+     *
+     * @param agent the agent in which will be created the <tt>IceMediaStream</tt>
+     * @param mediaNameSet A set of media name used to create
+     * <tt>IceMediaStream</tt>.
+     * @param rtcpMuxNameSet the names of the streams multiplexing RTP and
+     * RTCP.
+     * @param stunAddresses An array of STUN server that could be used be the
+     * <tt>Agent</tt>.
+     * @param turnAddresses An array of TURN server that could be used be the
+     * <tt>Agent</tt>.
+     *
+     * @throws IOException if anything goes wrong when the <tt>Component<tt>
+     * are created.
+     */
+    public void generateIceMediaStream (
+            Agent agent,
+            Set<String> mediaNameSet,
+            Set<String> rtcpMuxNameSet,
+            TransportAddress stunAddresses[],
+            TransportAddress turnAddresses[])
+        throws IOException
     {
         agent.setControlling(false);
 
@@ -141,37 +268,92 @@ public class IceMediaStreamGenerator
         }
 
 
-        synchronized(this)
+        List<List<SinglePortUdpHarvester>> shared = sharedHarvesters;
+        if(shared != null)
         {
+            agent.setUseHostHarvester(false);
+            int index = (nextSharedPort.getAndIncrement() & Integer.MAX_VALUE)
+                % shared.size();
+            for(SinglePortUdpHarvester harvester : shared.get(index))
+                agent.addCandidateHarvester(harvester);
+
             for(String name : mediaNameSet)
             {
-                //FIXME if the stream is a data one, we don't create an IceMediaStream
-                //(normally the data content should have been remove from the Set
-                //But better safe than sorry
                 if(name.equalsIgnoreCase("data")) continue;
 
+                //A single component (rtcp-mux) whose candidates are the
+                //shared ports, the port arguments are ignored.
                 stream = agent.createMediaStream(name);
+                agent.createComponent(stream, Transport.UDP, -1, -1, -1);
+            }
+            return;
+        }
 
-                if( (CURRENT_COMPONENT_PORT + 1) >= MAX_COMPONENT_PORT )
-                    CURRENT_COMPONENT_PORT = MIN_COMPONENT_PORT;
+        List<Integer> allocated = agentPorts.get(agent);
+        if(allocated == null)
+        {
+            allocated = new CopyOnWriteArrayList<Integer>();
+            agentPorts.put(agent, allocated);
+        }
 
-                agent.createComponent(
-                        stream,
-                        Transport.UDP,
-                        CURRENT_COMPONENT_PORT,
-                        CURRENT_COMPONENT_PORT,
-                        CURRENT_COMPONENT_PORT + 50);
+        for(String name : mediaNameSet)
+        {
+            //FIXME if the stream is a data one, we don't create an IceMediaStream
+            //(normally the data content should have been remove from the Set
+            //But better safe than sorry
+            if(name.equalsIgnoreCase("data")) continue;
 
-                agent.createComponent(
-                        stream,
-                        Transport.UDP,
-                        CURRENT_COMPONENT_PORT+1,
-                        CURRENT_COMPONENT_PORT+1,
-                        CURRENT_COMPONENT_PORT + 50);
+            stream = agent.createMediaStream(name);
 
-                CURRENT_COMPONENT_PORT+=50;
+            int port = ports.allocate();
+            if(port < 0)
+            {
+                throw new BindException("No free port pair left ("
+                    + ports.getAllocated() + " allocated, "
+                    + ports.getInUse() + " skipped so far because in use by"
+                    + " other sockets)");
             }
+            allocated.add(port);
+
+            agent.createComponent(
+                    stream,
+                    Transport.UDP,
+                    port,
+                    port,
+                    port);
+
+            //With rtcp-mux, the RTCP port of the pair is left unbound.
+            if(rtcpMuxNameSet.contains(name))
+                continue;
+
+            agent.createComponent(
+                    stream,
+                    Transport.UDP,
+                    port + 1,
+                    port + 1,
+                    port + 1);
         }
     }
 
+    /**
+     * Release the ports allocated to the components of <tt>agent</tt>. It
+     * must be called once the <tt>Agent</tt> is freed.
+     * @param agent the <tt>Agent</tt> given to
+     * <tt>generateIceMediaStream</tt>.
+     */
+    public void release(Agent agent)
+    {
+        List<Integer> allocated = agentPorts.remove(agent);
+        if(allocated == null)
+            return;
+
+        for(int port : allocated)
+            ports.release(port);
+        if(logger.isDebugEnabled())
+        {
+            logger.debug("Released " + allocated.size() + " port pairs, "
+                + ports.getAllocated() + "/" + ports.getCapacity()
+                + " still allocated");
+        }
+    }
 }
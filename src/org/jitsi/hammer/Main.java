@@ -19,6 +19,7 @@ package org.jitsi.hammer;
 import java.awt.Dimension;
 import java.awt.Toolkit;
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 import net.java.sip.communicator.launcher.ChangeJVMFrame;
@@ -271,12 +272,55 @@ public class Main
         if(credentials.size() > 0) numberOfFakeUsers = credentials.size();
 
 
+        IceMediaStreamGenerator.setPortRange(
+            infoCLI.getMinPort(),
+            infoCLI.getMaxPort());
+        if(infoCLI.getSharedPort() > 0)
+        {
+            try
+            {
+                IceMediaStreamGenerator.getInstance().setSharedPorts(
+                    infoCLI.getSharedPort(),
+                    infoCLI.getSharedPorts());
+            }
+            catch (IOException e)
+            {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if(infoCLI.getTraceFile() != null)
+        {
+            try
+            {
+                SignallingTrace.start(
+                    infoCLI.getTraceFile(),
+                    infoCLI.getTraceBinary(),
+                    infoCLI.getTraceSample(),
+                    SignallingTrace.DEFAULT_CAPACITY);
+            }
+            catch (IOException e)
+            {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+
         final Hammer hammer = new Hammer(
             hostInfo,
             mdc,
             "Jitsi-Hammer",
-            numberOfFakeUsers);
-
+            numberOfFakeUsers,
+            infoCLI.getDisableStats());
+        hammer.setSessionExecutor(
+            infoCLI.getSessionThreads(),
+            infoCLI.getVirtualThreads());
+        hammer.setMetricsPort(infoCLI.getMetricsPort());
+        hammer.setBinaryStats(
+            infoCLI.getBinaryStats(),
+            infoCLI.getStatsSync());
+        hammer.setStatsThreads(infoCLI.getStatsThreads());
 
         //Cleanly stop the hammer when the program shutdown
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
@@ -286,6 +330,7 @@ public class Main
                 System.out.println("Stopping Jitsi-Hammer...");
 
                 hammer.stop();
+                SignallingTrace.stop();
 
                 System.out.println("Exiting the program...");
             }
@@ -295,7 +340,8 @@ public class Main
         //After the initialization we start the Hammer (all its users will
         //connect to the XMPP server and try to setup media stream with it bridge
         hammer.start(
-                infoCLI.getInterval(),
+                infoCLI.getMaxInFlight(),
+                infoCLI.getRate(),
                 infoCLI.getDisableStats(),
                 (credentials.size() > 0) ? credentials : null,
                 infoCLI.getOverallStats(),
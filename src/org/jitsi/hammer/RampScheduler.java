@@ -0,0 +1,203 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.util.Logger;
+
+/**
+ * The <tt>RampScheduler</tt> paces the start of the <tt>FakeUser</tt>s of a
+ * <tt>Hammer</tt> : the starts are submitted at a target arrival rate (users
+ * per second) and run on a bounded pool of threads, so that at most
+ * <tt>maxInFlight</tt> users are connecting/logging in/joining the MUC at the
+ * same time, and that the time taken by a start doesn't delay the next ones.
+ */
+public class RampScheduler
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>RampScheduler</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RampScheduler.class);
+
+    /**
+     * The maximum number of user starts running at the same time.
+     */
+    private final int maxInFlight;
+
+    /**
+     * The number of nanoseconds between the submission of two user starts.
+     */
+    private final long period;
+
+    /**
+     * The <tt>Semaphore</tt> limiting the number of starts in flight.
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * The <tt>ExecutorService</tt> running the user starts.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The number of user starts that have completed (successfully or not).
+     */
+    private final AtomicInteger completed = new AtomicInteger();
+
+    /**
+     * The time (in nanoseconds) at which the first start was submitted.
+     */
+    private long startTime = -1;
+
+    /**
+     * The time (in nanoseconds) at which the next start can be submitted.
+     */
+    private long nextTime;
+
+    /**
+     * Initializes a new <tt>RampScheduler</tt>.
+     *
+     * @param maxInFlight the maximum number of user starts running at the same
+     * time (at least 1).
+     * @param rate the target arrival rate, in users per second (if zero or
+     * negative, the users are started as fast as <tt>maxInFlight</tt>
+     * allows).
+     */
+    public RampScheduler(int maxInFlight, double rate)
+    {
+        this.maxInFlight = (maxInFlight <= 0) ? 1 : maxInFlight;
+        this.period = (rate <= 0) ? 0 : (long) (1000000000L / rate);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.executor = Executors.newFixedThreadPool(
+            this.maxInFlight,
+            new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r,
+                        "RampScheduler-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    /**
+     * Submit the start of a user : this blocks until its arrival time has
+     * come and a slot is available.
+     *
+     * @param start the <tt>Runnable</tt> starting the user.
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting.
+     */
+    public void submit(final Runnable start)
+        throws InterruptedException
+    {
+        long now = System.nanoTime();
+        if(startTime < 0)
+        {
+            startTime = now;
+            nextTime = now;
+        }
+        if(nextTime > now)
+            TimeUnit.NANOSECONDS.sleep(nextTime - now);
+
+        inFlight.acquire();
+        //the next start is a period after this one actually goes out : a
+        //start submitted late (e.g. after waiting for a slot) doesn't let the
+        //next ones catch up in a burst.
+        nextTime = Math.max(nextTime, System.nanoTime()) + period;
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    start.run();
+                }
+                catch (Throwable t)
+                {
+                    logger.error("A user start failed", t);
+                }
+                finally
+                {
+                    completed.incrementAndGet();
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for all the submitted starts to complete, and release the threads
+     * of this <tt>RampScheduler</tt>.
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting.
+     */
+    public void await()
+        throws InterruptedException
+    {
+        executor.shutdown();
+        while(!executor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Stop this <tt>RampScheduler</tt> : the starts not yet running are
+     * cancelled.
+     */
+    public void stop()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get the number of user starts that have completed.
+     * @return the number of user starts that have completed.
+     */
+    public int getCompleted()
+    {
+        return completed.get();
+    }
+
+    /**
+     * Get the achieved rate of the ramp : the number of starts completed per
+     * second since the first one was submitted.
+     * @return the achieved rate of the ramp, in users per second.
+     */
+    public double getAchievedRate()
+    {
+        if(startTime < 0)
+            return 0;
+        long elapsed = System.nanoTime() - startTime;
+        return (elapsed <= 0) ? 0 : completed.get() * 1e9 / elapsed;
+    }
+
+    /**
+     * Get the maximum number of user starts running at the same time.
+     * @return the maximum number of user starts running at the same time.
+     */
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Converts a binary stats file written by <tt>BinaryStatsWriter</tt> to the
+ * JSON layout of the "users" part of <tt>AllAndSummaryStats.json</tt>, or to
+ * CSV (one line per user and per iteration).
+ *
+ * Usage : <tt>BinaryStatsConverter json|csv binaryFile [outputFile]</tt>
+ * (the output is written to the standard output if no output file is given).
+ */
+public class BinaryStatsConverter
+{
+    /**
+     * The input binary stats file.
+     */
+    private final DataInputStream in;
+
+    /**
+     * The output.
+     */
+    private final Writer out;
+
+    /**
+     * The names of the columns.
+     */
+    private String[] names;
+
+    /**
+     * The types of the columns.
+     */
+    private byte[] types;
+
+    /**
+     * The names of the users.
+     */
+    private final List<String> users = new ArrayList<String>();
+
+    /**
+     * The values of the current iteration.
+     */
+    private long[] values = new long[0];
+
+    /**
+     * Convert a binary stats file.
+     * @param args the format (json or csv), the binary file, and optionally
+     * the output file.
+     * @throws IOException if a file can't be read or written.
+     */
+    public static void main(String[] args)
+        throws IOException
+    {
+        if(args.length < 2
+            || !("json".equals(args[0]) || "csv".equals(args[0])))
+        {
+            System.err.println("Usage : BinaryStatsConverter json|csv"
+                + " binaryFile [outputFile]");
+            System.exit(1);
+        }
+
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(args[1]), 1 << 16));
+        Writer out = new BufferedWriter(
+            (args.length > 2)
+                ? new OutputStreamWriter(
+                    new FileOutputStream(args[2]), "UTF-8")
+                : new OutputStreamWriter(System.out, "UTF-8"),
+            1 << 16);
+        try
+        {
+            BinaryStatsConverter converter
+                = new BinaryStatsConverter(in, out);
+            if("json".equals(args[0]))
+                converter.toJSON();
+            else
+                converter.toCSV();
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Initializes a new <tt>BinaryStatsConverter</tt> and read the header of
+     * the binary file.
+     * @param in the binary stats file.
+     * @param out the output.
+     * @throws IOException if the header can't be read or is invalid.
+     */
+    public BinaryStatsConverter(DataInputStream in, Writer out)
+        throws IOException
+    {
+        this.in = in;
+        this.out = out;
+
+        byte[] magic = new byte[BinaryStatsWriter.MAGIC.length];
+        in.readFully(magic);
+        if(!Arrays.equals(magic, BinaryStatsWriter.MAGIC))
+            throw new IOException("Not a binary stats file");
+
+        int columns = in.readInt();
+        names = new String[columns];
+        types = new byte[columns];
+        for(int c = 0; c < columns; c++)
+        {
+            types[c] = in.readByte();
+            names[c] = readString();
+        }
+    }
+
+    /**
+     * Write the stats in JSON.
+     * @throws IOException if the stats can't be read or written.
+     */
+    public void toJSON()
+        throws IOException
+    {
+        StringBuilder builder = new StringBuilder();
+        String delim_ = "";
+
+        out.write("[\n");
+        long timestamp;
+        while((timestamp = readInterval()) >= 0)
+        {
+            int count = values.length / names.length;
+
+            builder.setLength(0);
+            builder.append(delim_).append('\n');
+            delim_ = ",";
+            builder.append("{\n");
+            builder.append("  \"timestamp\":").append(timestamp)
+                .append(",\n");
+            builder.append("  \"users\":\n");
+            builder.append("  [\n");
+            for(int u = 0; u < count; u++)
+            {
+                if(u != 0)
+                    builder.append(',');
+                builder.append("  {\n");
+                builder.append("    \"username\" : \"").append(users.get(u))
+                    .append("\" , \n");
+                builder.append("    \"streams\" :\n");
+                builder.append("    {\n");
+                builder.append("        \"audio\" : ");
+                appendStream(builder, u, count, "audio.");
+                builder.append(",\n");
+                builder.append("        \"video\" : ");
+                appendStream(builder, u, count, "video.");
+                builder.append('\n');
+                builder.append("    }\n");
+                builder.append("  }\n");
+            }
+            builder.append("  ]\n");
+            builder.append('}');
+            out.append(builder);
+        }
+        out.write("]\n");
+    }
+
+    /**
+     * Write the stats in CSV.
+     * @throws IOException if the stats can't be read or written.
+     */
+    public void toCSV()
+        throws IOException
+    {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append("timestamp,username");
+        for(String name : names)
+            builder.append(',').append(name);
+        builder.append('\n');
+        out.append(builder);
+
+        long timestamp;
+        while((timestamp = readInterval()) >= 0)
+        {
+            int count = values.length / names.length;
+            for(int u = 0; u < count; u++)
+            {
+                builder.setLength(0);
+                builder.append(timestamp).append(',').append(users.get(u));
+                for(int c = 0; c < names.length; c++)
+                {
+                    builder.append(',');
+                    appendValue(builder, c, values[c * count + u]);
+                }
+                builder.append('\n');
+                out.append(builder);
+            }
+        }
+    }
+
+    /**
+     * Append the JSON of the stream whose columns start with <tt>prefix</tt>
+     * of the user <tt>u</tt>, in the format of
+     * <tt>FakeUserStats.jsonMediaStreamStatsTemplate</tt>.
+     */
+    private void appendStream(
+        StringBuilder builder,
+        int u,
+        int count,
+        String prefix)
+    {
+        String delim = "{ \"";
+        for(int c = 0; c < names.length; c++)
+        {
+            if(!names[c].startsWith(prefix))
+                continue;
+            builder.append(delim).append(names[c], prefix.length(),
+                names[c].length()).append("\":");
+            appendValue(builder, c, values[c * count + u]);
+            delim = " , \"";
+        }
+        builder.append(" }");
+    }
+
+    /**
+     * Append the value <tt>value</tt> of the column <tt>c</tt>.
+     */
+    private void appendValue(StringBuilder builder, int c, long value)
+    {
+        if(types[c] == BinaryStatsWriter.DOUBLE)
+            builder.append(Double.longBitsToDouble(value));
+        else
+            builder.append(value);
+    }
+
+    /**
+     * Read the blocks up to the next iteration, and its values.
+     * @return the timestamp of the iteration, or -1 at the end of the file.
+     * @throws IOException if the file can't be read or is invalid.
+     */
+    private long readInterval()
+        throws IOException
+    {
+        while(true)
+        {
+            int tag = in.read();
+            if(tag < 0)
+                return -1;
+
+            if(tag == BinaryStatsWriter.USERS_BLOCK)
+            {
+                int first = in.readInt();
+                int count = in.readInt();
+                for(int u = first; u < first + count; u++)
+                {
+                    String username = readString();
+                    if(u < users.size())
+                        users.set(u, username);
+                    else
+                        users.add(username);
+                }
+            }
+            else if(tag == BinaryStatsWriter.INTERVAL_BLOCK)
+            {
+                long timestamp = in.readLong();
+                int count = in.readInt();
+                int length = count * names.length;
+                if(values.length != length)
+                    values = new long[length];
+                for(int i = 0; i < length; i++)
+                    values[i] = in.readLong();
+                return timestamp;
+            }
+            else
+            {
+                throw new IOException("Unknown block " + tag);
+            }
+        }
+    }
+
+    /**
+     * Read a string (length and UTF-8 bytes).
+     */
+    private String readString()
+        throws IOException
+    {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
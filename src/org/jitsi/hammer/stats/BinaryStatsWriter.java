@@ -0,0 +1,390 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.Logger;
+
+/**
+ * A <tt>BinaryStatsWriter</tt> writes the stats of all the users, at each
+ * iteration of the <tt>HammerStats</tt>, in a compact binary file instead of
+ * the JSON of <tt>AllAndSummaryStats.json</tt>. The file can be converted
+ * back to JSON or CSV with <tt>BinaryStatsConverter</tt>.
+ *
+ * The file (big-endian) starts with a header describing the columns :
+ * <pre>
+ * "JHSTATS1", int columnCount,
+ * columnCount * (byte type ('J' long, 'D' double), short length, name UTF-8)
+ * </pre>
+ * followed by blocks :
+ * <pre>
+ * 'U', int firstUser, int count, count * (short length, username UTF-8)
+ * 'I', long timestamp, int users, columnCount * users * 8 bytes
+ * </pre>
+ * A 'U' block names the users added since the previous one. An 'I' block
+ * holds the stats of an iteration, column after column (each value being 8
+ * bytes wide, the doubles are stored as their raw long bits).
+ *
+ * The blocks are written through a <tt>FileChannel</tt> from a direct buffer
+ * allocated once, and the file is synced to the disk periodically.
+ */
+public class BinaryStatsWriter
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>BinaryStatsWriter</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(BinaryStatsWriter.class);
+
+    /**
+     * The magic at the start of a binary stats file.
+     */
+    public static final byte[] MAGIC =
+        { 'J', 'H', 'S', 'T', 'A', 'T', 'S', '1' };
+
+    /**
+     * The tag of a block naming users.
+     */
+    public static final byte USERS_BLOCK = 'U';
+
+    /**
+     * The tag of a block holding the stats of an iteration.
+     */
+    public static final byte INTERVAL_BLOCK = 'I';
+
+    /**
+     * The type of a column of longs.
+     */
+    public static final byte LONG = 'J';
+
+    /**
+     * The type of a column of doubles.
+     */
+    public static final byte DOUBLE = 'D';
+
+    /**
+     * The names of the stats of a <tt>MediaStreamStats</tt>, in the order of
+     * <tt>FakeUserStats.jsonMediaStreamStatsTemplate</tt>.
+     */
+    private static final String[] STREAM_COLUMNS =
+        {
+            "ssrc",
+            "DownloadJitterMs",
+            "DownloadPercentLoss",
+            "DownloadRateKiloBitPerSec",
+            "JitterBufferDelayMs",
+            "JitterBufferDelayPackets",
+            "NbDiscarded",
+            "NbDiscardedFull",
+            "NbDiscardedLate",
+            "NbDiscardedReset",
+            "NbDiscardedShrink",
+            "NbFec",
+            "NbPackets",
+            "NbPacketsLost",
+            "NbReceivedBytes",
+            "NbSentBytes",
+            "PacketQueueCountPackets",
+            "PacketQueueSize",
+            "PercentDiscarded",
+            "RttMs",
+            "UploadJitterMs",
+            "UploadPercentLoss",
+            "UploadRateKiloBitPerSec"
+        };
+
+    /**
+     * The types of the stats of a <tt>MediaStreamStats</tt>.
+     */
+    private static final byte[] STREAM_TYPES =
+        {
+            LONG, DOUBLE, DOUBLE, DOUBLE, LONG, LONG, LONG, LONG, LONG, LONG,
+            LONG, LONG, LONG, LONG, LONG, LONG, LONG, LONG, DOUBLE, LONG,
+            DOUBLE, DOUBLE, DOUBLE
+        };
+
+    /**
+     * The number of columns of a stream.
+     */
+    public static final int STREAM_COLUMN_COUNT = STREAM_COLUMNS.length;
+
+    /**
+     * The number of columns of a user (an audio and a video stream).
+     */
+    public static final int COLUMN_COUNT = 2 * STREAM_COLUMN_COUNT;
+
+    /**
+     * The index of the first column of the audio stream.
+     */
+    public static final int AUDIO_COLUMNS = 0;
+
+    /**
+     * The index of the first column of the video stream.
+     */
+    public static final int VIDEO_COLUMNS = STREAM_COLUMN_COUNT;
+
+    /**
+     * The size of the buffer of the writer.
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The stream of the file.
+     */
+    private final FileOutputStream out;
+
+    /**
+     * The channel of the file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The buffer the blocks are written into.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * The time (in ms) between two syncs of the file to the disk.
+     */
+    private final long syncInterval;
+
+    /**
+     * The time (in ms) of the last sync of the file to the disk.
+     */
+    private long lastSync = System.currentTimeMillis();
+
+    /**
+     * The number of users already named in the file.
+     */
+    private int knownUsers = 0;
+
+    /**
+     * The values of the current iteration (column after column).
+     */
+    private long[] values = new long[0];
+
+    /**
+     * Create the binary stats file <tt>file</tt> and write its header.
+     * @param file the binary stats file.
+     * @param syncInterval the time (in ms) between two syncs of the file to
+     * the disk.
+     * @throws IOException if the file can't be created.
+     */
+    public BinaryStatsWriter(File file, long syncInterval)
+        throws IOException
+    {
+        this.out = new FileOutputStream(file);
+        this.channel = out.getChannel();
+        this.syncInterval = syncInterval;
+
+        buffer.put(MAGIC);
+        buffer.putInt(COLUMN_COUNT);
+        for(String media : new String[] { "audio", "video" })
+        {
+            for(int i = 0; i < STREAM_COLUMN_COUNT; i++)
+            {
+                buffer.put(STREAM_TYPES[i]);
+                putString(media + "." + STREAM_COLUMNS[i]);
+            }
+        }
+    }
+
+    /**
+     * Get the array receiving the values of an iteration of <tt>users</tt>
+     * users : the value of the column <tt>c</tt> of the user <tt>u</tt> is at
+     * <tt>c * users + u</tt>. The array is reused by the next iterations.
+     * @param users the number of users of the iteration.
+     * @return the array receiving the values of the iteration.
+     */
+    public long[] getValues(int users)
+    {
+        int length = COLUMN_COUNT * users;
+        if(values.length < length)
+            values = new long[Math.max(length, values.length * 2)];
+        return values;
+    }
+
+    /**
+     * Put the stats of a stream in <tt>values</tt>.
+     * @param values the values of the iteration (see <tt>getValues</tt>).
+     * @param users the number of users of the iteration.
+     * @param user the index of the user.
+     * @param firstColumn <tt>AUDIO_COLUMNS</tt> or <tt>VIDEO_COLUMNS</tt>.
+     * @param ssrc the SSRC of the stream.
+     * @param stats the <tt>MediaStreamStats</tt> of the stream.
+     */
+    public static void putStreamValues(
+        long[] values,
+        int users,
+        int user,
+        int firstColumn,
+        long ssrc,
+        MediaStreamStats stats)
+    {
+        int i = firstColumn * users + user;
+        values[i] = ssrc;
+        i += users;
+        values[i] = Double.doubleToRawLongBits(stats.getDownloadJitterMs());
+        i += users;
+        values[i] = Double.doubleToRawLongBits(stats.getDownloadPercentLoss());
+        i += users;
+        values[i]
+            = Double.doubleToRawLongBits(stats.getDownloadRateKiloBitPerSec());
+        i += users;
+        values[i] = stats.getJitterBufferDelayMs();
+        i += users;
+        values[i] = stats.getJitterBufferDelayPackets();
+        i += users;
+        values[i] = stats.getNbDiscarded();
+        i += users;
+        values[i] = stats.getNbDiscardedFull();
+        i += users;
+        values[i] = stats.getNbDiscardedLate();
+        i += users;
+        values[i] = stats.getNbDiscardedReset();
+        i += users;
+        values[i] = stats.getNbDiscardedShrink();
+        i += users;
+        values[i] = stats.getNbFec();
+        i += users;
+        values[i] = stats.getNbPackets();
+        i += users;
+        values[i] = stats.getNbPacketsLost();
+        i += users;
+        values[i] = stats.getNbReceivedBytes();
+        i += users;
+        values[i] = stats.getNbSentBytes();
+        i += users;
+        values[i] = stats.getPacketQueueCountPackets();
+        i += users;
+        values[i] = stats.getPacketQueueSize();
+        i += users;
+        values[i] = Double.doubleToRawLongBits(stats.getPercentDiscarded());
+        i += users;
+        values[i] = stats.getRttMs();
+        i += users;
+        values[i] = Double.doubleToRawLongBits(stats.getUploadJitterMs());
+        i += users;
+        values[i] = Double.doubleToRawLongBits(stats.getUploadPercentLoss());
+        i += users;
+        values[i]
+            = Double.doubleToRawLongBits(stats.getUploadRateKiloBitPerSec());
+    }
+
+    /**
+     * Write the stats of an iteration : the names of the users not named yet,
+     * and the values put in the array returned by <tt>getValues</tt>.
+     * @param timestamp the time (in ms) of the iteration.
+     * @param users the <tt>FakeUserStats</tt> of the iteration.
+     * @throws IOException if the file can't be written.
+     */
+    public void writeInterval(long timestamp, FakeUserStats[] users)
+        throws IOException
+    {
+        if(users.length > knownUsers)
+        {
+            ensureRemaining(9);
+            buffer.put(USERS_BLOCK);
+            buffer.putInt(knownUsers);
+            buffer.putInt(users.length - knownUsers);
+            for(int u = knownUsers; u < users.length; u++)
+                putString(users[u].getUsername());
+            knownUsers = users.length;
+        }
+
+        ensureRemaining(13);
+        buffer.put(INTERVAL_BLOCK);
+        buffer.putLong(timestamp);
+        buffer.putInt(users.length);
+        int length = COLUMN_COUNT * users.length;
+        for(int i = 0; i < length; i++)
+        {
+            if(buffer.remaining() < 8)
+                flush();
+            buffer.putLong(values[i]);
+        }
+        flush();
+
+        long now = System.currentTimeMillis();
+        if(now - lastSync >= syncInterval)
+        {
+            channel.force(false);
+            lastSync = now;
+        }
+    }
+
+    /**
+     * Flush the buffer, sync and close the file.
+     */
+    public void close()
+    {
+        try
+        {
+            flush();
+            channel.force(false);
+            out.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Error while closing the binary stats file", e);
+        }
+    }
+
+    /**
+     * Put a string (length and UTF-8 bytes) in the buffer.
+     * @param s the string.
+     * @throws IOException if the buffer needs to be flushed and can't be.
+     */
+    private void putString(String s)
+        throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+        ensureRemaining(2 + bytes.length);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Flush the buffer if it hasn't <tt>length</tt> bytes remaining.
+     * @param length the number of bytes needed.
+     * @throws IOException if the buffer can't be flushed.
+     */
+    private void ensureRemaining(int length)
+        throws IOException
+    {
+        if(buffer.remaining() < length)
+            flush();
+    }
+
+    /**
+     * Write the content of the buffer to the file.
+     * @throws IOException if the buffer can't be written.
+     */
+    private void flush()
+        throws IOException
+    {
+        buffer.flip();
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
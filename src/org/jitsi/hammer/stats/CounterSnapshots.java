@@ -0,0 +1,173 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.util.*;
+
+import org.jitsi.service.neomedia.*;
+
+/**
+ * A <tt>CounterSnapshots</tt> keeps the values of the cumulative counters of
+ * the <tt>MediaStreamStats</tt> of one media type (number of packets, bytes,
+ * lost packets...) of each user at the previous update, to turn them into
+ * per-interval deltas.
+ *
+ * The previous values of all the users are stored in a single
+ * <tt>long</tt> array (<tt>COUNTERS</tt> values per user, the users being
+ * identified by their index in the list of <tt>HammerStats</tt>), and the
+ * deltas are returned in an array reused from one user to the next, so that
+ * nothing is allocated per user and per update (the array only grows when
+ * users are added).
+ *
+ * A <tt>CounterSnapshots</tt> is not thread-safe.
+ */
+public class CounterSnapshots
+{
+    /**
+     * The index of NbDiscarded in the arrays of counters.
+     */
+    public static final int NB_DISCARDED = 0;
+
+    /**
+     * The index of NbDiscardedFull in the arrays of counters.
+     */
+    public static final int NB_DISCARDED_FULL = 1;
+
+    /**
+     * The index of NbDiscardedLate in the arrays of counters.
+     */
+    public static final int NB_DISCARDED_LATE = 2;
+
+    /**
+     * The index of NbDiscardedReset in the arrays of counters.
+     */
+    public static final int NB_DISCARDED_RESET = 3;
+
+    /**
+     * The index of NbDiscardedShrink in the arrays of counters.
+     */
+    public static final int NB_DISCARDED_SHRINK = 4;
+
+    /**
+     * The index of NbFec in the arrays of counters.
+     */
+    public static final int NB_FEC = 5;
+
+    /**
+     * The index of NbPackets in the arrays of counters.
+     */
+    public static final int NB_PACKETS = 6;
+
+    /**
+     * The index of NbPacketsLost in the arrays of counters.
+     */
+    public static final int NB_PACKETS_LOST = 7;
+
+    /**
+     * The index of NbReceivedBytes in the arrays of counters.
+     */
+    public static final int NB_RECEIVED_BYTES = 8;
+
+    /**
+     * The index of NbSentBytes in the arrays of counters.
+     */
+    public static final int NB_SENT_BYTES = 9;
+
+    /**
+     * The number of counters.
+     */
+    public static final int COUNTERS = 10;
+
+    /**
+     * The names of the counters (as in the JSON of the stats).
+     */
+    public static final String[] NAMES =
+        {
+            "NbDiscarded",
+            "NbDiscardedFull",
+            "NbDiscardedLate",
+            "NbDiscardedReset",
+            "NbDiscardedShrink",
+            "NbFec",
+            "NbPackets",
+            "NbPacketsLost",
+            "NbReceivedBytes",
+            "NbSentBytes"
+        };
+
+    /**
+     * The values of the counters of each user at the previous update.
+     */
+    private long[] previous = new long[0];
+
+    /**
+     * The deltas of the last user updated.
+     */
+    private final long[] deltas = new long[COUNTERS];
+
+    /**
+     * Compute the deltas of the counters of <tt>stats</tt> since the previous
+     * update of the user <tt>user</tt>, and keep their current values for the
+     * next update.
+     *
+     * The first update of a user gives the values of its counters (they start
+     * from 0), and so does an update after its counters have been reset
+     * (i.e. when a counter is lower than at the previous update).
+     *
+     * @param user the index of the user.
+     * @param stats the <tt>MediaStreamStats</tt> of the user.
+     * @return the deltas of the counters of the user, indexed by the
+     * constants of this class. The array is reused by the next update.
+     */
+    public long[] update(int user, MediaStreamStats stats)
+    {
+        int base = user * COUNTERS;
+        if(base + COUNTERS > previous.length)
+        {
+            previous = Arrays.copyOf(
+                previous,
+                Math.max(base + COUNTERS, previous.length * 2));
+        }
+
+        delta(base, NB_DISCARDED, stats.getNbDiscarded());
+        delta(base, NB_DISCARDED_FULL, stats.getNbDiscardedFull());
+        delta(base, NB_DISCARDED_LATE, stats.getNbDiscardedLate());
+        delta(base, NB_DISCARDED_RESET, stats.getNbDiscardedReset());
+        delta(base, NB_DISCARDED_SHRINK, stats.getNbDiscardedShrink());
+        delta(base, NB_FEC, stats.getNbFec());
+        delta(base, NB_PACKETS, stats.getNbPackets());
+        delta(base, NB_PACKETS_LOST, stats.getNbPacketsLost());
+        delta(base, NB_RECEIVED_BYTES, stats.getNbReceivedBytes());
+        delta(base, NB_SENT_BYTES, stats.getNbSentBytes());
+
+        return deltas;
+    }
+
+    /**
+     * Compute the delta of the counter <tt>counter</tt> of the user whose
+     * values start at <tt>base</tt>, and keep its current value.
+     * @param base the index of the first value of the user.
+     * @param counter the index of the counter.
+     * @param value the current value of the counter.
+     */
+    private void delta(int base, int counter, long value)
+    {
+        long last = previous[base + counter];
+        deltas[counter] = (value >= last) ? value - last : value;
+        previous[base + counter] = value;
+    }
+}
@@ -139,6 +139,30 @@ public class FakeUserStats
         this.username = username;
     }
 
+    /**
+     * Get the username of used by this <tt>FakeUserStats</tt>.
+     * @return the username of used by this <tt>FakeUserStats</tt>.
+     */
+    public String getUsername()
+    {
+        return username;
+    }
+
+    /**
+     * Put the stats of the audio and video stream in the values of an
+     * iteration of a <tt>BinaryStatsWriter</tt>.
+     * @param values the values of the iteration.
+     * @param users the number of users of the iteration.
+     * @param user the index of the user of this <tt>FakeUserStats</tt>.
+     */
+    public void putValues(long[] values, int users, int user)
+    {
+        BinaryStatsWriter.putStreamValues(values, users, user,
+            BinaryStatsWriter.AUDIO_COLUMNS, audioSSRC, audioStats);
+        BinaryStatsWriter.putStreamValues(values, users, user,
+            BinaryStatsWriter.VIDEO_COLUMNS, videoSSRC, videoStats);
+    }
+
     /**
      * Call updateStats() of the 2 <tt>MediaStreamStats</tt> of this
      * <tt>FakeUserStats</tt> corresponding to the audio and video stream.
@@ -176,6 +200,25 @@ public class FakeUserStats
         return stats;
     }
 
+    /**
+     * Get the SSRC of the audio or video <tt>MediaStream</tt> of the
+     * corresponding <tt>FakeUser</tt>.
+     * @param type the <tt>MediaType</tt> of the stream.
+     * @return the SSRC of the audio or video stream, or -1 if it isn't known.
+     */
+    public long getSSRC(MediaType type)
+    {
+        switch(type)
+        {
+        case AUDIO:
+            return audioSSRC;
+        case VIDEO:
+            return videoSSRC;
+        default:
+            return -1;
+        }
+    }
+
     /**
      * Get the stats of the audio and video stream from the corresponding
      * <tt>MediaStreamStats</tt> in JSON.
@@ -186,65 +229,111 @@ public class FakeUserStats
      */
     public String getStatsJSON(int spaceIndent)
     {
-        String indent = new String(new char[spaceIndent]).replace("\0" ,  " ");
-        StringBuilder builder = new StringBuilder();
-        builder.append(indent + "{\n");
-        builder.append(indent + "  \"username\" : \""+ this.username +"\" , \n");
-        builder.append(indent + "  \"streams\" :\n");
-
-        String str = String.format(jsonTemplate,
-            audioSSRC ,
-            audioStats.getDownloadJitterMs() ,
-            audioStats.getDownloadPercentLoss() ,
-            audioStats.getDownloadRateKiloBitPerSec() ,
-            audioStats.getJitterBufferDelayMs() ,
-            audioStats.getJitterBufferDelayPackets() ,
-            audioStats.getNbDiscarded() ,
-            audioStats.getNbDiscardedFull() ,
-            audioStats.getNbDiscardedLate() ,
-            audioStats.getNbDiscardedReset() ,
-            audioStats.getNbDiscardedShrink() ,
-            audioStats.getNbFec() ,
-            audioStats.getNbPackets() ,
-            audioStats.getNbPacketsLost() ,
-            audioStats.getNbReceivedBytes() ,
-            audioStats.getNbSentBytes() ,
-            audioStats.getPacketQueueCountPackets() ,
-            audioStats.getPacketQueueSize() ,
-            audioStats.getPercentDiscarded() ,
-            audioStats.getRttMs() ,
-            audioStats.getUploadJitterMs(),
-            audioStats.getUploadPercentLoss() ,
-            audioStats.getUploadRateKiloBitPerSec() ,
-
-            videoSSRC ,
-            videoStats.getDownloadJitterMs() ,
-            videoStats.getDownloadPercentLoss() ,
-            videoStats.getDownloadRateKiloBitPerSec() ,
-            videoStats.getJitterBufferDelayMs() ,
-            videoStats.getJitterBufferDelayPackets() ,
-            videoStats.getNbDiscarded() ,
-            videoStats.getNbDiscardedFull() ,
-            videoStats.getNbDiscardedLate() ,
-            videoStats.getNbDiscardedReset() ,
-            videoStats.getNbDiscardedShrink() ,
-            videoStats.getNbFec() ,
-            videoStats.getNbPackets() ,
-            videoStats.getNbPacketsLost() ,
-            videoStats.getNbReceivedBytes() ,
-            videoStats.getNbSentBytes() ,
-            videoStats.getPacketQueueCountPackets() ,
-            videoStats.getPacketQueueSize() ,
-            videoStats.getPercentDiscarded() ,
-            videoStats.getRttMs() ,
-            videoStats.getUploadJitterMs(),
-            videoStats.getUploadPercentLoss() ,
-            videoStats.getUploadRateKiloBitPerSec());
-        str = indent + str.replaceAll("\n", "\n"+indent);
-        builder.append(str + '\n');
-
-        builder.append(indent + "}");
-
+        StringBuilder builder = new StringBuilder(2048);
+        appendStatsJSON(builder, spaceIndent);
         return builder.toString();
     }
+
+    /**
+     * Append the stats of the audio and video stream from the corresponding
+     * <tt>MediaStreamStats</tt> in JSON to <tt>builder</tt>.
+     *
+     * The output is the same as <tt>jsonTemplate</tt> formatted with
+     * String.format(), but the values are appended directly (without boxing
+     * them or parsing a template), so that a <tt>StringBuilder</tt> reused
+     * from one update to the next doesn't allocate anything.
+     *
+     * @param builder the <tt>StringBuilder</tt> the JSON is appended to.
+     * @param spaceIndent the number of space added to indent each line
+     * of the JSON.
+     */
+    public void appendStatsJSON(StringBuilder builder, int spaceIndent)
+    {
+        indent(builder, spaceIndent).append("{\n");
+        indent(builder, spaceIndent).append("  \"username\" : \"")
+            .append(this.username).append("\" , \n");
+        indent(builder, spaceIndent).append("  \"streams\" :\n");
+        indent(builder, spaceIndent).append("  {\n");
+        indent(builder, spaceIndent).append("      \"audio\" : ");
+        appendMediaStreamStatsJSON(builder, audioSSRC, audioStats);
+        builder.append(",\n");
+        indent(builder, spaceIndent).append("      \"video\" : ");
+        appendMediaStreamStatsJSON(builder, videoSSRC, videoStats);
+        builder.append('\n');
+        indent(builder, spaceIndent).append("  }\n");
+        indent(builder, spaceIndent).append('}');
+    }
+
+    /**
+     * Append the stats of <tt>stats</tt> in JSON to <tt>builder</tt>, in the
+     * format of <tt>jsonMediaStreamStatsTemplate</tt>.
+     * @param builder the <tt>StringBuilder</tt> the JSON is appended to.
+     * @param ssrc the SSRC of the stream.
+     * @param stats the <tt>MediaStreamStats</tt> of the stream.
+     */
+    public static void appendMediaStreamStatsJSON(
+        StringBuilder builder,
+        long ssrc,
+        MediaStreamStats stats)
+    {
+        builder.append("{ \"ssrc\":").append(ssrc);
+        builder.append(" , \"DownloadJitterMs\":")
+            .append(stats.getDownloadJitterMs());
+        builder.append(" , \"DownloadPercentLoss\":")
+            .append(stats.getDownloadPercentLoss());
+        builder.append(" , \"DownloadRateKiloBitPerSec\":")
+            .append(stats.getDownloadRateKiloBitPerSec());
+        builder.append(" , \"JitterBufferDelayMs\":")
+            .append(stats.getJitterBufferDelayMs());
+        builder.append(" , \"JitterBufferDelayPackets\":")
+            .append(stats.getJitterBufferDelayPackets());
+        builder.append(" , \"NbDiscarded\":")
+            .append(stats.getNbDiscarded());
+        builder.append(" , \"NbDiscardedFull\":")
+            .append(stats.getNbDiscardedFull());
+        builder.append(" , \"NbDiscardedLate\":")
+            .append(stats.getNbDiscardedLate());
+        builder.append(" , \"NbDiscardedReset\":")
+            .append(stats.getNbDiscardedReset());
+        builder.append(" , \"NbDiscardedShrink\":")
+            .append(stats.getNbDiscardedShrink());
+        builder.append(" , \"NbFec\":")
+            .append(stats.getNbFec());
+        builder.append(" , \"NbPackets\":")
+            .append(stats.getNbPackets());
+        builder.append(" , \"NbPacketsLost\":")
+            .append(stats.getNbPacketsLost());
+        builder.append(" , \"NbReceivedBytes\":")
+            .append(stats.getNbReceivedBytes());
+        builder.append(" , \"NbSentBytes\":")
+            .append(stats.getNbSentBytes());
+        builder.append(" , \"PacketQueueCountPackets\":")
+            .append(stats.getPacketQueueCountPackets());
+        builder.append(" , \"PacketQueueSize\":")
+            .append(stats.getPacketQueueSize());
+        builder.append(" , \"PercentDiscarded\":")
+            .append(stats.getPercentDiscarded());
+        builder.append(" , \"RttMs\":")
+            .append(stats.getRttMs());
+        builder.append(" , \"UploadJitterMs\":")
+            .append(stats.getUploadJitterMs());
+        builder.append(" , \"UploadPercentLoss\":")
+            .append(stats.getUploadPercentLoss());
+        builder.append(" , \"UploadRateKiloBitPerSec\":")
+            .append(stats.getUploadRateKiloBitPerSec());
+        builder.append(" }");
+    }
+
+    /**
+     * Append <tt>spaceIndent</tt> spaces to <tt>builder</tt>.
+     * @param builder the <tt>StringBuilder</tt> the spaces are appended to.
+     * @param spaceIndent the number of spaces to append.
+     * @return <tt>builder</tt>
+     */
+    private static StringBuilder indent(StringBuilder builder, int spaceIndent)
+    {
+        for(int i = 0; i < spaceIndent; i++)
+            builder.append(' ');
+        return builder;
+    }
 }
@@ -0,0 +1,335 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import org.jitsi.hammer.*;
+
+/**
+ * <tt>HammerMetrics</tt> holds the live aggregate of a run (ramp progress,
+ * and per media type : traffic, loss, RTT and jitter), and renders it in the
+ * Prometheus text exposition format.
+ *
+ * The metrics are updated by the <tt>HammerStats</tt> thread at the end of
+ * each of its iterations, and read by the scrapes : both only take the lock
+ * of this <tt>HammerMetrics</tt>, never a lock of the media streams, and all
+ * the values and histograms are allocated once.
+ */
+public class HammerMetrics
+{
+    /**
+     * The index of the audio metrics.
+     */
+    public static final int AUDIO = 0;
+
+    /**
+     * The index of the video metrics.
+     */
+    public static final int VIDEO = 1;
+
+    /**
+     * The value of the "media" label of the metrics of each media type.
+     */
+    private static final String[] MEDIA = { "audio", "video" };
+
+    /**
+     * The upper bounds (in ms) of the buckets of the RTT histograms.
+     */
+    private static final double[] RTT_BUCKETS
+        = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000 };
+
+    /**
+     * The quantiles exported for the jitter.
+     */
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    /**
+     * The number of fake users of the run.
+     */
+    private int users = 0;
+
+    /**
+     * The <tt>RampScheduler</tt> starting the users, or <tt>null</tt>.
+     */
+    private RampScheduler ramp;
+
+    /**
+     * The number of iterations of the <tt>HammerStats</tt>.
+     */
+    private long updates = 0;
+
+    /**
+     * The number of streams of each media type at the last iteration.
+     */
+    private final long[] streams = new long[2];
+
+    /**
+     * The total number of packets of each media type.
+     */
+    private final long[] packets = new long[2];
+
+    /**
+     * The total number of lost packets of each media type.
+     */
+    private final long[] packetsLost = new long[2];
+
+    /**
+     * The total number of received bytes of each media type.
+     */
+    private final long[] receivedBytes = new long[2];
+
+    /**
+     * The total number of sent bytes of each media type.
+     */
+    private final long[] sentBytes = new long[2];
+
+    /**
+     * The packets per second of each media type at the last iteration.
+     */
+    private final double[] packetsPerSecond = new double[2];
+
+    /**
+     * The received bytes per second of each media type at the last iteration.
+     */
+    private final double[] receivedBytesPerSecond = new double[2];
+
+    /**
+     * The sent bytes per second of each media type at the last iteration.
+     */
+    private final double[] sentBytesPerSecond = new double[2];
+
+    /**
+     * The loss (in percent) of each media type at the last iteration.
+     */
+    private final double[] lossPercent = new double[2];
+
+    /**
+     * The RTT of the streams of each media type since the start of the run.
+     */
+    private final LatencyHistogram[] rttMs
+        = { new LatencyHistogram(), new LatencyHistogram() };
+
+    /**
+     * The download jitter of the streams of each media type since the start
+     * of the run.
+     */
+    private final LatencyHistogram[] jitterMs
+        = { new LatencyHistogram(), new LatencyHistogram() };
+
+    /**
+     * Set the ramp whose progress is exported.
+     * @param ramp the <tt>RampScheduler</tt> starting the users.
+     * @param users the number of users of the run.
+     */
+    public synchronized void setRamp(RampScheduler ramp, int users)
+    {
+        this.ramp = ramp;
+        this.users = users;
+    }
+
+    /**
+     * Update the metrics of a media type with the results of an iteration of
+     * the <tt>HammerStats</tt>.
+     *
+     * @param media <tt>AUDIO</tt> or <tt>VIDEO</tt>.
+     * @param streams the number of streams of the iteration.
+     * @param seconds the duration of the iteration.
+     * @param packets the number of packets of the iteration.
+     * @param packetsLost the number of lost packets of the iteration.
+     * @param receivedBytes the number of received bytes of the iteration.
+     * @param sentBytes the number of sent bytes of the iteration.
+     * @param rttMs the RTTs of the iteration.
+     * @param jitterMs the download jitters of the iteration.
+     */
+    public synchronized void update(
+        int media,
+        long streams,
+        double seconds,
+        long packets,
+        long packetsLost,
+        long receivedBytes,
+        long sentBytes,
+        LatencyHistogram rttMs,
+        LatencyHistogram jitterMs)
+    {
+        if(media == AUDIO)
+            updates++;
+
+        this.streams[media] = streams;
+        this.packets[media] += packets;
+        this.packetsLost[media] += packetsLost;
+        this.receivedBytes[media] += receivedBytes;
+        this.sentBytes[media] += sentBytes;
+
+        if(seconds > 0)
+        {
+            packetsPerSecond[media] = packets / seconds;
+            receivedBytesPerSecond[media] = receivedBytes / seconds;
+            sentBytesPerSecond[media] = sentBytes / seconds;
+        }
+        long expected = packets + packetsLost;
+        lossPercent[media] = (expected > 0)
+            ? packetsLost * 100.0 / expected
+            : 0;
+
+        this.rttMs[media].add(rttMs);
+        this.jitterMs[media].add(jitterMs);
+    }
+
+    /**
+     * Render the metrics in the Prometheus text exposition format.
+     * @param out the <tt>StringBuilder</tt> the metrics are appended to.
+     */
+    public synchronized void render(StringBuilder out)
+    {
+        type(out, "hammer_users", "gauge",
+            "The number of fake users of the run.");
+        out.append("hammer_users ").append(users).append('\n');
+
+        type(out, "hammer_users_started_total", "counter",
+            "The number of fake users started by the ramp.");
+        out.append("hammer_users_started_total ")
+            .append((ramp == null) ? 0 : ramp.getCompleted()).append('\n');
+
+        type(out, "hammer_ramp_users_per_second", "gauge",
+            "The achieved rate of the ramp.");
+        out.append("hammer_ramp_users_per_second ")
+            .append((ramp == null) ? 0.0 : ramp.getAchievedRate())
+            .append('\n');
+
+        type(out, "hammer_stats_updates_total", "counter",
+            "The number of updates of the stats.");
+        out.append("hammer_stats_updates_total ").append(updates).append('\n');
+
+        type(out, "hammer_streams", "gauge",
+            "The number of streams watched.");
+        for(int m = 0; m < MEDIA.length; m++)
+            sample(out, "hammer_streams", m).append(streams[m]).append('\n');
+
+        counter(out, "hammer_packets_total",
+            "The number of packets.", packets);
+        counter(out, "hammer_packets_lost_total",
+            "The number of lost packets.", packetsLost);
+        counter(out, "hammer_received_bytes_total",
+            "The number of received bytes.", receivedBytes);
+        counter(out, "hammer_sent_bytes_total",
+            "The number of sent bytes.", sentBytes);
+
+        gauge(out, "hammer_packets_per_second",
+            "The packets per second of the last update.", packetsPerSecond);
+        gauge(out, "hammer_received_bytes_per_second",
+            "The received bytes per second of the last update.",
+            receivedBytesPerSecond);
+        gauge(out, "hammer_sent_bytes_per_second",
+            "The sent bytes per second of the last update.",
+            sentBytesPerSecond);
+        gauge(out, "hammer_loss_percent",
+            "The packet loss of the last update, in percent.", lossPercent);
+
+        type(out, "hammer_rtt_ms", "histogram",
+            "The RTT of the streams, in milliseconds.");
+        for(int m = 0; m < MEDIA.length; m++)
+        {
+            LatencyHistogram h = rttMs[m];
+            for(double le : RTT_BUCKETS)
+            {
+                out.append("hammer_rtt_ms_bucket{media=\"").append(MEDIA[m])
+                    .append("\",le=\"").append(le).append("\"} ")
+                    .append(h.getCountAtOrBelow(le)).append('\n');
+            }
+            out.append("hammer_rtt_ms_bucket{media=\"").append(MEDIA[m])
+                .append("\",le=\"+Inf\"} ").append(h.getTotalCount())
+                .append('\n');
+            sample(out, "hammer_rtt_ms_sum", m).append(h.getSum())
+                .append('\n');
+            sample(out, "hammer_rtt_ms_count", m).append(h.getTotalCount())
+                .append('\n');
+        }
+
+        type(out, "hammer_jitter_ms", "summary",
+            "The download jitter of the streams, in milliseconds.");
+        for(int m = 0; m < MEDIA.length; m++)
+        {
+            LatencyHistogram h = jitterMs[m];
+            for(double q : QUANTILES)
+            {
+                out.append("hammer_jitter_ms{media=\"").append(MEDIA[m])
+                    .append("\",quantile=\"").append(q).append("\"} ")
+                    .append(h.getValueAtPercentile(q * 100)).append('\n');
+            }
+            sample(out, "hammer_jitter_ms_sum", m).append(h.getSum())
+                .append('\n');
+            sample(out, "hammer_jitter_ms_count", m).append(h.getTotalCount())
+                .append('\n');
+        }
+    }
+
+    /**
+     * Append the HELP and TYPE lines of a metric.
+     */
+    private static void type(
+        StringBuilder out,
+        String name,
+        String type,
+        String help)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help)
+            .append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type)
+            .append('\n');
+    }
+
+    /**
+     * Append the name and media label of a sample (the value is left to the
+     * caller).
+     */
+    private static StringBuilder sample(
+        StringBuilder out,
+        String name,
+        int media)
+    {
+        return out.append(name).append("{media=\"").append(MEDIA[media])
+            .append("\"} ");
+    }
+
+    /**
+     * Append a counter with a sample per media type.
+     */
+    private static void counter(
+        StringBuilder out,
+        String name,
+        String help,
+        long[] values)
+    {
+        type(out, name, "counter", help);
+        for(int m = 0; m < MEDIA.length; m++)
+            sample(out, name, m).append(values[m]).append('\n');
+    }
+
+    /**
+     * Append a gauge with a sample per media type.
+     */
+    private static void gauge(
+        StringBuilder out,
+        String name,
+        String help,
+        double[] values)
+    {
+        type(out, name, "gauge", help);
+        for(int m = 0; m < MEDIA.length; m++)
+            sample(out, name, m).append(values[m]).append('\n');
+    }
+}
@@ -20,6 +20,7 @@ package org.jitsi.hammer.stats;
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.commons.math3.stat.descriptive.*;
 import org.jitsi.hammer.*;
@@ -47,7 +48,7 @@ public class HammerStats implements Runnable
     /**
      * A boolean used to stop the run method of this <tt>HammerStats</tt>.
      */
-    private boolean threadStop = false;
+    private volatile boolean threadStop = false;
 
     /**
      * The name (not the path or location) of the directory where
@@ -71,13 +72,52 @@ public class HammerStats implements Runnable
      */
     private final File allStatsFile;
 
+    /**
+     * The file that will contain all the stats recorded by run(), if they
+     * are logged in binary.
+     */
+    private final File allStatsBinaryFile;
+
     /**
      * An <tt>List</tt> of <tt>FakeUserStats</tt> that contains the
      * <tt>MediaStreamStats</tt>s of the <tt>FakeUser</tt>.
      * It is used to keep track of the streams' stats.
+     *
+     * It is a copy-on-write list so that the <tt>FakeUser</tt>s can be added
+     * during the ramp-up without contending with the polling of the stats.
+     */
+    private final List<FakeUserStats> fakeUserStatsList =
+        new CopyOnWriteArrayList<FakeUserStats>();
+
+    /**
+     * The <tt>SessionMilestones</tt> of the <tt>FakeUser</tt>s, used to
+     * compute the percentiles of each stage of the set up of their sessions.
+     */
+    private final List<SessionMilestones> sessionMilestonesList =
+        new CopyOnWriteArrayList<SessionMilestones>();
+
+    /**
+     * The time taken by each stage of the set up of the sessions (indexed by
+     * the milestone ending the stage), recomputed at each update from the
+     * <tt>SessionMilestones</tt> of all the users.
+     */
+    private final LatencyHistogram[] sessionSetupHistograms
+        = new LatencyHistogram[SessionMilestones.COUNT];
+
+    /**
+     * The number of sessions whose set up failed at each milestone,
+     * recomputed at each update from the <tt>SessionMilestones</tt> of all
+     * the users.
+     */
+    private volatile int[] sessionSetupFailures
+        = new int[SessionMilestones.COUNT];
+
+    /**
+     * The number of threads updating the stats of the <tt>FakeUser</tt>s in
+     * parallel (each one handling a shard of the users).
      */
-    private final ArrayList<FakeUserStats> fakeUserStatsList =
-        new ArrayList<FakeUserStats>();
+    private int collectorThreads
+        = Runtime.getRuntime().availableProcessors();
 
     /**
      * The time (in seconds) the HammerStats wait between two updates.
@@ -90,6 +130,17 @@ public class HammerStats implements Runnable
      */
     private boolean allStatsLogging = false;
 
+    /**
+     * The boolean used to know if all the stats are logged in a binary file
+     * (see <tt>BinaryStatsWriter</tt>) rather than in JSON.
+     */
+    private boolean binaryAllStats = false;
+
+    /**
+     * The time (in ms) between two syncs of the binary stats file to the disk.
+     */
+    private long binaryStatsSyncInterval = 30000;
+
     /**
      * The boolean used to know if the logging of the summary stats
      * (like mean, standard deviation, min, max...) computed at each polling from
@@ -115,6 +166,22 @@ public class HammerStats implements Runnable
      */
     HammerSummaryStats videoSummaryStats = new HammerSummaryStats();
 
+    /**
+     * The values of the cumulative counters of the audio streams of each user
+     * at the previous update, used to compute per-interval deltas.
+     */
+    private final CounterSnapshots audioSnapshots = new CounterSnapshots();
+
+    /**
+     * The values of the cumulative counters of the video streams of each user
+     * at the previous update, used to compute per-interval deltas.
+     */
+    private final CounterSnapshots videoSnapshots = new CounterSnapshots();
+
+    /**
+     * The live metrics updated at each iteration, or <tt>null</tt>.
+     */
+    private volatile HammerMetrics metrics;
 
     /**
      * Initialize an instance of a <tt>HammerStats</tt> with the default
@@ -150,6 +217,13 @@ public class HammerStats implements Runnable
             this.statsDirectoryPath
             + File.separator
             + "AllAndSummaryStats.json");
+        this.allStatsBinaryFile = new File(
+            this.statsDirectoryPath
+            + File.separator
+            + "AllStats.bin");
+
+        for(int i = 0; i < sessionSetupHistograms.length; i++)
+            sessionSetupHistograms[i] = new LatencyHistogram();
 
         logger.info("Stats directory : " + this.statsDirectoryPath);
     }
@@ -159,7 +233,7 @@ public class HammerStats implements Runnable
      * Add a <tt>FakeUserStats</tt> to the list this <tt>HammerStats</tt> is watching
      * @param fakeUserStats the <tt>FakeUserStats</tt> that will added.
      */
-    public synchronized void addFakeUsersStats(
+    public void addFakeUsersStats(
         FakeUserStats fakeUserStats)
     {
         if(fakeUserStats == null)
@@ -169,6 +243,20 @@ public class HammerStats implements Runnable
         fakeUserStatsList.add(fakeUserStats);
     }
 
+    /**
+     * Add the <tt>SessionMilestones</tt> of a <tt>FakeUser</tt> to the ones
+     * this <tt>HammerStats</tt> is watching.
+     * @param milestones the <tt>SessionMilestones</tt> that will be added.
+     */
+    public void addSessionMilestones(SessionMilestones milestones)
+    {
+        if(milestones == null)
+        {
+            throw new NullPointerException("SessionMilestones can't be null");
+        }
+        sessionMilestonesList.add(milestones);
+    }
+
     /**
      * Keep track, collect and update the stats of all the
      * <tt>MediaStreamStats</tt> this <tt>HammerStats</tt> handles.
@@ -178,145 +266,236 @@ public class HammerStats implements Runnable
     public void run()
     {
         PrintWriter writer = null;
-        StringBuilder allBldr = new StringBuilder();
-        String delim;
+        BinaryStatsWriter binaryWriter = null;
         String delim_ = "";
-        synchronized(this)
-        {
-            threadStop = false;
-        }
+        threadStop = false;
+
+        /*
+         * The JSON of the users of each shard is appended to the same
+         * StringBuilder at each update, and copied to the writer through the
+         * same char buffer, so that they are only grown during the first
+         * updates instead of being reallocated at each one.
+         */
+        StringBuilder[] shardsJSON = new StringBuilder[collectorThreads];
+        for(int i = 0; i < shardsJSON.length; i++)
+            shardsJSON[i] = new StringBuilder();
+        char[] chars = new char[8192];
+        long lastUpdate = System.nanoTime();
+
+        ExecutorService collectors = Executors.newFixedThreadPool(
+            collectorThreads,
+            new ThreadFactory()
+            {
+                private int count = 0;
+
+                public synchronized Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "HammerStats-" + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
 
         logger.info("Running the main loop");
         while (!threadStop)
         {
-            synchronized(this)
+            HammerMetrics metrics = this.metrics;
+            boolean jsonAllStats = allStatsLogging && !binaryAllStats;
+            long timestamp = System.currentTimeMillis();
+            if(overallStatsLogging || allStatsLogging || summaryStatsLogging
+                    || metrics != null)
             {
-                if(overallStatsLogging || allStatsLogging || summaryStatsLogging)
+                if(allStatsLogging && binaryAllStats && binaryWriter == null)
                 {
-                    if(allStatsLogging || summaryStatsLogging)
+                    try
                     {
-                        if(writer == null)
-                        {
-                            try
-                            {
-                                writer = new PrintWriter(allStatsFile, "UTF-8");
-                                writer.print("[\n");
-                            }
-                            catch (FileNotFoundException e)
-                            {
-                                logger.fatal("HammerStats stopping due to FileNotFound",e);
-                                stop();
-                            }
-                            catch (UnsupportedEncodingException e)
-                            {
-                                logger.fatal("HammerStats stopping due to "
-                                    + "UnsupportedEncoding", e);
-                            }
-                        }
-
-                        //Clear the StringBuilder
-                        allBldr.setLength(0);
-
-                        writer.print(delim_ + '\n');
-                        delim_ = ",";
-                        writer.print("{\n");
-                        writer.print("  \"timestamp\":" + System.currentTimeMillis()+",\n");
+                        binaryWriter = new BinaryStatsWriter(
+                            allStatsBinaryFile, binaryStatsSyncInterval);
                     }
-
-                    delim = "";
-                    logger.info("Updating the MediaStreamStats");
-                    for(FakeUserStats stats : fakeUserStatsList)
+                    catch (IOException e)
                     {
-                        //We update the stats before using/reading them.
-                        stats.updateStats();
+                        logger.fatal("HammerStats stopping due to binary"
+                            + " stats file error", e);
+                        stop();
+                        break;
                     }
+                }
 
-                    for(FakeUserStats stats : fakeUserStatsList)
+                if(jsonAllStats || summaryStatsLogging)
+                {
+                    if(writer == null)
                     {
-                        if(allStatsLogging)
+                        try
                         {
-                            allBldr.append(delim + stats.getStatsJSON(2) + '\n');
-                            delim = ",";
+                            writer = new PrintWriter(allStatsFile, "UTF-8");
+                            writer.print("[\n");
                         }
-
-                        if(summaryStatsLogging || overallStatsLogging)
+                        catch (FileNotFoundException e)
+                        {
+                            logger.fatal("HammerStats stopping due to FileNotFound",e);
+                            stop();
+                        }
+                        catch (UnsupportedEncodingException e)
                         {
-                            logger.info("Adding stats values from the"
-                                + " MediaStreamStats to their"
-                                + " HammerSummaryStats objects");
-                            audioSummaryStats.add(
-                                stats.getMediaStreamStats(MediaType.AUDIO));
-                            videoSummaryStats.add(
-                                stats.getMediaStreamStats(MediaType.VIDEO));
+                            logger.fatal("HammerStats stopping due to "
+                                + "UnsupportedEncoding", e);
                         }
                     }
 
-                    if(allStatsLogging)
+                    writer.print(delim_ + '\n');
+                    delim_ = ",";
+                    writer.print("{\n");
+                    writer.print("  \"timestamp\":" + timestamp+",\n");
+                }
+
+                logger.info("Updating the MediaStreamStats");
+                FakeUserStats[] users
+                    = fakeUserStatsList.toArray(new FakeUserStats[0]);
+                if(!updateStats(collectors, users,
+                        jsonAllStats ? shardsJSON : null,
+                        (binaryWriter == null)
+                            ? null
+                            : binaryWriter.getValues(users.length)))
+                {
+                    stop();
+                    break;
+                }
+
+                if(binaryWriter != null)
+                {
+                    try
                     {
-                        logger.info("Writing all stats to file");
-                        writer.print("  \"users\":\n");
-                        writer.print("  [\n");
-                        writer.print(allBldr.toString());
-                        writer.print("  ]");
-                        if(summaryStatsLogging) writer.print(',');
-                        writer.print('\n');
+                        logger.info("Writing all stats to binary file");
+                        binaryWriter.writeInterval(timestamp, users);
                     }
-                    if(summaryStatsLogging)
+                    catch (IOException e)
                     {
-                        logger.info("Writing summary stats to file");
-                        writer.print("  \"summary\":\n");
-                        writer.print("  {\n");
-
-
-                        writer.print("    \"max\":\n");
-                        writer.print("    {\n");
-                        writer.print("        \"audio\":");
-                        writer.print(audioSummaryStats.getMaxJSON() + ",\n");
-                        writer.print("        \"video\":");
-                        writer.print(videoSummaryStats.getMaxJSON() + '\n');
-                        writer.print("    },\n");
-
-                        writer.print("    \"mean\":\n");
-                        writer.print("    {\n");
-                        writer.print("       \"audio\":");
-                        writer.print(audioSummaryStats.getMeanJSON() + ",\n");
-                        writer.print("        \"video\":");
-                        writer.print(videoSummaryStats.getMeanJSON() + '\n');
-                        writer.print("    },\n");
-
-                        writer.print("    \"min\":\n");
-                        writer.print("    {\n");
-                        writer.print("        \"audio\":");
-                        writer.print(audioSummaryStats.getMinJSON() + ",\n");
-                        writer.print("        \"video\":");
-                        writer.print(videoSummaryStats.getMinJSON() + '\n');
-                        writer.print("    },\n");
-
-                        writer.print("    \"standard_deviation\":\n");
-                        writer.print("    {\n");
-                        writer.print("        \"audio\":");
-                        writer.print(audioSummaryStats.getStandardDeviationJSON() + ",\n");
-                        writer.print("        \"video\":");
-                        writer.print(videoSummaryStats.getStandardDeviationJSON() + '\n');
-                        writer.print("    }\n");
-
-
-                        writer.print("  }\n");
+                        logger.fatal("HammerStats stopping due to binary"
+                            + " stats file error", e);
+                        stop();
+                        break;
                     }
-                    if(allStatsLogging || summaryStatsLogging)
+                }
+
+                long now = System.nanoTime();
+                double seconds = (now - lastUpdate) / 1e9;
+                lastUpdate = now;
+
+                if(summaryStatsLogging || overallStatsLogging
+                        || metrics != null)
+                {
+                    audioSummaryStats.setIntervalSeconds(seconds);
+                    videoSummaryStats.setIntervalSeconds(seconds);
+                    for(int i = 0; i < users.length; i++)
                     {
-                        writer.append("}");
-                        writer.flush();
+                        MediaStreamStats audio
+                            = users[i].getMediaStreamStats(MediaType.AUDIO);
+                        MediaStreamStats video
+                            = users[i].getMediaStreamStats(MediaType.VIDEO);
+
+                        audioSummaryStats.add(
+                            audio, audioSnapshots.update(i, audio));
+                        videoSummaryStats.add(
+                            video, videoSnapshots.update(i, video));
                     }
                 }
 
                 if(summaryStatsLogging || overallStatsLogging)
+                    updateSessionSetupStats();
+
+                if(metrics != null)
+                {
+                    updateMetrics(metrics, HammerMetrics.AUDIO,
+                        audioSummaryStats, users.length, seconds);
+                    updateMetrics(metrics, HammerMetrics.VIDEO,
+                        videoSummaryStats, users.length, seconds);
+                }
+
+                if(jsonAllStats)
+                {
+                    logger.info("Writing all stats to file");
+                    writer.print("  \"users\":\n");
+                    writer.print("  [\n");
+                    for(StringBuilder shardJSON : shardsJSON)
+                        write(writer, shardJSON, chars);
+                    writer.print("  ]");
+                    if(summaryStatsLogging) writer.print(',');
+                    writer.print('\n');
+                }
+                if(summaryStatsLogging)
                 {
-                    logger.info("Clearing the HammerSummaryStats by creating new"
-                        + " SummaryStats objects for each watched stats");
-                    audioSummaryStats.clear();
-                    videoSummaryStats.clear();
+                    logger.info("Writing summary stats to file");
+                    writer.print("  \"summary\":\n");
+                    writer.print("  {\n");
+
+
+                    writer.print("    \"max\":\n");
+                    writer.print("    {\n");
+                    writer.print("        \"audio\":");
+                    writer.print(audioSummaryStats.getMaxJSON() + ",\n");
+                    writer.print("        \"video\":");
+                    writer.print(videoSummaryStats.getMaxJSON() + '\n');
+                    writer.print("    },\n");
+
+                    writer.print("    \"mean\":\n");
+                    writer.print("    {\n");
+                    writer.print("       \"audio\":");
+                    writer.print(audioSummaryStats.getMeanJSON() + ",\n");
+                    writer.print("        \"video\":");
+                    writer.print(videoSummaryStats.getMeanJSON() + '\n');
+                    writer.print("    },\n");
+
+                    writer.print("    \"min\":\n");
+                    writer.print("    {\n");
+                    writer.print("        \"audio\":");
+                    writer.print(audioSummaryStats.getMinJSON() + ",\n");
+                    writer.print("        \"video\":");
+                    writer.print(videoSummaryStats.getMinJSON() + '\n');
+                    writer.print("    },\n");
+
+                    writer.print("    \"standard_deviation\":\n");
+                    writer.print("    {\n");
+                    writer.print("        \"audio\":");
+                    writer.print(audioSummaryStats.getStandardDeviationJSON() + ",\n");
+                    writer.print("        \"video\":");
+                    writer.print(videoSummaryStats.getStandardDeviationJSON() + '\n');
+                    writer.print("    },\n");
+
+                    writer.print("    \"percentiles\":\n");
+                    writer.print("    {\n");
+                    writer.print("        \"audio\":");
+                    writer.print(audioSummaryStats.getPercentilesJSON() + ",\n");
+                    writer.print("        \"video\":");
+                    writer.print(videoSummaryStats.getPercentilesJSON() + '\n');
+                    writer.print("    },\n");
+
+                    writer.print("    \"rates\":\n");
+                    writer.print("    {\n");
+                    writer.print("        \"audio\":");
+                    writer.print(audioSummaryStats.getRatesJSON() + ",\n");
+                    writer.print("        \"video\":");
+                    writer.print(videoSummaryStats.getRatesJSON() + '\n');
+                    writer.print("    },\n");
+
+                    writer.print("    \"session_setup\":\n");
+                    writer.print(getSessionSetupJSON("    ") + '\n');
+
+
+                    writer.print("  }\n");
                 }
+                if(jsonAllStats || summaryStatsLogging)
+                {
+                    writer.append("}");
+                    writer.flush();
+                }
+            }
+
+            if(summaryStatsLogging || overallStatsLogging || metrics != null)
+            {
+                logger.info("Clearing the HammerSummaryStats by creating new"
+                    + " SummaryStats objects for each watched stats");
+                audioSummaryStats.clear();
+                videoSummaryStats.clear();
             }
 
             try
@@ -330,6 +509,10 @@ public class HammerStats implements Runnable
             }
         }
         logger.info("Exiting the main loop");
+        collectors.shutdownNow();
+
+        if(binaryWriter != null)
+            binaryWriter.close();
 
         if(writer != null)
         {
@@ -340,6 +523,184 @@ public class HammerStats implements Runnable
         if(overallStatsLogging) writeOverallStats();
     }
 
+    /**
+     * Update the stats of <tt>users</tt> in parallel on <tt>collectors</tt> :
+     * the users are split in one shard (of consecutive users) per thread, and
+     * each shard updates the <tt>MediaStreamStats</tt> of its users and
+     * appends their JSON to its own <tt>StringBuilder</tt>.
+     *
+     * The results of the shards are published to the calling thread by the
+     * <tt>CountDownLatch</tt> it waits on : no lock is taken.
+     *
+     * @param collectors the <tt>ExecutorService</tt> running the shards.
+     * @param users the <tt>FakeUserStats</tt> to update.
+     * @param shardsJSON the <tt>StringBuilder</tt> of each shard, receiving
+     * the JSON stats of its users (in the order of <tt>users</tt>), or
+     * <tt>null</tt> if they aren't needed.
+     * @param values the values of the iteration of the
+     * <tt>BinaryStatsWriter</tt>, receiving the stats of each user, or
+     * <tt>null</tt> if they aren't needed.
+     * @return <tt>false</tt> if the calling thread was interrupted.
+     */
+    private boolean updateStats(
+        ExecutorService collectors,
+        final FakeUserStats[] users,
+        final StringBuilder[] shardsJSON,
+        final long[] values)
+    {
+        final int shards = Math.max(1, Math.min(collectorThreads, users.length));
+        final CountDownLatch done = new CountDownLatch(shards);
+
+        if(shardsJSON != null)
+        {
+            for(StringBuilder shardJSON : shardsJSON)
+                shardJSON.setLength(0);
+        }
+
+        for(int shard = 0; shard < shards; shard++)
+        {
+            final int first = (int) ((long) users.length * shard / shards);
+            final int last = (int) ((long) users.length * (shard + 1) / shards);
+            final StringBuilder shardJSON
+                = (shardsJSON == null) ? null : shardsJSON[shard];
+            collectors.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for(int i = first; i < last; i++)
+                            updateStats(users, i, shardJSON, values);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        try
+        {
+            done.await();
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            logger.fatal("Interrupted while updating the stats : " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Update the stats of the user <tt>i</tt> of <tt>users</tt>. If they
+     * can't be updated, the error is logged and the user is written in JSON
+     * without streams, so that the other users of its shard are still updated
+     * and the JSON stays well-formed.
+     *
+     * @param users the <tt>FakeUserStats</tt> to update.
+     * @param i the index of the user to update.
+     * @param shardJSON the <tt>StringBuilder</tt> of the shard of the user, or
+     * <tt>null</tt>.
+     * @param values the values of the iteration of the
+     * <tt>BinaryStatsWriter</tt>, or <tt>null</tt>.
+     */
+    private static void updateStats(
+        FakeUserStats[] users,
+        int i,
+        StringBuilder shardJSON,
+        long[] values)
+    {
+        int mark = (shardJSON == null) ? 0 : shardJSON.length();
+        try
+        {
+            //We update the stats before using/reading them.
+            users[i].updateStats();
+            if(shardJSON != null)
+            {
+                if(i != 0)
+                    shardJSON.append(',');
+                users[i].appendStatsJSON(shardJSON, 2);
+                shardJSON.append('\n');
+            }
+            if(values != null)
+                users[i].putValues(values, users.length, i);
+        }
+        catch (Throwable t)
+        {
+            if(t instanceof ThreadDeath)
+                throw (ThreadDeath) t;
+            logger.error("Error while updating the stats of "
+                + users[i].getUsername(), t);
+            if(shardJSON != null)
+            {
+                shardJSON.setLength(mark);
+                if(i != 0)
+                    shardJSON.append(',');
+                shardJSON.append("  {\n    \"username\" : \"")
+                    .append(users[i].getUsername())
+                    .append("\" , \n    \"streams\" : null\n  }\n");
+            }
+        }
+    }
+
+    /**
+     * Update <tt>metrics</tt> with the stats of the current iteration of a
+     * media type.
+     * @param metrics the <tt>HammerMetrics</tt> to update.
+     * @param media <tt>HammerMetrics.AUDIO</tt> or <tt>HammerMetrics.VIDEO</tt>.
+     * @param summaryStats the <tt>HammerSummaryStats</tt> of the media type.
+     * @param streams the number of streams of the iteration.
+     * @param seconds the duration of the iteration.
+     */
+    private void updateMetrics(
+        HammerMetrics metrics,
+        int media,
+        HammerSummaryStats summaryStats,
+        int streams,
+        double seconds)
+    {
+        metrics.update(
+            media,
+            streams,
+            seconds,
+            (long) summaryStats.nbPackets.getSum(),
+            (long) summaryStats.nbPacketsLost.getSum(),
+            (long) summaryStats.nbReceivedBytes.getSum(),
+            (long) summaryStats.nbSentBytes.getSum(),
+            summaryStats.rttMsHistogram,
+            summaryStats.downloadJitterMsHistogram);
+    }
+
+    /**
+     * Write the content of <tt>builder</tt> to <tt>writer</tt>, through the
+     * reusable buffer <tt>chars</tt> (instead of creating a <tt>String</tt>).
+     * @param writer the <tt>Writer</tt> to write to.
+     * @param builder the <tt>StringBuilder</tt> to write.
+     * @param chars the buffer used to copy the content of <tt>builder</tt>.
+     */
+    private static void write(
+        Writer writer,
+        StringBuilder builder,
+        char[] chars)
+    {
+        int length = builder.length();
+        try
+        {
+            for(int start = 0; start < length; start += chars.length)
+            {
+                int end = Math.min(length, start + chars.length);
+                builder.getChars(start, end, chars, 0);
+                writer.write(chars, 0, end - start);
+            }
+        }
+        catch (IOException e)
+        {
+            //A PrintWriter doesn't throw IOException.
+            logger.error("Error while writing the stats", e);
+        }
+    }
+
     /**
      * Provoke the stop of the method run(). The method run() won't be
      * stopped right away : but the loop will be broken at the next iteration.
@@ -347,7 +708,7 @@ public class HammerStats implements Runnable
      * If the method run() is not running,
      * calling this method won't do anything
      */
-    public synchronized void stop()
+    public void stop()
     {
         if (!threadStop)
         {
@@ -437,13 +798,119 @@ public class HammerStats implements Runnable
         bldr.append(audioSummaryStats.getAggregateSumJSON() + ",\n");
         bldr.append("      \"video\":");
         bldr.append(videoSummaryStats.getAggregateSumJSON() + '\n');
-        bldr.append("  }\n");
+        bldr.append("  },\n");
+
+        bldr.append("  \"percentiles\":\n");
+        bldr.append("  {\n");
+        bldr.append("      \"audio\":");
+        bldr.append(audioSummaryStats.getAggregatePercentilesJSON() + ",\n");
+        bldr.append("      \"video\":");
+        bldr.append(videoSummaryStats.getAggregatePercentilesJSON() + '\n');
+        bldr.append("  },\n");
+
+        bldr.append("  \"rates\":\n");
+        bldr.append("  {\n");
+        bldr.append("      \"audio\":");
+        bldr.append(audioSummaryStats.getAggregateRatesJSON() + ",\n");
+        bldr.append("      \"video\":");
+        bldr.append(videoSummaryStats.getAggregateRatesJSON() + '\n');
+        bldr.append("  },\n");
+
+        bldr.append("  \"session_setup\":\n");
+        bldr.append(getSessionSetupJSON("  ") + '\n');
 
 
         bldr.append("}\n");
         return bldr.toString();
     }
 
+    /**
+     * Recompute the percentiles of the time taken by each stage of the set up
+     * of the sessions (connect, login, MUC join, session-initiate,
+     * session-accept, ICE, DTLS, first RTP sent and received) from the
+     * <tt>SessionMilestones</tt> of all the users, count the sessions which
+     * failed at each milestone, and log them.
+     */
+    private void updateSessionSetupStats()
+    {
+        int[] failures = new int[SessionMilestones.COUNT];
+
+        for(LatencyHistogram histogram : sessionSetupHistograms)
+            histogram.reset();
+
+        for(SessionMilestones milestones : sessionMilestonesList)
+        {
+            for(int m = SessionMilestones.START + 1;
+                    m < SessionMilestones.COUNT;
+                    m++)
+                sessionSetupHistograms[m].record(milestones.getStageMs(m));
+
+            int failed = milestones.getFailedMilestone();
+            if(failed >= 0)
+                failures[failed]++;
+        }
+        sessionSetupFailures = failures;
+
+        if(sessionMilestonesList.isEmpty())
+            return;
+
+        StringBuilder bldr = new StringBuilder("Session setup (p50/p90) :");
+        for(int m = SessionMilestones.START + 1;
+                m < SessionMilestones.COUNT;
+                m++)
+        {
+            LatencyHistogram histogram = sessionSetupHistograms[m];
+            bldr.append(' ').append(SessionMilestones.getName(m)).append(' ')
+                .append(String.format("%.0f/%.0fms (%d)",
+                    histogram.getValueAtPercentile(50),
+                    histogram.getValueAtPercentile(90),
+                    histogram.getTotalCount()));
+            if(failures[m] > 0)
+                bldr.append(" failed ").append(failures[m]);
+        }
+        logger.info(bldr);
+    }
+
+    /**
+     * Create and return the JSON of the percentiles of the time taken by each
+     * stage of the set up of the sessions, and of the number of sessions
+     * which failed at each milestone.
+     * @param indent the indentation of the JSON object.
+     * @return the JSON of the percentiles and failures of each stage.
+     */
+    private String getSessionSetupJSON(String indent)
+    {
+        StringBuilder bldr = new StringBuilder();
+        bldr.append(indent).append("{\n");
+        for(int m = SessionMilestones.START + 1;
+                m < SessionMilestones.COUNT;
+                m++)
+        {
+            bldr.append(indent).append("    \"")
+                .append(SessionMilestones.getName(m)).append("\":");
+            sessionSetupHistograms[m].appendPercentilesJSON(bldr);
+            bldr.append(",\n");
+        }
+
+        int[] failures = sessionSetupFailures;
+        boolean first = true;
+        bldr.append(indent).append("    \"failed\":{");
+        for(int m = SessionMilestones.START + 1;
+                m < SessionMilestones.COUNT;
+                m++)
+        {
+            if(failures[m] == 0)
+                continue;
+            bldr.append(first ? " \"" : " , \"")
+                .append(SessionMilestones.getName(m)).append("\":")
+                .append(failures[m]);
+            first = false;
+        }
+        bldr.append(" }\n");
+        bldr.append(indent).append('}');
+        return bldr.toString();
+    }
+
     /**
      * Set the time this <tt>HammerStats</tt> will wait between 2 updates of
      * stats.
@@ -455,6 +922,26 @@ public class HammerStats implements Runnable
         this.timeBetweenUpdate = timeval;
     }
 
+    /**
+     * Set the <tt>HammerMetrics</tt> updated at each iteration of the run
+     * method (with the aggregate of the stats of all the users).
+     * @param metrics the <tt>HammerMetrics</tt> to update, or <tt>null</tt>.
+     */
+    public void setMetrics(HammerMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the number of threads updating the stats of the <tt>FakeUser</tt>s
+     * in parallel. Must be called before the start of the run method.
+     * @param threads the number of threads updating the stats.
+     */
+    public void setCollectorThreads(int threads)
+    {
+        this.collectorThreads = (threads <= 0) ? 1 : threads;
+    }
+
     /**
      * Get the time (in seconds) this <tt>HammerStats</tt> will wait
      * between 2 updates of stats.
@@ -484,6 +971,20 @@ public class HammerStats implements Runnable
         }
     }
 
+    /**
+     * Log all the stats collected by this <tt>HammerStats</tt> in a compact
+     * binary file (<tt>AllStats.bin</tt>, see <tt>BinaryStatsWriter</tt>)
+     * instead of JSON.
+     * @param binary <tt>true</tt> to log all the stats in binary.
+     * @param syncInterval the time (in seconds) between two syncs of the
+     * binary file to the disk.
+     */
+    public void setBinaryAllStats(boolean binary, int syncInterval)
+    {
+        this.binaryAllStats = binary;
+        this.binaryStatsSyncInterval = Math.max(0, syncInterval) * 1000L;
+    }
+
     /**
      * Enable or disable the logging of the summary stats computed with all
      * the stats collected by this <tt>HammerStats</tt>.
@@ -526,14 +1027,14 @@ public class HammerStats implements Runnable
 
 
     /**
-     * A private class used to keep track and compute the summary stats and the
+     * A class used to keep track and compute the summary stats and the
      * aggregate summary stats from all the <tt>MediaStreamStats</tt>'s possible
-     * stats.
+     * stats (package-private so that it can be benchmarked).
      *
      * @author Thomas Kuntz
      *
      */
-    private class HammerSummaryStats
+    class HammerSummaryStats
     {
         /*
          * All the AggregateSummaryStatistics will be used to create new
@@ -616,6 +1117,41 @@ public class HammerStats implements Runnable
         SummaryStatistics uploadPercentLoss;
         SummaryStatistics uploadRateKiloBitPerSec;
 
+        /*
+         * The latency, jitter and loss stats are also recorded in histograms,
+         * to get their percentiles (their tail is what matters, and it is
+         * hidden by the min/mean/max). The histograms of the current
+         * iteration are merged into the aggregate ones by clear().
+         */
+        LatencyHistogram rttMsHistogram = new LatencyHistogram();
+        LatencyHistogram downloadJitterMsHistogram = new LatencyHistogram();
+        LatencyHistogram uploadJitterMsHistogram = new LatencyHistogram();
+        LatencyHistogram jitterBufferDelayMsHistogram = new LatencyHistogram();
+        LatencyHistogram downloadPercentLossHistogram = new LatencyHistogram();
+        LatencyHistogram uploadPercentLossHistogram = new LatencyHistogram();
+
+        LatencyHistogram aggregateRttMsHistogram = new LatencyHistogram();
+        LatencyHistogram aggregateDownloadJitterMsHistogram
+                = new LatencyHistogram();
+        LatencyHistogram aggregateUploadJitterMsHistogram
+                = new LatencyHistogram();
+        LatencyHistogram aggregateJitterBufferDelayMsHistogram
+                = new LatencyHistogram();
+        LatencyHistogram aggregateDownloadPercentLossHistogram
+                = new LatencyHistogram();
+        LatencyHistogram aggregateUploadPercentLossHistogram
+                = new LatencyHistogram();
+
+        /*
+         * The cumulative counters (NbPackets, NbSentBytes...) are added as
+         * deltas since the previous iteration, so their summary stats are per
+         * interval, and their aggregate sum is the total of the run. The
+         * duration of the intervals is kept to turn them into rates.
+         */
+        double intervalSeconds = 0;
+        double aggregateSeconds = 0;
+        int aggregateIntervals = 0;
+
         /**
          * Create a new HammerSummaryStats
          */
@@ -624,28 +1160,41 @@ public class HammerStats implements Runnable
             clear();
         }
 
+        /**
+         * Set the duration of the current iteration.
+         * @param seconds the time (in seconds) since the previous iteration.
+         */
+        public void setIntervalSeconds(double seconds)
+        {
+            intervalSeconds = seconds;
+        }
+
         /**
          * Add the stats contained by <tt>stats<tt> to their corresponding
          * <tt>SummaryStats</tt> objects.
          * @param stats the stats of a stream that will be added.
+         * @param deltas the deltas of the cumulative counters of
+         * <tt>stats</tt> since the previous iteration (indexed by the
+         * constants of <tt>CounterSnapshots</tt>), added instead of their
+         * cumulative values.
          */
-        public void add(MediaStreamStats stats)
+        public void add(MediaStreamStats stats, long[] deltas)
         {
             downloadJitterMs.addValue(stats.getDownloadJitterMs());
             downloadPercentLoss.addValue(stats.getDownloadPercentLoss());
             downloadRateKiloBitPerSec.addValue(stats.getDownloadRateKiloBitPerSec());
             jitterBufferDelayMs.addValue(stats.getJitterBufferDelayMs());
             jitterBufferDelayPackets.addValue(stats.getJitterBufferDelayPackets());
-            nbDiscarded.addValue(stats.getNbDiscarded());
-            nbDiscardedFull.addValue(stats.getNbDiscardedFull());
-            nbDiscardedLate.addValue(stats.getNbDiscardedLate());
-            nbDiscardedReset.addValue(stats.getNbDiscardedReset());
-            nbDiscardedShrink.addValue(stats.getNbDiscardedShrink());
-            nbFec.addValue(stats.getNbFec());
-            nbPackets.addValue(stats.getNbPackets());
-            nbPacketsLost.addValue(stats.getNbPacketsLost());
-            nbReceivedBytes.addValue(stats.getNbReceivedBytes());
-            nbSentBytes.addValue(stats.getNbSentBytes());
+            nbDiscarded.addValue(deltas[CounterSnapshots.NB_DISCARDED]);
+            nbDiscardedFull.addValue(deltas[CounterSnapshots.NB_DISCARDED_FULL]);
+            nbDiscardedLate.addValue(deltas[CounterSnapshots.NB_DISCARDED_LATE]);
+            nbDiscardedReset.addValue(deltas[CounterSnapshots.NB_DISCARDED_RESET]);
+            nbDiscardedShrink.addValue(deltas[CounterSnapshots.NB_DISCARDED_SHRINK]);
+            nbFec.addValue(deltas[CounterSnapshots.NB_FEC]);
+            nbPackets.addValue(deltas[CounterSnapshots.NB_PACKETS]);
+            nbPacketsLost.addValue(deltas[CounterSnapshots.NB_PACKETS_LOST]);
+            nbReceivedBytes.addValue(deltas[CounterSnapshots.NB_RECEIVED_BYTES]);
+            nbSentBytes.addValue(deltas[CounterSnapshots.NB_SENT_BYTES]);
             packetQueueCountPackets.addValue(stats.getPacketQueueCountPackets());
             packetQueueSize.addValue(stats.getPacketQueueSize());
             percentDiscarded.addValue(stats.getPercentDiscarded());
@@ -654,6 +1203,13 @@ public class HammerStats implements Runnable
             uploadPercentLoss.addValue(stats.getUploadPercentLoss());
             uploadRateKiloBitPerSec.addValue(stats.getUploadRateKiloBitPerSec());
 
+            rttMsHistogram.record(stats.getRttMs());
+            downloadJitterMsHistogram.record(stats.getDownloadJitterMs());
+            uploadJitterMsHistogram.record(stats.getUploadJitterMs());
+            jitterBufferDelayMsHistogram.record(stats.getJitterBufferDelayMs());
+            downloadPercentLossHistogram.record(stats.getDownloadPercentLoss());
+            uploadPercentLossHistogram.record(stats.getUploadPercentLoss());
+
         }
 
         /**
@@ -707,6 +1263,213 @@ public class HammerStats implements Runnable
                 aggregateUploadPercentLoss.createContributingStatistics();
             uploadRateKiloBitPerSec =
                 aggregateUploadRateKiloBitPerSec.createContributingStatistics();
+
+            if(intervalSeconds > 0)
+            {
+                aggregateSeconds += intervalSeconds;
+                aggregateIntervals++;
+                intervalSeconds = 0;
+            }
+
+            clear(rttMsHistogram, aggregateRttMsHistogram);
+            clear(downloadJitterMsHistogram,
+                aggregateDownloadJitterMsHistogram);
+            clear(uploadJitterMsHistogram,
+                aggregateUploadJitterMsHistogram);
+            clear(jitterBufferDelayMsHistogram,
+                aggregateJitterBufferDelayMsHistogram);
+            clear(downloadPercentLossHistogram,
+                aggregateDownloadPercentLossHistogram);
+            clear(uploadPercentLossHistogram,
+                aggregateUploadPercentLossHistogram);
+        }
+
+        /**
+         * Merge <tt>histogram</tt> into <tt>aggregate</tt>, and reset it.
+         * @param histogram the histogram of the current iteration.
+         * @param aggregate the histogram of all the iterations.
+         */
+        private void clear(
+            LatencyHistogram histogram,
+            LatencyHistogram aggregate)
+        {
+            aggregate.add(histogram);
+            histogram.reset();
+        }
+
+        /**
+         * Get the p50/p90/p99/p99.9 of the latency, jitter and loss stats, for
+         * all the stats added with add() since the last call to clear() in
+         * JSON.
+         * @return The percentiles of the stats since last clear() in JSON.
+         */
+        public String getPercentilesJSON()
+        {
+            return getPercentilesJSON(
+                rttMsHistogram,
+                downloadJitterMsHistogram,
+                uploadJitterMsHistogram,
+                jitterBufferDelayMsHistogram,
+                downloadPercentLossHistogram,
+                uploadPercentLossHistogram);
+        }
+
+        /**
+         * Get the p50/p90/p99/p99.9 of the latency, jitter and loss stats, for
+         * all the stats added with add() since the creation of this
+         * <tt>HammerSummaryStats</tt> in JSON.
+         * @return The percentiles of the stats in JSON.
+         */
+        public String getAggregatePercentilesJSON()
+        {
+            return getPercentilesJSON(
+                aggregateRttMsHistogram,
+                aggregateDownloadJitterMsHistogram,
+                aggregateUploadJitterMsHistogram,
+                aggregateJitterBufferDelayMsHistogram,
+                aggregateDownloadPercentLossHistogram,
+                aggregateUploadPercentLossHistogram);
+        }
+
+        /**
+         * Get the rates (per second) of the cumulative counters during the
+         * current iteration in JSON : for each counter, the total rate of all
+         * the streams, and the mean and max rate of a stream. The loss of the
+         * iteration is given in percent.
+         * @return The rates of the counters of the current iteration in JSON.
+         */
+        public String getRatesJSON()
+        {
+            return getRatesJSON(
+                intervalSeconds,
+                intervalSeconds,
+                nbDiscarded,
+                nbDiscardedFull,
+                nbDiscardedLate,
+                nbDiscardedReset,
+                nbDiscardedShrink,
+                nbFec,
+                nbPackets,
+                nbPacketsLost,
+                nbReceivedBytes,
+                nbSentBytes);
+        }
+
+        /**
+         * Get the rates (per second) of the cumulative counters over all the
+         * iterations since the creation of this <tt>HammerSummaryStats</tt>
+         * in JSON (the mean and max rate of a stream are computed over the
+         * mean duration of an iteration).
+         * @return The rates of the counters over all the iterations in JSON.
+         */
+        public String getAggregateRatesJSON()
+        {
+            return getRatesJSON(
+                aggregateSeconds,
+                (aggregateIntervals == 0)
+                    ? 0
+                    : aggregateSeconds / aggregateIntervals,
+                aggregateNbDiscarded,
+                aggregateNbDiscardedFull,
+                aggregateNbDiscardedLate,
+                aggregateNbDiscardedReset,
+                aggregateNbDiscardedShrink,
+                aggregateNbFec,
+                aggregateNbPackets,
+                aggregateNbPacketsLost,
+                aggregateNbReceivedBytes,
+                aggregateNbSentBytes);
+        }
+
+        /**
+         * Get the rates of the given counters in JSON.
+         */
+        private String getRatesJSON(
+            double totalSeconds,
+            double intervalSeconds,
+            StatisticalSummary nbDiscarded,
+            StatisticalSummary nbDiscardedFull,
+            StatisticalSummary nbDiscardedLate,
+            StatisticalSummary nbDiscardedReset,
+            StatisticalSummary nbDiscardedShrink,
+            StatisticalSummary nbFec,
+            StatisticalSummary nbPackets,
+            StatisticalSummary nbPacketsLost,
+            StatisticalSummary nbReceivedBytes,
+            StatisticalSummary nbSentBytes)
+        {
+            StatisticalSummary[] counters =
+                {
+                    nbDiscarded,
+                    nbDiscardedFull,
+                    nbDiscardedLate,
+                    nbDiscardedReset,
+                    nbDiscardedShrink,
+                    nbFec,
+                    nbPackets,
+                    nbPacketsLost,
+                    nbReceivedBytes,
+                    nbSentBytes
+                };
+            StringBuilder bldr = new StringBuilder();
+            bldr.append("{ \"Seconds\":").append(totalSeconds);
+            for(int i = 0; i < counters.length; i++)
+            {
+                StatisticalSummary counter = counters[i];
+                bldr.append(" , \"").append(CounterSnapshots.NAMES[i])
+                    .append("PerSec\":");
+                bldr.append("{ \"total\":")
+                    .append(rate(counter.getSum(), totalSeconds));
+                bldr.append(" , \"mean\":")
+                    .append(rate(counter.getMean(), intervalSeconds));
+                bldr.append(" , \"max\":")
+                    .append(rate(counter.getMax(), intervalSeconds));
+                bldr.append(" }");
+            }
+            double lost = nbPacketsLost.getSum();
+            double expected = nbPackets.getSum() + lost;
+            bldr.append(" , \"PercentLoss\":")
+                .append((expected > 0) ? lost * 100 / expected : 0.0);
+            bldr.append(" }");
+            return bldr.toString();
+        }
+
+        /**
+         * Get the rate of <tt>value</tt> over <tt>seconds</tt>.
+         * @return <tt>value</tt> per second, or <tt>NaN</tt> if
+         * <tt>seconds</tt> is 0.
+         */
+        private double rate(double value, double seconds)
+        {
+            return (seconds > 0) ? value / seconds : Double.NaN;
+        }
+
+        /**
+         * Get the percentiles of the given histograms in JSON.
+         */
+        private String getPercentilesJSON(
+            LatencyHistogram rttMs,
+            LatencyHistogram downloadJitterMs,
+            LatencyHistogram uploadJitterMs,
+            LatencyHistogram jitterBufferDelayMs,
+            LatencyHistogram downloadPercentLoss,
+            LatencyHistogram uploadPercentLoss)
+        {
+            StringBuilder bldr = new StringBuilder();
+            bldr.append("{ \"RttMs\":");
+            rttMs.appendPercentilesJSON(bldr);
+            bldr.append(" , \"DownloadJitterMs\":");
+            downloadJitterMs.appendPercentilesJSON(bldr);
+            bldr.append(" , \"UploadJitterMs\":");
+            uploadJitterMs.appendPercentilesJSON(bldr);
+            bldr.append(" , \"JitterBufferDelayMs\":");
+            jitterBufferDelayMs.appendPercentilesJSON(bldr);
+            bldr.append(" , \"DownloadPercentLoss\":");
+            downloadPercentLoss.appendPercentilesJSON(bldr);
+            bldr.append(" , \"UploadPercentLoss\":");
+            uploadPercentLoss.appendPercentilesJSON(bldr);
+            bldr.append(" }");
+            return bldr.toString();
         }
 
         /**
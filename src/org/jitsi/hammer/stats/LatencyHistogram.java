@@ -0,0 +1,292 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.util.*;
+
+/**
+ * A <tt>LatencyHistogram</tt> records values (RTT, jitter, loss...) in a
+ * fixed number of log-linear buckets, in the way of an HDR histogram : the
+ * values are grouped by power of 2, and each power of 2 is divided in
+ * <tt>SUB_BUCKET_COUNT / 2</tt> linear sub-buckets, so that the relative error
+ * of a percentile is under 1/64 (about 1.6%) whatever the magnitude of the
+ * values (the values lower than <tt>SUB_BUCKET_COUNT</tt> are exact).
+ *
+ * Recording a value is O(1) and doesn't allocate anything, the memory used by
+ * a histogram is fixed (about 18KB), and histograms can be merged (e.g. the
+ * histogram of an interval into the histogram of the whole run).
+ *
+ * The values are recorded with a resolution of 1/<tt>SCALE</tt> (i.e. 1
+ * microsecond for values in milliseconds). Negative values (e.g. a RTT of -1
+ * when it isn't known yet) are ignored.
+ *
+ * A <tt>LatencyHistogram</tt> is not thread-safe.
+ */
+public class LatencyHistogram
+{
+    /**
+     * The number of units a value is multiplied by before being recorded.
+     */
+    public static final int SCALE = 1000;
+
+    /**
+     * The number of bits of the sub-buckets of a power of 2.
+     */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    /**
+     * The number of values recorded exactly (in the first buckets).
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The number of sub-buckets of each power of 2 above
+     * <tt>SUB_BUCKET_COUNT</tt>.
+     */
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    /**
+     * The number of bits of the highest trackable (scaled) value : higher
+     * values are recorded as the highest trackable value.
+     */
+    private static final int MAX_VALUE_BITS = 40;
+
+    /**
+     * The highest trackable (scaled) value.
+     */
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+    /**
+     * The count of values of each bucket.
+     */
+    private final long[] counts
+        = new long[SUB_BUCKET_COUNT
+            + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * SUB_BUCKET_HALF];
+
+    /**
+     * The number of values recorded.
+     */
+    private long totalCount = 0;
+
+    /**
+     * The sum of the (scaled) values recorded.
+     */
+    private long sum = 0;
+
+    /**
+     * The lowest (scaled) value recorded.
+     */
+    private long min = Long.MAX_VALUE;
+
+    /**
+     * The highest (scaled) value recorded.
+     */
+    private long max = 0;
+
+    /**
+     * Record a value in this histogram.
+     * @param value the value to record (ignored if negative or NaN).
+     */
+    public void record(double value)
+    {
+        if(!(value >= 0))
+            return;
+
+        long scaled = (long) (value * SCALE + 0.5);
+        if(scaled > MAX_VALUE)
+            scaled = MAX_VALUE;
+
+        counts[indexOf(scaled)]++;
+        totalCount++;
+        sum += scaled;
+        if(scaled < min)
+            min = scaled;
+        if(scaled > max)
+            max = scaled;
+    }
+
+    /**
+     * Add the values recorded by <tt>other</tt> to this histogram.
+     * @param other the histogram whose values are added.
+     */
+    public void add(LatencyHistogram other)
+    {
+        if(other.totalCount == 0)
+            return;
+
+        for(int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+        totalCount += other.totalCount;
+        sum += other.sum;
+        if(other.min < min)
+            min = other.min;
+        if(other.max > max)
+            max = other.max;
+    }
+
+    /**
+     * Remove all the values recorded by this histogram.
+     */
+    public void reset()
+    {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * Get the number of values recorded by this histogram.
+     * @return the number of values recorded by this histogram.
+     */
+    public long getTotalCount()
+    {
+        return totalCount;
+    }
+
+    /**
+     * Get the sum of the values recorded by this histogram.
+     * @return the sum of the values recorded by this histogram.
+     */
+    public double getSum()
+    {
+        return (double) sum / SCALE;
+    }
+
+    /**
+     * Get the number of values recorded lower than or equal to
+     * <tt>value</tt> (with the precision of the buckets).
+     * @param value a value.
+     * @return the number of values recorded lower than or equal to
+     * <tt>value</tt>.
+     */
+    public long getCountAtOrBelow(double value)
+    {
+        if(!(value >= 0))
+            return 0;
+
+        long scaled = (long) (value * SCALE + 0.5);
+        if(scaled >= max)
+            return totalCount;
+
+        int last = indexOf(scaled);
+        long count = 0;
+        for(int i = 0; i <= last; i++)
+            count += counts[i];
+        return count;
+    }
+
+    /**
+     * Get the value at the percentile <tt>percentile</tt> of the values
+     * recorded : the highest value equivalent (i.e. in the same bucket) to the
+     * value which is greater than or equal to <tt>percentile</tt>% of the
+     * values.
+     *
+     * @param percentile the percentile (between 0 and 100).
+     * @return the value at <tt>percentile</tt>, or <tt>NaN</tt> if no value
+     * has been recorded.
+     */
+    public double getValueAtPercentile(double percentile)
+    {
+        if(totalCount == 0)
+            return Double.NaN;
+
+        long target = (long) Math.ceil(percentile / 100 * totalCount);
+        if(target < 1)
+            target = 1;
+
+        long count = 0;
+        for(int i = 0; i < counts.length; i++)
+        {
+            count += counts[i];
+            if(count >= target)
+            {
+                long value = Math.min(max, Math.max(min, highestValueOf(i)));
+                return (double) value / SCALE;
+            }
+        }
+        return (double) max / SCALE;
+    }
+
+    /**
+     * Append the p50/p90/p99/p99.9 of this histogram in JSON to
+     * <tt>builder</tt>. The percentiles are <tt>null</tt> if no value has
+     * been recorded (<tt>NaN</tt> isn't valid JSON).
+     * @param builder the <tt>StringBuilder</tt> the JSON is appended to.
+     */
+    public void appendPercentilesJSON(StringBuilder builder)
+    {
+        builder.append("{ \"p50\":");
+        appendPercentile(builder, 50);
+        builder.append(" , \"p90\":");
+        appendPercentile(builder, 90);
+        builder.append(" , \"p99\":");
+        appendPercentile(builder, 99);
+        builder.append(" , \"p99.9\":");
+        appendPercentile(builder, 99.9);
+        builder.append(" , \"count\":").append(totalCount);
+        builder.append(" }");
+    }
+
+    /**
+     * Append the value at the percentile <tt>percentile</tt> in JSON to
+     * <tt>builder</tt>, or <tt>null</tt> if no value has been recorded.
+     * @param builder the <tt>StringBuilder</tt> the JSON is appended to.
+     * @param percentile the percentile (between 0 and 100).
+     */
+    private void appendPercentile(StringBuilder builder, double percentile)
+    {
+        if(totalCount == 0)
+            builder.append("null");
+        else
+            builder.append(getValueAtPercentile(percentile));
+    }
+
+    /**
+     * Get the index of the bucket of the (scaled) value <tt>value</tt>.
+     * @param value a scaled value between 0 and <tt>MAX_VALUE</tt>.
+     * @return the index of the bucket of <tt>value</tt>.
+     */
+    private static int indexOf(long value)
+    {
+        if(value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int shift = (63 - Long.numberOfLeadingZeros(value))
+            - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT
+            + (shift - 1) * SUB_BUCKET_HALF
+            + (int) (value >> shift) - SUB_BUCKET_HALF;
+    }
+
+    /**
+     * Get the highest (scaled) value of the bucket <tt>index</tt>.
+     * @param index the index of a bucket.
+     * @return the highest (scaled) value of the bucket <tt>index</tt>.
+     */
+    private static long highestValueOf(int index)
+    {
+        if(index < SUB_BUCKET_COUNT)
+            return index;
+
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF
+            + SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
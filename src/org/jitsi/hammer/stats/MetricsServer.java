@@ -0,0 +1,176 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+import org.jitsi.util.Logger;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * A <tt>MetricsServer</tt> serves the <tt>HammerMetrics</tt> of a run on
+ * <tt>http://host:port/metrics</tt>, in the Prometheus text exposition
+ * format, using the HTTP server embedded in the JDK.
+ *
+ * The scrapes are handled one at a time by a single (low priority) daemon
+ * thread, which renders the metrics into a <tt>StringBuilder</tt> and a byte
+ * buffer reused by all the scrapes.
+ */
+public class MetricsServer
+    implements HttpHandler
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>MetricsServer</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MetricsServer.class);
+
+    /**
+     * The path of the metrics.
+     */
+    public static final String PATH = "/metrics";
+
+    /**
+     * The content type of the Prometheus text exposition format.
+     */
+    private static final String CONTENT_TYPE
+        = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * The metrics served.
+     */
+    private final HammerMetrics metrics;
+
+    /**
+     * The port of this server.
+     */
+    private final int port;
+
+    /**
+     * The <tt>StringBuilder</tt> the metrics are rendered into.
+     */
+    private final StringBuilder text = new StringBuilder(16 * 1024);
+
+    /**
+     * The buffer the rendered metrics are encoded into.
+     */
+    private byte[] bytes = new byte[16 * 1024];
+
+    /**
+     * The embedded HTTP server, or <tt>null</tt> if not started.
+     */
+    private HttpServer server;
+
+    /**
+     * The thread handling the scrapes.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Initializes a new <tt>MetricsServer</tt>.
+     * @param metrics the metrics to serve.
+     * @param port the port to listen on.
+     */
+    public MetricsServer(HammerMetrics metrics, int port)
+    {
+        this.metrics = metrics;
+        this.port = port;
+    }
+
+    /**
+     * Start this server.
+     * @throws IOException if the port can't be bound.
+     */
+    public synchronized void start()
+        throws IOException
+    {
+        if(server != null)
+            return;
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "MetricsServer");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, this);
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Serving the metrics on port " + port + PATH);
+    }
+
+    /**
+     * Stop this server.
+     */
+    public synchronized void stop()
+    {
+        if(server == null)
+            return;
+
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * Handle a scrape : render the metrics and send them.
+     * @param exchange the exchange of the scrape.
+     * @throws IOException if the response can't be sent.
+     */
+    public void handle(HttpExchange exchange)
+        throws IOException
+    {
+        try
+        {
+            if(!"GET".equals(exchange.getRequestMethod()))
+            {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            text.setLength(0);
+            metrics.render(text);
+
+            //The metrics are ASCII only.
+            int length = text.length();
+            if(bytes.length < length)
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            for(int i = 0; i < length; i++)
+                bytes[i] = (byte) text.charAt(i);
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes, 0, length);
+            out.flush();
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+
+/**
+ * A <tt>TransformEngine</tt> installed as the external transformer of a
+ * <tt>MediaStream</tt> of a <tt>FakeUser</tt> to mark the first RTP packets
+ * sent and received in its <tt>SessionMilestones</tt>. The packets are left
+ * untouched, and once both milestones are reached the cost of a packet is a
+ * volatile read.
+ */
+public class MilestoneTransformEngine
+    extends SinglePacketTransformer
+    implements TransformEngine
+{
+    /**
+     * The <tt>SessionMilestones</tt> marked by this engine.
+     */
+    private final SessionMilestones milestones;
+
+    /**
+     * Initializes a new <tt>MilestoneTransformEngine</tt>.
+     * @param milestones the <tt>SessionMilestones</tt> to mark.
+     */
+    public MilestoneTransformEngine(SessionMilestones milestones)
+    {
+        this.milestones = milestones;
+    }
+
+    /**
+     * Mark the first RTP packet sent.
+     * @param pkt a RTP packet sent.
+     * @return <tt>pkt</tt>.
+     */
+    @Override
+    public RawPacket transform(RawPacket pkt)
+    {
+        if(!milestones.isReached(SessionMilestones.FIRST_RTP_SENT))
+            milestones.mark(SessionMilestones.FIRST_RTP_SENT);
+        return pkt;
+    }
+
+    /**
+     * Mark the first RTP packet received.
+     * @param pkt a RTP packet received.
+     * @return <tt>pkt</tt>.
+     */
+    @Override
+    public RawPacket reverseTransform(RawPacket pkt)
+    {
+        if(!milestones.isReached(SessionMilestones.FIRST_RTP_RECEIVED))
+            milestones.mark(SessionMilestones.FIRST_RTP_RECEIVED);
+        return pkt;
+    }
+
+    /**
+     * Get the transformer of the RTP packets.
+     * @return this engine.
+     */
+    public PacketTransformer getRTPTransformer()
+    {
+        return this;
+    }
+
+    /**
+     * Get the transformer of the RTCP packets.
+     * @return <tt>null</tt>, the RTCP packets aren't watched.
+     */
+    public PacketTransformer getRTCPTransformer()
+    {
+        return null;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.stats;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * <tt>SessionMilestones</tt> holds the times a <tt>FakeUser</tt> reached each
+ * milestone of the set up of its session, from the start of its XMPP
+ * connection to the first RTP packets sent and received.
+ *
+ * The times are taken with <tt>System.nanoTime</tt> (so they are only
+ * meaningful relative to each other), and only the first time a milestone
+ * is reached is kept. The milestones are marked by the threads of the
+ * <tt>FakeUser</tt> (XMPP, ICE, media) and read by the <tt>HammerStats</tt>
+ * thread without locking.
+ *
+ * A session given up before its set up is complete records the milestone it
+ * couldn't reach (see <tt>markFailed</tt>).
+ */
+public class SessionMilestones
+{
+    /**
+     * The start of the connection to the XMPP server.
+     */
+    public static final int START = 0;
+
+    /**
+     * The connection to the XMPP server is done.
+     */
+    public static final int CONNECTED = 1;
+
+    /**
+     * The login to the XMPP server is done.
+     */
+    public static final int LOGGED_IN = 2;
+
+    /**
+     * The MUC is joined.
+     */
+    public static final int MUC_JOINED = 3;
+
+    /**
+     * The Jingle session-initiate is received.
+     */
+    public static final int SESSION_INITIATE = 4;
+
+    /**
+     * The Jingle session-accept is sent.
+     */
+    public static final int SESSION_ACCEPT = 5;
+
+    /**
+     * The ICE processing is completed.
+     */
+    public static final int ICE_COMPLETED = 6;
+
+    /**
+     * The DTLS handshake is completed.
+     */
+    public static final int DTLS_COMPLETED = 7;
+
+    /**
+     * The first RTP packet is sent.
+     */
+    public static final int FIRST_RTP_SENT = 8;
+
+    /**
+     * The first RTP packet is received.
+     */
+    public static final int FIRST_RTP_RECEIVED = 9;
+
+    /**
+     * The number of milestones.
+     */
+    public static final int COUNT = 10;
+
+    /**
+     * The names of the milestones (used in the stats files).
+     */
+    private static final String[] NAMES =
+        {
+            "start",
+            "connect",
+            "login",
+            "mucJoin",
+            "sessionInitiate",
+            "sessionAccept",
+            "ice",
+            "dtls",
+            "firstRtpSent",
+            "firstRtpReceived"
+        };
+
+    /**
+     * The time (from <tt>System.nanoTime</tt>) each milestone was reached,
+     * or 0 if it hasn't been reached.
+     */
+    private final AtomicLongArray times = new AtomicLongArray(COUNT);
+
+    /**
+     * The milestone the session couldn't reach, or -1 if it hasn't failed.
+     */
+    private final AtomicInteger failed = new AtomicInteger(-1);
+
+    /**
+     * Get the name of the milestone <tt>milestone</tt>.
+     * @param milestone a milestone.
+     * @return the name of <tt>milestone</tt>.
+     */
+    public static String getName(int milestone)
+    {
+        return NAMES[milestone];
+    }
+
+    /**
+     * Mark the milestone <tt>milestone</tt> as reached now, unless it has
+     * already been reached.
+     * @param milestone a milestone.
+     */
+    public void mark(int milestone)
+    {
+        if(times.get(milestone) != 0)
+            return;
+
+        long now = System.nanoTime();
+        times.compareAndSet(milestone, 0, (now == 0) ? 1 : now);
+    }
+
+    /**
+     * Mark the set up of the session as failed at the milestone
+     * <tt>milestone</tt>, unless it has already failed.
+     * @param milestone the milestone the session couldn't reach.
+     */
+    public void markFailed(int milestone)
+    {
+        failed.compareAndSet(-1, milestone);
+    }
+
+    /**
+     * Get the milestone the session couldn't reach.
+     * @return the milestone the session couldn't reach, or -1 if it hasn't
+     * failed.
+     */
+    public int getFailedMilestone()
+    {
+        return failed.get();
+    }
+
+    /**
+     * Returns whether the milestone <tt>milestone</tt> has been reached.
+     * @param milestone a milestone.
+     * @return <tt>true</tt> if <tt>milestone</tt> has been reached.
+     */
+    public boolean isReached(int milestone)
+    {
+        return times.get(milestone) != 0;
+    }
+
+    /**
+     * Get the time (in milliseconds) taken by the stage ending at the
+     * milestone <tt>milestone</tt>, i.e. since the latest of the previous
+     * milestones reached before it (e.g. since ICE if the DTLS handshake
+     * couldn't be watched).
+     *
+     * The last milestones aren't always reached in order : the first RTP
+     * packet can be received before the first one is sent, and sent (to the
+     * SRTP transformer) before the DTLS handshake is completed. A previous
+     * milestone reached after <tt>milestone</tt> is therefore skipped, so that
+     * a stage never has a negative duration.
+     *
+     * @param milestone a milestone (other than <tt>START</tt>).
+     * @return the time taken by the stage ending at <tt>milestone</tt>, or -1
+     * if <tt>milestone</tt> hasn't been reached.
+     */
+    public double getStageMs(int milestone)
+    {
+        long time = times.get(milestone);
+        if(time == 0)
+            return -1;
+
+        long start = 0;
+        for(int previous = milestone - 1; previous >= 0; previous--)
+        {
+            long previousTime = times.get(previous);
+            if(previousTime != 0
+                    && previousTime - time <= 0
+                    && (start == 0 || previousTime - start > 0))
+                start = previousTime;
+        }
+        return (start == 0) ? -1 : (time - start) / 1e6;
+    }
+
+    /**
+     * Get the time (in milliseconds) between the start of the connection and
+     * the milestone <tt>milestone</tt>.
+     * @param milestone a milestone.
+     * @return the time between the start and <tt>milestone</tt>, or -1 if
+     * one of them hasn't been reached.
+     */
+    public double getElapsedMs(int milestone)
+    {
+        long start = times.get(START);
+        long time = times.get(milestone);
+        return (start == 0 || time == 0) ? -1 : (time - start) / 1e6;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.utils;
+
+import java.net.*;
+
+import org.ice4j.socket.*;
+
+/**
+ * A <tt>DatagramPacketFilter</tt> selecting, on the socket shared by the
+ * bundled <tt>MediaStream</tt>s of a user, the packets of one of them : the
+ * RTP packets with one of its payload types, all the RTCP packets (unless the
+ * incoming media is dropped), and the DTLS packets if the
+ * <tt>MediaStream</tt> runs the DTLS session of the bundle.
+ */
+public class BundleDatagramFilter
+    implements DatagramPacketFilter
+{
+    /**
+     * The payload types of the <tt>MediaStream</tt>, indexed by payload type.
+     */
+    private final boolean[] payloadTypes = new boolean[128];
+
+    /**
+     * Whether the RTCP packets are accepted.
+     */
+    private final boolean acceptRtcp;
+
+    /**
+     * Whether the DTLS packets are accepted.
+     */
+    private final boolean acceptDtls;
+
+    /**
+     * Initializes a new <tt>BundleDatagramFilter</tt>.
+     * @param payloadTypes the RTP payload types of the <tt>MediaStream</tt>.
+     * @param acceptRtcp whether the RTCP packets are accepted (they aren't
+     * when the incoming media is dropped, or read by someone else).
+     * @param acceptDtls whether the DTLS packets are accepted.
+     */
+    public BundleDatagramFilter(Iterable<Integer> payloadTypes,
+                                boolean acceptRtcp,
+                                boolean acceptDtls)
+    {
+        for(int pt : payloadTypes)
+        {
+            if(pt >= 0 && pt < this.payloadTypes.length)
+                this.payloadTypes[pt] = true;
+        }
+        this.acceptRtcp = acceptRtcp;
+        this.acceptDtls = acceptDtls;
+    }
+
+    /**
+     * Returns <tt>true</tt> if <tt>p</tt> is a packet of the
+     * <tt>MediaStream</tt>.
+     * @param p the <tt>DatagramPacket</tt> to check.
+     * @return <tt>true</tt> if <tt>p</tt> is a packet of the
+     * <tt>MediaStream</tt>.
+     */
+    public boolean accept(DatagramPacket p)
+    {
+        if(p.getLength() < 2)
+            return false;
+
+        byte[] data = p.getData();
+        int offset = p.getOffset();
+        int b = data[offset] & 0xff;
+
+        //DTLS (RFC 5764)
+        if(b >= 20 && b < 64)
+            return acceptDtls;
+
+        //neither RTP nor RTCP (STUN is left to ice4j)
+        if(b < 128 || b >= 192)
+            return false;
+
+        if(HammerUtils.isRtcp(data, offset, p.getLength()))
+            return acceptRtcp;
+
+        return payloadTypes[data[offset + 1] & 0x7f];
+    }
+}
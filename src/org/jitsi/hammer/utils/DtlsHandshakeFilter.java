@@ -0,0 +1,110 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.utils;
+
+import java.net.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.socket.*;
+
+/**
+ * A <tt>DatagramPacketFilter</tt> which accepts no packet, but watches the
+ * DTLS records received on a socket to notify the end of the DTLS handshake :
+ * libjitsi doesn't fire any event when the handshake of a
+ * <tt>DtlsControl</tt> completes.
+ *
+ * The handshake is considered done when the ChangeCipherSpec of the peer is
+ * received (the peer sends it with its Finished message, in the last flight
+ * of the handshake, or in the last but one if we send the last flight).
+ */
+public class DtlsHandshakeFilter
+    implements DatagramPacketFilter
+{
+    /**
+     * The content type of a DTLS ChangeCipherSpec record.
+     */
+    private static final int CHANGE_CIPHER_SPEC = 20;
+
+    /**
+     * The length of the header of a DTLS record.
+     */
+    private static final int RECORD_HEADER_LENGTH = 13;
+
+    /**
+     * The <tt>Runnable</tt> run when the handshake is done.
+     */
+    private final Runnable listener;
+
+    /**
+     * Whether the handshake is done.
+     */
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    /**
+     * Initializes a new <tt>DtlsHandshakeFilter</tt>.
+     * @param listener the <tt>Runnable</tt> run (once, on the thread reading
+     * the socket) when the handshake is done.
+     */
+    public DtlsHandshakeFilter(Runnable listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Watch <tt>p</tt> for the ChangeCipherSpec of the peer.
+     * @param p a <tt>DatagramPacket</tt> received on the socket.
+     * @return <tt>false</tt>, the packets are left to the other sockets.
+     */
+    public boolean accept(DatagramPacket p)
+    {
+        if(done.get())
+            return false;
+
+        byte[] data = p.getData();
+        int offset = p.getOffset();
+        int end = offset + p.getLength();
+
+        //a datagram can hold several records
+        while(offset + RECORD_HEADER_LENGTH <= end)
+        {
+            int type = data[offset] & 0xff;
+            if(type < 20 || type >= 64)
+                break;
+
+            if(type == CHANGE_CIPHER_SPEC)
+            {
+                if(done.compareAndSet(false, true))
+                    listener.run();
+                break;
+            }
+
+            int length = ((data[offset + 11] & 0xff) << 8)
+                | (data[offset + 12] & 0xff);
+            offset += RECORD_HEADER_LENGTH + length;
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the handshake is done.
+     * @return <tt>true</tt> if the ChangeCipherSpec of the peer was received.
+     */
+    public boolean isDone()
+    {
+        return done.get();
+    }
+}
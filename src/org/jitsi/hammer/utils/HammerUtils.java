@@ -29,11 +29,15 @@ import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.device.*;
 import org.jitsi.service.neomedia.format.*;
 import org.jitsi.util.Logger;
+import org.jivesoftware.smack.packet.PacketExtension;
 import org.ice4j.*;
 import org.ice4j.ice.*;
 
+import java.lang.reflect.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 
 /**
@@ -208,6 +212,30 @@ public class HammerUtils
     public static void addLocalCandidateToContentList(
         Agent agent,
         Collection<ContentPacketExtension> contentList)
+    {
+        addLocalCandidateToContentList(
+            agent,
+            contentList,
+            Collections.<String,String>emptyMap());
+    }
+
+    /**
+     * Add the local transport candidates contained in <tt>agent</tt> to
+     * their associated <tt>ContentPacketExtension</tt>, the contents bundled
+     * on a single <tt>IceMediaStream</tt> getting the candidates of this
+     * stream.
+     *
+     * @param agent the <tt>Agent</tt> from which we will get the local
+     * transport candidates.
+     * @param contentList the list of <tt>ContentPacketExtension</tt> to which
+     * will be added the local transport candidates.
+     * @param streamNames the name of the <tt>IceMediaStream</tt> of each
+     * bundled content (the other contents have the stream of their name).
+     */
+    public static void addLocalCandidateToContentList(
+        Agent agent,
+        Collection<ContentPacketExtension> contentList,
+        Map<String,String> streamNames)
     {
         IceMediaStream iceMediaStream = null;
         IceUdpTransportPacketExtension transport = null;
@@ -219,7 +247,9 @@ public class HammerUtils
         {
             transport = new IceUdpTransportPacketExtension();
 
-            iceMediaStream = agent.getStream(content.getName());
+            String streamName = streamNames.get(content.getName());
+            iceMediaStream = agent.getStream(
+                (streamName == null) ? content.getName() : streamName);
 
             transport.setPassword( agent.getLocalPassword() );
             transport.setUfrag( agent.getLocalUfrag() );
@@ -257,12 +287,199 @@ public class HammerUtils
                         transport.addCandidate(candidate);
                     }
                 }
+
+                if(iceMediaStream.getComponent(Component.RTCP) == null)
+                    transport.addChildExtension(new RtcpmuxPacketExtension());
             }
 
             content.addChildExtension(transport);
         }
     }
 
+    /**
+     * Returns the contents that can be bundled on a single transport : the
+     * contents of <tt>names</tt>, in the order of the BUNDLE group of
+     * <tt>offer</tt>, if this group contains all of them and they all
+     * multiplex RTP and RTCP.
+     *
+     * @param offer the session-initiate.
+     * @param names the names of the contents of the answer.
+     * @param rtcpMuxNames the names of the contents multiplexing RTP and RTCP.
+     * @return the names of the bundled contents, or an empty list if the
+     * contents can't be bundled.
+     */
+    public static List<String> getBundle(
+        JingleIQ offer,
+        Collection<String> names,
+        Collection<String> rtcpMuxNames)
+    {
+        List<String> bundle = new ArrayList<String>();
+        PacketExtension extension = offer.getExtension(
+            GroupPacketExtension.ELEMENT_NAME,
+            GroupPacketExtension.NAMESPACE);
+        if(!(extension instanceof GroupPacketExtension)
+            || names.size() < 2
+            || !rtcpMuxNames.containsAll(names))
+            return bundle;
+
+        GroupPacketExtension group = (GroupPacketExtension) extension;
+        if(!GroupPacketExtension.SEMANTICS_BUNDLE.equals(group.getSemantics()))
+            return bundle;
+
+        for(ContentPacketExtension content : group.getContents())
+        {
+            if(names.contains(content.getName()))
+                bundle.add(content.getName());
+        }
+        if(bundle.size() != names.size())
+            bundle.clear();
+        return bundle;
+    }
+
+    /**
+     * Add the socket of the single component of the <tt>IceMediaStream</tt>
+     * of a bundle to the bundled <tt>MediaStream</tt>s : each one gets its RTP
+     * packets (by payload type) and the RTCP packets, and the first one also
+     * gets the DTLS packets (the bundled <tt>MediaStream</tt>s share a single
+     * DTLS session). When the incoming RTP packets are dropped, the RTCP
+     * packets are too (as with the DTLS-only socket of
+     * <tt>addSocketToMediaStream</tt>) : they would otherwise use the shared
+     * SRTCP context of the bundle, e.g. concurrently with the relay.
+     *
+     * @param agent the <tt>Agent</tt> of the bundle.
+     * @param bundle the names of the bundled contents, the first one being
+     * the name of the <tt>IceMediaStream</tt>.
+     * @param mediaStreamMap the <tt>MediaStream</tt>s, indexed by name.
+     * @param payloadTypes the RTP payload types of each bundled content.
+     * @param dropIncomingRtpPackets whether the incoming RTP packets are
+     * dropped.
+     * @throws SocketException if the socket can't be shared.
+     */
+    public static void addSocketToBundledMediaStreams(
+        Agent agent,
+        List<String> bundle,
+        Map<String,MediaStream> mediaStreamMap,
+        Map<String,? extends Collection<Integer>> payloadTypes,
+        boolean dropIncomingRtpPackets)
+        throws SocketException
+    {
+        CandidatePair pair = agent.getStream(bundle.get(0))
+            .getComponent(Component.RTP).getSelectedPair();
+        DatagramSocket socket = pair.getIceSocketWrapper().getUDPSocket();
+        MultiplexingDatagramSocket multiplexing
+            = (socket instanceof MultiplexingDatagramSocket)
+                ? (MultiplexingDatagramSocket) socket
+                : new MultiplexingDatagramSocket(socket);
+        TransportAddress target
+            = pair.getRemoteCandidate().getTransportAddress();
+
+        for(String mediaName : bundle)
+        {
+            Collection<Integer> streamPayloadTypes
+                = dropIncomingRtpPackets ? null : payloadTypes.get(mediaName);
+            if(streamPayloadTypes == null)
+                streamPayloadTypes = Collections.<Integer>emptyList();
+
+            DatagramSocket streamSocket = multiplexing.getSocket(
+                new BundleDatagramFilter(
+                    streamPayloadTypes,
+                    !dropIncomingRtpPackets,
+                    mediaName.equals(bundle.get(0))));
+
+            MediaStream stream = mediaStreamMap.get(mediaName);
+            stream.setConnector(
+                new DefaultStreamConnector(streamSocket, streamSocket, true));
+            stream.setTarget(new MediaStreamTarget(target, target));
+        }
+        logger.info("Transport candidates selected for the bundle "
+            + bundle + " :\n" + pair);
+    }
+
+    /**
+     * Watch the DTLS handshake on the socket of the RTP component of the
+     * <tt>IceMediaStream</tt> <tt>streamName</tt> of <tt>agent</tt>.
+     *
+     * The handshake is watched through a filtered socket of the socket of the
+     * component, which the caller has to close once the handshake is done (or
+     * given up).
+     *
+     * @param agent the <tt>Agent</tt> of the stream, whose ICE is completed.
+     * @param streamName the name of the <tt>IceMediaStream</tt>.
+     * @param listener the <tt>Runnable</tt> run when the handshake is done.
+     * @return the filtered socket watching the handshake, or <tt>null</tt> if
+     * the socket can't be watched.
+     */
+    public static DatagramSocket addDtlsHandshakeListener(
+        Agent agent,
+        String streamName,
+        Runnable listener)
+    {
+        IceMediaStream stream = agent.getStream(streamName);
+        CandidatePair pair = (stream == null)
+            ? null
+            : stream.getComponent(Component.RTP).getSelectedPair();
+        if(pair == null)
+            return null;
+
+        DatagramSocket socket = pair.getIceSocketWrapper().getUDPSocket();
+        if(!(socket instanceof MultiplexingDatagramSocket))
+            return null;
+
+        try
+        {
+            return ((MultiplexingDatagramSocket) socket).getSocket(
+                new DtlsHandshakeFilter(listener));
+        }
+        catch (SocketException se)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether the offer of <tt>content</tt> allows RTP and RTCP to be
+     * multiplexed on a single component (a "rtcp-mux" element in its
+     * "description" or in its "transport").
+     *
+     * @param content a <tt>ContentPacketExtension</tt> of an offer.
+     * @return <tt>true</tt> if <tt>content</tt> allows rtcp-mux.
+     */
+    public static boolean isRtcpMux(ContentPacketExtension content)
+    {
+        RtpDescriptionPacketExtension description
+            = content.getFirstChildOfType(RtpDescriptionPacketExtension.class);
+        if(description != null
+            && description.getFirstChildOfType(RtcpmuxPacketExtension.class)
+                != null)
+            return true;
+
+        IceUdpTransportPacketExtension transport
+            = content.getFirstChildOfType(IceUdpTransportPacketExtension.class);
+        return transport != null && transport.isRtcpMux();
+    }
+
+    /**
+     * Returns <tt>true</tt> if the RTP version 2 packet in <tt>buf</tt> is a
+     * RTCP packet : the second byte of a RTCP packet is its packet type,
+     * which RFC 5761 reserves in 192-223 (SR, RR, SDES, BYE, APP, but also
+     * the RTPFB and PSFB feedback and XR packets), so that no RTP packet
+     * multiplexed with RTCP has it as marker bit and payload type.
+     *
+     * @param buf the buffer of the packet.
+     * @param off the offset of the packet in <tt>buf</tt>.
+     * @param len the length of the packet.
+     * @return <tt>true</tt> if the packet is a RTCP packet.
+     */
+    public static boolean isRtcp(byte[] buf, int off, int len)
+    {
+        if(len < 2)
+            return false;
+
+        int pt = buf[off + 1] & 0xff;
+
+        return (pt >= 192) && (pt <= 223);
+    }
+
     /**
      * Create a Map of <tt>MediaStream</tt> containing an AUDIO and VIDEO stream,
      * indexed by the String equivalent of their <tt>MediaType</tt> , with
@@ -429,8 +646,13 @@ public class HammerUtils
 
             rtpPair = iceMediaStream.getComponent(Component.RTP)
                 .getSelectedPair();
-            rtcpPair = iceMediaStream.getComponent(Component.RTCP)
-                .getSelectedPair();
+            //With rtcp-mux, there is no RTCP component : RTCP goes through
+            //the RTP pair.
+            Component rtcpComponent
+                = iceMediaStream.getComponent(Component.RTCP);
+            rtcpPair = (rtcpComponent == null)
+                ? null
+                : rtcpComponent.getSelectedPair();
 
             str = str + "-" + mediaName + " stream :\n" + rtpPair + "\n";
 
@@ -455,6 +677,19 @@ public class HammerUtils
                     // Whatever, this is just an optimization, anyway.
                 }
             }
+            if(rtcpPair == null)
+            {
+                connector = new DefaultStreamConnector(
+                    rtpSocket,
+                    rtpSocket,
+                    true);
+                stream.setConnector(connector);
+
+                TransportAddress target
+                    = rtpPair.getRemoteCandidate().getTransportAddress();
+                stream.setTarget(new MediaStreamTarget(target, target));
+                continue;
+            }
             rtcpSocket = rtcpPair.getIceSocketWrapper().getUDPSocket();
 
             connector = new DefaultStreamConnector(rtpSocket, rtcpSocket);
@@ -724,4 +959,70 @@ public class HammerUtils
 
         return content;
     }
+
+    /**
+     * Create the <tt>ExecutorService</tt> on which the <tt>FakeUser</tt>s
+     * run their Jingle session setup (and their wait for the ICE processing),
+     * instead of the packet-listener thread of their XMPP connection.
+     *
+     * If <tt>virtualThreads</tt> is <tt>true</tt> and the JVM provides
+     * virtual threads (Java 21+), one virtual thread is used per session
+     * setup. Otherwise, the session setups run on a pool of
+     * <tt>threads</tt> daemon threads, or, if <tt>threads</tt> isn't set, of
+     * 4 threads per CPU (but no more than one per user), so that the session
+     * setups of the users don't run one at a time.
+     *
+     * @param threads the number of threads of the pool, or zero or negative
+     * to size it from <tt>users</tt> and the number of CPUs.
+     * @param virtualThreads whether to use virtual threads if available.
+     * @param users the number of users setting up their sessions.
+     * @return the <tt>ExecutorService</tt> to give to the <tt>FakeUser</tt>s.
+     */
+    public static ExecutorService createSessionExecutor(
+        int threads,
+        boolean virtualThreads,
+        int users)
+    {
+        int poolSize = threads;
+        if(poolSize <= 0)
+        {
+            poolSize = Math.max(1, Math.min(
+                users,
+                4 * Runtime.getRuntime().availableProcessors()));
+        }
+        if(virtualThreads)
+        {
+            try
+            {
+                Method factory = Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor");
+                logger.info("Jingle sessions will be set up on virtual"
+                    + " threads");
+                return (ExecutorService) factory.invoke(null);
+            }
+            catch (Exception e)
+            {
+                logger.warn("Virtual threads are not available in this JVM,"
+                    + " using a pool of " + poolSize + " threads instead"
+                    + ((threads <= 0)
+                        ? " (set -sessionthreads to choose its size)"
+                        : ""));
+            }
+        }
+
+        return Executors.newFixedThreadPool(
+            poolSize,
+            new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r,
+                        "JingleSession-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
 }
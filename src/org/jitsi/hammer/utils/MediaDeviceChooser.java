@@ -29,6 +29,8 @@ import org.jitsi.service.neomedia.format.MediaFormatFactory;
 import org.jitsi.util.Logger;
 import org.jitsi.videobridge.*;
 
+import java.io.*;
+
 import javax.media.*;
 import javax.media.format.*;
 
@@ -113,12 +115,30 @@ public class MediaDeviceChooser
                         return 20L * 1000 * 1000;
                     }
                 };
-                audioMediaDevice
-                    = RtpdumpMediaDevice.createRtpdumpAudioMediaDevice(
-                            cmdArg.getAudioRtpdumpFile(),
-                            opusFormat);
+                try
+                {
+                    audioMediaDevice
+                        = RtpdumpStoreMediaDevice.createAudioMediaDevice(
+                                cmdArg.getAudioRtpdumpFile(),
+                                opusFormat);
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Couldn't map " + cmdArg.getAudioRtpdumpFile()
+                        + ", each stream will read it", e);
+                    audioMediaDevice
+                        = RtpdumpMediaDevice.createRtpdumpAudioMediaDevice(
+                                cmdArg.getAudioRtpdumpFile(),
+                                opusFormat);
+                }
 
             }
+            else if(cmdArg.getOpusSilence())
+            {
+                str = str
+                    + "-with OpusSilenceMediaDevice for the audio stream.\n";
+                audioMediaDevice = new OpusSilenceMediaDevice();
+            }
             else
             {
                 str = str
@@ -135,11 +155,24 @@ public class MediaDeviceChooser
             {
                 str = str + "-with rtpdump file " + cmdArg.getVideoRtpdumpFile()
                     + " for the video stream\n";
-                videoMediaDevice
-                    = RtpdumpMediaDevice.createRtpdumpVideoMediaDevice(
-                            cmdArg.getVideoRtpdumpFile(),
-                            Constants.VP8_RTP,
-                            factory.createMediaFormat("vp8", 90000));
+                try
+                {
+                    videoMediaDevice
+                        = RtpdumpStoreMediaDevice.createVideoMediaDevice(
+                                cmdArg.getVideoRtpdumpFile(),
+                                Constants.VP8_RTP,
+                                factory.createMediaFormat("vp8", 90000));
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Couldn't map " + cmdArg.getVideoRtpdumpFile()
+                        + ", each stream will read it", e);
+                    videoMediaDevice
+                        = RtpdumpMediaDevice.createRtpdumpVideoMediaDevice(
+                                cmdArg.getVideoRtpdumpFile(),
+                                Constants.VP8_RTP,
+                                factory.createMediaFormat("vp8", 90000));
+                }
             }
             else if(cmdArg.getIVFFile() != null)
             {
@@ -0,0 +1,244 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.utils;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A <tt>PortAllocator</tt> hands out blocks of consecutive UDP ports (e.g. a
+ * RTP/RTCP pair) from a range, without locking : the range is divided in
+ * blocks, and each block is a bit of an atomic bitmap which is claimed and
+ * released with a compare-and-set.
+ *
+ * The search of a free block starts at the word of the last block claimed, so
+ * that claiming a block is O(1) as long as the range isn't nearly full.
+ *
+ * The ports of a block are checked (by binding them) before the block is
+ * handed out : a block whose ports are already in use (by another process,
+ * or by a socket not closed yet) is skipped, rather than being given to ice4j
+ * and failing to bind. It stays claimed until the end of the search, so that
+ * the search moves on to the next blocks, and is then released so that a
+ * later allocation can use it once its ports are free again.
+ */
+public class PortAllocator
+{
+    /**
+     * The first port of the range.
+     */
+    private final int minPort;
+
+    /**
+     * The number of ports of a block.
+     */
+    private final int blockSize;
+
+    /**
+     * The number of blocks of the range.
+     */
+    private final int blocks;
+
+    /**
+     * The bitmap of the claimed blocks (a set bit is a claimed block).
+     */
+    private final AtomicLongArray bitmap;
+
+    /**
+     * The index of the word of the bitmap where the search of a free block
+     * starts.
+     */
+    private final AtomicInteger hint = new AtomicInteger();
+
+    /**
+     * The number of blocks handed out and not released.
+     */
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    /**
+     * The number of times a block was skipped because its ports were in use.
+     */
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    /**
+     * Initializes a new <tt>PortAllocator</tt>.
+     * @param minPort the first port of the range.
+     * @param maxPort the last port (excluded) of the range.
+     * @param blockSize the number of consecutive ports of a block.
+     */
+    public PortAllocator(int minPort, int maxPort, int blockSize)
+    {
+        if(blockSize <= 0 || maxPort - minPort < blockSize)
+        {
+            throw new IllegalArgumentException("Invalid port range "
+                + minPort + "-" + maxPort);
+        }
+
+        this.minPort = minPort;
+        this.blockSize = blockSize;
+        this.blocks = (maxPort - minPort) / blockSize;
+        this.bitmap = new AtomicLongArray((blocks + 63) / 64);
+
+        //The bits after the last block are claimed once and for all.
+        int last = blocks % 64;
+        if(last != 0)
+            bitmap.set(bitmap.length() - 1, -1L << last);
+    }
+
+    /**
+     * Claim a free block whose ports aren't in use.
+     * @return the first port of the block, or -1 if there is no free block.
+     */
+    public int allocate()
+    {
+        List<Integer> skipped = null;
+        try
+        {
+            int port;
+            while((port = claim()) >= 0)
+            {
+                boolean free = true;
+                for(int i = 0; i < blockSize && free; i++)
+                    free = isFree(port + i);
+                if(free)
+                {
+                    allocated.incrementAndGet();
+                    return port;
+                }
+                inUse.incrementAndGet();
+                if(skipped == null)
+                    skipped = new ArrayList<Integer>();
+                skipped.add(port);
+            }
+            return -1;
+        }
+        finally
+        {
+            if(skipped != null)
+            {
+                for(int port : skipped)
+                    unclaim(port);
+            }
+        }
+    }
+
+    /**
+     * Release the block starting at <tt>port</tt>.
+     * @param port the first port of a block returned by <tt>allocate</tt>.
+     */
+    public void release(int port)
+    {
+        if(unclaim(port))
+            allocated.decrementAndGet();
+    }
+
+    /**
+     * Get the number of blocks handed out and not released.
+     * @return the number of blocks handed out and not released.
+     */
+    public int getAllocated()
+    {
+        return allocated.get();
+    }
+
+    /**
+     * Get the number of times a block was skipped because its ports were in
+     * use.
+     * @return the number of times a block was skipped because its ports were
+     * in use.
+     */
+    public int getInUse()
+    {
+        return inUse.get();
+    }
+
+    /**
+     * Get the number of blocks of the range.
+     * @return the number of blocks of the range.
+     */
+    public int getCapacity()
+    {
+        return blocks;
+    }
+
+    /**
+     * Claim a free block of the bitmap.
+     * @return the first port of the block, or -1 if there is no free block.
+     */
+    private int claim()
+    {
+        int words = bitmap.length();
+        int start = hint.get();
+        for(int n = 0; n < words; n++)
+        {
+            int word = (start + n) % words;
+            long value;
+            while((value = bitmap.get(word)) != -1L)
+            {
+                int bit = Long.numberOfTrailingZeros(~value);
+                if(bitmap.compareAndSet(word, value, value | (1L << bit)))
+                {
+                    hint.set(word);
+                    return minPort + (word * 64 + bit) * blockSize;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Clear the bit of the block starting at <tt>port</tt>.
+     * @param port the first port of a block.
+     * @return <tt>true</tt> if the block was claimed.
+     */
+    private boolean unclaim(int port)
+    {
+        int block = (port - minPort) / blockSize;
+        if(block < 0 || block >= blocks)
+            return false;
+
+        int word = block / 64;
+        long mask = 1L << (block % 64);
+        long value;
+        do
+        {
+            value = bitmap.get(word);
+            if((value & mask) == 0)
+                return false;
+        }
+        while(!bitmap.compareAndSet(word, value, value & ~mask));
+        return true;
+    }
+
+    /**
+     * Check that nothing is bound to the UDP port <tt>port</tt>.
+     * @param port a UDP port.
+     * @return <tt>true</tt> if the port can be bound.
+     */
+    private static boolean isFree(int port)
+    {
+        try
+        {
+            new DatagramSocket(port).close();
+            return true;
+        }
+        catch (SocketException e)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.utils;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.jitsi.util.Logger;
+
+/**
+ * A <tt>RtpdumpStore</tt> gives a read-only access to the RTP packets of a
+ * rtpdump file, shared by all the streams reading it : the file is
+ * memory-mapped once, and indexed once (offset and length of the payload, RTP
+ * timestamp and marker bit of each packet) into primitive arrays.
+ *
+ * Each stream reads the store through its own <tt>Cursor</tt>, which only
+ * holds its position and a view of the mapped file, so that the memory used
+ * and the file I/O don't grow with the number of users.
+ *
+ * A rtpdump file starts with a text line (#!rtpplay1.0 address/port\n) and a
+ * 16 bytes binary header, followed by the packets, each one prefixed by a 8
+ * bytes header (length of the record, length of the RTP packet, offset in
+ * milliseconds since the start of the recording).
+ */
+public class RtpdumpStore
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>RtpdumpStore</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RtpdumpStore.class);
+
+    /**
+     * The length of the binary header following the first line of the file.
+     */
+    private static final int FILE_HEADER_LENGTH = 16;
+
+    /**
+     * The length of the header of each packet record.
+     */
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    /**
+     * The length of the fixed RTP header.
+     */
+    private static final int FIXED_HEADER_LENGTH = 12;
+
+    /**
+     * The <tt>RtpdumpStore</tt>s already loaded, by canonical path.
+     */
+    private static final Map<String, RtpdumpStore> stores
+        = new HashMap<String, RtpdumpStore>();
+
+    /**
+     * The path of the rtpdump file of this store.
+     */
+    private final String path;
+
+    /**
+     * The memory-mapped content of the rtpdump file.
+     */
+    private final ByteBuffer mapped;
+
+    /**
+     * The offset in the file of the payload of each packet.
+     */
+    private final int[] payloadOffsets;
+
+    /**
+     * The length of the payload of each packet.
+     */
+    private final int[] payloadLengths;
+
+    /**
+     * The RTP timestamp of each packet.
+     */
+    private final long[] timestamps;
+
+    /**
+     * The marker bit of each packet.
+     */
+    private final boolean[] markers;
+
+    /**
+     * The number of packets of the store.
+     */
+    private final int count;
+
+    /**
+     * The length of the longest payload of the store.
+     */
+    private final int maxPayloadLength;
+
+    /**
+     * Get the <tt>RtpdumpStore</tt> of the rtpdump file <tt>path</tt>,
+     * mapping and indexing it if it hasn't been done yet.
+     *
+     * @param path the path of a rtpdump file.
+     * @return the <tt>RtpdumpStore</tt> of <tt>path</tt>.
+     * @throws IOException if the file can't be mapped or isn't a valid
+     * rtpdump file.
+     */
+    public static RtpdumpStore getInstance(String path)
+        throws IOException
+    {
+        String key = new File(path).getCanonicalPath();
+
+        synchronized(stores)
+        {
+            RtpdumpStore store = stores.get(key);
+            if(store == null)
+            {
+                store = new RtpdumpStore(key);
+                stores.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Map and index the rtpdump file <tt>path</tt>.
+     *
+     * @param path the path of a rtpdump file.
+     * @throws IOException if the file can't be mapped or isn't a valid
+     * rtpdump file.
+     */
+    private RtpdumpStore(String path)
+        throws IOException
+    {
+        this.path = path;
+
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try
+        {
+            FileChannel channel = file.getChannel();
+            mapped = channel.map(
+                FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally
+        {
+            file.close();
+        }
+
+        int limit = mapped.limit();
+        int pos = 0;
+        while(pos < limit && mapped.get(pos) != '\n')
+            pos++;
+        pos += 1 + FILE_HEADER_LENGTH;
+
+        int capacity = 1024;
+        int[] offsets = new int[capacity];
+        int[] lengths = new int[capacity];
+        long[] ts = new long[capacity];
+        boolean[] marks = new boolean[capacity];
+        int n = 0;
+        int max = 0;
+
+        while(pos + RECORD_HEADER_LENGTH <= limit)
+        {
+            int packetLength = mapped.getShort(pos + 2) & 0xffff;
+            int packet = pos + RECORD_HEADER_LENGTH;
+            pos = packet + packetLength;
+            if(pos > limit)
+                break;
+            if(packetLength < FIXED_HEADER_LENGTH)
+                continue;
+
+            int b0 = mapped.get(packet) & 0xff;
+            int headerLength = FIXED_HEADER_LENGTH + 4 * (b0 & 0x0f);
+            if((b0 & 0x10) != 0 && headerLength + 4 <= packetLength)
+            {
+                int extLength = mapped.getShort(packet + headerLength + 2)
+                    & 0xffff;
+                headerLength += 4 + 4 * extLength;
+            }
+            int padding = ((b0 & 0x20) != 0)
+                ? mapped.get(packet + packetLength - 1) & 0xff
+                : 0;
+            int payloadLength = packetLength - headerLength - padding;
+            if(payloadLength < 0)
+                continue;
+
+            if(n == capacity)
+            {
+                capacity *= 2;
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                ts = Arrays.copyOf(ts, capacity);
+                marks = Arrays.copyOf(marks, capacity);
+            }
+            offsets[n] = packet + headerLength;
+            lengths[n] = payloadLength;
+            ts[n] = mapped.getInt(packet + 4) & 0xffffffffL;
+            marks[n] = (mapped.get(packet + 1) & 0x80) != 0;
+            max = Math.max(max, payloadLength);
+            n++;
+        }
+
+        if(n == 0)
+            throw new IOException(path + " doesn't contain any RTP packet");
+
+        this.payloadOffsets = Arrays.copyOf(offsets, n);
+        this.payloadLengths = Arrays.copyOf(lengths, n);
+        this.timestamps = Arrays.copyOf(ts, n);
+        this.markers = Arrays.copyOf(marks, n);
+        this.count = n;
+        this.maxPayloadLength = max;
+
+        logger.info("Mapped " + path + " : " + n + " RTP packets, "
+            + limit + " bytes");
+    }
+
+    /**
+     * Get the path of the rtpdump file of this store.
+     * @return the path of the rtpdump file of this store.
+     */
+    public String getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Get the number of packets of this store.
+     * @return the number of packets of this store.
+     */
+    public int getPacketCount()
+    {
+        return count;
+    }
+
+    /**
+     * Get the length of the longest payload of this store.
+     * @return the length of the longest payload of this store.
+     */
+    public int getMaxPayloadLength()
+    {
+        return maxPayloadLength;
+    }
+
+    /**
+     * Create a new <tt>Cursor</tt> reading the packets of this store from the
+     * first one.
+     * @return a new <tt>Cursor</tt> on this store.
+     */
+    public Cursor createCursor()
+    {
+        return new Cursor();
+    }
+
+    /**
+     * A <tt>Cursor</tt> reads the packets of a <tt>RtpdumpStore</tt> in order,
+     * looping at the end of the file. A <tt>Cursor</tt> is not thread-safe :
+     * it is meant to be used by a single stream.
+     */
+    public class Cursor
+    {
+        /**
+         * The view of the mapped file used by this cursor (sharing the
+         * content of the mapped file, but with its own position).
+         */
+        private final ByteBuffer view = mapped.duplicate();
+
+        /**
+         * The index of the current packet.
+         */
+        private int index = -1;
+
+        /**
+         * Move to the next packet (the first one after the last one).
+         */
+        public void next()
+        {
+            index++;
+            if(index >= count)
+                index = 0;
+        }
+
+        /**
+         * Get the length of the payload of the current packet.
+         * @return the length of the payload of the current packet.
+         */
+        public int getPayloadLength()
+        {
+            return payloadLengths[index];
+        }
+
+        /**
+         * Get the RTP timestamp of the current packet.
+         * @return the RTP timestamp of the current packet.
+         */
+        public long getTimestamp()
+        {
+            return timestamps[index];
+        }
+
+        /**
+         * Get the marker bit of the current packet.
+         * @return the marker bit of the current packet.
+         */
+        public boolean isMarked()
+        {
+            return markers[index];
+        }
+
+        /**
+         * Copy the payload of the current packet in <tt>dst</tt>.
+         * @param dst the array receiving the payload (at least
+         * <tt>getPayloadLength()</tt> long).
+         * @param offset the offset in <tt>dst</tt> of the payload.
+         */
+        public void readPayload(byte[] dst, int offset)
+        {
+            view.position(payloadOffsets[index]);
+            view.get(dst, offset, payloadLengths[index]);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.utils;
+
+import java.io.*;
+
+import javax.media.*;
+import javax.media.control.*;
+import javax.media.format.*;
+
+import org.jitsi.impl.neomedia.codec.*;
+import org.jitsi.impl.neomedia.jmfext.media.protocol.*;
+
+/**
+ * A <tt>CaptureDevice</tt> reading already encoded RTP payloads from a
+ * <tt>RtpdumpStore</tt> : it behaves like the rtpdump <tt>DataSource</tt> of
+ * libjitsi (the packets are read in order, in a loop, paced by their RTP
+ * timestamps), but all the devices reading the same file share the same
+ * memory-mapped store, each stream only having its own <tt>Cursor</tt>.
+ *
+ * The RTP headers of the packets are not read : FMJ packetizes the payloads
+ * with the SSRC, sequence numbers and timestamps of each stream.
+ */
+public class RtpdumpStoreCaptureDevice
+    extends AbstractVideoPullBufferCaptureDevice
+{
+    /**
+     * The <tt>RtpdumpStore</tt> read by this device.
+     */
+    private final RtpdumpStore store;
+
+    /**
+     * The <tt>Format</tt> of the payloads of the store.
+     */
+    private final Format format;
+
+    /**
+     * Initializes a new <tt>RtpdumpStoreCaptureDevice</tt>.
+     *
+     * @param store the <tt>RtpdumpStore</tt> read by the device.
+     * @param format the <tt>Format</tt> of the payloads of <tt>store</tt>.
+     */
+    public RtpdumpStoreCaptureDevice(RtpdumpStore store, Format format)
+    {
+        this.store = store;
+        this.format = format;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected RtpdumpStoreStream createStream(
+            int streamIndex,
+            FormatControl formatControl)
+    {
+        return new RtpdumpStoreStream(this, formatControl);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Overrides the super implementation in order to return the
+     * <tt>Format</tt> of the store, because the super looks them up by
+     * <tt>CaptureDeviceInfo</tt> and this instance does not have one.
+     */
+    @Override
+    protected Format[] getSupportedFormats(int streamIndex)
+    {
+        return new Format[] { format };
+    }
+
+    /**
+     * The <tt>PullBufferStream</tt> of a <tt>RtpdumpStoreCaptureDevice</tt>.
+     */
+    private static class RtpdumpStoreStream
+        extends AbstractVideoPullBufferStream<RtpdumpStoreCaptureDevice>
+    {
+        /**
+         * The clock rate of the RTP timestamps of the packets.
+         */
+        private final long clockRate;
+
+        /**
+         * The <tt>Cursor</tt> of this stream on the shared store.
+         */
+        private final RtpdumpStore.Cursor cursor;
+
+        /**
+         * The RTP timestamp of the last packet read, or -1.
+         */
+        private long lastRtpTimestamp = -1;
+
+        /**
+         * Whether the last packet read had its marker bit set (i.e. was the
+         * last packet of a frame).
+         */
+        private boolean lastReadWasMarked = true;
+
+        /**
+         * The timestamp of the <tt>Buffer</tt>s of the current frame.
+         */
+        private long timestamp;
+
+        /**
+         * Initializes a new <tt>RtpdumpStoreStream</tt>.
+         *
+         * @param dataSource the <tt>RtpdumpStoreCaptureDevice</tt> of the
+         * stream.
+         * @param formatControl the <tt>FormatControl</tt> of the stream.
+         */
+        RtpdumpStoreStream(
+                RtpdumpStoreCaptureDevice dataSource,
+                FormatControl formatControl)
+        {
+            super(dataSource, formatControl);
+
+            /*
+             * As for the rtpdump DataSource of libjitsi, the clock rate of a
+             * video format is given as its frame rate.
+             */
+            Format format = dataSource.format;
+            if(format instanceof AudioFormat)
+                clockRate = (long) ((AudioFormat) format).getSampleRate();
+            else if(format instanceof VideoFormat)
+                clockRate = (long) ((VideoFormat) format).getFrameRate();
+            else
+                clockRate = 1000000000L;
+
+            cursor = dataSource.store.createCursor();
+        }
+
+        /**
+         * Reads the payload of the next packet of the store into
+         * <tt>buffer</tt>, then waits for the time separating it from the
+         * following packet.
+         *
+         * @param buffer the <tt>Buffer</tt> to fill.
+         * @throws IOException never.
+         */
+        @Override
+        protected void doRead(Buffer buffer)
+            throws IOException
+        {
+            if(buffer.getFormat() == null)
+                buffer.setFormat(getFormat());
+
+            cursor.next();
+            int length = cursor.getPayloadLength();
+            byte[] data
+                = AbstractCodec2.validateByteArraySize(buffer, length, false);
+            cursor.readPayload(data, 0);
+
+            buffer.setOffset(0);
+            buffer.setLength(length);
+            buffer.setFlags(Buffer.FLAG_SYSTEM_TIME | Buffer.FLAG_LIVE_DATA);
+
+            if(lastReadWasMarked)
+                timestamp = System.nanoTime();
+            lastReadWasMarked = cursor.isMarked();
+            if(lastReadWasMarked)
+                buffer.setFlags(buffer.getFlags() | Buffer.FLAG_RTP_MARKER);
+            buffer.setTimeStamp(timestamp);
+
+            long previous = lastRtpTimestamp;
+            lastRtpTimestamp = cursor.getTimestamp();
+            if(previous == -1)
+                return;
+
+            long sleep = (lastRtpTimestamp - previous) * 1000000000L
+                / clockRate;
+            if(sleep > 0)
+            {
+                try
+                {
+                    Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.utils;
+
+import java.io.*;
+
+import javax.media.*;
+import javax.media.format.*;
+import javax.media.protocol.*;
+
+import org.jitsi.impl.neomedia.device.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.device.*;
+import org.jitsi.service.neomedia.format.*;
+
+/**
+ * Creates the <tt>MediaDevice</tt>s reading a rtpdump file through a shared
+ * <tt>RtpdumpStore</tt> : they replace the ones of
+ * <tt>RtpdumpMediaDevice</tt>, whose streams each open and parse the file.
+ */
+public class RtpdumpStoreMediaDevice
+{
+    /**
+     * Create a new video <tt>MediaDevice</tt> reading the RTP payloads of the
+     * rtpdump file <tt>filePath</tt>.
+     *
+     * @param filePath the path of the rtpdump file.
+     * @param encoding the encoding of the RTP packets of the file.
+     * @param format the <tt>MediaFormat</tt> of the RTP packets of the file.
+     * @return a new video <tt>MediaDevice</tt> reading <tt>filePath</tt>.
+     * @throws IOException if the file can't be mapped.
+     */
+    public static MediaDevice createVideoMediaDevice(
+        String filePath,
+        String encoding,
+        MediaFormat format)
+        throws IOException
+    {
+        final RtpdumpStore store = RtpdumpStore.getInstance(filePath);
+
+        /*
+         * The clock rate of the RTP packets is given as the frame rate of
+         * the VideoFormat, as for RtpdumpMediaDevice.
+         */
+        final Format videoFormat = new VideoFormat(
+            encoding,
+            null,
+            Format.NOT_SPECIFIED,
+            Format.byteArray,
+            (float) format.getClockRate());
+
+        return new MediaDeviceImpl(
+            new CaptureDeviceInfo(
+                "Video rtpdump store",
+                new MediaLocator("rtpdumpfile:" + filePath),
+                new Format[] { videoFormat }),
+            MediaType.VIDEO)
+        {
+            @Override
+            protected CaptureDevice createCaptureDevice()
+            {
+                return new RtpdumpStoreCaptureDevice(store, videoFormat);
+            }
+        };
+    }
+
+    /**
+     * Create a new audio <tt>MediaDevice</tt> reading the RTP payloads of the
+     * rtpdump file <tt>filePath</tt>.
+     *
+     * @param filePath the path of the rtpdump file.
+     * @param format the <tt>AudioFormat</tt> of the RTP packets of the file.
+     * @return a new audio <tt>MediaDevice</tt> reading <tt>filePath</tt>.
+     * @throws IOException if the file can't be mapped.
+     */
+    public static MediaDevice createAudioMediaDevice(
+        String filePath,
+        final AudioFormat format)
+        throws IOException
+    {
+        final RtpdumpStore store = RtpdumpStore.getInstance(filePath);
+
+        return new AudioMediaDeviceImpl(
+            new CaptureDeviceInfo(
+                "Audio rtpdump store",
+                new MediaLocator("rtpdumpfile:" + filePath),
+                new Format[] { format }))
+        {
+            @Override
+            protected CaptureDevice createCaptureDevice()
+            {
+                return new RtpdumpStoreCaptureDevice(store, format);
+            }
+
+            /**
+             * Don't register the effect measuring the audio level of the
+             * local user : it works on raw audio, and the media of this
+             * device is already encoded.
+             */
+            @Override
+            public MediaDeviceSession createSession()
+            {
+                return new AudioMediaDeviceSession(this)
+                {
+                    @Override
+                    protected void registerLocalUserAudioLevelEffect(
+                            Processor processor)
+                    {
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.hammer.utils;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.util.Logger;
+import org.jivesoftware.smack.packet.*;
+
+/**
+ * <tt>SignallingTrace</tt> traces the XMPP packets sent and received by the
+ * <tt>FakeUser</tt>s (session-initiate, session-accept, presences...) to a
+ * file, without slowing down their signalling.
+ *
+ * The threads of the users serialize the packet (with <tt>toXML</tt>, whose
+ * result is mostly cached by the packet extensions) and put its XML in a
+ * bounded ring buffer : the XML is written to the file by a background
+ * thread. The packet isn't kept, as its extensions may be modified once it is
+ * traced. If the buffer is full, the packet is dropped (and counted) rather
+ * than blocking the user. When the trace isn't started, <tt>trace</tt> only
+ * reads a volatile field.
+ *
+ * The trace can be sampled : a user is traced if its name falls in the
+ * sampled fraction of the users, so that the trace holds whole sessions.
+ *
+ * The text trace has a line per packet (<tt>time user event : xml</tt>). The
+ * binary trace (big-endian) starts with "JHTRACE1", followed by a record per
+ * packet :
+ * <pre>
+ * long time, user writeUTF, event writeUTF, int length, xml UTF-8
+ * </pre>
+ * The user and the event are written with <tt>DataOutput.writeUTF</tt>
+ * (unsigned short length, then modified UTF-8, read back with
+ * <tt>DataInput.readUTF</tt>), the XML as a byte length followed by standard
+ * UTF-8.
+ */
+public class SignallingTrace
+    implements Runnable
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>SignallingTrace</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SignallingTrace.class);
+
+    /**
+     * The magic at the start of a binary trace.
+     */
+    public static final byte[] MAGIC =
+        { 'J', 'H', 'T', 'R', 'A', 'C', 'E', '1' };
+
+    /**
+     * The default number of packets the ring buffer can hold.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * The time (in ms) the writer sleeps when the buffer is empty.
+     */
+    private static final long IDLE_SLEEP = 10;
+
+    /**
+     * The started trace, or <tt>null</tt> if the packets aren't traced.
+     */
+    private static volatile SignallingTrace trace = null;
+
+    /**
+     * A packet waiting in the ring buffer.
+     */
+    private static class Entry
+    {
+        /**
+         * The time (in ms) the packet was traced.
+         */
+        final long time;
+
+        /**
+         * The name of the user.
+         */
+        final String user;
+
+        /**
+         * The event (e.g. "sessionAccept").
+         */
+        final String event;
+
+        /**
+         * The XML of the packet.
+         */
+        final String xml;
+
+        Entry(long time, String user, String event, String xml)
+        {
+            this.time = time;
+            this.user = user;
+            this.event = event;
+            this.xml = xml;
+        }
+    }
+
+    /**
+     * The slots of the ring buffer.
+     */
+    private final AtomicReferenceArray<Entry> slots;
+
+    /**
+     * The mask of an index of the ring buffer.
+     */
+    private final int mask;
+
+    /**
+     * The index of the next slot claimed by a user.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The index of the next slot read by the writer.
+     */
+    private volatile long head = 0;
+
+    /**
+     * The number of packets dropped because the buffer was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * The fraction (in 1/10000) of the users traced.
+     */
+    private final int sampling;
+
+    /**
+     * The output of a text trace, or <tt>null</tt>.
+     */
+    private final Writer textOut;
+
+    /**
+     * The output of a binary trace, or <tt>null</tt>.
+     */
+    private final DataOutputStream binaryOut;
+
+    /**
+     * The thread writing the trace.
+     */
+    private final Thread writer;
+
+    /**
+     * Whether the trace is being stopped.
+     */
+    private volatile boolean stopping = false;
+
+    /**
+     * Initializes a new <tt>SignallingTrace</tt>.
+     */
+    private SignallingTrace(
+        OutputStream out,
+        boolean binary,
+        double sampleRate,
+        int capacity)
+        throws IOException
+    {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+        this.sampling = (int) Math.round(
+            Math.max(0, Math.min(1, sampleRate)) * 10000);
+
+        OutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+        if(binary)
+        {
+            binaryOut = new DataOutputStream(buffered);
+            binaryOut.write(MAGIC);
+            textOut = null;
+        }
+        else
+        {
+            textOut = new OutputStreamWriter(buffered, "UTF-8");
+            binaryOut = null;
+        }
+
+        writer = new Thread(this, "SignallingTrace");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Start tracing the packets of the users.
+     * @param path the path of the trace file, or "-" for the standard output.
+     * @param binary whether to write a binary trace rather than a text one.
+     * @param sampleRate the fraction (between 0 and 1) of the users traced.
+     * @param capacity the number of packets the ring buffer can hold.
+     * @throws IOException if the trace file can't be created.
+     */
+    public static synchronized void start(
+        String path,
+        boolean binary,
+        double sampleRate,
+        int capacity)
+        throws IOException
+    {
+        if(trace != null)
+            return;
+
+        OutputStream out = "-".equals(path)
+            ? new FilterOutputStream(System.out)
+            {
+                @Override
+                public void close()
+                    throws IOException
+                {
+                    flush();
+                }
+            }
+            : new FileOutputStream(path);
+        SignallingTrace newTrace
+            = new SignallingTrace(out, binary, sampleRate, capacity);
+        newTrace.writer.start();
+        trace = newTrace;
+        logger.info("Tracing the signalling of "
+            + (sampleRate * 100) + "% of the users to " + path);
+    }
+
+    /**
+     * Stop tracing : the packets in the ring buffer are written, and the
+     * trace file is closed.
+     */
+    public static synchronized void stop()
+    {
+        SignallingTrace oldTrace = trace;
+        if(oldTrace == null)
+            return;
+
+        trace = null;
+        oldTrace.stopping = true;
+        try
+        {
+            oldTrace.writer.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if(oldTrace.dropped.get() > 0)
+        {
+            logger.warn(oldTrace.dropped.get() + " packets were dropped from"
+                + " the signalling trace");
+        }
+    }
+
+    /**
+     * Returns whether the packets are traced.
+     * @return <tt>true</tt> if the trace is started.
+     */
+    public static boolean isEnabled()
+    {
+        return trace != null;
+    }
+
+    /**
+     * Trace a packet of a user, if the trace is started and the user is
+     * sampled. The packet is serialized by the calling thread.
+     *
+     * @param user the name of the user.
+     * @param event the event (e.g. "sessionAccept").
+     * @param packet the packet sent or received.
+     */
+    public static void trace(String user, String event, Packet packet)
+    {
+        SignallingTrace t = trace;
+        if(t != null && t.isSampled(user))
+        {
+            t.offer(new Entry(
+                System.currentTimeMillis(), user, event, packet.toXML()));
+        }
+    }
+
+    /**
+     * Returns whether the user <tt>user</tt> is traced.
+     * @param user the name of the user.
+     * @return <tt>true</tt> if <tt>user</tt> is traced.
+     */
+    private boolean isSampled(String user)
+    {
+        return sampling >= 10000
+            || ((user.hashCode() & 0x7fffffff) % 10000) < sampling;
+    }
+
+    /**
+     * Put <tt>entry</tt> in the ring buffer, or drop it if the buffer is
+     * full.
+     * @param entry the packet to trace.
+     */
+    private void offer(Entry entry)
+    {
+        long t;
+        do
+        {
+            t = tail.get();
+            if(t - head > mask)
+            {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        while(!tail.compareAndSet(t, t + 1));
+        slots.set((int) t & mask, entry);
+    }
+
+    /**
+     * Write the packets of the ring buffer until the trace is stopped.
+     */
+    public void run()
+    {
+        try
+        {
+            while(true)
+            {
+                boolean stop = stopping;
+                if(drain() == 0)
+                {
+                    if(stop)
+                        break;
+                    flush();
+                    Thread.sleep(IDLE_SLEEP);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            logger.warn("Signalling trace interrupted");
+        }
+        catch (IOException e)
+        {
+            logger.error("Error while writing the signalling trace", e);
+            trace = null;
+        }
+        finally
+        {
+            try
+            {
+                if(binaryOut != null)
+                    binaryOut.close();
+                else
+                    textOut.close();
+            }
+            catch (IOException e)
+            {
+                logger.error("Error while closing the signalling trace", e);
+            }
+        }
+    }
+
+    /**
+     * Write the packets published in the ring buffer.
+     * @return the number of packets written.
+     * @throws IOException if the trace can't be written.
+     */
+    private int drain()
+        throws IOException
+    {
+        int count = 0;
+        while(true)
+        {
+            int index = (int) head & mask;
+            Entry entry = slots.get(index);
+            if(entry == null)
+                return count;
+
+            slots.set(index, null);
+            head++;
+            write(entry);
+            count++;
+        }
+    }
+
+    /**
+     * Write a packet to the trace.
+     * @param entry the packet to write.
+     * @throws IOException if the trace can't be written.
+     */
+    private void write(Entry entry)
+        throws IOException
+    {
+        String xml = entry.xml;
+        if(binaryOut != null)
+        {
+            binaryOut.writeLong(entry.time);
+            binaryOut.writeUTF(entry.user);
+            binaryOut.writeUTF(entry.event);
+            byte[] bytes = xml.getBytes("UTF-8");
+            binaryOut.writeInt(bytes.length);
+            binaryOut.write(bytes);
+        }
+        else
+        {
+            textOut.write(String.valueOf(entry.time));
+            textOut.write(' ');
+            textOut.write(entry.user);
+            textOut.write(' ');
+            textOut.write(entry.event);
+            textOut.write(" : ");
+            textOut.write(xml);
+            textOut.write('\n');
+        }
+    }
+
+    /**
+     * Flush the trace.
+     * @throws IOException if the trace can't be flushed.
+     */
+    private void flush()
+        throws IOException
+    {
+        if(binaryOut != null)
+            binaryOut.flush();
+        else
+            textOut.flush();
+    }
+}
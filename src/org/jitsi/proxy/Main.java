@@ -265,7 +265,8 @@ public class Main
             hostInfo,
             mdc,
             "Jitsi-Hammer",
-            numberOfFakeUsers);
+            numberOfFakeUsers,
+            infoCLI.getDisableStats());
 
 
         //Cleanly stop the hammer when the program shutdown
@@ -11,11 +11,11 @@ import net.java.sip.communicator.impl.osgi.framework.launch.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 
 import org.jitsi.hammer.FakeUser;
-import org.jitsi.hammer.Framework;
 import org.jitsi.hammer.Hammer;
 import org.jitsi.hammer.HostInfo;
 import org.jitsi.hammer.extension.*;
 import org.jitsi.hammer.utils.MediaDeviceChooser;
+import org.jitsi.proxy.relay.*;
 import org.jitsi.util.Logger;
 
 import java.util.*;
@@ -91,5 +91,165 @@ public class Proxy {
      */
     private FakeUser Lusers[] = null;
     private FakeUser Rusers[] = null;
-    
+
+    /**
+     * The <tt>RelayEngine</tt> forwarding the media between each
+     * <tt>Luser</tt> and its <tt>Ruser</tt>.
+     */
+    private final RelayEngine relayEngine;
+
+    /**
+     * boolean used to know if the <tt>Proxy</tt> is started or not.
+     */
+    private boolean started = false;
+
+    /**
+     * Instantiate a <tt>Proxy</tt> object with <tt>numberOfPairs</tt> pairs
+     * of virtual users : the <tt>Luser</tt>s connect to the XMPP server of
+     * <tt>host</tt>, the <tt>Ruser</tt>s to the one of <tt>proxyHost</tt>, and
+     * the media of each <tt>Luser</tt> is relayed to its <tt>Ruser</tt> (and
+     * back).
+     *
+     * @param host The information about the local XMPP server.
+     * @param proxyHost The information about the remote XMPP server.
+     * @param mdc the <tt>MediaDeviceChooser</tt> used by all the users.
+     * @param nickname The base of the nickname used by the <tt>Luser</tt>s.
+     * @param proxynickname The base of the nickname used by the
+     * <tt>Ruser</tt>s.
+     * @param numberOfPairs The number of <tt>Luser</tt>/<tt>Ruser</tt> pairs.
+     */
+    public Proxy(
+        HostInfo host,
+        HostInfo proxyHost,
+        MediaDeviceChooser mdc,
+        String nickname,
+        String proxynickname,
+        int numberOfPairs)
+    {
+        this(host, proxyHost, mdc, nickname, proxynickname, numberOfPairs,
+            RelayEngine.Mode.MEDIA_STREAM);
+    }
+
+    /**
+     * Instantiate a <tt>Proxy</tt> object with <tt>numberOfPairs</tt> pairs
+     * of virtual users, relaying their media with a <tt>RelayEngine</tt> in
+     * <tt>mode</tt>.
+     *
+     * @param host The information about the local XMPP server.
+     * @param proxyHost The information about the remote XMPP server.
+     * @param mdc the <tt>MediaDeviceChooser</tt> used by all the users.
+     * @param nickname The base of the nickname used by the <tt>Luser</tt>s.
+     * @param proxynickname The base of the nickname used by the
+     * <tt>Ruser</tt>s.
+     * @param numberOfPairs The number of <tt>Luser</tt>/<tt>Ruser</tt> pairs.
+     * @param mode the <tt>RelayEngine.Mode</tt> used to relay the media.
+     */
+    public Proxy(
+        HostInfo host,
+        HostInfo proxyHost,
+        MediaDeviceChooser mdc,
+        String nickname,
+        String proxynickname,
+        int numberOfPairs,
+        RelayEngine.Mode mode)
+    {
+        this.relayEngine = new RelayEngine(mode);
+        this.nickname = nickname;
+        this.proxynickname = proxynickname;
+        this.serverInfo = host;
+        this.proxyServerInfo = proxyHost;
+        this.mediaDeviceChooser = mdc;
+
+        Lusers = new FakeUser[numberOfPairs];
+        Rusers = new FakeUser[numberOfPairs];
+        for(int i = 0; i < numberOfPairs; i++)
+        {
+            Lusers[i] = new FakeUser(
+                this.serverInfo,
+                this.mediaDeviceChooser,
+                this.nickname + "_" + i,
+                false);
+            Rusers[i] = new FakeUser(
+                this.proxyServerInfo,
+                this.mediaDeviceChooser,
+                this.proxynickname + "_" + i,
+                false);
+            relayEngine.addPair(Lusers[i], Rusers[i]);
+        }
+        logger.info(String.format("Proxy created : %d pairs of users were"
+            + " created with base nicknames %s and %s",
+            numberOfPairs, nickname, proxynickname));
+    }
+
+    /**
+     * Start the connection of all the <tt>Luser</tt>s and <tt>Ruser</tt>s
+     * (anonymous login) to their XMPP server and MUC.
+     *
+     * @param wait the number of milliseconds the Proxy will wait during the
+     * start of two consecutive pairs.
+     */
+    public void start(int wait)
+    {
+        if(wait <= 0) wait = 1;
+        if(started)
+        {
+            logger.warn("Proxy already started");
+            return;
+        }
+
+        logger.info("Starting the Proxy : starting all the pairs of users");
+        try
+        {
+            for(int i = 0; i < Lusers.length; i++)
+            {
+                Lusers[i].start();
+                Rusers[i].start();
+                Thread.sleep(wait);
+            }
+        }
+        catch (XMPPException e)
+        {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+        this.started = true;
+        logger.info("The Proxy has correctly been started");
+    }
+
+    /**
+     * Stop the relay, the streams of all the users, and disconnect them
+     * from their MUC and XMPP server.
+     */
+    public void stop()
+    {
+        if (!this.started)
+        {
+            logger.warn("Proxy already stopped !");
+            return;
+        }
+
+        relayEngine.stop();
+        for(int i = 0; i < Lusers.length; i++)
+        {
+            Lusers[i].stop();
+            Rusers[i].stop();
+        }
+
+        this.started = false;
+        logger.info("The Proxy has been correctly stopped");
+    }
+
+    /**
+     * Get the <tt>RelayEngine</tt> forwarding the media of the pairs of this
+     * <tt>Proxy</tt>.
+     * @return the <tt>RelayEngine</tt> of this <tt>Proxy</tt>.
+     */
+    public RelayEngine getRelayEngine()
+    {
+        return relayEngine;
+    }
 }
@@ -0,0 +1,594 @@
+/*
+ * Copyright @ 2015 AT&T
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.proxy.relay;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.socket.*;
+import org.jitsi.hammer.utils.*;
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.util.Logger;
+
+/**
+ * A <tt>DatagramForwarder</tt> moves the RTP and/or RTCP packets of one ICE
+ * component of a leg to the other leg, directly between the sockets selected
+ * by ice4j : the packets are only SRTP-decrypted with the keys of the source
+ * leg and SRTP-encrypted with the keys of the destination leg, without going
+ * through the <tt>MediaStream</tt>s (no RTPManager, jitter buffer,
+ * depacketizer or device).
+ *
+ * The RTP and the RTCP packets of each media have a <tt>Route</tt>
+ * (transformers, <tt>SsrcRewriter</tt>, destination socket and address), added
+ * before the forwarder is started. A component carrying both (rtcp-mux) has
+ * routes of the two kinds, and its packets are demultiplexed by
+ * <tt>HammerUtils.isRtcp</tt> ; the packets of a kind without route are
+ * dropped. The destination of a route is the component of the other leg
+ * carrying this kind of packets, which is its RTP component if the other leg
+ * multiplexes RTP and RTCP.
+ *
+ * A component carrying several media (BUNDLE) has a route of each kind per
+ * media : the RTP packets take the route of their payload type, and the RTCP
+ * packets the route whose <tt>SsrcRewriter</tt> has seen the RTP packets of
+ * their sender (or the first route, until it has).
+ *
+ * A forwarder reads from a filtered view of the
+ * <tt>MultiplexingDatagramSocket</tt> of the source leg that only accepts
+ * RTP/RTCP packets, so that the STUN and DTLS packets are still handled by
+ * ice4j and by the <tt>MediaStream</tt>. A socket that can't be filtered is
+ * refused rather than read directly.
+ *
+ * The SRTP transformers of a leg are used by the forwarders of both
+ * directions (one decrypts with them, the other one encrypts), so each use is
+ * synchronized on the transformer. The <tt>MediaStream</tt>s of the legs stop
+ * using them once the forwarders are started (see
+ * <tt>RelayTransformEngine.setForwarding</tt>).
+ *
+ * The decrypted packets go through the <tt>SsrcRewriter</tt> of their route
+ * (if any) before being encrypted again.
+ *
+ * The receive buffer, <tt>DatagramPacket</tt>s and <tt>RawPacket</tt> of a
+ * forwarder are allocated once and reused for every packet.
+ *
+ * The forwarders don't use a <tt>DatagramChannel</tt> with direct
+ * <tt>ByteBuffer</tt>s : the sockets selected by ice4j are plain
+ * <tt>DatagramSocket</tt>s without a channel, and reading their underlying
+ * socket through a channel would bypass the demultiplexing of ice4j (and
+ * steal the STUN and DTLS packets). The SRTP transformers work on the
+ * <tt>byte[]</tt> of a <tt>RawPacket</tt> anyway, so a direct buffer would
+ * only add a copy in each direction. The packets per second of a forwarder
+ * are measured by <tt>DatagramForwarderBenchmark</tt> (benchmarks module).
+ */
+public class DatagramForwarder
+    implements Runnable
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>DatagramForwarder</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(DatagramForwarder.class);
+
+    /**
+     * The length of the datagram sent by <tt>stop()</tt> to wake up the
+     * thread of a forwarder : ice4j doesn't return from the
+     * <tt>receive</tt> of a closed filtered socket, and its timeout is the
+     * one of the socket shared with the <tt>MediaStream</tt>.
+     */
+    private static final int WAKE_UP_LENGTH = 8;
+
+    /**
+     * The generator of the wake-up datagrams of the forwarders.
+     */
+    private static final Random random = new Random();
+
+    /**
+     * The name of this forwarder (used for its thread and in the logs).
+     */
+    private final String name;
+
+    /**
+     * The socket of the component of the source leg.
+     */
+    private final MultiplexingDatagramSocket socket;
+
+    /**
+     * The filtered socket of the source leg.
+     */
+    private final DatagramSocket in;
+
+    /**
+     * The content of the datagram waking up the thread of this forwarder. Its
+     * first byte (255) is neither STUN, DTLS, RTP nor RTCP, so no other
+     * filter of the source socket accepts it.
+     */
+    private final byte[] wakeUp = new byte[WAKE_UP_LENGTH];
+
+    /**
+     * The <tt>Route</tt>s of the RTP packets (dropped if there is none).
+     */
+    private final List<Route> rtpRoutes = new ArrayList<Route>();
+
+    /**
+     * The <tt>Route</tt>s of the RTCP packets (dropped if there is none).
+     */
+    private final List<Route> rtcpRoutes = new ArrayList<Route>();
+
+    /**
+     * The <tt>Thread</tt> running this forwarder.
+     */
+    private Thread thread;
+
+    /**
+     * A boolean used to stop the run method of this forwarder.
+     */
+    private volatile boolean running = false;
+
+    /**
+     * The number of packets forwarded.
+     */
+    private final AtomicLong packets = new AtomicLong();
+
+    /**
+     * The number of bytes forwarded.
+     */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * The number of packets dropped (not decrypted/encrypted, e.g. because the
+     * DTLS handshake of a leg isn't done yet).
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * The time (in ms) at which this forwarder was started.
+     */
+    private long startTime;
+
+    /**
+     * Initializes a new <tt>DatagramForwarder</tt>, without any route : they
+     * are added with <tt>addRoute</tt> before the forwarder is started.
+     *
+     * @param name the name of the forwarder.
+     * @param in the selected socket of the component of the source leg.
+     * @throws SocketException if the RTP/RTCP view of <tt>in</tt> can't be
+     * created (or if <tt>in</tt> isn't a <tt>MultiplexingDatagramSocket</tt>).
+     */
+    public DatagramForwarder(
+        String name,
+        DatagramSocket in)
+        throws SocketException
+    {
+        if(!(in instanceof MultiplexingDatagramSocket))
+        {
+            //reading it directly would steal the STUN and DTLS packets.
+            throw new SocketException(
+                name + " : the socket of the source leg can't be filtered");
+        }
+
+        this.name = name;
+        synchronized(random)
+        {
+            random.nextBytes(wakeUp);
+        }
+        wakeUp[0] = (byte) 0xff;
+        this.socket = (MultiplexingDatagramSocket) in;
+        this.in = socket.getSocket(new RtpDatagramFilter()
+        {
+            @Override
+            public boolean accept(DatagramPacket p)
+            {
+                return super.accept(p) || isWakeUp(p);
+            }
+        });
+    }
+
+    /**
+     * Add a route of the RTP or RTCP packets of a media received by this
+     * forwarder. It must be called before <tt>start</tt>.
+     *
+     * @param rtcp <tt>true</tt> for a route of the RTCP packets,
+     * <tt>false</tt> for a route of the RTP packets.
+     * @param payloadTypes the RTP payload types of the media, or
+     * <tt>null</tt> if the component carries a single media.
+     * @param decryptor the SRTP (or SRTCP) <tt>PacketTransformer</tt> of the
+     * source leg.
+     * @param encryptor the SRTP (or SRTCP) <tt>PacketTransformer</tt> of the
+     * destination leg.
+     * @param rewriter the <tt>SsrcRewriter</tt> of the media in this
+     * direction, or <tt>null</tt>.
+     * @param out the selected socket of the component of the destination leg
+     * carrying these packets.
+     * @param target the remote address of this component.
+     */
+    public synchronized void addRoute(
+        boolean rtcp,
+        Collection<Integer> payloadTypes,
+        PacketTransformer decryptor,
+        PacketTransformer encryptor,
+        SsrcRewriter rewriter,
+        IceSocketWrapper out,
+        InetSocketAddress target)
+    {
+        Route route = new Route(
+            payloadTypes, decryptor, encryptor, rewriter, out, target);
+        if(rtcp)
+            rtcpRoutes.add(route);
+        else
+            rtpRoutes.add(route);
+    }
+
+    /**
+     * Start the thread of this forwarder.
+     */
+    public synchronized void start()
+    {
+        if(thread != null)
+            return;
+
+        running = true;
+        startTime = System.currentTimeMillis();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop this forwarder : a datagram is sent to the source socket to
+     * unblock the thread of the forwarder, which closes its filtered socket
+     * (the underlying ICE socket is not closed) and returns.
+     */
+    public synchronized void stop()
+    {
+        running = false;
+        if(thread != null)
+        {
+            try
+            {
+                InetSocketAddress local
+                    = (InetSocketAddress) socket.getLocalSocketAddress();
+                InetAddress address = local.getAddress();
+                if(address == null || address.isAnyLocalAddress())
+                    address = InetAddress.getByName(null);
+                socket.send(new DatagramPacket(
+                    wakeUp, wakeUp.length, address, local.getPort()));
+            }
+            catch (IOException e)
+            {
+                //the ICE socket is closed, so is the filtered one.
+                in.close();
+            }
+            thread = null;
+        }
+        else
+        {
+            in.close();
+        }
+
+        logger.info(name + " : " + packets.get() + " packets forwarded ("
+            + getPacketsPerSecond() + " pps), "
+            + dropped.get() + " dropped");
+    }
+
+    /**
+     * Returns <tt>true</tt> if <tt>p</tt> is the datagram sent by
+     * <tt>stop()</tt> to wake up the thread of this forwarder.
+     * @param p a <tt>DatagramPacket</tt> received by the source socket.
+     * @return <tt>true</tt> if <tt>p</tt> is the wake-up datagram of this
+     * forwarder.
+     */
+    private boolean isWakeUp(DatagramPacket p)
+    {
+        if(p.getLength() != WAKE_UP_LENGTH)
+            return false;
+
+        byte[] data = p.getData();
+        int offset = p.getOffset();
+        for(int i = 0; i < WAKE_UP_LENGTH; i++)
+        {
+            if(data[offset + i] != wakeUp[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forward the packets of the source leg to the destination leg until this
+     * forwarder is stopped.
+     */
+    public void run()
+    {
+        byte[] buffer = new byte[RelayPacketPool.DEFAULT_PACKET_SIZE];
+        DatagramPacket received = new DatagramPacket(buffer, buffer.length);
+        DatagramPacket sent = new DatagramPacket(buffer, 0);
+        RawPacket pkt = new RawPacket(buffer, 0, 0);
+        RawPacket[] pkts = new RawPacket[1];
+        Route[] rtpRoutes;
+        Route[] rtcpRoutes;
+
+        synchronized(this)
+        {
+            rtpRoutes = this.rtpRoutes.toArray(new Route[0]);
+            rtcpRoutes = this.rtcpRoutes.toArray(new Route[0]);
+        }
+
+        while(running)
+        {
+            try
+            {
+                received.setData(buffer, 0, buffer.length);
+                in.receive(received);
+                if(!running || isWakeUp(received))
+                    continue;
+
+                //a component carrying a single kind of packets doesn't
+                //need to look at them.
+                int offset = received.getOffset();
+                int length = received.getLength();
+                boolean rtcp = (rtpRoutes.length == 0)
+                    || (rtcpRoutes.length != 0
+                        && HammerUtils.isRtcp(buffer, offset, length));
+                Route route = rtcp
+                    ? getRtcpRoute(rtcpRoutes, buffer, offset, length)
+                    : getRtpRoute(rtpRoutes, buffer, offset);
+                if(route == null)
+                {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+
+                pkt.setBuffer(buffer);
+                pkt.setOffset(offset);
+                pkt.setLength(length);
+                pkts[0] = pkt;
+
+                RawPacket[] transformed;
+                synchronized(route.decryptor)
+                {
+                    transformed = route.decryptor.reverseTransform(pkts);
+                }
+                if(transformed != null && transformed.length > 0
+                        && transformed[0] != null)
+                {
+                    RawPacket p = transformed[0];
+                    SsrcRewriter rewriter = route.rewriter;
+                    if(rewriter != null && !rtcp)
+                    {
+                        //only the active source is relayed.
+                        if(!rewriter.rewriteRtp(
+                                p.getBuffer(), p.getOffset(), p.getLength()))
+                        {
+                            dropped.incrementAndGet();
+                            continue;
+                        }
+                    }
+                    else if(rewriter != null)
+                        rewriter.rewriteRtcp(
+                            p.getBuffer(), p.getOffset(), p.getLength());
+
+                    synchronized(route.encryptor)
+                    {
+                        transformed = route.encryptor.transform(transformed);
+                    }
+                }
+
+                if(transformed == null || transformed.length == 0
+                        || transformed[0] == null)
+                {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+
+                RawPacket p = transformed[0];
+                sent.setData(p.getBuffer(), p.getOffset(), p.getLength());
+                sent.setSocketAddress(route.target);
+                route.out.send(sent);
+
+                packets.incrementAndGet();
+                bytes.addAndGet(p.getLength());
+
+                //the SRTP transformer may have grown the buffer of the packet.
+                if(p.getBuffer() != buffer
+                        && p.getBuffer().length >= buffer.length)
+                    buffer = p.getBuffer();
+            }
+            catch (IOException e)
+            {
+                if(running)
+                    logger.warn(name + " : error while forwarding a packet", e);
+                //the ICE socket of the source leg won't receive anything more.
+                if(socket.isClosed())
+                    running = false;
+            }
+        }
+        in.close();
+    }
+
+    /**
+     * Get the route of the RTP packet in <tt>buf</tt> : the first route whose
+     * payload types include the one of the packet.
+     * @param routes the RTP routes of this forwarder.
+     * @param buf the buffer of the packet.
+     * @param off the offset of the packet in <tt>buf</tt>.
+     * @return the route of the packet, or <tt>null</tt> if it has none.
+     */
+    private static Route getRtpRoute(Route[] routes, byte[] buf, int off)
+    {
+        if(routes.length == 1)
+            return routes[0];
+
+        int pt = buf[off + 1] & 0x7f;
+        for(Route route : routes)
+        {
+            if(route.payloadTypes == null || route.payloadTypes[pt])
+                return route;
+        }
+        return null;
+    }
+
+    /**
+     * Get the route of the RTCP packet in <tt>buf</tt> : the route whose
+     * <tt>SsrcRewriter</tt> has seen the RTP packets of its sender, or the
+     * first one.
+     * @param routes the RTCP routes of this forwarder.
+     * @param buf the buffer of the packet.
+     * @param off the offset of the packet in <tt>buf</tt>.
+     * @param len the length of the packet.
+     * @return the route of the packet, or <tt>null</tt> if it has none.
+     */
+    private static Route getRtcpRoute(
+        Route[] routes,
+        byte[] buf,
+        int off,
+        int len)
+    {
+        if(routes.length <= 1 || len < 8)
+            return (routes.length == 0) ? null : routes[0];
+
+        int ssrc = ((buf[off + 4] & 0xff) << 24)
+            | ((buf[off + 5] & 0xff) << 16)
+            | ((buf[off + 6] & 0xff) << 8)
+            | (buf[off + 7] & 0xff);
+        for(Route route : routes)
+        {
+            if(route.rewriter != null && route.rewriter.hasSource(ssrc))
+                return route;
+        }
+        return routes[0];
+    }
+
+    /**
+     * Get the number of packets forwarded by this forwarder.
+     * @return the number of packets forwarded by this forwarder.
+     */
+    public long getPackets()
+    {
+        return packets.get();
+    }
+
+    /**
+     * Get the number of bytes forwarded by this forwarder.
+     * @return the number of bytes forwarded by this forwarder.
+     */
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+    /**
+     * Get the number of packets dropped by this forwarder.
+     * @return the number of packets dropped by this forwarder.
+     */
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Get the average number of packets per second forwarded by this
+     * forwarder since it was started.
+     * @return the average packets per second forwarded by this forwarder.
+     */
+    public long getPacketsPerSecond()
+    {
+        long elapsed = System.currentTimeMillis() - startTime;
+        return (elapsed <= 0) ? 0 : (packets.get() * 1000) / elapsed;
+    }
+
+    /**
+     * Where the RTP or RTCP packets of a media received by a forwarder go, and
+     * the transformers they go through.
+     */
+    private static class Route
+    {
+        /**
+         * The RTP payload types of the media, indexed by payload type, or
+         * <tt>null</tt> if the component carries a single media.
+         */
+        private final boolean[] payloadTypes;
+
+        /**
+         * The <tt>PacketTransformer</tt> decrypting the packets of the source
+         * leg.
+         */
+        private final PacketTransformer decryptor;
+
+        /**
+         * The <tt>PacketTransformer</tt> encrypting the packets for the
+         * destination leg.
+         */
+        private final PacketTransformer encryptor;
+
+        /**
+         * The <tt>SsrcRewriter</tt> of the media, or <tt>null</tt>.
+         */
+        private final SsrcRewriter rewriter;
+
+        /**
+         * The socket of the destination leg.
+         */
+        private final IceSocketWrapper out;
+
+        /**
+         * The remote address of the destination leg.
+         */
+        private final InetSocketAddress target;
+
+        /**
+         * Initializes a new <tt>Route</tt>.
+         * @param payloadTypes the RTP payload types of the media, or
+         * <tt>null</tt>.
+         * @param decryptor the <tt>PacketTransformer</tt> of the source leg.
+         * @param encryptor the <tt>PacketTransformer</tt> of the destination
+         * leg.
+         * @param rewriter the <tt>SsrcRewriter</tt> of the media, or
+         * <tt>null</tt>.
+         * @param out the socket of the destination leg.
+         * @param target the remote address of the destination leg.
+         */
+        private Route(
+            Collection<Integer> payloadTypes,
+            PacketTransformer decryptor,
+            PacketTransformer encryptor,
+            SsrcRewriter rewriter,
+            IceSocketWrapper out,
+            InetSocketAddress target)
+        {
+            if(payloadTypes == null)
+            {
+                this.payloadTypes = null;
+            }
+            else
+            {
+                this.payloadTypes = new boolean[128];
+                for(int pt : payloadTypes)
+                {
+                    if(pt >= 0 && pt < this.payloadTypes.length)
+                        this.payloadTypes[pt] = true;
+                }
+            }
+            this.decryptor = decryptor;
+            this.encryptor = encryptor;
+            this.rewriter = rewriter;
+            this.out = out;
+            this.target = target;
+        }
+    }
+}
@@ -0,0 +1,634 @@
+/*
+ * Copyright @ 2015 AT&T
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.proxy.relay;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ice4j.ice.*;
+import org.jitsi.hammer.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.Logger;
+
+/**
+ * The <tt>RelayEngine</tt> forwards the media of the <tt>FakeUser</tt>s of
+ * the proxy : each Luser (connected to the local conference) is paired with
+ * a Ruser (connected to the remote conference), and the RTP/RTCP packets
+ * received by the <tt>MediaStream</tt>s of a leg are re-emitted by the
+ * <tt>MediaStream</tt>s of the same media type of the other leg.
+ *
+ * All the pairs of a <tt>RelayEngine</tt> share the same
+ * <tt>RelayPacketPool</tt>, so that a proxy process relaying many
+ * conference pairs doesn't allocate per packet.
+ *
+ * In <tt>Mode.DATAGRAM</tt>, the <tt>MediaStream</tt>s are only used for
+ * the DTLS handshakes : once the ICE processing of both legs of a pair has
+ * completed, the SRTP/SRTCP packets are forwarded socket to socket by
+ * <tt>DatagramForwarder</tt>s.
+ */
+public class RelayEngine
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>RelayEngine</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RelayEngine.class);
+
+    /**
+     * The media relayed between the two legs of a pair.
+     */
+    private static final MediaType[] RELAYED_MEDIA
+        = new MediaType[] { MediaType.AUDIO, MediaType.VIDEO };
+
+    /**
+     * The ways a <tt>RelayEngine</tt> can forward the media of a pair.
+     */
+    public enum Mode
+    {
+        /**
+         * The packets received by the <tt>MediaStream</tt> of a leg are
+         * injected in the <tt>MediaStream</tt> of the other leg.
+         */
+        MEDIA_STREAM,
+
+        /**
+         * The packets are forwarded between the ICE sockets of the legs,
+         * bypassing the <tt>MediaStream</tt>s.
+         */
+        DATAGRAM
+    }
+
+    /**
+     * The ICE components forwarded in <tt>Mode.DATAGRAM</tt> (the RTP one
+     * first).
+     */
+    private static final int[] FORWARDED_COMPONENTS
+        = new int[] { Component.RTP, Component.RTCP };
+
+    /**
+     * The <tt>Mode</tt> of this engine.
+     */
+    private final Mode mode;
+
+    /**
+     * The pool of packets shared by all the pairs of this engine.
+     */
+    private final RelayPacketPool pool;
+
+    /**
+     * The pairs currently relayed by this engine.
+     */
+    private final List<RelayPair> pairs
+        = new CopyOnWriteArrayList<RelayPair>();
+
+    /**
+     * Initializes a new <tt>RelayEngine</tt> with a default
+     * <tt>RelayPacketPool</tt>.
+     */
+    public RelayEngine()
+    {
+        this(new RelayPacketPool(), Mode.MEDIA_STREAM);
+    }
+
+    /**
+     * Initializes a new <tt>RelayEngine</tt> with a default
+     * <tt>RelayPacketPool</tt>.
+     * @param mode the <tt>Mode</tt> of the engine.
+     */
+    public RelayEngine(Mode mode)
+    {
+        this(new RelayPacketPool(), mode);
+    }
+
+    /**
+     * Initializes a new <tt>RelayEngine</tt> using <tt>pool</tt>.
+     * @param pool the <tt>RelayPacketPool</tt> shared by all the pairs.
+     * @param mode the <tt>Mode</tt> of the engine.
+     */
+    public RelayEngine(RelayPacketPool pool, Mode mode)
+    {
+        this.pool = pool;
+        this.mode = (mode == null) ? Mode.MEDIA_STREAM : mode;
+    }
+
+    /**
+     * Pair <tt>luser</tt> with <tt>ruser</tt> : from now on, the media
+     * received by one of them will be re-emitted by the other.
+     *
+     * This needs to be called before the <tt>FakeUser</tt>s receive their
+     * session-initiate, so that their incoming packets are not filtered out.
+     *
+     * @param luser the <tt>FakeUser</tt> connected to the local conference.
+     * @param ruser the <tt>FakeUser</tt> connected to the remote conference.
+     * @return the <tt>RelayPair</tt> created.
+     */
+    public RelayPair addPair(FakeUser luser, FakeUser ruser)
+    {
+        final RelayPair pair = new RelayPair(luser, ruser);
+
+        if(mode != Mode.DATAGRAM)
+        {
+            luser.setReceiveMedia(true);
+            ruser.setReceiveMedia(true);
+        }
+
+        for(MediaType type : RELAYED_MEDIA)
+        {
+            MediaStream lstream = luser.getMediaStream(type.toString());
+            MediaStream rstream = ruser.getMediaStream(type.toString());
+            if(lstream == null || rstream == null)
+                continue;
+
+            RelayTransformEngine lengine = new RelayTransformEngine(pool);
+            RelayTransformEngine rengine = new RelayTransformEngine(pool);
+
+            //lengine relays the media of the Luser to the Ruser, so its
+            //packets must carry the SSRC advertised by the Ruser.
+            SsrcRewriter l2r = new SsrcRewriter(-1);
+            SsrcRewriter r2l = new SsrcRewriter(-1);
+            l2r.setReverse(r2l);
+            r2l.setReverse(l2r);
+            lengine.setRewriter(l2r);
+            rengine.setRewriter(r2l);
+
+            lengine.setTarget(rstream);
+            rengine.setTarget(lstream);
+            lstream.setExternalTransformer(lengine);
+            rstream.setExternalTransformer(rengine);
+            pair.installed.put(lstream, lengine);
+            pair.installed.put(rstream, rengine);
+            pair.rewriters.put(lstream, l2r);
+            pair.rewriters.put(rstream, r2l);
+
+            pair.engines.add(lengine);
+            pair.engines.add(rengine);
+        }
+
+        FakeUserListener listener = new FakeUserListener()
+        {
+            public void mediaStarted(FakeUser user)
+            {
+                if(mode != Mode.DATAGRAM)
+                    return;
+
+                synchronized(pair)
+                {
+                    pair.started++;
+                    if(pair.started == 2)
+                        startForwarders(pair);
+                }
+            }
+
+            public void mediaStreamReplaced(
+                FakeUser user,
+                String mediaName,
+                MediaStream oldStream,
+                MediaStream newStream)
+            {
+                replaceStream(pair, oldStream, newStream);
+            }
+        };
+        luser.addListener(listener);
+        ruser.addListener(listener);
+
+        pairs.add(pair);
+        logger.info("Relaying " + luser.getNickname()
+            + " <-> " + ruser.getNickname());
+        return pair;
+    }
+
+    /**
+     * Stop relaying the media of <tt>pair</tt>. The <tt>MediaStream</tt>s of
+     * its <tt>FakeUser</tt>s are handled by libjitsi as usual afterward.
+     * @param pair the <tt>RelayPair</tt> to stop.
+     */
+    public void removePair(RelayPair pair)
+    {
+        if(pairs.remove(pair))
+        {
+            for(RelayTransformEngine engine : pair.engines)
+            {
+                engine.setForwarding(false);
+                engine.setTarget(null);
+            }
+            synchronized(pair)
+            {
+                for(DatagramForwarder forwarder : pair.forwarders)
+                    forwarder.stop();
+                pair.forwarders.clear();
+            }
+        }
+    }
+
+    /**
+     * Move the <tt>RelayTransformEngine</tt> and the <tt>SsrcRewriter</tt> of
+     * <tt>oldStream</tt> to <tt>newStream</tt>, which replaces it in a leg of
+     * <tt>pair</tt>, and make the engine of the other leg relay to
+     * <tt>newStream</tt>.
+     * @param pair the <tt>RelayPair</tt> of the leg.
+     * @param oldStream the replaced <tt>MediaStream</tt>.
+     * @param newStream the new <tt>MediaStream</tt>.
+     */
+    private static void replaceStream(
+        RelayPair pair,
+        MediaStream oldStream,
+        MediaStream newStream)
+    {
+        synchronized(pair)
+        {
+            RelayTransformEngine engine = pair.installed.remove(oldStream);
+            if(engine != null)
+            {
+                newStream.setExternalTransformer(engine);
+                pair.installed.put(newStream, engine);
+            }
+
+            SsrcRewriter rewriter = pair.rewriters.remove(oldStream);
+            if(rewriter != null)
+                pair.rewriters.put(newStream, rewriter);
+
+            for(RelayTransformEngine e : pair.engines)
+            {
+                if(e.getTarget() == oldStream)
+                    e.setTarget(newStream);
+            }
+        }
+    }
+
+    /**
+     * Start the <tt>DatagramForwarder</tt>s of <tt>pair</tt>, in both
+     * directions : one per ICE socket of a leg, i.e. per relayed media and
+     * component, or per component of the bundle if the media of the leg are
+     * bundled.
+     * @param pair the <tt>RelayPair</tt> whose two legs have started.
+     */
+    private void startForwarders(RelayPair pair)
+    {
+        if(!pairs.contains(pair))
+            return;
+
+        //from now on, the SRTP contexts of the legs are only used by the
+        //forwarders.
+        for(RelayTransformEngine engine : pair.engines)
+            engine.setForwarding(true);
+
+        //the forwarders of each direction, by source socket.
+        Map<DatagramSocket, DatagramForwarder> l2r
+            = new LinkedHashMap<DatagramSocket, DatagramForwarder>();
+        Map<DatagramSocket, DatagramForwarder> r2l
+            = new LinkedHashMap<DatagramSocket, DatagramForwarder>();
+
+        for(MediaType type : RELAYED_MEDIA)
+        {
+            String name = type.toString();
+            MediaStream lstream = pair.luser.getMediaStream(name);
+            MediaStream rstream = pair.ruser.getMediaStream(name);
+            IceMediaStream licestream = pair.luser.getIceMediaStream(name);
+            IceMediaStream ricestream = pair.ruser.getIceMediaStream(name);
+            if(lstream == null || rstream == null
+                    || licestream == null || ricestream == null)
+                continue;
+
+            CandidatePair[] lpairs = getSelectedPairs(licestream);
+            CandidatePair[] rpairs = getSelectedPairs(ricestream);
+            if(lpairs == null || rpairs == null)
+                continue;
+
+            String prefix = pair.luser.getNickname() + "-" + name;
+            addRoutes(l2r, prefix + "-l2r", pair.luser, name, lstream, lpairs,
+                rstream, rpairs, pair.getRewriter(lstream));
+            addRoutes(r2l, prefix + "-r2l", pair.ruser, name, rstream, rpairs,
+                lstream, lpairs, pair.getRewriter(rstream));
+        }
+
+        List<DatagramForwarder> forwarders
+            = new ArrayList<DatagramForwarder>(l2r.values());
+        forwarders.addAll(r2l.values());
+        for(DatagramForwarder forwarder : forwarders)
+        {
+            pair.forwarders.add(forwarder);
+            forwarder.start();
+        }
+        logger.info("Forwarding datagrams " + pair.luser.getNickname()
+            + " <-> " + pair.ruser.getNickname());
+    }
+
+    /**
+     * Get the selected <tt>CandidatePair</tt> of each component of
+     * <tt>stream</tt>, by <tt>FORWARDED_COMPONENTS</tt> index : the RTCP one
+     * is <tt>null</tt> if the stream multiplexes RTP and RTCP on a single
+     * component (rtcp-mux).
+     * @param stream the <tt>IceMediaStream</tt> of a leg.
+     * @return the selected pairs of the components of <tt>stream</tt>, or
+     * <tt>null</tt> if a component has no selected pair.
+     */
+    private static CandidatePair[] getSelectedPairs(IceMediaStream stream)
+    {
+        CandidatePair[] pairs = new CandidatePair[FORWARDED_COMPONENTS.length];
+        for(int i = 0; i < FORWARDED_COMPONENTS.length; i++)
+        {
+            Component component = stream.getComponent(FORWARDED_COMPONENTS[i]);
+            if(component == null)
+            {
+                if(FORWARDED_COMPONENTS[i] == Component.RTP)
+                    return null;
+                continue;
+            }
+
+            pairs[i] = component.getSelectedPair();
+            if(pairs[i] == null)
+                return null;
+        }
+        return pairs;
+    }
+
+    /**
+     * Add the routes of a media in a direction to the
+     * <tt>DatagramForwarder</tt>s of its source leg, created as needed (one
+     * per socket) : the RTP packets go to the RTP component of the
+     * destination leg and the RTCP packets to its RTCP component, or to its
+     * RTP one if it multiplexes RTP and RTCP.
+     *
+     * @param forwarders the <tt>DatagramForwarder</tt>s of the direction, by
+     * source socket.
+     * @param name the name of a new forwarder.
+     * @param srcUser the <tt>FakeUser</tt> of the source leg.
+     * @param mediaName the name of the media.
+     * @param src the <tt>MediaStream</tt> of the source leg.
+     * @param srcPairs the selected <tt>CandidatePair</tt>s of the source leg
+     * (see <tt>getSelectedPairs</tt>).
+     * @param dst the <tt>MediaStream</tt> of the destination leg.
+     * @param dstPairs the selected <tt>CandidatePair</tt>s of the destination
+     * leg.
+     * @param rewriter the <tt>SsrcRewriter</tt> of the media in this
+     * direction, or <tt>null</tt>.
+     */
+    private void addRoutes(
+        Map<DatagramSocket, DatagramForwarder> forwarders,
+        String name,
+        FakeUser srcUser,
+        String mediaName,
+        MediaStream src,
+        CandidatePair[] srcPairs,
+        MediaStream dst,
+        CandidatePair[] dstPairs,
+        SsrcRewriter rewriter)
+    {
+        TransformEngine srcEngine = src.getSrtpControl().getTransformEngine();
+        TransformEngine dstEngine = dst.getSrtpControl().getTransformEngine();
+        CandidatePair dstRtp = dstPairs[0];
+        CandidatePair dstRtcp = (dstPairs[1] == null) ? dstRtp : dstPairs[1];
+        //the socket of a bundle carries the other media too.
+        List<Integer> payloadTypes = srcUser.isBundled(mediaName)
+            ? srcUser.getPayloadTypes(mediaName)
+            : null;
+
+        if(rewriter != null && rewriter.getTargetSsrc() < 0)
+            rewriter.setTargetSsrc(dst.getLocalSourceID());
+
+        for(int i = 0; i < srcPairs.length; i++)
+        {
+            if(srcPairs[i] == null)
+                continue;
+
+            boolean rtp = (FORWARDED_COMPONENTS[i] == Component.RTP);
+            //the RTP component carries the RTCP packets too with rtcp-mux.
+            boolean rtcp = !rtp || (srcPairs[1] == null);
+            String forwarderName = name + "-" + (rtp ? "rtp" : "rtcp");
+            DatagramSocket socket
+                = srcPairs[i].getIceSocketWrapper().getUDPSocket();
+
+            DatagramForwarder forwarder = forwarders.get(socket);
+            if(forwarder == null)
+            {
+                try
+                {
+                    forwarder = new DatagramForwarder(forwarderName, socket);
+                }
+                catch (SocketException e)
+                {
+                    logger.error("Couldn't create the forwarder "
+                        + forwarderName, e);
+                    continue;
+                }
+                forwarders.put(socket, forwarder);
+            }
+
+            if(rtp)
+            {
+                forwarder.addRoute(false,
+                    payloadTypes,
+                    srcEngine.getRTPTransformer(),
+                    dstEngine.getRTPTransformer(),
+                    rewriter,
+                    dstRtp.getIceSocketWrapper(),
+                    dstRtp.getRemoteCandidate().getTransportAddress());
+            }
+            if(rtcp)
+            {
+                forwarder.addRoute(true,
+                    payloadTypes,
+                    srcEngine.getRTCPTransformer(),
+                    dstEngine.getRTCPTransformer(),
+                    rewriter,
+                    dstRtcp.getIceSocketWrapper(),
+                    dstRtcp.getRemoteCandidate().getTransportAddress());
+            }
+        }
+    }
+
+    /**
+     * Stop relaying the media of all the pairs of this engine.
+     */
+    public void stop()
+    {
+        for(RelayPair pair : pairs)
+            removePair(pair);
+    }
+
+    /**
+     * Get the pairs currently relayed by this engine.
+     * @return the pairs currently relayed by this engine.
+     */
+    public List<RelayPair> getPairs()
+    {
+        return Collections.unmodifiableList(pairs);
+    }
+
+    /**
+     * Get the <tt>Mode</tt> of this engine.
+     * @return the <tt>Mode</tt> of this engine.
+     */
+    public Mode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Get the <tt>RelayPacketPool</tt> shared by the pairs of this engine.
+     * @return the <tt>RelayPacketPool</tt> of this engine.
+     */
+    public RelayPacketPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * A Luser/Ruser pair relayed by a <tt>RelayEngine</tt>.
+     */
+    public static class RelayPair
+    {
+        /**
+         * The <tt>FakeUser</tt> connected to the local conference.
+         */
+        private final FakeUser luser;
+
+        /**
+         * The <tt>FakeUser</tt> connected to the remote conference.
+         */
+        private final FakeUser ruser;
+
+        /**
+         * The <tt>RelayTransformEngine</tt>s installed on the
+         * <tt>MediaStream</tt>s of the two legs.
+         */
+        private final List<RelayTransformEngine> engines
+            = new ArrayList<RelayTransformEngine>();
+
+        /**
+         * The <tt>DatagramForwarder</tt>s of the pair (in
+         * <tt>Mode.DATAGRAM</tt>).
+         */
+        private final List<DatagramForwarder> forwarders
+            = new ArrayList<DatagramForwarder>();
+
+        /**
+         * The <tt>RelayTransformEngine</tt> installed on each
+         * <tt>MediaStream</tt> of the two legs.
+         */
+        private final Map<MediaStream, RelayTransformEngine> installed
+            = new HashMap<MediaStream, RelayTransformEngine>();
+
+        /**
+         * The <tt>SsrcRewriter</tt> of each direction, by the
+         * <tt>MediaStream</tt> receiving the packets.
+         */
+        private final Map<MediaStream, SsrcRewriter> rewriters
+            = new HashMap<MediaStream, SsrcRewriter>();
+
+        /**
+         * The number of legs of the pair whose media has started.
+         */
+        private int started = 0;
+
+        /**
+         * Initializes a new <tt>RelayPair</tt>.
+         * @param luser the <tt>FakeUser</tt> of the local conference.
+         * @param ruser the <tt>FakeUser</tt> of the remote conference.
+         */
+        private RelayPair(FakeUser luser, FakeUser ruser)
+        {
+            this.luser = luser;
+            this.ruser = ruser;
+        }
+
+        /**
+         * Get the <tt>FakeUser</tt> connected to the local conference.
+         * @return the <tt>FakeUser</tt> connected to the local conference.
+         */
+        public FakeUser getLuser()
+        {
+            return luser;
+        }
+
+        /**
+         * Get the <tt>FakeUser</tt> connected to the remote conference.
+         * @return the <tt>FakeUser</tt> connected to the remote conference.
+         */
+        public FakeUser getRuser()
+        {
+            return ruser;
+        }
+
+        /**
+         * Get the <tt>SsrcRewriter</tt> applied to the packets received by
+         * <tt>stream</tt> before they are re-emitted by the other leg.
+         * @param stream a <tt>MediaStream</tt> of one of the legs.
+         * @return the <tt>SsrcRewriter</tt> of the direction starting at
+         * <tt>stream</tt>, or <tt>null</tt>.
+         */
+        public synchronized SsrcRewriter getRewriter(MediaStream stream)
+        {
+            return rewriters.get(stream);
+        }
+
+        /**
+         * Get the number of RTP packets relayed (in both directions) for this
+         * pair.
+         * @return the number of RTP packets relayed for this pair.
+         */
+        public long getRelayedRtpPackets()
+        {
+            long count = 0;
+            for(RelayTransformEngine engine : engines)
+                count += engine.getRelayedRtpPackets();
+            synchronized(this)
+            {
+                for(DatagramForwarder forwarder : forwarders)
+                    count += forwarder.getPackets();
+            }
+            return count;
+        }
+
+        /**
+         * Get the number of bytes relayed (in both directions) for this pair.
+         * @return the number of bytes relayed for this pair.
+         */
+        public long getRelayedBytes()
+        {
+            long count = 0;
+            for(RelayTransformEngine engine : engines)
+                count += engine.getRelayedBytes();
+            synchronized(this)
+            {
+                for(DatagramForwarder forwarder : forwarders)
+                    count += forwarder.getBytes();
+            }
+            return count;
+        }
+
+        /**
+         * Get the number of packets of this pair that couldn't be relayed.
+         * @return the number of packets of this pair that were dropped.
+         */
+        public long getDroppedPackets()
+        {
+            long count = 0;
+            for(RelayTransformEngine engine : engines)
+                count += engine.getDroppedPackets();
+            synchronized(this)
+            {
+                for(DatagramForwarder forwarder : forwarders)
+                    count += forwarder.getDropped();
+            }
+            return count;
+        }
+    }
+}
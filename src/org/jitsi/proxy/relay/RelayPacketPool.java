@@ -0,0 +1,155 @@
+/*
+ * Copyright @ 2015 AT&T
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.proxy.relay;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.impl.neomedia.*;
+
+/**
+ * A fixed size pool of <tt>RawPacket</tt>s (and of their buffers) used by the
+ * relay to copy the packets it forwards from a leg to the other, so that the
+ * forwarding path doesn't allocate anything once the pool is filled.
+ *
+ * The pool is filled at its creation, and is shared by all the
+ * <tt>RelayTransformEngine</tt>s of a <tt>RelayEngine</tt>.
+ */
+public class RelayPacketPool
+{
+    /**
+     * The default size (in bytes) of the buffer of the pooled packets : a
+     * full ethernet MTU, and enough room for the SRTP/SRTCP authentication
+     * tag and index appended when the packet is encrypted again.
+     */
+    public static final int DEFAULT_PACKET_SIZE = 1500 + 64;
+
+    /**
+     * The default number of packets held by a <tt>RelayPacketPool</tt>.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * The packets currently available in this pool.
+     */
+    private final BlockingQueue<RawPacket> packets;
+
+    /**
+     * The size (in bytes) of the buffer of the packets of this pool.
+     */
+    private final int packetSize;
+
+    /**
+     * The number of times a packet had to be allocated because this pool
+     * was empty.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Initializes a new <tt>RelayPacketPool</tt> with the default capacity
+     * and packet size.
+     */
+    public RelayPacketPool()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_PACKET_SIZE);
+    }
+
+    /**
+     * Initializes a new <tt>RelayPacketPool</tt> holding <tt>capacity</tt>
+     * packets of <tt>packetSize</tt> bytes.
+     * @param capacity the number of packets of the pool.
+     * @param packetSize the size (in bytes) of the buffer of each packet.
+     */
+    public RelayPacketPool(int capacity, int packetSize)
+    {
+        if(capacity <= 0) capacity = DEFAULT_CAPACITY;
+        if(packetSize <= 0) packetSize = DEFAULT_PACKET_SIZE;
+
+        this.packetSize = packetSize;
+        this.packets = new ArrayBlockingQueue<RawPacket>(capacity);
+        for(int i = 0; i < capacity; i++)
+        {
+            packets.offer(new RawPacket(new byte[packetSize], 0, 0));
+        }
+    }
+
+    /**
+     * Take a packet from this pool, and copy in it the <tt>length</tt> bytes
+     * of <tt>buffer</tt> starting at <tt>offset</tt>.
+     *
+     * If the pool is empty (all its packets are in flight) a new packet is
+     * allocated, and the miss is counted.
+     *
+     * @param buffer the buffer containing the packet to copy.
+     * @param offset the offset of the packet in <tt>buffer</tt>.
+     * @param length the length of the packet.
+     * @return a packet of this pool containing a copy of the packet, or
+     * <tt>null</tt> if the packet is bigger than the packets of this pool.
+     */
+    public RawPacket acquire(byte[] buffer, int offset, int length)
+    {
+        if(length > packetSize)
+            return null;
+
+        RawPacket pkt = packets.poll();
+        if(pkt == null)
+        {
+            misses.incrementAndGet();
+            pkt = new RawPacket(new byte[packetSize], 0, 0);
+        }
+
+        byte[] dst = pkt.getBuffer();
+        //the SRTP transformer may have replaced the buffer by a bigger one
+        //during a previous use, but never by a smaller one.
+        System.arraycopy(buffer, offset, dst, 0, length);
+        pkt.setOffset(0);
+        pkt.setLength(length);
+        pkt.setFlags(0);
+
+        return pkt;
+    }
+
+    /**
+     * Give back a packet previously taken with <tt>acquire</tt> to this pool.
+     * If the pool is full, the packet is simply forgotten.
+     * @param pkt the packet to give back.
+     */
+    public void release(RawPacket pkt)
+    {
+        if(pkt != null)
+            packets.offer(pkt);
+    }
+
+    /**
+     * Get the number of packets currently available in this pool.
+     * @return the number of packets currently available in this pool.
+     */
+    public int getAvailable()
+    {
+        return packets.size();
+    }
+
+    /**
+     * Get the number of times a packet had to be allocated because this pool
+     * was empty.
+     * @return the number of misses of this pool.
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+}
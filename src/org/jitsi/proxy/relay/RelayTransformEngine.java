@@ -0,0 +1,368 @@
+/*
+ * Copyright @ 2015 AT&T
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.proxy.relay;
+
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.neomedia.*;
+
+/**
+ * A <tt>TransformEngine</tt> installed as the external transformer of one leg
+ * (a Luser or Ruser <tt>MediaStream</tt>) of a relay pair.
+ *
+ * The external transformer of a <tt>MediaStream</tt> sees the RTP/RTCP
+ * packets after they have been SRTP-decrypted. Each packet received by the
+ * leg is copied in a packet of the <tt>RelayPacketPool</tt>, injected
+ * (and encrypted again) in the <tt>MediaStream</tt> of the other leg, and
+ * then dropped so that libjitsi doesn't waste time in the jitter buffer and
+ * depacketizer of the leg.
+ *
+ * Since the packets injected in a <tt>MediaStream</tt> don't go through its
+ * external transformer, all the RTP and RTCP packets seen by the send path of
+ * this engine come from the leg itself (its <tt>MediaDevice</tt> and its
+ * RTCP reports) : they are dropped while the relay is active so that the leg
+ * only carries the relayed media.
+ *
+ * The relayed packets are encrypted by the SRTP transformers of the other
+ * leg from the receive thread of this leg. The SRTP/SRTCP contexts aren't
+ * thread-safe, so each injection is synchronized on the transformer, like
+ * the uses of the <tt>DatagramForwarder</tt>s ; and since the leg doesn't
+ * send its own RTCP packets while relaying, its RTCP thread doesn't use them
+ * concurrently.
+ *
+ * If a <tt>SsrcRewriter</tt> is set, the copies are rewritten with it before
+ * being injected, so that they carry the SSRC advertised by the other leg.
+ */
+public class RelayTransformEngine
+    implements TransformEngine
+{
+    /**
+     * The <tt>MediaStream</tt> in which the packets received by the leg of
+     * this engine are injected.
+     */
+    private volatile MediaStream target;
+
+    /**
+     * The <tt>SsrcRewriter</tt> applied to the relayed packets, or
+     * <tt>null</tt>.
+     */
+    private volatile SsrcRewriter rewriter;
+
+    /**
+     * <tt>true</tt> once the packets of the leg are forwarded by
+     * <tt>DatagramForwarder</tt>s : the <tt>MediaStream</tt> of the leg then
+     * neither sends nor relays any RTP/RTCP packet, so that its SRTP contexts
+     * are only used by the forwarders.
+     */
+    private volatile boolean forwarding = false;
+
+    /**
+     * The pool in which are taken the copies of the relayed packets.
+     */
+    private final RelayPacketPool pool;
+
+    /**
+     * The number of RTP packets relayed by this engine.
+     */
+    private final AtomicLong relayedRtpPackets = new AtomicLong();
+
+    /**
+     * The number of RTCP packets relayed by this engine.
+     */
+    private final AtomicLong relayedRtcpPackets = new AtomicLong();
+
+    /**
+     * The number of bytes relayed by this engine.
+     */
+    private final AtomicLong relayedBytes = new AtomicLong();
+
+    /**
+     * The number of packets that couldn't be relayed (too big for the pool,
+     * or no started target).
+     */
+    private final AtomicLong droppedPackets = new AtomicLong();
+
+    /**
+     * The <tt>PacketTransformer</tt> handling the RTP packets.
+     */
+    private final PacketTransformer rtpTransformer = new RelayTransformer(true);
+
+    /**
+     * The <tt>PacketTransformer</tt> handling the RTCP packets.
+     */
+    private final PacketTransformer rtcpTransformer
+        = new RelayTransformer(false);
+
+    /**
+     * Initializes a new <tt>RelayTransformEngine</tt> that will take the
+     * copies of the relayed packets in <tt>pool</tt>.
+     * @param pool the <tt>RelayPacketPool</tt> used by this engine.
+     */
+    public RelayTransformEngine(RelayPacketPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Set the <tt>MediaStream</tt> in which the packets received by the leg of
+     * this engine will be injected, or <tt>null</tt> to stop relaying (the
+     * leg is then handled by libjitsi as usual).
+     * @param target the <tt>MediaStream</tt> of the other leg.
+     */
+    public void setTarget(MediaStream target)
+    {
+        this.target = target;
+    }
+
+    /**
+     * Get the <tt>MediaStream</tt> in which the packets received by the leg of
+     * this engine are injected.
+     * @return the <tt>MediaStream</tt> of the other leg.
+     */
+    public MediaStream getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * Set whether the packets of the leg of this engine are forwarded by
+     * <tt>DatagramForwarder</tt>s, in which case the RTP and RTCP packets sent
+     * or received by the <tt>MediaStream</tt> of the leg are dropped.
+     * @param forwarding <tt>true</tt> if the leg is forwarded by
+     * <tt>DatagramForwarder</tt>s.
+     */
+    public void setForwarding(boolean forwarding)
+    {
+        this.forwarding = forwarding;
+    }
+
+    /**
+     * Set the <tt>SsrcRewriter</tt> applied to the relayed packets.
+     * @param rewriter the <tt>SsrcRewriter</tt> applied to the relayed
+     * packets, or <tt>null</tt> to relay them untouched.
+     */
+    public void setRewriter(SsrcRewriter rewriter)
+    {
+        this.rewriter = rewriter;
+    }
+
+    /**
+     * Get the <tt>SsrcRewriter</tt> applied to the relayed packets.
+     * @return the <tt>SsrcRewriter</tt> applied to the relayed packets.
+     */
+    public SsrcRewriter getRewriter()
+    {
+        return rewriter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public PacketTransformer getRTPTransformer()
+    {
+        return rtpTransformer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public PacketTransformer getRTCPTransformer()
+    {
+        return rtcpTransformer;
+    }
+
+    /**
+     * Get the number of RTP packets relayed by this engine.
+     * @return the number of RTP packets relayed by this engine.
+     */
+    public long getRelayedRtpPackets()
+    {
+        return relayedRtpPackets.get();
+    }
+
+    /**
+     * Get the number of RTCP packets relayed by this engine.
+     * @return the number of RTCP packets relayed by this engine.
+     */
+    public long getRelayedRtcpPackets()
+    {
+        return relayedRtcpPackets.get();
+    }
+
+    /**
+     * Get the number of bytes relayed by this engine.
+     * @return the number of bytes relayed by this engine.
+     */
+    public long getRelayedBytes()
+    {
+        return relayedBytes.get();
+    }
+
+    /**
+     * Get the number of packets that couldn't be relayed.
+     * @return the number of packets that couldn't be relayed.
+     */
+    public long getDroppedPackets()
+    {
+        return droppedPackets.get();
+    }
+
+    /**
+     * Copy <tt>pkt</tt> in a pooled packet and inject it in the target stream.
+     * @param pkt the (decrypted) packet received by the leg.
+     * @param data <tt>true</tt> if <tt>pkt</tt> is a RTP packet,
+     * <tt>false</tt> if it is a RTCP packet.
+     */
+    private void relay(RawPacket pkt, boolean data)
+    {
+        MediaStream target = this.target;
+        int length = pkt.getLength();
+
+        if(target == null || !target.isStarted())
+        {
+            droppedPackets.incrementAndGet();
+            return;
+        }
+
+        RawPacket copy = pool.acquire(pkt.getBuffer(), pkt.getOffset(), length);
+        if(copy == null)
+        {
+            droppedPackets.incrementAndGet();
+            return;
+        }
+
+        SsrcRewriter rewriter = this.rewriter;
+        if(rewriter != null)
+        {
+            if(rewriter.getTargetSsrc() < 0)
+                rewriter.setTargetSsrc(target.getLocalSourceID());
+            if(data)
+            {
+                //only the active source is relayed.
+                if(!rewriter.rewriteRtp(
+                        copy.getBuffer(), copy.getOffset(), length))
+                {
+                    pool.release(copy);
+                    droppedPackets.incrementAndGet();
+                    return;
+                }
+            }
+            else
+                rewriter.rewriteRtcp(
+                    copy.getBuffer(), copy.getOffset(), length);
+        }
+
+        try
+        {
+            //injectPacket encrypts the copy in place, and then gives a clone
+            //of its buffer to the RTPConnector : the copy can go back to the
+            //pool right away.
+            synchronized(getSrtpLock(target, data))
+            {
+                target.injectPacket(copy, data, true);
+            }
+        }
+        finally
+        {
+            pool.release(copy);
+        }
+
+        if(data)
+            relayedRtpPackets.incrementAndGet();
+        else
+            relayedRtcpPackets.incrementAndGet();
+        relayedBytes.addAndGet(length);
+    }
+
+    /**
+     * Get the object on which the uses of the SRTP (or SRTCP) transformer of
+     * <tt>stream</tt> are synchronized : the transformer itself, as in
+     * <tt>DatagramForwarder</tt>, or <tt>stream</tt> if it has none.
+     * @param stream the <tt>MediaStream</tt> in which a packet is injected.
+     * @param data <tt>true</tt> for the SRTP transformer, <tt>false</tt> for
+     * the SRTCP one.
+     * @return the lock of the SRTP (or SRTCP) transformer of
+     * <tt>stream</tt>.
+     */
+    private static Object getSrtpLock(MediaStream stream, boolean data)
+    {
+        SrtpControl control = stream.getSrtpControl();
+        SrtpControl.TransformEngine engine
+            = (control == null) ? null : control.getTransformEngine();
+        if(engine == null)
+            return stream;
+
+        PacketTransformer transformer = data
+            ? engine.getRTPTransformer()
+            : engine.getRTCPTransformer();
+        return (transformer == null) ? stream : transformer;
+    }
+
+    /**
+     * The <tt>SinglePacketTransformer</tt> relaying the RTP or the RTCP
+     * packets received by the leg of this engine.
+     */
+    private class RelayTransformer
+        extends SinglePacketTransformer
+    {
+        /**
+         * <tt>true</tt> if this transformer handles RTP packets,
+         * <tt>false</tt> if it handles RTCP packets.
+         */
+        private final boolean data;
+
+        /**
+         * Initializes a new <tt>RelayTransformer</tt>.
+         * @param data <tt>true</tt> for RTP, <tt>false</tt> for RTCP.
+         */
+        public RelayTransformer(boolean data)
+        {
+            this.data = data;
+        }
+
+        /**
+         * Drop the RTP and RTCP packets sent by the leg itself while the
+         * relay is active : the SRTP transformers of the leg are then only
+         * used by the relayed packets.
+         */
+        @Override
+        public RawPacket transform(RawPacket pkt)
+        {
+            if(target != null)
+                return null;
+            return pkt;
+        }
+
+        /**
+         * Relay the packets received by the leg while the relay is active
+         * (they are already forwarded, and dropped here, when the leg is
+         * forwarded by <tt>DatagramForwarder</tt>s).
+         */
+        @Override
+        public RawPacket reverseTransform(RawPacket pkt)
+        {
+            if(pkt == null || target == null)
+                return pkt;
+
+            if(!forwarding)
+                relay(pkt, data);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright @ 2015 AT&T
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.proxy.relay;
+
+import java.net.*;
+
+import org.ice4j.socket.*;
+
+/**
+ * A <tt>DatagramPacketFilter</tt> accepting only the (S)RTP and (S)RTCP
+ * packets, i.e. the packets of RTP version 2 : the STUN (first byte 0 or 1)
+ * and DTLS (first byte between 20 and 63) packets are left to ice4j and
+ * libjitsi.
+ *
+ * When RTP and RTCP are multiplexed on the same component (rtcp-mux), the
+ * RTCP packets are told apart by their packet type (see
+ * <tt>HammerUtils.isRtcp</tt>).
+ */
+public class RtpDatagramFilter
+    implements DatagramPacketFilter
+{
+    /**
+     * Returns <tt>true</tt> if <tt>p</tt> is a RTP or RTCP packet.
+     * @param p the <tt>DatagramPacket</tt> to check.
+     * @return <tt>true</tt> if <tt>p</tt> is a RTP or RTCP packet.
+     */
+    public boolean accept(DatagramPacket p)
+    {
+        if(p.getLength() < 4)
+            return false;
+
+        int b = p.getData()[p.getOffset()] & 0xff;
+
+        return (b >= 128) && (b < 192);
+    }
+}
@@ -0,0 +1,561 @@
+/*
+ * Copyright @ 2015 AT&T
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.proxy.relay;
+
+/**
+ * A <tt>SsrcRewriter</tt> rewrites, in place, the (decrypted) RTP and RTCP
+ * packets relayed in one direction of a <tt>RelayPair</tt> so that they carry
+ * the SSRC advertised by the leg re-emitting them (the one announced in its
+ * session-accept by <tt>HammerUtils.addSSRCToContent</tt>) instead of the SSRC
+ * of the original sender.
+ *
+ * The far end only knows the advertised SSRC, so a single original source
+ * is relayed at a time : the active one. The RTP packets of the other sources
+ * are dropped until the active source has been silent for
+ * <tt>SWITCH_TIMEOUT_MS</tt>, at which point the next source heard becomes
+ * the active one. Each original SSRC is associated with a (new SSRC, sequence
+ * number offset, timestamp offset) mapping, computed each time the source
+ * becomes active so that the rewritten stream stays continuous. The mappings
+ * are stored in primitive arrays published through a volatile reference : the
+ * lookups done for each packet don't lock nor allocate, only the (rare)
+ * activation of a source copies the table.
+ *
+ * The RTP packets of a direction are expected to be rewritten by a single
+ * thread (the one receiving them), the RTCP packets can be rewritten by
+ * another one.
+ */
+public class SsrcRewriter
+{
+    /**
+     * The initial capacity of the table (must be a power of 2).
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The RTCP packet type of the Sender Reports.
+     */
+    private static final int RTCP_SR = 200;
+
+    /**
+     * The RTCP packet type of the Receiver Reports.
+     */
+    private static final int RTCP_RR = 201;
+
+    /**
+     * The size (in bytes) of a report block of a SR or RR.
+     */
+    private static final int REPORT_BLOCK_LENGTH = 24;
+
+    /**
+     * The timestamp increment assumed between the last packet of the previous
+     * source and the first packet of a new one.
+     */
+    private static final long TIMESTAMP_GAP = 960;
+
+    /**
+     * The time (in milliseconds) after which a silent active source can be
+     * replaced by another one.
+     */
+    static final long SWITCH_TIMEOUT_MS = 1000;
+
+    /**
+     * The SSRC advertised by the leg re-emitting the packets, used as the new
+     * SSRC of the sources without an explicit mapping. A negative value
+     * disables the rewriting.
+     */
+    private volatile long targetSsrc;
+
+    /**
+     * The current mapping table.
+     */
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+
+    /**
+     * The <tt>SsrcRewriter</tt> of the other direction of the pair, used to
+     * restore the original SSRCs in the report blocks.
+     */
+    private volatile SsrcRewriter reverse;
+
+    /**
+     * The last sequence number written, -1 before the first RTP packet.
+     */
+    private int lastSeq = -1;
+
+    /**
+     * The last timestamp written.
+     */
+    private long lastTimestamp = 0;
+
+    /**
+     * The original SSRC of the active source (as an unsigned value), -1
+     * before the first RTP packet.
+     */
+    private long activeSsrc = -1;
+
+    /**
+     * The time (in milliseconds) of the last RTP packet of the active source.
+     */
+    private long activeTime;
+
+    /**
+     * Initializes a new <tt>SsrcRewriter</tt>.
+     * @param targetSsrc the SSRC advertised by the leg re-emitting the
+     * packets, or a negative value to leave the packets untouched.
+     */
+    public SsrcRewriter(long targetSsrc)
+    {
+        this.targetSsrc = targetSsrc;
+    }
+
+    /**
+     * Set the <tt>SsrcRewriter</tt> of the other direction of the pair.
+     * @param reverse the <tt>SsrcRewriter</tt> of the other direction.
+     */
+    public void setReverse(SsrcRewriter reverse)
+    {
+        this.reverse = reverse;
+    }
+
+    /**
+     * Set the SSRC advertised by the leg re-emitting the packets.
+     * @param targetSsrc the SSRC advertised by the leg re-emitting the
+     * packets, or a negative value to leave the packets untouched.
+     */
+    public void setTargetSsrc(long targetSsrc)
+    {
+        this.targetSsrc = targetSsrc;
+    }
+
+    /**
+     * Get the SSRC advertised by the leg re-emitting the packets.
+     * @return the SSRC advertised by the leg re-emitting the packets, or a
+     * negative value if it isn't known yet.
+     */
+    public long getTargetSsrc()
+    {
+        return targetSsrc;
+    }
+
+    /**
+     * Get the number of SSRCs currently mapped.
+     * @return the number of SSRCs currently mapped.
+     */
+    public int size()
+    {
+        return table.size;
+    }
+
+    /**
+     * Returns <tt>true</tt> if <tt>ssrc</tt> is an original SSRC mapped by
+     * this <tt>SsrcRewriter</tt>, i.e. if RTP packets of <tt>ssrc</tt> have
+     * been rewritten.
+     * @param ssrc an original SSRC.
+     * @return <tt>true</tt> if <tt>ssrc</tt> is mapped.
+     */
+    public boolean hasSource(int ssrc)
+    {
+        return table.indexOf(ssrc) >= 0;
+    }
+
+    /**
+     * Rewrite the SSRC, sequence number and timestamp of the RTP packet in
+     * <tt>buf</tt>, if it belongs to the active source.
+     *
+     * @param buf the buffer of the packet.
+     * @param off the offset of the packet in <tt>buf</tt>.
+     * @param len the length of the packet.
+     * @return <tt>false</tt> if the packet belongs to another source than the
+     * active one and has to be dropped, <tt>true</tt> otherwise.
+     */
+    public boolean rewriteRtp(byte[] buf, int off, int len)
+    {
+        return rewriteRtp(buf, off, len, System.currentTimeMillis());
+    }
+
+    /**
+     * Rewrite the SSRC, sequence number and timestamp of the RTP packet in
+     * <tt>buf</tt>, if it belongs to the active source.
+     *
+     * @param buf the buffer of the packet.
+     * @param off the offset of the packet in <tt>buf</tt>.
+     * @param len the length of the packet.
+     * @param now the current time in milliseconds.
+     * @return <tt>false</tt> if the packet belongs to another source than the
+     * active one and has to be dropped, <tt>true</tt> otherwise.
+     */
+    boolean rewriteRtp(byte[] buf, int off, int len, long now)
+    {
+        if(len < 12 || targetSsrc < 0)
+            return true;
+
+        int ssrc = readInt(buf, off + 8);
+        int seq = readUnsignedShort(buf, off + 2);
+        long timestamp = readInt(buf, off + 4) & 0xffffffffL;
+
+        if(activeSsrc != (ssrc & 0xffffffffL))
+        {
+            if(activeSsrc >= 0 && now - activeTime < SWITCH_TIMEOUT_MS)
+                return false;
+
+            activate(ssrc, seq, timestamp);
+            activeSsrc = ssrc & 0xffffffffL;
+        }
+        activeTime = now;
+
+        Table t = table;
+        int i = t.indexOf(ssrc);
+
+        int newSeq = (seq + t.seqOffsets[i]) & 0xffff;
+        long newTimestamp = (timestamp + t.timestampOffsets[i]) & 0xffffffffL;
+
+        writeShort(buf, off + 2, newSeq);
+        writeInt(buf, off + 4, (int) newTimestamp);
+        writeInt(buf, off + 8, t.newSsrcs[i]);
+
+        lastSeq = newSeq;
+        lastTimestamp = newTimestamp;
+        return true;
+    }
+
+    /**
+     * Rewrite the SSRCs of the SR and RR packets of the (compound) RTCP packet
+     * in <tt>buf</tt> : the sender SSRC and RTP timestamp of the SRs and RRs
+     * are mapped with this <tt>SsrcRewriter</tt>, the SSRCs and extended
+     * highest sequence numbers of the report blocks are restored with the
+     * <tt>SsrcRewriter</tt> of the other direction. The other RTCP packets are
+     * left untouched.
+     *
+     * @param buf the buffer of the packet.
+     * @param off the offset of the packet in <tt>buf</tt>.
+     * @param len the length of the packet.
+     */
+    public void rewriteRtcp(byte[] buf, int off, int len)
+    {
+        if(targetSsrc < 0)
+            return;
+
+        int end = off + len;
+        while(off + 8 <= end)
+        {
+            int rc = buf[off] & 0x1f;
+            int pt = buf[off + 1] & 0xff;
+            int pktLen = (readUnsignedShort(buf, off + 2) + 1) * 4;
+            if(off + pktLen > end)
+                return;
+
+            if(pt == RTCP_SR || pt == RTCP_RR)
+            {
+                Table t = table;
+                int i = t.indexOf(readInt(buf, off + 4));
+                if(i >= 0)
+                {
+                    writeInt(buf, off + 4, t.newSsrcs[i]);
+                    if(pt == RTCP_SR && pktLen >= 28)
+                    {
+                        long timestamp
+                            = readInt(buf, off + 16) & 0xffffffffL;
+                        writeInt(buf, off + 16,
+                            (int) (timestamp + t.timestampOffsets[i]));
+                    }
+                }
+
+                int blocks = off + ((pt == RTCP_SR) ? 28 : 8);
+                for(int b = 0; b < rc; b++)
+                {
+                    int block = blocks + b * REPORT_BLOCK_LENGTH;
+                    if(block + REPORT_BLOCK_LENGTH > off + pktLen)
+                        break;
+                    restoreReportBlock(buf, block);
+                }
+            }
+
+            off += pktLen;
+        }
+    }
+
+    /**
+     * Restore the original SSRC and extended highest sequence number of the
+     * report block at <tt>off</tt>, using the mappings of the other direction.
+     * @param buf the buffer of the packet.
+     * @param off the offset of the report block in <tt>buf</tt>.
+     */
+    private void restoreReportBlock(byte[] buf, int off)
+    {
+        SsrcRewriter r = reverse;
+        if(r == null)
+            return;
+
+        Table t = r.table;
+        int i = t.indexOfNew(readInt(buf, off));
+        if(i < 0)
+            return;
+
+        writeInt(buf, off, t.ssrcs[i]);
+
+        int extSeq = readInt(buf, off + 8);
+        int seq = ((extSeq & 0xffff) - t.seqOffsets[i]) & 0xffff;
+        writeInt(buf, off + 8, (extSeq & 0xffff0000) | seq);
+    }
+
+    /**
+     * Make <tt>ssrc</tt> the active source : add or update its mapping so
+     * that it continues the sequence numbers and timestamps of the packets
+     * written so far, and make it the last one activated.
+     *
+     * @param ssrc the original SSRC.
+     * @param seq the sequence number of the first packet of <tt>ssrc</tt>
+     * since it is active.
+     * @param timestamp the timestamp of the first packet of <tt>ssrc</tt>
+     * since it is active.
+     */
+    private synchronized void activate(int ssrc, int seq, long timestamp)
+    {
+        Table t = table;
+        int seqOffset = 0;
+        long timestampOffset = 0;
+        if(lastSeq >= 0)
+        {
+            seqOffset = (lastSeq + 1 - seq) & 0xffff;
+            timestampOffset
+                = (lastTimestamp + TIMESTAMP_GAP - timestamp) & 0xffffffffL;
+        }
+
+        boolean grow
+            = t.indexOf(ssrc) < 0 && (t.size + 1) * 2 > t.ssrcs.length;
+        t = t.copy(grow ? t.ssrcs.length * 2 : t.ssrcs.length);
+        t.put(ssrc, (int) targetSsrc, seqOffset, timestampOffset);
+        table = t;
+    }
+
+    /**
+     * Read the 32 bits integer at <tt>off</tt> in <tt>buf</tt>.
+     * @param buf the buffer.
+     * @param off the offset.
+     * @return the 32 bits integer at <tt>off</tt> in <tt>buf</tt>.
+     */
+    private static int readInt(byte[] buf, int off)
+    {
+        return ((buf[off] & 0xff) << 24)
+            | ((buf[off + 1] & 0xff) << 16)
+            | ((buf[off + 2] & 0xff) << 8)
+            | (buf[off + 3] & 0xff);
+    }
+
+    /**
+     * Read the unsigned 16 bits integer at <tt>off</tt> in <tt>buf</tt>.
+     * @param buf the buffer.
+     * @param off the offset.
+     * @return the unsigned 16 bits integer at <tt>off</tt> in <tt>buf</tt>.
+     */
+    private static int readUnsignedShort(byte[] buf, int off)
+    {
+        return ((buf[off] & 0xff) << 8) | (buf[off + 1] & 0xff);
+    }
+
+    /**
+     * Write the 32 bits integer <tt>value</tt> at <tt>off</tt> in
+     * <tt>buf</tt>.
+     * @param buf the buffer.
+     * @param off the offset.
+     * @param value the value to write.
+     */
+    private static void writeInt(byte[] buf, int off, int value)
+    {
+        buf[off] = (byte) (value >> 24);
+        buf[off + 1] = (byte) (value >> 16);
+        buf[off + 2] = (byte) (value >> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    /**
+     * Write the 16 bits integer <tt>value</tt> at <tt>off</tt> in
+     * <tt>buf</tt>.
+     * @param buf the buffer.
+     * @param off the offset.
+     * @param value the value to write.
+     */
+    private static void writeShort(byte[] buf, int off, int value)
+    {
+        buf[off] = (byte) (value >> 8);
+        buf[off + 1] = (byte) value;
+    }
+
+    /**
+     * An open-addressing table of SSRC mappings, stored in parallel primitive
+     * arrays. A <tt>Table</tt> is never modified once published.
+     */
+    private static class Table
+    {
+        /**
+         * The original SSRCs.
+         */
+        private final int[] ssrcs;
+
+        /**
+         * The new SSRCs.
+         */
+        private final int[] newSsrcs;
+
+        /**
+         * The sequence number offsets.
+         */
+        private final int[] seqOffsets;
+
+        /**
+         * The timestamp offsets.
+         */
+        private final long[] timestampOffsets;
+
+        /**
+         * The order in which the mappings were last put.
+         */
+        private final int[] serials;
+
+        /**
+         * Whether a slot is used.
+         */
+        private final boolean[] used;
+
+        /**
+         * The number of mappings in the table.
+         */
+        private int size = 0;
+
+        /**
+         * The serial of the next mapping put.
+         */
+        private int nextSerial = 0;
+
+        /**
+         * Initializes an empty <tt>Table</tt>.
+         * @param capacity the number of slots (a power of 2).
+         */
+        private Table(int capacity)
+        {
+            ssrcs = new int[capacity];
+            newSsrcs = new int[capacity];
+            seqOffsets = new int[capacity];
+            timestampOffsets = new long[capacity];
+            serials = new int[capacity];
+            used = new boolean[capacity];
+        }
+
+        /**
+         * Get the index of the mapping of <tt>ssrc</tt>.
+         * @param ssrc the original SSRC.
+         * @return the index of the mapping of <tt>ssrc</tt>, or -1.
+         */
+        private int indexOf(int ssrc)
+        {
+            int mask = ssrcs.length - 1;
+            int i = hash(ssrc) & mask;
+            while(used[i])
+            {
+                if(ssrcs[i] == ssrc)
+                    return i;
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Get the index of a mapping whose new SSRC is <tt>newSsrc</tt>. When
+         * several sources are mapped to the same SSRC, the last one put (i.e.
+         * the last one activated) is returned.
+         * @param newSsrc the new SSRC.
+         * @return the index of a mapping to <tt>newSsrc</tt>, or -1.
+         */
+        private int indexOfNew(int newSsrc)
+        {
+            int index = -1;
+            for(int i = 0; i < newSsrcs.length; i++)
+            {
+                if(used[i] && newSsrcs[i] == newSsrc
+                        && (index < 0 || serials[i] > serials[index]))
+                    index = i;
+            }
+            return index;
+        }
+
+        /**
+         * Add or replace the mapping of <tt>ssrc</tt> (the table must have a
+         * free slot if <tt>ssrc</tt> isn't mapped yet).
+         * @param ssrc the original SSRC.
+         * @param newSsrc the new SSRC.
+         * @param seqOffset the sequence number offset.
+         * @param timestampOffset the timestamp offset.
+         * @return the index of the mapping.
+         */
+        private int put(
+            int ssrc,
+            int newSsrc,
+            int seqOffset,
+            long timestampOffset)
+        {
+            int mask = ssrcs.length - 1;
+            int i = hash(ssrc) & mask;
+            while(used[i] && ssrcs[i] != ssrc)
+                i = (i + 1) & mask;
+
+            if(!used[i])
+            {
+                used[i] = true;
+                ssrcs[i] = ssrc;
+                size++;
+            }
+            newSsrcs[i] = newSsrc;
+            seqOffsets[i] = seqOffset;
+            timestampOffsets[i] = timestampOffset;
+            serials[i] = nextSerial++;
+            return i;
+        }
+
+        /**
+         * Copy this table in a new one with <tt>capacity</tt> slots. The
+         * mappings keep their serial, so that <tt>indexOfNew</tt> still
+         * returns the last one put.
+         * @param capacity the number of slots of the copy (a power of 2).
+         * @return the copy.
+         */
+        private Table copy(int capacity)
+        {
+            Table t = new Table(capacity);
+            for(int i = 0; i < ssrcs.length; i++)
+            {
+                if(used[i])
+                {
+                    int j = t.put(ssrcs[i], newSsrcs[i],
+                        seqOffsets[i], timestampOffsets[i]);
+                    t.serials[j] = serials[i];
+                }
+            }
+            t.nextSerial = nextSerial;
+            return t;
+        }
+
+        /**
+         * Spread the bits of <tt>ssrc</tt>.
+         * @param ssrc a SSRC.
+         * @return the hash of <tt>ssrc</tt>.
+         */
+        private static int hash(int ssrc)
+        {
+            int h = ssrc * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
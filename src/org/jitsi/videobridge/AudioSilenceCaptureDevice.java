@@ -25,7 +25,6 @@ import javax.media.protocol.*;
 
 import org.jitsi.impl.neomedia.codec.*;
 import org.jitsi.impl.neomedia.jmfext.media.protocol.*;
-import org.jitsi.impl.neomedia.jmfext.media.renderer.audio.*;
 
 /**
  * Implements a <tt>CaptureDevice</tt> which provides silence in the form of
@@ -51,7 +50,8 @@ public class AudioSilenceCaptureDevice
     /**
      * The interval of time in milliseconds between two consecutive ticks of the
      * clock used by <tt>AudioSilenceCaptureDevice</tt> and, more specifically,
-     * <tt>AudioSilenceStream</tt>.
+     * <tt>AudioSilenceStream</tt>. All the <tt>AudioSilenceStream</tt>s are
+     * ticked by the <tt>MediaClock</tt> of this interval.
      */
     private static final long CLOCK_TICK_INTERVAL = 20;
 
@@ -115,12 +115,6 @@ public class AudioSilenceCaptureDevice
          */
         private boolean started;
 
-        /**
-         * The <tt>Thread</tt> which pushes available media data out of this
-         * instance to its consumer i.e. <tt>BufferTransferHandler</tt>.
-         */
-        private Thread thread;
-
         /**
          * Initializes a new <tt>AudioSilenceStream</tt> which is to be exposed
          * by a specific <tt>AudioSilenceCaptureDevice</tt> and which is to have
@@ -180,122 +174,28 @@ public class AudioSilenceCaptureDevice
         }
 
         /**
-         * Runs in {@link #thread} and pushes available media data out of this
-         * instance to its consumer i.e. <tt>BufferTransferHandler</tt>.
+         * Runs on a thread of the shared <tt>MediaClock</tt> at each tick and
+         * pushes available media data out of this instance to its consumer
+         * i.e. <tt>BufferTransferHandler</tt>.
          */
         public void run()
         {
-            try
+            synchronized (this)
             {
-                /*
-                 * Make sure that the current thread which implements the actual
-                 * ticking of the clock implemented by this instance uses a
-                 * thread priority considered appropriate for audio processing.
-                 */
-                AbstractAudioRenderer.useAudioThreadPriority();
-
-                /*
-                 * The method implements a clock which ticks at a certain and
-                 * regular interval of time which is not affected by the
-                 * duration of the execution of, for example, the invocation of
-                 * BufferTransferHandler.transferData(PushBufferStream).
-                 *
-                 * XXX The implementation utilizes System.currentTimeMillis()
-                 * and, consequently, may be broken by run-time adjustments to
-                 * the system time. 
-                 */
-                long tickTime = System.currentTimeMillis();
-
-                while (true)
-                {
-                    long sleepInterval = tickTime - System.currentTimeMillis();
-                    boolean tick = (sleepInterval <= 0);
-
-                    if (tick)
-                    {
-                        /*
-                         * The current thread has woken up just in time or too
-                         * late for the next scheduled clock tick and,
-                         * consequently, the clock should tick right now.
-                         */
-                        tickTime += CLOCK_TICK_INTERVAL;
-                    }
-                    else
-                    {
-                        /*
-                         * The current thread has woken up too early for the
-                         * next scheduled clock tick and, consequently, it
-                         * should sleep until the time of the next scheduled
-                         * clock tick comes.
-                         */
-                        try
-                        {
-                            Thread.sleep(sleepInterval);
-                        }
-                        catch (InterruptedException ie)
-                        {
-                        }
-                        /*
-                         * The clock will not tick and spurious wakeups will be
-                         * handled. However, the current thread will first check
-                         * whether it is still utilized by this
-                         * AudioSilenceStream in order to not delay stop
-                         * requests.
-                         */
-                    }
-
-                    synchronized (this)
-                    {
-                        /*
-                         * If the current Thread is no longer utilized by this
-                         * AudioSilenceStream, it no longer has the right to
-                         * touch it. If this AudioSilenceStream has been
-                         * stopped, the current Thread should stop as well. 
-                         */
-                        if ((thread != Thread.currentThread()) || !started)
-                            break;
-                    }
+                if (!started)
+                    return;
+            }
 
-                    if (tick)
-                    {
-                        BufferTransferHandler transferHandler
-                            = this.transferHandler;
+            BufferTransferHandler transferHandler = this.transferHandler;
 
-                        if (transferHandler != null)
-                        {
-                            try
-                            {
-                                transferHandler.transferData(this);
-                            }
-                            catch (Throwable t)
-                            {
-                                if (t instanceof ThreadDeath)
-                                    throw (ThreadDeath) t;
-                                else
-                                {
-                                    // TODO Auto-generated method stub
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            finally
-            {
-                synchronized (this)
-                {
-                    if (thread == Thread.currentThread())
-                    {
-                        thread = null;
-                        started = false;
-                        notifyAll();
-                    }
-                }
-            }
+            if (transferHandler != null)
+                transferHandler.transferData(this);
         }
 
         /**
-         * Starts the transfer of media data from this instance.
+         * Starts the transfer of media data from this instance : it is
+         * registered with the <tt>MediaClock</tt> shared by all the
+         * <tt>AudioSilenceStream</tt>s.
          *
          * @throws IOException if an error has prevented the start of the
          * transfer of media from this instance
@@ -304,31 +204,10 @@ public class AudioSilenceCaptureDevice
         public synchronized void start()
             throws IOException
         {
-            if (thread == null)
+            if (!started)
             {
-                String className = getClass().getName();
-
-                thread = new Thread(this, className);
-                thread.setDaemon(true);
-
-                boolean started = false;
-
-                try
-                {
-                    thread.start();
-                    started = true;
-                }
-                finally
-                {
-                    this.started = started;
-                    if (!started)
-                    {
-                        thread = null;
-                        notifyAll();
-
-                        throw new IOException("Failed to start " + className);
-                    }
-                }
+                started = true;
+                MediaClock.getInstance(CLOCK_TICK_INTERVAL).register(this);
             }
         }
 
@@ -342,24 +221,8 @@ public class AudioSilenceCaptureDevice
         public synchronized void stop()
             throws IOException
         {
-            this.started = false;
-            notifyAll();
-
-            boolean interrupted = false;
-
-            while (thread != null)
-            {
-                try
-                {
-                    wait();
-                }
-                catch (InterruptedException ie)
-                {
-                    interrupted = true;
-                }
-            }
-            if (interrupted)
-                Thread.currentThread().interrupt();
+            started = false;
+            MediaClock.getInstance(CLOCK_TICK_INTERVAL).unregister(this);
         }
     }
 }
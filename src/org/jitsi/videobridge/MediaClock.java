@@ -0,0 +1,398 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.videobridge;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.impl.neomedia.jmfext.media.renderer.audio.*;
+import org.jitsi.util.Logger;
+
+/**
+ * Implements a clock shared by many media sources which need to be ticked at
+ * the same regular interval (e.g. every 20 ms for audio frames), instead of
+ * each of them running its own timer thread.
+ *
+ * The clock is a hashed timer wheel : each of its (few) threads owns a wheel
+ * whose period is the tick interval and which is divided in slots. A task
+ * registered with the clock is put in one slot of one wheel (in a round-robin
+ * way), so that the tasks are spread over the threads and over the duration of
+ * the interval rather than all being run at the same instant.
+ *
+ * The lateness of each slot (the time between its deadline and the moment its
+ * tasks are run) is measured and exposed, to detect an overloaded clock. When
+ * a thread stalls for more than an interval, the whole revolutions of its
+ * wheel that were missed are skipped rather than replayed in a burst.
+ */
+public class MediaClock
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>MediaClock</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(MediaClock.class);
+
+    /**
+     * The number of slots of the wheel of each thread.
+     */
+    private static final int SLOTS = 20;
+
+    /**
+     * The default number of threads of a <tt>MediaClock</tt>.
+     */
+    private static final int DEFAULT_THREADS
+        = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The <tt>MediaClock</tt> instances shared by tick interval (in ms).
+     */
+    private static final Map<Long, MediaClock> clocks
+        = new HashMap<Long, MediaClock>();
+
+    /**
+     * The interval (in nanoseconds) between two ticks of a task.
+     */
+    private final long interval;
+
+    /**
+     * The wheels of this clock, one per thread.
+     */
+    private final Wheel[] wheels;
+
+    /**
+     * The counter used to spread the tasks over the wheels and their slots.
+     */
+    private final AtomicInteger placement = new AtomicInteger();
+
+    /**
+     * The wheel and slot of each task registered with this clock.
+     */
+    private final Map<Runnable, int[]> tasks
+        = new ConcurrentHashMap<Runnable, int[]>();
+
+    /**
+     * The indicator which determines whether the threads of this clock have
+     * been started.
+     */
+    private boolean started = false;
+
+    /**
+     * Gets the <tt>MediaClock</tt> shared by all the tasks which tick every
+     * <tt>intervalMillis</tt> milliseconds.
+     *
+     * @param intervalMillis the interval (in milliseconds) between two ticks.
+     * @return the <tt>MediaClock</tt> ticking every <tt>intervalMillis</tt>
+     * milliseconds.
+     */
+    public static MediaClock getInstance(long intervalMillis)
+    {
+        synchronized (clocks)
+        {
+            MediaClock clock = clocks.get(intervalMillis);
+
+            if (clock == null)
+            {
+                clock = new MediaClock(intervalMillis, DEFAULT_THREADS);
+                clocks.put(intervalMillis, clock);
+            }
+            return clock;
+        }
+    }
+
+    /**
+     * Initializes a new <tt>MediaClock</tt>.
+     *
+     * @param intervalMillis the interval (in milliseconds) between two ticks
+     * of a task.
+     * @param threads the number of threads (and wheels) of the clock.
+     */
+    public MediaClock(long intervalMillis, int threads)
+    {
+        interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        wheels = new Wheel[Math.max(1, threads)];
+        for (int i = 0; i < wheels.length; i++)
+            wheels[i] = new Wheel(i);
+    }
+
+    /**
+     * Registers a task with this clock : it will be run every interval of this
+     * clock, on one of its threads, until it is unregistered. The task must
+     * return quickly since other tasks share its thread.
+     *
+     * @param task the task to tick.
+     */
+    public void register(Runnable task)
+    {
+        if (tasks.containsKey(task))
+            return;
+
+        int index = placement.getAndIncrement() & Integer.MAX_VALUE;
+        int wheel = index % wheels.length;
+        int slot = (index / wheels.length) % SLOTS;
+
+        tasks.put(task, new int[] { wheel, slot });
+        wheels[wheel].slots[slot].add(task);
+
+        synchronized (this)
+        {
+            if (!started)
+            {
+                for (Wheel w : wheels)
+                {
+                    Thread thread = new Thread(w, "MediaClock-" + w.index);
+
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                started = true;
+            }
+        }
+    }
+
+    /**
+     * Unregisters a task from this clock. The task may still be running (or
+     * about to run) on a thread of this clock when this method returns.
+     *
+     * @param task the task to stop ticking.
+     */
+    public void unregister(Runnable task)
+    {
+        int[] position = tasks.remove(task);
+
+        if (position != null)
+            wheels[position[0]].slots[position[1]].remove(task);
+    }
+
+    /**
+     * Gets the number of tasks registered with this clock.
+     *
+     * @return the number of tasks registered with this clock.
+     */
+    public int getTaskCount()
+    {
+        return tasks.size();
+    }
+
+    /**
+     * Gets the number of slots run by the threads of this clock.
+     *
+     * @return the number of slots run by the threads of this clock.
+     */
+    public long getTickCount()
+    {
+        long count = 0;
+
+        for (Wheel w : wheels)
+            count += w.ticks.get();
+        return count;
+    }
+
+    /**
+     * Gets the number of slots which were run more than one slot duration
+     * after their deadline.
+     *
+     * @return the number of slots run late.
+     */
+    public long getLateTickCount()
+    {
+        long count = 0;
+
+        for (Wheel w : wheels)
+            count += w.lateTicks.get();
+        return count;
+    }
+
+    /**
+     * Gets the number of slots skipped (not run) after a stall of a thread of
+     * this clock.
+     *
+     * @return the number of slots skipped.
+     */
+    public long getSkippedTickCount()
+    {
+        long count = 0;
+
+        for (Wheel w : wheels)
+            count += w.skippedTicks.get();
+        return count;
+    }
+
+    /**
+     * Gets the mean lateness (in nanoseconds) of the slots run by the threads
+     * of this clock.
+     *
+     * @return the mean lateness of the slots, in nanoseconds.
+     */
+    public long getMeanLateness()
+    {
+        long ticks = 0;
+        long lateness = 0;
+
+        for (Wheel w : wheels)
+        {
+            ticks += w.ticks.get();
+            lateness += w.totalLateness.get();
+        }
+        return (ticks == 0) ? 0 : lateness / ticks;
+    }
+
+    /**
+     * Gets the max lateness (in nanoseconds) of the slots run by the threads
+     * of this clock.
+     *
+     * @return the max lateness of the slots, in nanoseconds.
+     */
+    public long getMaxLateness()
+    {
+        long max = 0;
+
+        for (Wheel w : wheels)
+            max = Math.max(max, w.maxLateness.get());
+        return max;
+    }
+
+    /**
+     * A wheel of this clock and the thread running it.
+     */
+    private class Wheel
+        implements Runnable
+    {
+        /**
+         * The index of this wheel.
+         */
+        private final int index;
+
+        /**
+         * The tasks of each slot of this wheel.
+         */
+        private final List<Runnable>[] slots;
+
+        /**
+         * The number of slots run.
+         */
+        private final AtomicLong ticks = new AtomicLong();
+
+        /**
+         * The number of slots run more than one slot duration late.
+         */
+        private final AtomicLong lateTicks = new AtomicLong();
+
+        /**
+         * The number of slots skipped after a stall.
+         */
+        private final AtomicLong skippedTicks = new AtomicLong();
+
+        /**
+         * The sum of the lateness of the slots run, in nanoseconds.
+         */
+        private final AtomicLong totalLateness = new AtomicLong();
+
+        /**
+         * The max lateness of the slots run, in nanoseconds.
+         */
+        private final AtomicLong maxLateness = new AtomicLong();
+
+        /**
+         * Initializes a new <tt>Wheel</tt>.
+         *
+         * @param index the index of the wheel.
+         */
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private Wheel(int index)
+        {
+            this.index = index;
+            slots = new List[SLOTS];
+            for (int i = 0; i < SLOTS; i++)
+                slots[i] = new CopyOnWriteArrayList<Runnable>();
+        }
+
+        /**
+         * Runs the slots of this wheel, one after the other, each at its
+         * deadline.
+         */
+        public void run()
+        {
+            /*
+             * Make sure that the current thread which implements the actual
+             * ticking of the clock uses a thread priority considered
+             * appropriate for audio processing.
+             */
+            AbstractAudioRenderer.useAudioThreadPriority();
+
+            long slotDuration = interval / SLOTS;
+            long deadline = System.nanoTime();
+            int slot = 0;
+
+            while (true)
+            {
+                long sleepInterval = deadline - System.nanoTime();
+
+                if (sleepInterval > 0)
+                {
+                    try
+                    {
+                        TimeUnit.NANOSECONDS.sleep(sleepInterval);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                    }
+                    continue;
+                }
+
+                long lateness = -sleepInterval;
+
+                ticks.incrementAndGet();
+                totalLateness.addAndGet(lateness);
+                if (lateness > slotDuration)
+                    lateTicks.incrementAndGet();
+                if (lateness > maxLateness.get())
+                    maxLateness.set(lateness);
+
+                for (Runnable task : slots[slot])
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (Throwable t)
+                    {
+                        if (t instanceof ThreadDeath)
+                            throw (ThreadDeath) t;
+                        else
+                            logger.warn("A MediaClock task failed", t);
+                    }
+                }
+
+                slot = (slot + 1) % SLOTS;
+                deadline += slotDuration;
+
+                /*
+                 * After a stall, the tasks don't get the ticks they missed :
+                 * the whole revolutions missed are skipped, and each task is
+                 * run at most once late.
+                 */
+                long missed = (System.nanoTime() - deadline) / interval;
+
+                if (missed > 0)
+                {
+                    deadline += missed * interval;
+                    skippedTicks.addAndGet(missed * SLOTS);
+                }
+            }
+        }
+    }
+}
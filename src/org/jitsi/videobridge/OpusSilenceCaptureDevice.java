@@ -0,0 +1,216 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.videobridge;
+
+import java.io.*;
+
+import javax.media.*;
+import javax.media.control.*;
+import javax.media.format.*;
+import javax.media.protocol.*;
+
+import org.jitsi.impl.neomedia.codec.*;
+import org.jitsi.impl.neomedia.jmfext.media.protocol.*;
+import org.jitsi.service.neomedia.codec.*;
+
+/**
+ * Implements a <tt>CaptureDevice</tt> which provides silence in the form of
+ * already encoded Opus frames : every 20 ms, its stream outputs a copy of a
+ * cached Opus silence frame, so that the <tt>MediaStream</tt>s using it only
+ * have to packetize it (i.e. set the SSRC, sequence number and timestamp of
+ * the RTP packets) and never go through the Opus encoder.
+ */
+public class OpusSilenceCaptureDevice
+    extends AbstractPushBufferCaptureDevice
+{
+    /**
+     * The interval of time in milliseconds between two consecutive frames,
+     * i.e. the duration of the cached Opus frame.
+     */
+    private static final long CLOCK_TICK_INTERVAL = 20;
+
+    /**
+     * The cached Opus frame : a TOC byte for a 20 ms CELT-only fullband stereo
+     * frame (matching the 2 channels of the supported format), followed by a
+     * payload whose first symbol is the CELT silence flag, so that it decodes
+     * to digital silence whatever the number of channels.
+     */
+    private static final byte[] OPUS_SILENCE_FRAME
+        = new byte[] { (byte) 0xFC, (byte) 0xFF, (byte) 0xFE };
+
+    /**
+     * The list of <tt>Format</tt>s supported by the
+     * <tt>OpusSilenceCaptureDevice</tt> instances.
+     */
+    private static final Format[] SUPPORTED_FORMATS
+        = new Format[]
+                {
+                    new AudioFormat(
+                            Constants.OPUS_RTP,
+                            48000,
+                            Format.NOT_SPECIFIED,
+                            2 /* channels */)
+                    {
+                        /**
+                         * FMJ depends on this value when it calculates the RTP
+                         * timestamps on the packets that it sends.
+                         */
+                        @Override
+                        public long computeDuration(long length)
+                        {
+                            return CLOCK_TICK_INTERVAL * 1000 * 1000;
+                        }
+                    }
+                };
+
+    /**
+     * {@inheritDoc}
+     *
+     * Implements
+     * {@link AbstractPushBufferCaptureDevice#createStream(int, FormatControl)}.
+     */
+    protected OpusSilenceStream createStream(
+            int streamIndex,
+            FormatControl formatControl)
+    {
+        return new OpusSilenceStream(this, formatControl);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Overrides the super implementation in order to return the list of
+     * <tt>Format</tt>s hardcoded as supported in
+     * <tt>OpusSilenceCaptureDevice</tt> because the super looks them up by
+     * <tt>CaptureDeviceInfo</tt> and this instance does not have one.
+     */
+    @Override
+    protected Format[] getSupportedFormats(int streamIndex)
+    {
+        return SUPPORTED_FORMATS.clone();
+    }
+
+    /**
+     * Implements a <tt>PushBufferStream</tt> which provides silence in the form
+     * of encoded Opus frames, ticked by the shared <tt>MediaClock</tt>.
+     */
+    private static class OpusSilenceStream
+        extends AbstractPushBufferStream<OpusSilenceCaptureDevice>
+        implements Runnable
+    {
+        /**
+         * The indicator which determines whether {@link #start()} has been
+         * invoked on this instance without an intervening {@link #stop()}.
+         */
+        private boolean started;
+
+        /**
+         * Initializes a new <tt>OpusSilenceStream</tt> which is to be exposed
+         * by a specific <tt>OpusSilenceCaptureDevice</tt> and which is to have
+         * its <tt>Format</tt>-related information abstracted by a specific
+         * <tt>FormatControl</tt>.
+         *
+         * @param dataSource the <tt>OpusSilenceCaptureDevice</tt> which is
+         * initializing the new instance and which is to expose it in its array
+         * of <tt>PushBufferStream</tt>s
+         * @param formatControl the <tt>FormatControl</tt> which is to abstract
+         * the <tt>Format</tt>-related information of the new instance
+         */
+        public OpusSilenceStream(
+                OpusSilenceCaptureDevice dataSource,
+                FormatControl formatControl)
+        {
+            super(dataSource, formatControl);
+        }
+
+        /**
+         * Reads the cached Opus silence frame into a specific <tt>Buffer</tt>.
+         *
+         * @param buffer the <tt>Buffer</tt> to write the frame into
+         * @throws IOException never
+         */
+        public void read(Buffer buffer)
+            throws IOException
+        {
+            byte[] data
+                = AbstractCodec2.validateByteArraySize(
+                        buffer,
+                        OPUS_SILENCE_FRAME.length,
+                        false);
+
+            System.arraycopy(
+                    OPUS_SILENCE_FRAME, 0,
+                    data, 0,
+                    OPUS_SILENCE_FRAME.length);
+
+            buffer.setFormat(getFormat());
+            buffer.setLength(OPUS_SILENCE_FRAME.length);
+            buffer.setOffset(0);
+            buffer.setDuration(CLOCK_TICK_INTERVAL * 1000 * 1000);
+        }
+
+        /**
+         * Runs on a thread of the shared <tt>MediaClock</tt> at each tick and
+         * pushes the next frame out of this instance to its consumer i.e.
+         * <tt>BufferTransferHandler</tt>.
+         */
+        public void run()
+        {
+            synchronized (this)
+            {
+                if (!started)
+                    return;
+            }
+
+            BufferTransferHandler transferHandler = this.transferHandler;
+
+            if (transferHandler != null)
+                transferHandler.transferData(this);
+        }
+
+        /**
+         * Starts the transfer of media data from this instance : it is
+         * registered with the shared <tt>MediaClock</tt>.
+         *
+         * @throws IOException if an error has prevented the start of the
+         * transfer of media from this instance
+         */
+        @Override
+        public synchronized void start()
+            throws IOException
+        {
+            if (!started)
+            {
+                started = true;
+                MediaClock.getInstance(CLOCK_TICK_INTERVAL).register(this);
+            }
+        }
+
+        /**
+         * Stops the transfer of media data from this instance.
+         *
+         * @throws IOException if an error has prevented the stopping of the
+         * transfer of media from this instance
+         */
+        @Override
+        public synchronized void stop()
+            throws IOException
+        {
+            started = false;
+            MediaClock.getInstance(CLOCK_TICK_INTERVAL).unregister(this);
+        }
+    }
+}
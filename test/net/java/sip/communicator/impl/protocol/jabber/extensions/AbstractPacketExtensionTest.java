@@ -0,0 +1,150 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions;
+
+import static org.junit.Assert.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+
+import org.junit.*;
+
+/**
+ * Tests that the cached XML of <tt>AbstractPacketExtension</tt> follows the
+ * changes of the extension tree.
+ */
+public class AbstractPacketExtensionTest
+{
+    /**
+     * The content of the tested tree.
+     */
+    private ContentPacketExtension content;
+
+    /**
+     * The RTP description of <tt>content</tt>.
+     */
+    private RtpDescriptionPacketExtension description;
+
+    /**
+     * The ICE transport of <tt>content</tt>.
+     */
+    private IceUdpTransportPacketExtension transport;
+
+    /**
+     * The candidate of <tt>transport</tt>.
+     */
+    private CandidatePacketExtension candidate;
+
+    /**
+     * Creates a content with a payload type and a candidate, and caches its
+     * XML.
+     */
+    @Before
+    public void setUp()
+    {
+        content = new ContentPacketExtension();
+        content.setName("audio");
+
+        description = new RtpDescriptionPacketExtension();
+        description.setMedia("audio");
+        description.addPayloadType(payloadType(111, "opus"));
+        content.addChildExtension(description);
+
+        transport = new IceUdpTransportPacketExtension();
+        candidate = new CandidatePacketExtension();
+        candidate.setComponent(1);
+        candidate.setIP("10.0.0.1");
+        candidate.setPort(10000);
+        transport.addCandidate(candidate);
+        content.addChildExtension(transport);
+
+        assertSame(content.toXML(), content.toXML());
+    }
+
+    /**
+     * A change of an attribute of a nested candidate is in the XML of the
+     * content.
+     */
+    @Test
+    public void testNestedCandidateChange()
+    {
+        String xml = content.toXML();
+
+        candidate.setPort(10002);
+
+        String changed = content.toXML();
+        assertTrue(changed.contains("port='10002'"));
+        assertEquals(xml.replace("port='10000'", "port='10002'"), changed);
+    }
+
+    /**
+     * The elements added to and removed from the child lists held by the
+     * subclasses (payload types, candidates) are in the XML of the content.
+     */
+    @Test
+    public void testSubclassChildListChange()
+    {
+        String xml = content.toXML();
+
+        description.addPayloadType(payloadType(0, "PCMU"));
+        String added = content.toXML();
+        assertTrue(added.contains("name='PCMU'"));
+
+        description.getPayloadTypes().remove(1);
+        assertEquals(xml, content.toXML());
+
+        CandidatePacketExtension other = new CandidatePacketExtension();
+        other.setComponent(1);
+        other.setIP("10.0.0.2");
+        other.setPort(20000);
+        transport.addCandidate(other);
+        assertTrue(content.toXML().contains("ip='10.0.0.2'"));
+
+        transport.removeCandidate(other);
+        assertEquals(xml, content.toXML());
+    }
+
+    /**
+     * The attribute values are escaped once.
+     */
+    @Test
+    public void testAttributeEscapedOnce()
+    {
+        ConferenceDescriptionPacketExtension cd
+            = new ConferenceDescriptionPacketExtension();
+        cd.setUri("sip:a@b?x=1&y=2");
+        cd.setName("Tom's");
+
+        String xml = cd.toXML();
+        assertTrue(xml.contains("'sip:a@b?x=1&amp;y=2'"));
+        assertTrue(xml.contains("'Tom&apos;s'"));
+        assertEquals("sip:a@b?x=1&y=2", cd.getUri());
+    }
+
+    /**
+     * Creates a payload type.
+     * @param id the ID of the payload type.
+     * @param name the name of the payload type.
+     * @return the payload type.
+     */
+    private static PayloadTypePacketExtension payloadType(int id, String name)
+    {
+        PayloadTypePacketExtension payloadType
+            = new PayloadTypePacketExtension();
+        payloadType.setId(id);
+        payloadType.setName(name);
+        return payloadType;
+    }
+}
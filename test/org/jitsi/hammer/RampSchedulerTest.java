@@ -0,0 +1,159 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+/**
+ * Tests the pacing of the user starts by <tt>RampScheduler</tt>.
+ */
+public class RampSchedulerTest
+{
+    /**
+     * The rate of the ramp, in users per second.
+     */
+    private static final double RATE = 20;
+
+    /**
+     * The period of the ramp, in nanoseconds.
+     */
+    private static final long PERIOD = (long) (1e9 / RATE);
+
+    /**
+     * The starts which don't wait for a slot go out a period apart.
+     */
+    @Test
+    public void testOnTimeStarts()
+        throws InterruptedException
+    {
+        RampScheduler scheduler = new RampScheduler(4, RATE);
+        final long[] times = new long[6];
+
+        for(int i = 0; i < times.length; i++)
+        {
+            final int index = i;
+
+            scheduler.submit(new Runnable()
+            {
+                public void run()
+                {
+                    times[index] = System.nanoTime();
+                }
+            });
+        }
+        scheduler.await();
+
+        assertEquals(times.length, scheduler.getCompleted());
+        for(int i = 1; i < times.length; i++)
+        {
+            assertTrue(
+                "start " + i + " after " + (times[i] - times[i - 1]) + "ns",
+                times[i] - times[i - 1] >= PERIOD / 2);
+        }
+    }
+
+    /**
+     * No more than <tt>maxInFlight</tt> starts run at the same time.
+     */
+    @Test
+    public void testMaxInFlight()
+        throws InterruptedException
+    {
+        RampScheduler scheduler = new RampScheduler(2, 0);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        for(int i = 0; i < 6; i++)
+        {
+            scheduler.submit(new Runnable()
+            {
+                public void run()
+                {
+                    int r = running.incrementAndGet();
+                    int max;
+                    while((max = maxRunning.get()) < r
+                            && !maxRunning.compareAndSet(max, r));
+                    sleep(PERIOD / 4);
+                    running.decrementAndGet();
+                }
+            });
+        }
+        scheduler.await();
+
+        assertEquals(6, scheduler.getCompleted());
+        assertEquals(2, scheduler.getMaxInFlight());
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    /**
+     * The starts following a late start (one which had to wait for a slot)
+     * still go out a period apart.
+     */
+    @Test
+    public void testLateStart()
+        throws InterruptedException
+    {
+        RampScheduler scheduler = new RampScheduler(1, RATE);
+        final long[] times = new long[5];
+
+        for(int i = 0; i < times.length; i++)
+        {
+            final int index = i;
+
+            scheduler.submit(new Runnable()
+            {
+                public void run()
+                {
+                    times[index] = System.nanoTime();
+                    //the first start holds the only slot for 4 periods.
+                    if(index == 0)
+                        sleep(4 * PERIOD);
+                }
+            });
+        }
+        scheduler.await();
+
+        assertEquals(times.length, scheduler.getCompleted());
+        assertTrue(times[1] - times[0] >= 4 * PERIOD);
+        for(int i = 2; i < times.length; i++)
+        {
+            assertTrue(
+                "start " + i + " after " + (times[i] - times[i - 1]) + "ns",
+                times[i] - times[i - 1] >= PERIOD / 2);
+        }
+    }
+
+    /**
+     * Sleep for <tt>nanos</tt> nanoseconds.
+     * @param nanos the time to sleep, in nanoseconds.
+     */
+    private static void sleep(long nanos)
+    {
+        try
+        {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.*;
+
+import org.jitsi.service.neomedia.*;
+import org.junit.*;
+
+/**
+ * Tests that the streaming generation of the JSON of <tt>FakeUserStats</tt>
+ * produces the same output as the former <tt>String.format()</tt> based one.
+ */
+public class FakeUserStatsTest
+{
+    /**
+     * <tt>appendStatsJSON</tt> and <tt>getStatsJSON</tt> produce the same JSON
+     * as the former implementation, for various stats and indentations.
+     */
+    @Test
+    public void testSameJSONAsFormat()
+    {
+        for(int seed = 0; seed < 20; seed++)
+        {
+            String username = "user" + seed;
+            long audioSsrc = 1000L + seed;
+            long videoSsrc = 4000000000L + seed;
+            FakeUserStats s = new FakeUserStats(username);
+            s.setMediaStreamStats(
+                createStream(AudioMediaStream.class, audioSsrc, seed));
+            s.setMediaStreamStats(
+                createStream(VideoMediaStream.class, videoSsrc, -seed));
+
+            for(int indent = 0; indent <= 4; indent += 2)
+            {
+                String expected = formatStatsJSON(
+                    s, username, audioSsrc, videoSsrc, indent);
+                StringBuilder builder = new StringBuilder("[");
+
+                s.appendStatsJSON(builder, indent);
+
+                assertEquals(expected, builder.substring(1));
+                assertEquals(expected, s.getStatsJSON(indent));
+            }
+        }
+    }
+
+    /**
+     * The former implementation of <tt>FakeUserStats.getStatsJSON</tt>.
+     * @param s the <tt>FakeUserStats</tt> to write.
+     * @param username the user name of <tt>s</tt>.
+     * @param audioSsrc the SSRC of the audio stream of <tt>s</tt>.
+     * @param videoSsrc the SSRC of the video stream of <tt>s</tt>.
+     * @param spaceIndent the number of spaces indenting each line.
+     * @return the JSON of <tt>s</tt>.
+     */
+    private static String formatStatsJSON(
+        FakeUserStats s,
+        String username,
+        long audioSsrc,
+        long videoSsrc,
+        int spaceIndent)
+    {
+        String indent = new String(new char[spaceIndent]).replace("\0" ,  " ");
+        StringBuilder builder = new StringBuilder();
+        builder.append(indent + "{\n");
+        builder.append(indent + "  \"username\" : \"" + username
+            + "\" , \n");
+        builder.append(indent + "  \"streams\" :\n");
+
+        Object[] args = new Object[46];
+        putArgs(args, 0, audioSsrc, s.getMediaStreamStats(MediaType.AUDIO));
+        putArgs(args, 23, videoSsrc, s.getMediaStreamStats(MediaType.VIDEO));
+        String str = String.format(FakeUserStats.jsonTemplate, args);
+        str = indent + str.replaceAll("\n", "\n"+indent);
+        builder.append(str + '\n');
+
+        builder.append(indent + "}");
+
+        return builder.toString();
+    }
+
+    /**
+     * Put the arguments of <tt>jsonMediaStreamStatsTemplate</tt> for a
+     * stream in <tt>args</tt>.
+     * @param args the arguments of <tt>String.format()</tt>.
+     * @param off the index of the first argument of the stream.
+     * @param ssrc the SSRC of the stream.
+     * @param stats the <tt>MediaStreamStats</tt> of the stream.
+     */
+    private static void putArgs(
+        Object[] args,
+        int off,
+        long ssrc,
+        MediaStreamStats stats)
+    {
+        Object[] streamArgs = new Object[] {
+            ssrc,
+            stats.getDownloadJitterMs(),
+            stats.getDownloadPercentLoss(),
+            stats.getDownloadRateKiloBitPerSec(),
+            stats.getJitterBufferDelayMs(),
+            stats.getJitterBufferDelayPackets(),
+            stats.getNbDiscarded(),
+            stats.getNbDiscardedFull(),
+            stats.getNbDiscardedLate(),
+            stats.getNbDiscardedReset(),
+            stats.getNbDiscardedShrink(),
+            stats.getNbFec(),
+            stats.getNbPackets(),
+            stats.getNbPacketsLost(),
+            stats.getNbReceivedBytes(),
+            stats.getNbSentBytes(),
+            stats.getPacketQueueCountPackets(),
+            stats.getPacketQueueSize(),
+            stats.getPercentDiscarded(),
+            stats.getRttMs(),
+            stats.getUploadJitterMs(),
+            stats.getUploadPercentLoss(),
+            stats.getUploadRateKiloBitPerSec()
+        };
+        System.arraycopy(streamArgs, 0, args, off, streamArgs.length);
+    }
+
+    /**
+     * Create a <tt>MediaStream</tt> of type <tt>type</tt> whose
+     * <tt>MediaStreamStats</tt> return values derived from <tt>seed</tt>
+     * and from the name of the stat.
+     * @param type the type of the <tt>MediaStream</tt>.
+     * @param ssrc the SSRC of the stream.
+     * @param seed the seed of the values of the stats.
+     * @return the <tt>MediaStream</tt>.
+     */
+    private static MediaStream createStream(
+        Class<? extends MediaStream> type,
+        final long ssrc,
+        final int seed)
+    {
+        final MediaStreamStats streamStats
+            = (MediaStreamStats) Proxy.newProxyInstance(
+                FakeUserStatsTest.class.getClassLoader(),
+                new Class<?>[] { MediaStreamStats.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method m, Object[] args)
+                    {
+                        Class<?> r = m.getReturnType();
+                        int h = m.getName().hashCode() & 0xffff;
+                        if(r == double.class)
+                            return (seed == 3) ? Double.NaN : (h * seed) / 7.0;
+                        if(r == long.class)
+                            return (long) h * seed;
+                        if(r == int.class)
+                            return (h % 100) * seed;
+                        return null;
+                    }
+                });
+
+        return (MediaStream) Proxy.newProxyInstance(
+            FakeUserStatsTest.class.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method m, Object[] args)
+                {
+                    if("getMediaStreamStats".equals(m.getName()))
+                        return streamStats;
+                    if("getLocalSourceID".equals(m.getName()))
+                        return ssrc;
+                    return null;
+                }
+            });
+    }
+}
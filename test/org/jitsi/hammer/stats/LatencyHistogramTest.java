@@ -0,0 +1,113 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Tests the percentiles of <tt>LatencyHistogram</tt>.
+ */
+public class LatencyHistogramTest
+{
+    /**
+     * The percentiles checked.
+     */
+    private static final double[] PERCENTILES = { 0, 50, 90, 99, 99.9, 100 };
+
+    /**
+     * An empty histogram has no percentile, and its JSON is still valid.
+     */
+    @Test
+    public void testEmpty()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(-1);
+        h.record(Double.NaN);
+
+        assertEquals(0, h.getTotalCount());
+        for(double p : PERCENTILES)
+            assertTrue(Double.isNaN(h.getValueAtPercentile(p)));
+
+        StringBuilder builder = new StringBuilder();
+        h.appendPercentilesJSON(builder);
+        assertEquals(
+            "{ \"p50\":null , \"p90\":null , \"p99\":null , \"p99.9\":null"
+                + " , \"count\":0 }",
+            builder.toString());
+    }
+
+    /**
+     * All the percentiles of a histogram with a single value are this value.
+     */
+    @Test
+    public void testSingleValue()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(123.456);
+
+        assertEquals(1, h.getTotalCount());
+        for(double p : PERCENTILES)
+            assertEquals(123.456, h.getValueAtPercentile(p), 0);
+
+        StringBuilder builder = new StringBuilder();
+        h.appendPercentilesJSON(builder);
+        assertEquals(
+            "{ \"p50\":123.456 , \"p90\":123.456 , \"p99\":123.456"
+                + " , \"p99.9\":123.456 , \"count\":1 }",
+            builder.toString());
+    }
+
+    /**
+     * The percentiles are within 1/64 of the exact percentiles, for values
+     * of any magnitude.
+     */
+    @Test
+    public void testErrorBound()
+    {
+        Random random = new Random(42);
+
+        for(int magnitude = 0; magnitude < 8; magnitude++)
+        {
+            LatencyHistogram h = new LatencyHistogram();
+            long[] values = new long[10000];
+
+            for(int i = 0; i < values.length; i++)
+            {
+                values[i] = 1 + (long) (random.nextDouble()
+                    * Math.pow(10, magnitude + 1));
+                h.record((double) values[i] / LatencyHistogram.SCALE);
+            }
+            Arrays.sort(values);
+
+            for(double p : PERCENTILES)
+            {
+                int rank = (int) Math.ceil(p / 100 * values.length);
+                double exact = (double) values[Math.max(rank, 1) - 1]
+                    / LatencyHistogram.SCALE;
+                double value = h.getValueAtPercentile(p);
+
+                assertTrue(value >= exact);
+                assertTrue(
+                    "p" + p + " " + value + " for " + exact,
+                    value - exact <= exact / 64);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.stats;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+/**
+ * Tests the durations of the stages of <tt>SessionMilestones</tt>.
+ */
+public class SessionMilestonesTest
+{
+    /**
+     * The stages ending at milestones reached in order have the duration
+     * since the previous milestone reached, skipping the ones which weren't.
+     */
+    @Test
+    public void testMilestonesInOrder()
+        throws InterruptedException
+    {
+        SessionMilestones milestones = new SessionMilestones();
+
+        mark(milestones, SessionMilestones.START);
+        mark(milestones, SessionMilestones.CONNECTED);
+        mark(milestones, SessionMilestones.LOGGED_IN);
+        mark(milestones, SessionMilestones.SESSION_ACCEPT);
+        mark(milestones, SessionMilestones.ICE_COMPLETED);
+
+        assertEquals(0, milestones.getElapsedMs(SessionMilestones.START), 0);
+        assertEquals(
+            milestones.getElapsedMs(SessionMilestones.CONNECTED),
+            milestones.getStageMs(SessionMilestones.CONNECTED),
+            1e-6);
+        //the MUC join and the session-initiate weren't watched.
+        assertFalse(milestones.isReached(SessionMilestones.MUC_JOINED));
+        assertEquals(
+            -1,
+            milestones.getStageMs(SessionMilestones.SESSION_INITIATE),
+            0);
+        assertEquals(
+            milestones.getElapsedMs(SessionMilestones.SESSION_ACCEPT)
+                - milestones.getElapsedMs(SessionMilestones.LOGGED_IN),
+            milestones.getStageMs(SessionMilestones.SESSION_ACCEPT),
+            1e-6);
+        assertEquals(
+            milestones.getElapsedMs(SessionMilestones.ICE_COMPLETED)
+                - milestones.getElapsedMs(SessionMilestones.SESSION_ACCEPT),
+            milestones.getStageMs(SessionMilestones.ICE_COMPLETED),
+            1e-6);
+        assertEquals(
+            -1,
+            milestones.getElapsedMs(SessionMilestones.DTLS_COMPLETED),
+            0);
+    }
+
+    /**
+     * The stages ending at milestones reached out of order have the duration
+     * since the latest previous milestone reached before them.
+     */
+    @Test
+    public void testMilestonesOutOfOrder()
+        throws InterruptedException
+    {
+        SessionMilestones milestones = new SessionMilestones();
+
+        mark(milestones, SessionMilestones.START);
+        mark(milestones, SessionMilestones.SESSION_ACCEPT);
+        mark(milestones, SessionMilestones.ICE_COMPLETED);
+        mark(milestones, SessionMilestones.FIRST_RTP_SENT);
+        mark(milestones, SessionMilestones.FIRST_RTP_RECEIVED);
+        mark(milestones, SessionMilestones.DTLS_COMPLETED);
+
+        for(int m = SessionMilestones.START + 1;
+                m < SessionMilestones.COUNT;
+                m++)
+        {
+            if(milestones.isReached(m))
+                assertTrue(milestones.getStageMs(m) >= 0);
+            else
+                assertEquals(-1, milestones.getStageMs(m), 0);
+        }
+
+        //the first RTP packet sent is measured from ICE, not from DTLS.
+        assertEquals(
+            milestones.getElapsedMs(SessionMilestones.FIRST_RTP_SENT)
+                - milestones.getElapsedMs(SessionMilestones.ICE_COMPLETED),
+            milestones.getStageMs(SessionMilestones.FIRST_RTP_SENT),
+            1e-6);
+        assertEquals(
+            milestones.getElapsedMs(SessionMilestones.FIRST_RTP_RECEIVED)
+                - milestones.getElapsedMs(SessionMilestones.FIRST_RTP_SENT),
+            milestones.getStageMs(SessionMilestones.FIRST_RTP_RECEIVED),
+            1e-6);
+    }
+
+    /**
+     * A session which failed keeps the first milestone it couldn't reach.
+     */
+    @Test
+    public void testFailure()
+    {
+        SessionMilestones milestones = new SessionMilestones();
+
+        assertEquals(-1, milestones.getFailedMilestone());
+        milestones.mark(SessionMilestones.START);
+        milestones.markFailed(SessionMilestones.ICE_COMPLETED);
+        milestones.markFailed(SessionMilestones.DTLS_COMPLETED);
+
+        assertEquals(
+            SessionMilestones.ICE_COMPLETED,
+            milestones.getFailedMilestone());
+        assertFalse(milestones.isReached(SessionMilestones.ICE_COMPLETED));
+        assertEquals(
+            -1,
+            milestones.getStageMs(SessionMilestones.ICE_COMPLETED),
+            0);
+    }
+
+    /**
+     * Mark <tt>milestone</tt>, then wait for the clock to move on.
+     * @param milestones the <tt>SessionMilestones</tt>.
+     * @param milestone the milestone to mark.
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    private static void mark(SessionMilestones milestones, int milestone)
+        throws InterruptedException
+    {
+        milestones.mark(milestone);
+        Thread.sleep(2);
+    }
+}
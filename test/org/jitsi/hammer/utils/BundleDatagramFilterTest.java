@@ -0,0 +1,100 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.utils;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Tests the demultiplexing of the RTP and RTCP packets by
+ * <tt>HammerUtils.isRtcp</tt> and <tt>BundleDatagramFilter</tt>.
+ */
+public class BundleDatagramFilterTest
+{
+    /**
+     * The RTCP packet types : SR, RR, SDES, BYE, APP, RTPFB, PSFB and XR.
+     */
+    private static final int[] RTCP_TYPES
+        = { 200, 201, 202, 203, 204, 205, 206, 207 };
+
+    /**
+     * The feedback (RTPFB, PSFB) and XR packets are RTCP packets, and the
+     * RTP packets, with or without the marker bit, aren't.
+     */
+    @Test
+    public void testIsRtcp()
+    {
+        for(int pt : RTCP_TYPES)
+            assertTrue("pt " + pt, HammerUtils.isRtcp(packet(pt), 0, 8));
+
+        assertFalse(HammerUtils.isRtcp(packet(111), 0, 8));
+        assertFalse(HammerUtils.isRtcp(packet(0x80 | 111), 0, 8));
+        assertFalse(HammerUtils.isRtcp(packet(0x80 | 100), 0, 8));
+        assertFalse(HammerUtils.isRtcp(packet(205), 0, 1));
+    }
+
+    /**
+     * The RTCP packets, including the feedback ones, follow the RTCP
+     * setting of the filter, and not the payload types of its stream.
+     */
+    @Test
+    public void testFeedbackFollowsRtcp()
+    {
+        BundleDatagramFilter accepting
+            = new BundleDatagramFilter(Arrays.asList(111), true, false);
+        BundleDatagramFilter dropping
+            = new BundleDatagramFilter(Arrays.asList(77, 78), false, false);
+
+        for(int pt : RTCP_TYPES)
+        {
+            assertTrue("pt " + pt, accepting.accept(datagram(pt)));
+            assertFalse("pt " + pt, dropping.accept(datagram(pt)));
+        }
+
+        assertTrue(accepting.accept(datagram(111)));
+        assertTrue(accepting.accept(datagram(0x80 | 111)));
+        assertFalse(dropping.accept(datagram(111)));
+    }
+
+    /**
+     * Creates a packet of RTP version 2.
+     * @param secondByte the second byte of the packet : the RTCP packet type,
+     * or the marker bit and payload type of a RTP packet.
+     * @return the packet.
+     */
+    private static byte[] packet(int secondByte)
+    {
+        byte[] buf = new byte[8];
+        buf[0] = (byte) 0x80;
+        buf[1] = (byte) secondByte;
+        return buf;
+    }
+
+    /**
+     * Creates a <tt>DatagramPacket</tt> of RTP version 2.
+     * @param secondByte the second byte of the packet.
+     * @return the <tt>DatagramPacket</tt>.
+     */
+    private static DatagramPacket datagram(int secondByte)
+    {
+        byte[] buf = packet(secondByte);
+        return new DatagramPacket(buf, buf.length);
+    }
+}
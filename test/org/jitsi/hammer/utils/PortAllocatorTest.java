@@ -0,0 +1,130 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.hammer.utils;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Tests the claims and releases of the blocks of <tt>PortAllocator</tt>.
+ */
+public class PortAllocatorTest
+{
+    /**
+     * The first port of the range.
+     */
+    private static final int MIN_PORT = 41000;
+
+    /**
+     * The number of blocks of the range, more than a word of the bitmap and
+     * not a multiple of 64.
+     */
+    private static final int BLOCKS = 70;
+
+    /**
+     * The last port (excluded) of the range, with a trailing port too few
+     * for a block.
+     */
+    private static final int MAX_PORT = MIN_PORT + 2 * BLOCKS + 1;
+
+    /**
+     * Every block of the range is handed out once, and nothing more.
+     */
+    @Test
+    public void testClaimAll()
+    {
+        PortAllocator allocator = new PortAllocator(MIN_PORT, MAX_PORT, 2);
+        Set<Integer> ports = allocateAll(allocator);
+
+        assertEquals(BLOCKS, allocator.getCapacity());
+        assertEquals(BLOCKS, allocator.getAllocated());
+        assertEquals(BLOCKS, ports.size());
+        for(int port : ports)
+        {
+            assertTrue(port >= MIN_PORT && port + 2 <= MAX_PORT);
+            assertEquals(0, (port - MIN_PORT) % 2);
+        }
+        assertEquals(-1, allocator.allocate());
+    }
+
+    /**
+     * A released block is handed out again, even when the search has to wrap
+     * around to the first word of the bitmap, and a block is only released
+     * once.
+     */
+    @Test
+    public void testReleaseAndWrapAround()
+    {
+        PortAllocator allocator = new PortAllocator(MIN_PORT, MAX_PORT, 2);
+        allocateAll(allocator);
+
+        int port = MIN_PORT + 2 * 3;
+        allocator.release(port);
+        allocator.release(port);
+        assertEquals(BLOCKS - 1, allocator.getAllocated());
+
+        assertEquals(port, allocator.allocate());
+        assertEquals(BLOCKS, allocator.getAllocated());
+        assertEquals(-1, allocator.allocate());
+    }
+
+    /**
+     * A block whose ports are in use is skipped, and handed out by a later
+     * allocation once its ports are free.
+     */
+    @Test
+    public void testBlockInUse()
+        throws SocketException
+    {
+        PortAllocator allocator = new PortAllocator(MIN_PORT, MAX_PORT, 2);
+        DatagramSocket socket = new DatagramSocket(MIN_PORT + 1);
+        Set<Integer> ports;
+
+        try
+        {
+            ports = allocateAll(allocator);
+        }
+        finally
+        {
+            socket.close();
+        }
+
+        assertFalse(ports.contains(MIN_PORT));
+        assertEquals(BLOCKS - 1, ports.size());
+        assertTrue(allocator.getInUse() > 0);
+
+        assertEquals(MIN_PORT, allocator.allocate());
+        assertEquals(BLOCKS, allocator.getAllocated());
+    }
+
+    /**
+     * Allocates blocks until there is none left.
+     * @param allocator the <tt>PortAllocator</tt>.
+     * @return the first ports of the blocks handed out.
+     */
+    private static Set<Integer> allocateAll(PortAllocator allocator)
+    {
+        Set<Integer> ports = new HashSet<Integer>();
+        int port;
+        while((port = allocator.allocate()) >= 0)
+            assertTrue(ports.add(port));
+        return ports;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright @ 2015 AT&T
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.proxy.relay;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+/**
+ * Tests the mappings of <tt>SsrcRewriter</tt>, in particular when its table
+ * grows past its initial capacity, and the switches of its active source.
+ */
+public class SsrcRewriterTest
+{
+    /**
+     * The number of sources mapped, enough for the table to grow several
+     * times.
+     */
+    private static final int SOURCES = 40;
+
+    /**
+     * The first original SSRC.
+     */
+    private static final int SSRC = 1000;
+
+    /**
+     * The first new SSRC.
+     */
+    private static final int NEW_SSRC = 5000;
+
+    /**
+     * The rewriter of the tested direction.
+     */
+    private SsrcRewriter l2r;
+
+    /**
+     * The rewriter of the other direction.
+     */
+    private SsrcRewriter r2l;
+
+    /**
+     * Creates the rewriters of both directions.
+     */
+    @Before
+    public void setUp()
+    {
+        l2r = new SsrcRewriter(-1);
+        r2l = new SsrcRewriter(7777);
+        l2r.setReverse(r2l);
+        r2l.setReverse(l2r);
+    }
+
+    /**
+     * The sources taking turns continue the sequence numbers and timestamps
+     * of the rewritten stream, and every mapping added while the table grows
+     * is still used for the report blocks of the other direction.
+     */
+    @Test
+    public void testMappingsSurviveGrowth()
+    {
+        int[] lastSeqs = new int[SOURCES];
+        int seq = -1;
+        long timestamp = -1;
+
+        for(int n = 0; n < SOURCES; n++)
+        {
+            long now = n * SsrcRewriter.SWITCH_TIMEOUT_MS;
+
+            l2r.setTargetSsrc(NEW_SSRC + n);
+            for(int k = 0; k < 2; k++)
+            {
+                byte[] pkt = rtp(SSRC + n, 100 * n + k, 10000L * n + 960 * k);
+                assertTrue(l2r.rewriteRtp(pkt, 0, pkt.length, now));
+
+                assertEquals(NEW_SSRC + n, readInt(pkt, 8));
+                if(seq >= 0)
+                {
+                    assertEquals((seq + 1) & 0xffff, readShort(pkt, 2));
+                    assertTrue((readInt(pkt, 4) & 0xffffffffL) > timestamp);
+                }
+                seq = readShort(pkt, 2);
+                timestamp = readInt(pkt, 4) & 0xffffffffL;
+            }
+            lastSeqs[n] = seq;
+        }
+        assertEquals(SOURCES, l2r.size());
+
+        for(int n = 0; n < SOURCES; n++)
+        {
+            byte[] rr = receiverReport(NEW_SSRC + n, lastSeqs[n]);
+            r2l.rewriteRtcp(rr, 0, rr.length);
+
+            assertEquals(SSRC + n, readInt(rr, 8));
+            assertEquals(100 * n + 1, readInt(rr, 16) & 0xffff);
+        }
+        assertEquals(SOURCES, l2r.size());
+    }
+
+    /**
+     * The packets of a source interleaved with the ones of the active source
+     * are dropped, until the active source is silent long enough for the
+     * other one to take over and continue the rewritten stream.
+     */
+    @Test
+    public void testInterleavedSources()
+    {
+        l2r.setTargetSsrc(NEW_SSRC);
+
+        byte[] pkt = rtp(SSRC, 100, 1000);
+        assertTrue(l2r.rewriteRtp(pkt, 0, pkt.length, 0));
+        int seq = readShort(pkt, 2);
+        long timestamp = readInt(pkt, 4) & 0xffffffffL;
+
+        //the other source is dropped while the first one keeps sending.
+        for(int k = 1; k <= 5; k++)
+        {
+            pkt = rtp(SSRC + 1, 5000 + k, 900000 + 960 * k);
+            assertFalse(l2r.rewriteRtp(pkt, 0, pkt.length, k * 20));
+
+            pkt = rtp(SSRC, 100 + k, 1000 + 960 * k);
+            assertTrue(l2r.rewriteRtp(pkt, 0, pkt.length, k * 20));
+            assertEquals(NEW_SSRC, readInt(pkt, 8));
+            assertEquals((seq + 1) & 0xffff, readShort(pkt, 2));
+            assertTrue((readInt(pkt, 4) & 0xffffffffL) > timestamp);
+            seq = readShort(pkt, 2);
+            timestamp = readInt(pkt, 4) & 0xffffffffL;
+        }
+
+        //the first source is silent : the other one takes over.
+        long now = 100 + SsrcRewriter.SWITCH_TIMEOUT_MS;
+        pkt = rtp(SSRC + 1, 6000, 950000);
+        assertTrue(l2r.rewriteRtp(pkt, 0, pkt.length, now));
+        assertEquals(NEW_SSRC, readInt(pkt, 8));
+        assertEquals((seq + 1) & 0xffff, readShort(pkt, 2));
+        assertTrue((readInt(pkt, 4) & 0xffffffffL) > timestamp);
+        seq = readShort(pkt, 2);
+
+        //now the first source is the one dropped.
+        pkt = rtp(SSRC, 106, 1000 + 960 * 6);
+        assertFalse(l2r.rewriteRtp(pkt, 0, pkt.length, now + 20));
+
+        pkt = rtp(SSRC + 1, 6001, 950960);
+        assertTrue(l2r.rewriteRtp(pkt, 0, pkt.length, now + 20));
+        assertEquals((seq + 1) & 0xffff, readShort(pkt, 2));
+
+        //the report blocks are restored with the active source.
+        byte[] rr = receiverReport(NEW_SSRC, (seq + 1) & 0xffff);
+        r2l.rewriteRtcp(rr, 0, rr.length);
+        assertEquals(SSRC + 1, readInt(rr, 8));
+        assertEquals(6001, readInt(rr, 16) & 0xffff);
+    }
+
+    /**
+     * When all the sources are mapped to the same SSRC, the report blocks
+     * are restored with the last source activated, even after the table grew.
+     */
+    @Test
+    public void testLastSourceAfterGrowth()
+    {
+        l2r.setTargetSsrc(NEW_SSRC);
+        int lastSeq = -1;
+        for(int n = 0; n < SOURCES; n++)
+        {
+            byte[] pkt = rtp(SSRC + n, 100 * n, 10000L * n);
+            assertTrue(l2r.rewriteRtp(
+                pkt, 0, pkt.length, n * SsrcRewriter.SWITCH_TIMEOUT_MS));
+            lastSeq = readShort(pkt, 2);
+        }
+
+        byte[] rr = receiverReport(NEW_SSRC, lastSeq);
+        r2l.rewriteRtcp(rr, 0, rr.length);
+
+        assertEquals(SSRC + SOURCES - 1, readInt(rr, 8));
+        assertEquals(100 * (SOURCES - 1), readInt(rr, 16) & 0xffff);
+    }
+
+    /**
+     * Creates a RTP packet without payload.
+     * @param ssrc the SSRC of the packet.
+     * @param seq the sequence number of the packet.
+     * @param timestamp the timestamp of the packet.
+     * @return the packet.
+     */
+    private static byte[] rtp(int ssrc, int seq, long timestamp)
+    {
+        byte[] pkt = new byte[12];
+        pkt[0] = (byte) 0x80;
+        pkt[1] = 111;
+        writeShort(pkt, 2, seq);
+        writeInt(pkt, 4, (int) timestamp);
+        writeInt(pkt, 8, ssrc);
+        return pkt;
+    }
+
+    /**
+     * Creates a RTCP RR with one report block.
+     * @param ssrc the SSRC of the report block.
+     * @param seq the highest sequence number received of the report block.
+     * @return the packet.
+     */
+    private static byte[] receiverReport(int ssrc, int seq)
+    {
+        byte[] pkt = new byte[32];
+        pkt[0] = (byte) 0x81;
+        pkt[1] = (byte) 201;
+        writeShort(pkt, 2, pkt.length / 4 - 1);
+        writeInt(pkt, 4, 4242);
+        writeInt(pkt, 8, ssrc);
+        writeInt(pkt, 16, 0x10000 | seq);
+        return pkt;
+    }
+
+    /**
+     * Reads the 32 bits integer at <tt>off</tt> in <tt>buf</tt>.
+     * @param buf the buffer.
+     * @param off the offset.
+     * @return the 32 bits integer at <tt>off</tt> in <tt>buf</tt>.
+     */
+    private static int readInt(byte[] buf, int off)
+    {
+        return ((buf[off] & 0xff) << 24)
+            | ((buf[off + 1] & 0xff) << 16)
+            | ((buf[off + 2] & 0xff) << 8)
+            | (buf[off + 3] & 0xff);
+    }
+
+    /**
+     * Reads the unsigned 16 bits integer at <tt>off</tt> in <tt>buf</tt>.
+     * @param buf the buffer.
+     * @param off the offset.
+     * @return the unsigned 16 bits integer at <tt>off</tt> in <tt>buf</tt>.
+     */
+    private static int readShort(byte[] buf, int off)
+    {
+        return ((buf[off] & 0xff) << 8) | (buf[off + 1] & 0xff);
+    }
+
+    /**
+     * Writes the 32 bits integer <tt>value</tt> at <tt>off</tt> in
+     * <tt>buf</tt>.
+     * @param buf the buffer.
+     * @param off the offset.
+     * @param value the value to write.
+     */
+    private static void writeInt(byte[] buf, int off, int value)
+    {
+        buf[off] = (byte) (value >> 24);
+        buf[off + 1] = (byte) (value >> 16);
+        buf[off + 2] = (byte) (value >> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    /**
+     * Writes the 16 bits integer <tt>value</tt> at <tt>off</tt> in
+     * <tt>buf</tt>.
+     * @param buf the buffer.
+     * @param off the offset.
+     * @param value the value to write.
+     */
+    private static void writeShort(byte[] buf, int off, int value)
+    {
+        buf[off] = (byte) (value >> 8);
+        buf[off + 1] = (byte) value;
+    }
+}